@@ -0,0 +1,87 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+/**
+ * Runs the tests of {@link ScoreTest}, {@link TrustTest} and {@link WoTTest} with the {@link WebOfTrust#DEFAULT_ACTIVATION_DEPTH} and the
+ * {@link WebOfTrust#LOW_ACTIVATION_DEPTH} and prints the time and peak heap usage of both. {@link ActivationDepthTest} checks that the tests
+ * pass with the low depth in the unit tests.
+ *
+ * Run it with "ant benchmark -Dbenchmark.name=ActivationDepthBenchmark".
+ */
+public final class ActivationDepthBenchmark extends TestCase {
+
+	private String mOldActivationDepth;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mOldActivationDepth = System.getProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+
+		if(mOldActivationDepth != null)
+			System.setProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY, mOldActivationDepth);
+		else
+			System.clearProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY);
+	}
+
+	public void testActivationDepthBenchmark() throws Exception {
+		final int[] depths = new int[] { WebOfTrust.DEFAULT_ACTIVATION_DEPTH, WebOfTrust.LOW_ACTIVATION_DEPTH };
+		final Class<?>[] testClasses = new Class<?>[] { ScoreTest.class, TrustTest.class, WoTTest.class };
+
+		for(int depth : depths) {
+			System.setProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY, Integer.toString(depth));
+
+			for(Class<?> testClass : testClasses) {
+				final TestSuite suite = new TestSuite(testClass);
+				final TestResult result = new TestResult();
+
+				System.gc();
+				resetHeapPeakUsage();
+				final long startTime = System.nanoTime();
+				suite.run(result);
+				final long time = System.nanoTime() - startTime;
+
+				assertTrue(testClass.getSimpleName() + " failed with activation depth " + depth, result.wasSuccessful());
+
+				System.out.println("ActivationDepthBenchmark: " + testClass.getSimpleName() + " with activation depth " + depth + ": "
+						+ time / 1000000 + "ms, peak heap usage " + getHeapPeakUsage() / (1024 * 1024) + "MiB");
+			}
+		}
+	}
+
+	private static void resetHeapPeakUsage() {
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * @return The sum of the peak usages of the heap memory pools. This is an upper bound of the peak heap usage because the pools do not
+	 *     necessarily reach their peak at the same time.
+	 */
+	private static long getHeapPeakUsage() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+}
@@ -0,0 +1,58 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * Measures the size of identities in the database and on the heap and the time for storing and loading them.
+ * IdentityTest.testNoStoredRequestURIs() checks in the unit tests that the request URIs are not stored as FreenetURI objects.
+ *
+ * Run it with "ant benchmark -Dbenchmark.name=IdentityFootprintBenchmark". The amount of identities is configured with the system property
+ * "benchmark.identities" (default 50000).
+ */
+public final class IdentityFootprintBenchmark extends DatabaseBasedTest {
+
+	public void testFootprintBenchmark() throws Exception {
+		final int count = Integer.getInteger("benchmark.identities", 50000);
+		final ExtObjectContainer db = mWoT.getDatabase();
+
+		final long sizeBefore = db.systemInfo().totalSize();
+		long startTime = System.nanoTime();
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			for(int i = 0; i < count; ++i) {
+				final Identity newIdentity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+				newIdentity.initializeTransient(mWoT);
+				newIdentity.storeWithoutCommit();
+			}
+			Persistent.checkedCommit(db, this);
+		}
+		}
+		final long storeTime = System.nanoTime() - startTime;
+		final long size = db.systemInfo().totalSize() - sizeBefore;
+		flushCaches();
+
+		final Runtime runtime = Runtime.getRuntime();
+		final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		startTime = System.nanoTime();
+		final ArrayList<Identity> identities = new ArrayList<Identity>(count);
+		for(Identity loaded : mWoT.getAllIdentities()) {
+			loaded.getRequestURI();
+			identities.add(loaded);
+		}
+		final long loadTime = System.nanoTime() - startTime;
+		flushCaches();
+		final long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+		assertEquals(count, identities.size());
+
+		System.out.println("IdentityFootprintBenchmark: " + identities.size() + " identities: " + size / count + " bytes per identity in the "
+				+ "database, " + heap / identities.size() + " bytes per identity on the heap; storing took " + storeTime / 1000 / count
+				+ "us per identity, loading " + loadTime / 1000 / identities.size() + "us per identity");
+	}
+
+}
@@ -0,0 +1,96 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the throughput and, if the JVM can measure it, the allocation of {@link XMLTransformer#parseIdentityXML(java.io.InputStream)}
+ * and {@link XMLTransformer#parseIdentityXMLWithDOM(java.io.InputStream)}, for a trust list of typical size and for one which nearly
+ * fills {@link XMLTransformer#MAX_IDENTITY_XML_BYTE_SIZE}. {@link XMLTransformerTest} checks that both return the same result in the unit
+ * tests.
+ *
+ * Run it with "ant benchmark -Dbenchmark.name=IdentityXMLParserBenchmark". The amount of measured parses is configured with the system
+ * property "benchmark.iterations" (default 200).
+ */
+public final class IdentityXMLParserBenchmark extends DatabaseBasedTest {
+
+	private XMLTransformer mTransformer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mTransformer = new XMLTransformer(mWoT);
+	}
+
+	public void testParseIdentityXMLBenchmark() throws Exception {
+		final int iterations = Integer.getInteger("benchmark.iterations", 200);
+
+		for(int trustees : new int[] { 345, XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE / 200 }) {
+			final byte[] xml = createIdentityXML(trustees);
+
+			for(boolean dom : new boolean[] { true, false }) {
+				// Warm up the JIT
+				for(int i = 0; i < iterations / 10 + 1; ++i)
+					parse(xml, dom);
+
+				flushCaches();
+				final long startBytes = getAllocatedBytes();
+				final long startTime = System.nanoTime();
+				for(int i = 0; i < iterations; ++i)
+					assertNull(parse(xml, dom).parseError);
+				final long time = System.nanoTime() - startTime;
+				final long bytes = getAllocatedBytes() - startBytes;
+
+				System.out.println("IdentityXMLParserBenchmark: " + (dom ? "DOM" : "SAX") + ", " + trustees + " trustees, " + xml.length / 1024
+					+ " KiB: " + time / 1000 / iterations + "us per parse, "
+					+ (xml.length * (long)iterations * 1000000000 / 1024 / 1024 / Math.max(time, 1)) + " MiB/s, "
+					+ (startBytes >= 0 ? (bytes / iterations / 1024 + " KiB allocated per parse") : "allocation cannot be measured"));
+			}
+		}
+	}
+
+	private XMLTransformer.ParsedIdentityXML parse(byte[] xml, boolean dom) {
+		return dom ? mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml))
+			: mTransformer.parseIdentityXML(new ByteArrayInputStream(xml));
+	}
+
+	/**
+	 * @return The bytes which the current thread has allocated, -1 if the JVM does not support measuring it.
+	 */
+	private static long getAllocatedBytes() {
+		try {
+			final Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+			final Object bean = ManagementFactory.getThreadMXBean();
+			if(!beanClass.isInstance(bean))
+				return -1;
+			return (Long)beanClass.getMethod("getThreadAllocatedBytes", long.class).invoke(bean, Thread.currentThread().getId());
+		} catch(Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The XML of an identity with a trust list of the given size, which is similar to the XML of real identities.
+	 */
+	private byte[] createIdentityXML(int trustees) throws Exception {
+		final StringBuilder xml = new StringBuilder(trustees * 200 + 512);
+		xml.append("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>");
+		xml.append("<WebOfTrust Version=\"1\">");
+		xml.append("<Identity Name=\"test-identity\" PublishesTrustList=\"true\" Version=\"1\">");
+		xml.append("<Context Name=\"Freetalk\"/><Context Name=\"Introduction\"/>");
+		xml.append("<Property Name=\"IntroductionPuzzleCount\" Value=\"10\"/>");
+		xml.append("<TrustList>");
+		for(int i = 0; i < trustees; ++i) {
+			xml.append("<Trust Comment=\"Trust comment " + i + "\" Identity=\"" + getRandomRequestURI() + "\" Value=\""
+				+ (mRandom.nextInt(201) - 100) + "\"/>");
+		}
+		xml.append("</TrustList>");
+		xml.append("</Identity></WebOfTrust>");
+		return xml.toString().getBytes("UTF-8");
+	}
+
+}
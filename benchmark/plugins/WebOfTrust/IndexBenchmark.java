@@ -0,0 +1,687 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import plugins.WebOfTrust.WebOfTrust.SortOrder;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
+import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.introduction.OwnIntroductionPuzzle;
+
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.support.CurrentTimeUTC;
+
+/**
+ * Measures the latency of every query shape of {@link WebOfTrust} and {@link IntroductionPuzzleStore} on a generated database with the
+ * indices which {@link WebOfTrust#openDatabase(File)} creates from the {@link Persistent.IndexedClass} and {@link Persistent.IndexedField}
+ * annotations, with class indices for all classes and with each of the annotated indices disabled. A disabled index which changes a result is
+ * required for correctness, one which makes a query much slower is required for performance.
+ *
+ * The query shapes are the ones of {@link IndexConfigurationTest}, which checks the results in the unit tests. Run the benchmark with
+ * "ant benchmark -Dbenchmark.name=IndexBenchmark". The size of the database can be configured with the system properties
+ * "benchmark.identities" and "benchmark.iterations".
+ *
+ * The point lookups of getTrust() and getScore(), which query {@link Trust#getID()} and {@link Score#getID()} and check the identities of the
+ * result, are also measured with the query by truster and trustee which they used before the IDs existed and with the query which constrains
+ * all three fields.
+ */
+public final class IndexBenchmark extends DatabaseBasedTest {
+
+	private final String uriO = "USK@8VTguDZehMlShIb7Q~F1wYpOnDK7pSZVwrGArACP~04,MK0wfPtNud~nWyp~oy0Kr1~kFuYfJ9~LlxNribWD4Us,AQACAAE/WoT/0";
+	private final String uriS = "USK@hAOgofNsQEbT~aRqGuXwt8vI7tOeQVCrcIHrD9PvS6g,fG7LHRJhczCAApOwgaXNJO41L8wRIZj9oN37LSLZZY8,AQACAAE/WoT/0";
+
+	/** The persistent classes of {@link WebOfTrust#openDatabase(File)} */
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends Persistent>[] PERSISTENT_CLASSES = new Class[] {
+		Identity.class,
+		OwnIdentity.class,
+		Trust.class,
+		Score.class,
+		IntroductionPuzzle.class,
+		OwnIntroductionPuzzle.class
+	};
+
+	private String mOldDisabledIndices;
+
+	private String mOldAllClassIndices;
+
+	/* The parameters of the queries. They are stored as db4o object IDs because those stay valid when the database is copied. */
+
+	private long[] mIdentityObjectIDs;
+
+	private long[] mOwnIdentityObjectIDs;
+
+	private long[] mTrusterObjectIDs;
+
+	private long[] mTrusteeObjectIDs;
+
+	private long[] mPuzzleInserterObjectIDs;
+
+	private String[] mPuzzleIDs;
+
+	/* The parameters resolved in the database of the current configuration */
+
+	private WebOfTrust mBenchmarkedWoT;
+
+	private Identity[] mIdentities;
+
+	private OwnIdentity[] mOwnIdentities;
+
+	private Identity[] mTrusters;
+
+	private Identity[] mTrustees;
+
+	private Identity[] mPuzzleInserters;
+
+	private Date mToday;
+
+
+	/**
+	 * The benchmark copies the database file and measures the queries on disk.
+	 */
+	@Override
+	protected boolean isDatabaseInMemory() {
+		return false;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		mOldDisabledIndices = System.getProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+		mOldAllClassIndices = System.getProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+		System.clearProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+		System.clearProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+
+		super.setUp();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+
+		setProperty(WebOfTrust.DISABLED_INDICES_PROPERTY, mOldDisabledIndices);
+		setProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY, mOldAllClassIndices);
+	}
+
+	private static void setProperty(String key, String value) {
+		if(value != null)
+			System.setProperty(key, value);
+		else
+			System.clearProperty(key);
+	}
+
+	/**
+	 * Measures the latency of all query shapes with the different index configurations and prints the results.
+	 * The results of the queries are compared with the configuration of class indices for all classes.
+	 */
+	public void testIndexBenchmark() throws Exception {
+		final int identityCount = Integer.getInteger("benchmark.identities", 1000);
+		final int iterations = Integer.getInteger("benchmark.iterations", 200);
+
+		generateDatabase(identityCount);
+		mWoT.terminate();
+
+		final File template = new File(getName() + ".template.db4o");
+		copyFile(new File(getDatabaseFilename()), template);
+
+		final ArrayList<QueryShape> shapes = getQueryShapes();
+		final ArrayList<String> configurations = getIndexConfigurations();
+
+		try {
+			System.setProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY, "true");
+			final Result allClassIndices = runConfiguration("all class indices", template, shapes, iterations);
+			System.clearProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+
+			final Result annotated = runConfiguration("annotated", template, shapes, iterations);
+			printResult(annotated, allClassIndices, shapes);
+			printResult(allClassIndices, allClassIndices, shapes);
+			assertEquals("The annotated configuration returns different results", 0, annotated.countWrongResults(allClassIndices));
+
+			for(String disabled : configurations) {
+				System.setProperty(WebOfTrust.DISABLED_INDICES_PROPERTY, disabled);
+				final Result result = runConfiguration("without " + disabled, template, shapes, iterations);
+				System.clearProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+
+				printResult(result, allClassIndices, shapes);
+			}
+		} finally {
+			System.clearProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+			System.clearProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+			template.delete();
+
+			// tearDown() terminates it
+			mWoT = new WebOfTrust(getDatabaseFilename());
+		}
+	}
+
+	private void generateDatabase(int identityCount) throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final IntroductionPuzzleStore puzzleStore = new IntroductionPuzzleStore(mWoT);
+		final Date now = CurrentTimeUTC.get();
+		final byte[] puzzleData = new byte[] { 1 };
+
+		final ArrayList<Identity> identities = new ArrayList<Identity>(identityCount + 2);
+		final OwnIdentity[] ownIdentities = new OwnIdentity[] {
+			mWoT.createOwnIdentity(uriO, uriO, "O", true, IntroductionPuzzle.INTRODUCTION_CONTEXT),
+			mWoT.createOwnIdentity(uriS, uriS, "S", true, IntroductionPuzzle.INTRODUCTION_CONTEXT)
+		};
+
+		for(int i = 0; i < identityCount; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			if(i % 10 == 0)
+				identity.addContext(IntroductionPuzzle.INTRODUCTION_CONTEXT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+
+		final ArrayList<Trust> trusts = new ArrayList<Trust>();
+		synchronized(mWoT) {
+		mWoT.getLock().lockWrite();
+		try {
+		synchronized(db.lock()) {
+			for(OwnIdentity truster : ownIdentities) {
+				for(int i = 0; i < Math.min(20, identities.size()); ++i)
+					trusts.add(new Trust(truster, identities.get(mRandom.nextInt(identities.size())), (byte)100, "Seed"));
+			}
+
+			for(Identity truster : identities) {
+				for(int i = 0; i < 10; ++i) {
+					final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+					if(trustee != truster)
+						trusts.add(new Trust(truster, trustee, (byte)(mRandom.nextInt(201) - 100), ""));
+				}
+			}
+
+			final ArrayList<Trust> storedTrusts = new ArrayList<Trust>(trusts.size());
+			for(Trust trust : trusts) {
+				try {
+					mWoT.getTrust(trust.getTruster(), trust.getTrustee());
+				} catch(NotTrustedException e) {
+					trust.initializeTransient(mWoT);
+					trust.storeWithoutCommit();
+					storedTrusts.add(trust);
+				}
+			}
+			trusts.clear();
+			trusts.addAll(storedTrusts);
+
+			mWoT.computeAllScoresWithoutCommit();
+
+			Persistent.checkedCommit(db, this);
+		}
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
+		}
+
+		final ArrayList<Identity> puzzleInserters = new ArrayList<Identity>();
+		final ArrayList<String> puzzleIDs = new ArrayList<String>();
+		for(OwnIdentity inserter : ownIdentities) {
+			for(int i = 0; i < 10; ++i) {
+				final OwnIntroductionPuzzle puzzle = new OwnIntroductionPuzzle(inserter, PuzzleType.Captcha, "image/jpeg", puzzleData, "solution",
+					now, i);
+				puzzleStore.storeAndCommit(puzzle);
+				puzzleIDs.add(puzzle.getID());
+			}
+			puzzleInserters.add(inserter);
+		}
+		for(Identity inserter : identities) {
+			if(!inserter.hasContext(IntroductionPuzzle.INTRODUCTION_CONTEXT))
+				continue;
+
+			for(int i = 0; i < 2; ++i) {
+				final IntroductionPuzzle puzzle = new IntroductionPuzzle(inserter, UUID.randomUUID().toString() + "@" + inserter.getID(),
+					PuzzleType.Captcha, "image/jpeg", puzzleData, now, new Date(now.getTime() + 24 * 60 * 60 * 1000), i);
+				puzzleStore.storeAndCommit(puzzle);
+				puzzleIDs.add(puzzle.getID());
+			}
+			puzzleInserters.add(inserter);
+		}
+
+		mIdentityObjectIDs = getObjectIDs(db, identities);
+		mOwnIdentityObjectIDs = getObjectIDs(db, Arrays.asList(ownIdentities));
+		mPuzzleInserterObjectIDs = getObjectIDs(db, puzzleInserters);
+		mPuzzleIDs = puzzleIDs.toArray(new String[puzzleIDs.size()]);
+
+		mTrusterObjectIDs = new long[trusts.size()];
+		mTrusteeObjectIDs = new long[trusts.size()];
+		for(int i = 0; i < trusts.size(); ++i) {
+			mTrusterObjectIDs[i] = db.getID(trusts.get(i).getTruster());
+			mTrusteeObjectIDs[i] = db.getID(trusts.get(i).getTrustee());
+		}
+
+		System.out.println("IndexBenchmark: Generated " + identities.size() + " identities, " + trusts.size() + " trusts, "
+			+ mWoT.getAllScores().size() + " scores and " + puzzleIDs.size() + " puzzles");
+	}
+
+	private static long[] getObjectIDs(ExtObjectContainer db, List<? extends Identity> identities) {
+		final long[] result = new long[identities.size()];
+		for(int i = 0; i < result.length; ++i)
+			result[i] = db.getID(identities.get(i));
+		return result;
+	}
+
+	/**
+	 * @return The values of {@link WebOfTrust#DISABLED_INDICES_PROPERTY} which are benchmarked: Each annotated class index and field index.
+	 */
+	private static ArrayList<String> getIndexConfigurations() {
+		final ArrayList<String> result = new ArrayList<String>();
+
+		for(Class<? extends Persistent> clazz : PERSISTENT_CLASSES) {
+			if(clazz.getAnnotation(Persistent.IndexedClass.class) != null)
+				result.add(clazz.getSimpleName());
+
+			for(Field field : clazz.getDeclaredFields()) {
+				if(field.getAnnotation(Persistent.IndexedField.class) != null)
+					result.add(clazz.getSimpleName() + "." + field.getName());
+			}
+		}
+
+		return result;
+	}
+
+	private Result runConfiguration(String name, File template, ArrayList<QueryShape> shapes, int iterations) throws Exception {
+		final File file = new File(getName() + ".benchmark.db4o");
+		copyFile(template, file);
+
+		mBenchmarkedWoT = new WebOfTrust(file.getAbsolutePath());
+		try {
+			resolveParameters();
+
+			final Result result = new Result(name, shapes.size());
+			for(int shape = 0; shape < shapes.size(); ++shape) {
+				// Warm up the db4o caches and the JIT
+				for(int i = 0; i < Math.max(1, iterations / 10); ++i)
+					runQuery(shapes.get(shape), i);
+
+				long time = 0;
+				int count = 0;
+				for(int i = 0; i < iterations; ++i) {
+					mBenchmarkedWoT.getTrustCache().clear();
+					mBenchmarkedWoT.getScoreCache().clear();
+
+					final long startTime = System.nanoTime();
+					count += runQuery(shapes.get(shape), i);
+					time += System.nanoTime() - startTime;
+				}
+
+				result.mNanosPerQuery[shape] = time / iterations;
+				result.mResultCounts[shape] = count;
+			}
+			return result;
+		} finally {
+			mBenchmarkedWoT.terminate();
+			mBenchmarkedWoT = null;
+			file.delete();
+		}
+	}
+
+	private int runQuery(QueryShape shape, int iteration) throws Exception {
+		mBenchmarkedWoT.getLock().lockRead();
+		try {
+			return shape.run(iteration);
+		} finally {
+			mBenchmarkedWoT.getLock().unlockRead();
+		}
+	}
+
+	private void resolveParameters() {
+		final ExtObjectContainer db = mBenchmarkedWoT.getDatabase();
+
+		mIdentities = new Identity[mIdentityObjectIDs.length];
+		for(int i = 0; i < mIdentities.length; ++i)
+			mIdentities[i] = (Identity)getByObjectID(db, mIdentityObjectIDs[i]);
+
+		mOwnIdentities = new OwnIdentity[mOwnIdentityObjectIDs.length];
+		for(int i = 0; i < mOwnIdentities.length; ++i)
+			mOwnIdentities[i] = (OwnIdentity)getByObjectID(db, mOwnIdentityObjectIDs[i]);
+
+		mTrusters = new Identity[mTrusterObjectIDs.length];
+		mTrustees = new Identity[mTrusteeObjectIDs.length];
+		for(int i = 0; i < mTrusters.length; ++i) {
+			mTrusters[i] = (Identity)getByObjectID(db, mTrusterObjectIDs[i]);
+			mTrustees[i] = (Identity)getByObjectID(db, mTrusteeObjectIDs[i]);
+		}
+
+		mPuzzleInserters = new Identity[mPuzzleInserterObjectIDs.length];
+		for(int i = 0; i < mPuzzleInserters.length; ++i)
+			mPuzzleInserters[i] = (Identity)getByObjectID(db, mPuzzleInserterObjectIDs[i]);
+
+		mToday = TimeUtil.setTimeToZero(CurrentTimeUTC.get());
+	}
+
+	private Persistent getByObjectID(ExtObjectContainer db, long id) {
+		final Persistent object = (Persistent)db.getByID(id);
+		db.activate(object, 4);
+		object.initializeTransient(mBenchmarkedWoT);
+		return object;
+	}
+
+	private Identity identity(int iteration) {
+		return mIdentities[iteration % mIdentities.length];
+	}
+
+	private OwnIdentity ownIdentity(int iteration) {
+		return mOwnIdentities[iteration % mOwnIdentities.length];
+	}
+
+	private Identity puzzleInserter(int iteration) {
+		return mPuzzleInserters[iteration % mPuzzleInserters.length];
+	}
+
+	private Query query(Class<?> clazz) {
+		final Query q = mBenchmarkedWoT.getDatabase().query();
+		q.constrain(clazz);
+		return q;
+	}
+
+	/**
+	 * A query which is benchmarked. The parameters are chosen by the number of the iteration so each configuration runs the same queries.
+	 */
+	private static abstract class QueryShape {
+		final String mName;
+
+		QueryShape(String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return The size of the result of the query.
+		 */
+		abstract int run(int iteration) throws Exception;
+	}
+
+	private ArrayList<QueryShape> getQueryShapes() {
+		final ArrayList<QueryShape> shapes = new ArrayList<QueryShape>();
+
+		/* WebOfTrust */
+
+		shapes.add(new QueryShape("WebOfTrust.getIdentityByID") { int run(int i) throws Exception {
+			try {
+				mBenchmarkedWoT.getIdentityByID(identity(i).getID());
+				return 1;
+			} catch(UnknownIdentityException e) {
+				return 0;
+			}
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getOwnIdentityByID") { int run(int i) throws Exception {
+			try {
+				mBenchmarkedWoT.getOwnIdentityByID(ownIdentity(i).getID());
+				return 1;
+			} catch(UnknownIdentityException e) {
+				return 0;
+			}
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllIdentities") { int run(int i) {
+			return mBenchmarkedWoT.getAllIdentities().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllIdentitiesFilteredAndSorted") { int run(int i) {
+			return mBenchmarkedWoT.getAllIdentitiesFilteredAndSorted(ownIdentity(i), "", SortOrder.ByScoreDescending).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllNonOwnIdentities") { int run(int i) {
+			return mBenchmarkedWoT.getAllNonOwnIdentities().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllNonOwnIdentitiesSortedByModification") { int run(int i) {
+			return mBenchmarkedWoT.getAllNonOwnIdentitiesSortedByModification().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllOwnIdentities") { int run(int i) {
+			return mBenchmarkedWoT.getAllOwnIdentities().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllIdentitiesToFetch") { int run(int i) {
+			return mBenchmarkedWoT.getAllIdentitiesToFetch().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getTrust") { int run(int i) throws Exception {
+			final int pair = i % mTrusters.length;
+			try {
+				mBenchmarkedWoT.getTrust(mTrusters[pair], mTrustees[pair]);
+				return 1;
+			} catch(NotTrustedException e) {
+				return 0;
+			}
+		}});
+		// The query of getTrust() before the composite key Trust.mID existed
+		shapes.add(new QueryShape("WebOfTrust.getTrust by mTruster and mTrustee") { int run(int i) {
+			final int pair = i % mTrusters.length;
+			final Query q = query(Trust.class);
+			q.descend("mTruster").constrain(mTrusters[pair]).identity();
+			q.descend("mTrustee").constrain(mTrustees[pair]).identity();
+			return q.execute().size();
+		}});
+		// Constraining all three fields makes db4o intersect the indices of mID, mTruster and mTrustee
+		shapes.add(new QueryShape("WebOfTrust.getTrust by mID, mTruster and mTrustee") { int run(int i) {
+			final int pair = i % mTrusters.length;
+			final Query q = query(Trust.class);
+			q.descend("mID").constrain(Trust.getID(mTrusters[pair], mTrustees[pair]));
+			q.descend("mTruster").constrain(mTrusters[pair]).identity();
+			q.descend("mTrustee").constrain(mTrustees[pair]).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenTrusts") { int run(int i) {
+			return mBenchmarkedWoT.getGivenTrusts(identity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenTrusts(select)") { int run(int i) {
+			return mBenchmarkedWoT.getGivenTrusts(identity(i), 1).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenTrustsOlderThan") { int run(int i) {
+			return mBenchmarkedWoT.getGivenTrustsOlderThan(identity(i), 1).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getReceivedTrusts") { int run(int i) {
+			return mBenchmarkedWoT.getReceivedTrusts(identity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getReceivedTrusts(select)") { int run(int i) {
+			return mBenchmarkedWoT.getReceivedTrusts(identity(i), 1).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllTrusts") { int run(int i) {
+			return mBenchmarkedWoT.getAllTrusts().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getScore") { int run(int i) throws Exception {
+			try {
+				mBenchmarkedWoT.getScore(ownIdentity(i), identity(i));
+				return 1;
+			} catch(NotInTrustTreeException e) {
+				return 0;
+			}
+		}});
+		// The query of getScore() before the composite key Score.mID existed
+		shapes.add(new QueryShape("WebOfTrust.getScore by mTruster and mTrustee") { int run(int i) {
+			final Query q = query(Score.class);
+			q.descend("mTruster").constrain(ownIdentity(i)).identity();
+			q.descend("mTrustee").constrain(identity(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getScore by mID, mTruster and mTrustee") { int run(int i) {
+			final Query q = query(Score.class);
+			q.descend("mID").constrain(Score.getID(ownIdentity(i), identity(i)));
+			q.descend("mTruster").constrain(ownIdentity(i)).identity();
+			q.descend("mTrustee").constrain(identity(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getScores") { int run(int i) {
+			return mBenchmarkedWoT.getScores(identity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenScores") { int run(int i) {
+			return mBenchmarkedWoT.getGivenScores(ownIdentity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getBestCapacity") { int run(int i) throws Exception {
+			try {
+				return mBenchmarkedWoT.getBestCapacity(identity(i)) > 0 ? 1 : 0;
+			} catch(NotInTrustTreeException e) {
+				return 0;
+			}
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllScores") { int run(int i) {
+			return mBenchmarkedWoT.getAllScores().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getIdentitiesByScore") { int run(int i) {
+			return mBenchmarkedWoT.getIdentitiesByScore(ownIdentity(i), 1).size();
+		}});
+
+		/* IntroductionPuzzleStore: Most of its query functions are not accessible from this package, so the queries are replicated. */
+
+		shapes.add(new QueryShape("IntroductionPuzzleStore.deleteExpiredPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mValidUntilDate").constrain(CurrentTimeUTC.get()).smaller();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.deleteOldestUnsolvedPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mValidUntilDate").orderAscending();
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.onIdentityDeletion(mInserter)") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mInserter").constrain(puzzleInserter(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.onIdentityDeletion(mSolver)") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mSolver").constrain(identity(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getByID") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mID").constrain(mPuzzleIDs[i % mPuzzleIDs.length]);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getFreeIndex") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mInserter").constrain(ownIdentity(i)).identity();
+			q.descend("mDateOfInsertion").constrain(mToday);
+			q.descend("mIndex").orderDescending();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUninsertedOwnPuzzlesByInserter") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mInserter").constrain(ownIdentity(i)).identity();
+			q.descend("mWasInserted").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUnsolvedByInserter") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mInserter").constrain(ownIdentity(i)).identity();
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getOfTodayByInserter") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mInserter").constrain(puzzleInserter(i)).identity();
+			q.descend("mDateOfInsertion").constrain(mToday);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getByInserterDateIndex") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mInserter").constrain(puzzleInserter(i)).identity();
+			q.descend("mDateOfInsertion").constrain(mToday);
+			q.descend("mIndex").constrain(i % 2);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUnsolvedPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mValidUntilDate").orderDescending();
+			q.descend("mWasSolved").constrain(false);
+			q.descend("mType").constrain(PuzzleType.Captcha);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUninsertedSolvedPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mWasSolved").constrain(true);
+			q.descend("mWasInserted").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getOwnCatpchaAmount") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getNonOwnCaptchaAmount") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+
+		return shapes;
+	}
+
+	private static final class Result {
+		final String mName;
+
+		final long[] mNanosPerQuery;
+
+		/** The sum of the result sizes of all iterations of each query shape */
+		final int[] mResultCounts;
+
+		Result(String name, int shapeCount) {
+			mName = name;
+			mNanosPerQuery = new long[shapeCount];
+			mResultCounts = new int[shapeCount];
+		}
+
+		int countWrongResults(Result reference) {
+			int wrong = 0;
+			for(int i = 0; i < mResultCounts.length; ++i) {
+				if(mResultCounts[i] != reference.mResultCounts[i])
+					++wrong;
+			}
+			return wrong;
+		}
+	}
+
+	private static void printResult(Result result, Result reference, ArrayList<QueryShape> shapes) {
+		System.out.println("IndexBenchmark: " + result.mName + ":");
+
+		for(int i = 0; i < shapes.size(); ++i) {
+			final StringBuilder line = new StringBuilder();
+			line.append("    ").append(shapes.get(i).mName).append(": ").append(result.mNanosPerQuery[i] / 1000).append("us");
+
+			if(reference.mNanosPerQuery[i] > 0)
+				line.append(" (").append(result.mNanosPerQuery[i] * 100 / reference.mNanosPerQuery[i]).append("%)");
+
+			if(result.mResultCounts[i] != reference.mResultCounts[i]) {
+				line.append(" WRONG RESULT: ").append(result.mResultCounts[i]).append(" instead of ")
+					.append(reference.mResultCounts[i]);
+			}
+
+			System.out.println(line);
+		}
+	}
+
+	private static void copyFile(File source, File destination) throws IOException {
+		final FileInputStream in = new FileInputStream(source);
+		try {
+			final FileOutputStream out = new FileOutputStream(destination);
+			try {
+				final byte[] buffer = new byte[64 * 1024];
+				int read;
+				while((read = in.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
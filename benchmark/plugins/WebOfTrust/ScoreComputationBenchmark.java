@@ -0,0 +1,73 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmarks the score computation on the synthetic graphs of {@link DatabaseBasedTest#generateGraph(int, int, int, boolean)}.
+ * {@link GeneratedGraphTest} checks the scores on the same kind of graphs in the unit tests.
+ *
+ * Run it with "ant benchmark -Dbenchmark.name=ScoreComputationBenchmark". The size of the graphs is configured with the system properties
+ * "benchmark.identities" (default 1000) and "benchmark.degree" (default 10). It uses the in-memory database unless the system property
+ * "test.databaseOnDisk" is "true", so running it both ways shows how much of the time is spent on disk I/O.
+ */
+public final class ScoreComputationBenchmark extends DatabaseBasedTest {
+
+	public void testUniformGraphBenchmark() throws Exception {
+		runBenchmark(false);
+	}
+
+	public void testPowerLawGraphBenchmark() throws Exception {
+		runBenchmark(true);
+	}
+
+	/**
+	 * Measures the generation of the graph, a full score computation and incremental score computations after single trust changes.
+	 */
+	private void runBenchmark(boolean powerLaw) throws Exception {
+		final int identityCount = Integer.getInteger("benchmark.identities", 1000);
+		final int degree = Integer.getInteger("benchmark.degree", 10);
+		final int trustChanges = 100;
+		final String name = "ScoreComputationBenchmark: " + getName() + " (" + identityCount + " identities, degree " + degree + ", "
+				+ (isDatabaseInMemory() ? "in memory" : "on disk") + "): ";
+
+		long startTime = System.nanoTime();
+		final ArrayList<Identity> identities = generateGraph(1, identityCount, degree, powerLaw);
+		System.out.println(name + "Generating " + mWoT.getAllTrusts().size() + " trusts and " + mWoT.getAllScores().size() + " scores took "
+				+ (System.nanoTime() - startTime) / 1000000 + "ms");
+
+		flushCaches();
+		synchronized(mWoT) {
+		mWoT.getLock().lockWrite();
+		try {
+		synchronized(mWoT.getDatabase().lock()) {
+			startTime = System.nanoTime();
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+			System.out.println(name + "computeAllScoresWithoutCommit() took " + (System.nanoTime() - startTime) / 1000000 + "ms");
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
+		}
+
+		final OwnIdentity owner = (OwnIdentity)identities.get(0);
+		startTime = System.nanoTime();
+		for(int i = 0; i < trustChanges; ++i) {
+			final Identity trustee = identities.get(1 + mRandom.nextInt(identityCount));
+			mWoT.setTrust(owner.getID(), trustee.getID(), (byte)(mRandom.nextInt(201) - 100), "Benchmark");
+		}
+		System.out.println(name + "Changing a trust value of the owner and updating the scores took "
+				+ (System.nanoTime() - startTime) / 1000 / trustChanges + "us on average");
+
+		flushCaches();
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * Compares walking the trust graph via database queries with walking it via the {@link TrustGraph}, and measures
+ * {@link WebOfTrust#computeAllScoresWithoutCommit()} on the same graph. {@link TrustGraphTest} checks that both walks reach the same
+ * identities in the unit tests.
+ *
+ * Run it with "ant benchmark -Dbenchmark.name=TrustGraphBenchmark". The size of the graph can be configured with the system properties
+ * "benchmark.identities" and "benchmark.degree", the amount of measured walks with "benchmark.iterations".
+ */
+public final class TrustGraphBenchmark extends DatabaseBasedTest {
+
+	private OwnIdentity mOwner;
+
+
+	public void testTrustGraphBenchmark() throws Exception {
+		final int identityCount = Integer.getInteger("benchmark.identities", 1000);
+		final int degree = Integer.getInteger("benchmark.degree", 20);
+		final int iterations = Integer.getInteger("benchmark.iterations", 10);
+
+		mOwner = (OwnIdentity)generateGraph(1, identityCount, degree, false).get(0);
+
+		final ExtObjectContainer db = mWoT.getDatabase();
+		synchronized(mWoT) {
+		mWoT.getLock().lockWrite();
+		try {
+		synchronized(db.lock()) {
+			walkWithDatabase(); // Warmup
+			long startTime = System.nanoTime();
+			int visited = 0;
+			for(int i = 0; i < iterations; ++i)
+				visited = walkWithDatabase();
+			final long databaseTime = (System.nanoTime() - startTime) / iterations;
+
+			walkWithTrustGraph(); // Warmup
+			startTime = System.nanoTime();
+			int visitedGraph = 0;
+			for(int i = 0; i < iterations; ++i)
+				visitedGraph = walkWithTrustGraph();
+			final long graphTime = (System.nanoTime() - startTime) / iterations;
+
+			assertEquals(visited, visitedGraph);
+
+			System.out.println("TrustGraphBenchmark: Breadth first search over " + visited + " identities and "
+				+ mWoT.getTrustGraph().getEdgeCount() + " trusts: database queries " + databaseTime / 1000 + "us, TrustGraph "
+				+ graphTime / 1000 + "us");
+
+			startTime = System.nanoTime();
+			mWoT.computeAllScoresWithoutCommit();
+			System.out.println("TrustGraphBenchmark: computeAllScoresWithoutCommit() took " + (System.nanoTime() - startTime) / 1000000 + "ms");
+
+			Persistent.checkedCommit(db, this);
+		}
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
+		}
+	}
+
+	/**
+	 * Breadth first search over the positive trust values starting at the owner, using database queries.
+	 * @return The amount of visited identities
+	 */
+	private int walkWithDatabase() {
+		final HashSet<String> visited = new HashSet<String>();
+		final LinkedList<Identity> queue = new LinkedList<Identity>();
+		visited.add(mOwner.getID());
+		queue.add(mOwner);
+
+		while(!queue.isEmpty()) {
+			for(Trust trust : mWoT.getGivenTrusts(queue.removeFirst())) {
+				if(trust.getValue() > 0) {
+					final Identity trustee = trust.getTrustee();
+					if(visited.add(trustee.getID()))
+						queue.add(trustee);
+				}
+			}
+		}
+
+		return visited.size();
+	}
+
+	/**
+	 * Breadth first search over the positive trust values starting at the owner, using the TrustGraph.
+	 * @return The amount of visited identities
+	 */
+	private int walkWithTrustGraph() {
+		final TrustGraph graph = mWoT.getTrustGraph();
+		final boolean[] visited = new boolean[graph.size()];
+		final int[] queue = new int[graph.size()];
+		int head = 0;
+		int tail = 0;
+
+		final int ownerOrdinal = graph.getOrdinal(mOwner);
+		visited[ownerOrdinal] = true;
+		queue[tail++] = ownerOrdinal;
+
+		while(head < tail) {
+			final int truster = queue[head++];
+			final int[] trustees = graph.getTrustees(truster);
+			final byte[] values = graph.getTrusteeValues(truster);
+
+			for(int i = 0; i < graph.getTrusteeCount(truster); ++i) {
+				if(values[i] > 0 && !visited[trustees[i]]) {
+					visited[trustees[i]] = true;
+					queue[tail++] = trustees[i];
+				}
+			}
+		}
+
+		return tail;
+	}
+
+}
@@ -0,0 +1,95 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * Compares the import of trust lists of 10, 100 and 1000 trust values via {@link WebOfTrust#importTrustListWithoutCommit(Identity, List)}
+ * with setting them one by one. WoTTest.testImportTrustListDifferences() checks the result of the import in the unit tests.
+ *
+ * Run it with "ant benchmark -Dbenchmark.name=TrustListImportBenchmark".
+ */
+public final class TrustListImportBenchmark extends DatabaseBasedTest {
+
+	public void testImportTrustListBenchmark() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(getRandomRequestURI(), getRandomRequestURI(), "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(1000);
+		final Identity truster = identities.get(0);
+
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			mWoT.setTrustWithoutCommit(o, truster, (byte)100, "");
+			mWoT.setTrustWithoutCommit(o, identities.get(1), (byte)100, "");
+			Persistent.checkedCommit(db, this);
+
+			for(int size : new int[] { 10, 100, 1000 }) {
+				final ArrayList<Trust> trustList = createRandomTrustList(truster, identities, size);
+
+				final HashSet<Identity> trustees = new HashSet<Identity>();
+
+				long startTime = System.nanoTime();
+				for(Trust trust : trustList) {
+					mWoT.setTrustWithoutCommit(trust.getTruster(), trust.getTrustee(), trust.getValue(), trust.getComment());
+					trustees.add(trust.getTrustee());
+				}
+				for(Trust trust : mWoT.getGivenTrusts(truster)) {
+					if(!trustees.contains(trust.getTrustee()))
+						mWoT.removeTrustWithoutCommit(trust);
+				}
+				final long sequentialTime = System.nanoTime() - startTime;
+				Persistent.checkedRollback(db, this, null);
+				flushCaches();
+
+				// The same trust list: setTrustWithoutCommit() does not store the given objects so they can still be imported.
+				startTime = System.nanoTime();
+				mWoT.importTrustListWithoutCommit(truster, trustList);
+				final long batchTime = System.nanoTime() - startTime;
+				Persistent.checkedCommit(db, this);
+
+				System.out.println("TrustListImportBenchmark: Import of a trust list of " + size + " trust values: one by one "
+					+ sequentialTime / 1000000 + "ms, importTrustListWithoutCommit() " + batchTime / 1000000 + "ms");
+			}
+		}
+		}
+	}
+
+	private ArrayList<Identity> createIdentities(int count) throws Exception {
+		final ArrayList<Identity> identities = new ArrayList<Identity>(count);
+
+		for(int i = 0; i < count; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+
+		return identities;
+	}
+
+	/**
+	 * Creates the given amount of unstored trust values with random values from the truster to random identities of the given ones.
+	 */
+	private ArrayList<Trust> createRandomTrustList(Identity truster, ArrayList<Identity> identities, int size) throws Exception {
+		final ArrayList<Trust> trustList = new ArrayList<Trust>(size);
+		final HashSet<Identity> trustees = new HashSet<Identity>();
+
+		while(trustList.size() < Math.min(size, identities.size() - 1)) {
+			final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+			if(trustee != truster && trustees.add(trustee)) {
+				final Trust trust = new Trust(truster, trustee, (byte)(mRandom.nextInt(201) - 100), "Comment");
+				trust.initializeTransient(mWoT);
+				trustList.add(trust);
+			}
+		}
+
+		return trustList;
+	}
+
+}
@@ -18,7 +18,65 @@ import freenet.support.codeshortification.IfNull;
  * @author Julien Cornuwel (batosai@freenetproject.org)
  */
 public final class Configuration extends Persistent {
+	
+	/**
+	 * When a trust value is removed, the scores of the identities which might have inherited their rank via it are recomputed. If those are more than
+	 * this percentage of all identities, a full score computation is done instead. See {@link WebOfTrust#updateScoresWithoutCommit(Trust, Trust)}.
+	 */
+	public static final String PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT = "PartialScoreComputationMaxDirtyPercent";
+	
+	public static final int PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT_DEFAULT = 20;
+	
+	/**
+	 * The {@link DatabaseDigest} of the database when WoT was terminated cleanly. It is set to "" at startup so that a crash is detected.
+	 * If the digest at the next startup equals it, the verification of all scores is skipped. See {@link WebOfTrust#runPlugin}.
+	 */
+	public static final String DATABASE_DIGEST_AT_SHUTDOWN = "DatabaseDigestAtShutdown";
+	
+	/**
+	 * If true, all scores are verified at every startup even if the {@link DatabaseDigest} did not change.
+	 */
+	public static final String ALWAYS_VERIFY_SCORES_AT_STARTUP = "AlwaysVerifyScoresAtStartup";
+	
+	public static final boolean ALWAYS_VERIFY_SCORES_AT_STARTUP_DEFAULT = false;
 
+	/**
+	 * The maximal time in milliseconds for which the commit of bulk operations such as the import of identity XML is deferred so multiple
+	 * of them are committed at once. This is the time window in which a crash loses changes, it is also bounded by the time for which
+	 * the {@link IdentityImporter} holds the locks for a batch. 0 disables group commit.
+	 * See {@link Persistent#checkedGroupCommit(com.db4o.ext.ExtObjectContainer, Object)}.
+	 */
+	public static final String GROUP_COMMIT_MAX_DELAY = "GroupCommitMaxDelay";
+	public static final int GROUP_COMMIT_MAX_DELAY_DEFAULT = 1000;
+	
+	/**
+	 * The maximal number of deferred commits of group commit, see {@link #GROUP_COMMIT_MAX_DELAY}. 0 disables group commit.
+	 */
+	public static final String GROUP_COMMIT_MAX_COMMITS = "GroupCommitMaxCommits";
+	public static final int GROUP_COMMIT_MAX_COMMITS_DEFAULT = 100;
+	
+	/**
+	 * If at least this percentage of the database file is free space, the database is defragmented when WoT is terminated: Deleted objects,
+	 * for example the {@link Score}s which are replaced by score computations, leave free space which db4o does not always reuse.
+	 * 0 disables the defragmentation.
+	 */
+	public static final String DEFRAGMENT_FREE_SPACE_PERCENT = "DefragmentFreeSpacePercent";
+	public static final int DEFRAGMENT_FREE_SPACE_PERCENT_DEFAULT = 30;
+	
+	/**
+	 * The progress of the {@link IntegrityVerifier}: The index of the class whose objects are verified currently. Together with
+	 * {@link #INTEGRITY_TEST_LAST_OBJECT_ID} it allows an interrupted verification to resume at the next startup.
+	 */
+	public static final String INTEGRITY_TEST_PHASE = "IntegrityTestPhase";
+	public static final int INTEGRITY_TEST_PHASE_DEFAULT = 0;
+	
+	/**
+	 * The progress of the {@link IntegrityVerifier}: The db4o ID of the last verified object of the current class, -1 if none.
+	 * Stored as String because db4o IDs are longs.
+	 */
+	public static final String INTEGRITY_TEST_LAST_OBJECT_ID = "IntegrityTestLastObjectID";
+	public static final String INTEGRITY_TEST_LAST_OBJECT_ID_DEFAULT = "-1";
+	
 	/**
 	 * The database format version of this WoT-database.
 	 * Stored in a primitive integer field to ensure that db4o does not lose it - I've observed the HashMaps to be null suddenly sometimes :(
@@ -50,8 +108,15 @@ public final class Configuration extends Persistent {
 	/**
 	 * Stores the config object in the database. Please call this after any modifications to the config, it is not done automatically
 	 * because the user interface will usually change many values at once.
+	 * 
+	 * The locks are taken in the order WoT, write lock, Configuration, database. This is not synchronized itself because the writers which
+	 * read the configuration while holding the write lock would deadlock with it otherwise. If you hold the Configuration monitor, you must
+	 * have locked the write lock of the WoT before it.
 	 */
-	public synchronized void storeAndCommit() {
+	public void storeAndCommit() {
+		mWebOfTrust.getLock().lockWrite();
+		try {
+		synchronized(this) {
 		synchronized(mDB.lock()) {
 			try {
 				checkedActivate(4);
@@ -66,6 +131,10 @@ public final class Configuration extends Persistent {
 				checkedRollbackAndThrow(e);
 			}
 		}
+		}
+		} finally {
+			mWebOfTrust.getLock().unlockWrite();
+		}
 	}
 	
 	public int getDatabaseFormatVersion() {
@@ -206,7 +275,26 @@ public final class Configuration extends Persistent {
 	 * @param overwrite If true, overwrite already set values with the default value.
 	 */
 	public synchronized void setDefaultValues(boolean overwrite) {
-
+		if(overwrite || !containsInt(PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT))
+			set(PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT, PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT_DEFAULT);
+		
+		if(overwrite || !containsString(ALWAYS_VERIFY_SCORES_AT_STARTUP))
+			set(ALWAYS_VERIFY_SCORES_AT_STARTUP, ALWAYS_VERIFY_SCORES_AT_STARTUP_DEFAULT);
+		
+		if(overwrite || !containsInt(GROUP_COMMIT_MAX_DELAY))
+			set(GROUP_COMMIT_MAX_DELAY, GROUP_COMMIT_MAX_DELAY_DEFAULT);
+		
+		if(overwrite || !containsInt(GROUP_COMMIT_MAX_COMMITS))
+			set(GROUP_COMMIT_MAX_COMMITS, GROUP_COMMIT_MAX_COMMITS_DEFAULT);
+		
+		if(overwrite || !containsInt(DEFRAGMENT_FREE_SPACE_PERCENT))
+			set(DEFRAGMENT_FREE_SPACE_PERCENT, DEFRAGMENT_FREE_SPACE_PERCENT_DEFAULT);
+		
+		if(overwrite || !containsInt(INTEGRITY_TEST_PHASE))
+			set(INTEGRITY_TEST_PHASE, INTEGRITY_TEST_PHASE_DEFAULT);
+		
+		if(overwrite || !containsString(INTEGRITY_TEST_LAST_OBJECT_ID))
+			set(INTEGRITY_TEST_LAST_OBJECT_ID, INTEGRITY_TEST_LAST_OBJECT_ID_DEFAULT);
 	}
 
 	@Override
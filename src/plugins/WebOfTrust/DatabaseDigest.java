@@ -0,0 +1,115 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import freenet.support.Logger;
+
+/**
+ * A digest of all {@link Trust} and {@link Score} objects in the database. It is used for deciding whether the full verification of all
+ * scores can be skipped at startup: The digest is stored in the {@link Configuration} when WoT is terminated cleanly. If the digest of the
+ * database is still the same at the next startup, the scores are still the ones which WoT had computed and verification is not needed.
+ *
+ * The digest is the sum of a 64 bit hash of each object so it does not depend on the order of the objects and can be updated when a single
+ * object is stored or deleted: {@link Trust#storeWithoutCommit()}, {@link Score#storeWithoutCommit()} and the delete functions of both
+ * update it via {@link Persistent#updateDigestOnStore()} and {@link Persistent#updateDigestOnDelete()}.
+ * At startup, it is computed by iterating over all Trust and Score objects, which is much cheaper than computing all scores.
+ *
+ * The changes of the current transaction are kept separate and discarded if it is rolled back.
+ *
+ * You have to synchronize on the lock() of the database when using this class.
+ */
+public final class DatabaseDigest implements Persistent.TransactionListener {
+
+	private static final int TYPE_TRUST = 1;
+
+	private static final int TYPE_SCORE = 2;
+
+	private final WebOfTrust mWoT;
+
+	/** The digest of the committed state of the database */
+	private long mCommittedDigest = 0;
+
+	/** The change of the digest by the current transaction */
+	private long mPendingDelta = 0;
+
+
+	public DatabaseDigest(WebOfTrust myWoT) {
+		mWoT = myWoT;
+	}
+
+	/**
+	 * Computes the digest from all {@link Trust} and {@link Score} objects in the database. To be called at startup.
+	 */
+	protected void rebuild() {
+		long digest = 0;
+
+		for(Trust trust : mWoT.getAllTrusts())
+			digest += trust.computeDigest();
+
+		for(Score score : mWoT.getAllScores())
+			digest += score.computeDigest();
+
+		mCommittedDigest = digest;
+		mPendingDelta = 0;
+	}
+
+	/**
+	 * @return The digest of the database including the changes of the current transaction.
+	 */
+	public long get() {
+		return mCommittedDigest + mPendingDelta;
+	}
+
+	protected void add(long objectDigest) {
+		mPendingDelta += objectDigest;
+	}
+
+	protected void remove(long objectDigest) {
+		mPendingDelta -= objectDigest;
+	}
+
+	protected static long computeTrustDigest(Identity truster, Identity trustee, byte value) {
+		return hash(TYPE_TRUST, truster, trustee, value, 0, 0);
+	}
+
+	protected static long computeScoreDigest(Identity truster, Identity trustee, int value, int rank, int capacity) {
+		return hash(TYPE_SCORE, truster, trustee, value, rank, capacity);
+	}
+
+	/**
+	 * Identities are hashed by their ID because the db4o object IDs might change when the database is defragmented.
+	 * Null identities are allowed so that orphan objects can be hashed.
+	 */
+	private static long hash(int type, Identity truster, Identity trustee, int a, int b, int c) {
+		long hash = type;
+		hash = mix(hash * 31 + (truster != null ? truster.getID().hashCode() : 0));
+		hash = mix(hash * 31 + (trustee != null ? trustee.getID().hashCode() : 0));
+		hash = mix(hash * 31 + a);
+		hash = mix(hash * 31 + b);
+		hash = mix(hash * 31 + c);
+		return hash;
+	}
+
+	/**
+	 * The finalizer of the SplitMix64 random number generator, it distributes changes of single bits over the whole long.
+	 */
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+	public void onCommit() {
+		mCommittedDigest += mPendingDelta;
+		mPendingDelta = 0;
+	}
+
+	public void onRollback() {
+		if(mPendingDelta != 0)
+			Logger.debug(this, "Discarding the digest changes of the rolled back transaction.");
+
+		mPendingDelta = 0;
+	}
+
+}
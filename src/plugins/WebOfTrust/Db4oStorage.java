@@ -0,0 +1,168 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import plugins.WebOfTrust.exceptions.DuplicateIdentityException;
+import plugins.WebOfTrust.exceptions.DuplicateScoreException;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+/**
+ * The {@link WoTStorage} of the db4o database of a {@link WebOfTrust}.
+ */
+public final class Db4oStorage implements WoTStorage {
+
+	private final WebOfTrust mWoT;
+
+	private final ExtObjectContainer mDB;
+
+
+	public Db4oStorage(WebOfTrust myWoT) {
+		mWoT = myWoT;
+		mDB = mWoT.getDatabase();
+	}
+
+	/* Identities */
+
+	public Identity getIdentityByID(String id) {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<Identity> result = new Persistent.InitializingObjectSet<Identity>(mWoT, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: return null;
+			default: throw new DuplicateIdentityException(id, result.size());
+		}
+	}
+
+	public OwnIdentity getOwnIdentityByID(String id) {
+		final Query query = mDB.query();
+		query.constrain(OwnIdentity.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<OwnIdentity> result = new Persistent.InitializingObjectSet<OwnIdentity>(mWoT, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: return null;
+			default: throw new DuplicateIdentityException(id, result.size());
+		}
+	}
+
+	public ObjectSet<Identity> getAllIdentities() {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		return new Persistent.InitializingObjectSet<Identity>(mWoT, query);
+	}
+
+	public ObjectSet<Identity> getAllNonOwnIdentities() {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		query.constrain(OwnIdentity.class).not();
+		return new Persistent.InitializingObjectSet<Identity>(mWoT, query);
+	}
+
+	public ObjectSet<OwnIdentity> getAllOwnIdentities() {
+		final Query query = mDB.query();
+		query.constrain(OwnIdentity.class);
+		return new Persistent.InitializingObjectSet<OwnIdentity>(mWoT, query);
+	}
+
+	/* Trusts */
+
+	public Trust getTrust(Identity truster, Identity trustee) {
+		// A single probe of the index of mID. The identities of the result are checked instead of constraining them in the query, which would
+		// make db4o intersect the indices of mTruster and mTrustee: mID is not unique while restoreIdentity() replaces an Identity by an
+		// OwnIdentity with the same ID, the trusts of both exist during the transaction.
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mID").constrain(Trust.getID(truster, trustee));
+		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(mWoT, query);
+
+		Trust trust = null;
+		int count = 0;
+		while(result.hasNext()) {
+			final Trust candidate = result.next();
+			if(candidate.getTruster() == truster && candidate.getTrustee() == trustee) {
+				trust = candidate;
+				++count;
+			}
+		}
+
+		if(count > 1)
+			throw new DuplicateTrustException(truster, trustee, count);
+
+		return trust;
+	}
+
+	public ObjectSet<Trust> getGivenTrusts(Identity truster) {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mTruster").constrain(truster).identity();
+		return new Persistent.InitializingObjectSet<Trust>(mWoT, query);
+	}
+
+	public ObjectSet<Trust> getReceivedTrusts(Identity trustee) {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return new Persistent.InitializingObjectSet<Trust>(mWoT, query);
+	}
+
+	public ObjectSet<Trust> getAllTrusts() {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		return new Persistent.InitializingObjectSet<Trust>(mWoT, query);
+	}
+
+	/* Scores */
+
+	public Score getScore(OwnIdentity truster, Identity trustee) {
+		// See getTrust()
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mID").constrain(Score.getID(truster, trustee));
+		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(mWoT, query);
+
+		Score score = null;
+		int count = 0;
+		while(result.hasNext()) {
+			final Score candidate = result.next();
+			if(candidate.getTruster() == truster && candidate.getTrustee() == trustee) {
+				score = candidate;
+				++count;
+			}
+		}
+
+		if(count > 1)
+			throw new DuplicateScoreException(truster, trustee, count);
+
+		return score;
+	}
+
+	public ObjectSet<Score> getReceivedScores(Identity trustee) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return new Persistent.InitializingObjectSet<Score>(mWoT, query);
+	}
+
+	public ObjectSet<Score> getGivenScores(OwnIdentity truster) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTruster").constrain(truster).identity();
+		return new Persistent.InitializingObjectSet<Score>(mWoT, query);
+	}
+
+	public ObjectSet<Score> getAllScores() {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		return new Persistent.InitializingObjectSet<Score>(mWoT, query);
+	}
+
+}
@@ -11,6 +11,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 
+import plugins.WebOfTrust.Persistent.IndexedClass;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 
 import com.db4o.query.Query;
@@ -18,6 +19,7 @@ import com.db4o.query.Query;
 import freenet.keys.FreenetURI;
 import freenet.support.Base64;
 import freenet.support.CurrentTimeUTC;
+import freenet.support.IllegalBase64Exception;
 import freenet.support.Logger;
 import freenet.support.StringValidityChecker;
 import freenet.support.codeshortification.IfNull;
@@ -30,6 +32,7 @@ import freenet.support.codeshortification.IfNull;
  * @author xor (xor@freenetproject.org)
  * @author Julien Cornuwel (batosai@freenetproject.org)
  */
+@IndexedClass
 public class Identity extends Persistent implements Cloneable {
 	
 	public static transient final int MAX_CONTEXT_NAME_LENGTH = 32;
@@ -37,15 +40,36 @@ public class Identity extends Persistent implements Cloneable {
 	public static transient final int MAX_PROPERTY_NAME_LENGTH = 256;
 	public static transient final int MAX_PROPERTY_VALUE_LENGTH = 10 * 1024;
 	public static transient final int MAX_PROPERTY_AMOUNT = 64;
+	
+	/** Value of {@link #mBestScore} if the identity has no {@link Score}, that is if it is not in the trust tree of any {@link OwnIdentity}. */
+	public static transient final int NO_SCORE = Integer.MIN_VALUE;
 
 	/** A unique identifier used to query this Identity from the database. In fact, it is simply a String representing its routing key. */
 	@IndexedField
 	protected final String mID;
 	
-	/** The USK requestURI used to fetch this identity from Freenet. It's edition number is the one of the data which we have currently stored
-	 * in the database (the values of this identity, trust values, etc.) if mCurrentEditionFetchState is Fetched or ParsingFailed, otherwise it
-	 * is the next edition number which should be downloaded. */
-	protected FreenetURI mRequestURI;
+	/* The USK requestURI used to fetch this identity from Freenet is not stored as a FreenetURI: That was an object graph of the URI, its
+	 * strings and three byte arrays which db4o had to store, activate and delete separately for each identity. The key type is always USK and
+	 * the document name is always WebOfTrust.WOT_NAME, the routing key is encoded in mID, so only the following fields are stored and
+	 * getRequestURI() constructs the URI when it is needed. */
+	
+	/** The crypto key of the request URI. */
+	private byte[] mCryptoKey;
+	
+	/** The extra bytes of the request URI, they specify the crypto algorithm. */
+	private byte[] mExtra;
+	
+	/** The edition of the request URI. It is the one of the data which we have currently stored in the database (the values of this identity,
+	 * trust values, etc.) if mCurrentEditionFetchState is Fetched or ParsingFailed, otherwise it is the next edition number which should be
+	 * downloaded. */
+	private long mEdition;
+	
+	/**
+	 * The request URI as it was stored until database format version -48. Only used by {@link #upgradeDatabaseFormatVersion48WithoutCommit()},
+	 * null afterwards. The field is kept so db4o does not drop its value when an identity is stored by an earlier step of the upgrade.
+	 */
+	@Deprecated
+	private FreenetURI mRequestURI;
 	
 	public static enum FetchState {
 		NotFetched,
@@ -79,6 +103,19 @@ public class Identity extends Persistent implements Cloneable {
 	/** A list of this Identity's custom properties */
 	protected HashMap<String, String> mProperties;
 	
+	/* The following are aggregates of the Scores of this identity. They are updated by Score.storeWithoutCommit() and Score.deleteWithoutCommit()
+	 * so that WebOfTrust.getBestScore(), getBestCapacity() and shouldFetchIdentity() do not need to query all Scores of the identity. */
+	
+	/** The best {@link Score#getScore()} of all Scores of this identity, {@link #NO_SCORE} if it has none. */
+	protected int mBestScore;
+	
+	/** The best {@link Score#getCapacity()} of all Scores of this identity. */
+	protected int mBestCapacity;
+	
+	/** True if this identity should be fetched, see {@link WebOfTrust#shouldFetchIdentity(Identity)}. Indexed for {@link WebOfTrust#getAllIdentitiesToFetch()}. */
+	@IndexedField
+	protected boolean mShouldFetch;
+	
 	
 	/**
 	 * Creates an Identity. Only for being used by the WoT package and unit tests, not for user interfaces!
@@ -93,8 +130,10 @@ public class Identity extends Persistent implements Cloneable {
 			throw new IllegalArgumentException("Identity URI keytype not supported: " + newRequestURI);
 		
 		//  We only use the passed edition number as a hint to prevent attackers from spreading bogus very-high edition numbers.
-		mRequestURI = newRequestURI.setKeyType("USK").setDocName(WebOfTrust.WOT_NAME).setSuggestedEdition(0).setMetaString(null);
-		mID = getIDFromURI(mRequestURI);
+		mID = getIDFromURI(newRequestURI);
+		mCryptoKey = newRequestURI.getCryptoKey().clone();
+		mExtra = newRequestURI.getExtra().clone();
+		mEdition = 0;
 		
 		try {
 			mLatestEditionHint = newRequestURI.getEdition();
@@ -117,6 +156,10 @@ public class Identity extends Persistent implements Cloneable {
 		mContexts = new ArrayList<String>(4); /* Currently we have: Introduction, Freetalk */
 		mProperties = new HashMap<String, String>();
 		
+		mBestScore = NO_SCORE;
+		mBestCapacity = 0;
+		mShouldFetch = computeShouldFetch();
+		
 		Logger.debug(this, "New identity: " + getNickname() + ", URI: " + newRequestURI);
 	}	
 
@@ -159,18 +202,58 @@ public class Identity extends Persistent implements Cloneable {
 	}
 
 	/**
+	 * Only for being used by {@link WebOfTrust#upgradeDB()}: Converts the {@link FreenetURI} object of database format version -48 to
+	 * {@link #mCryptoKey}, {@link #mExtra} and {@link #mEdition} and deletes it. Does not change the ID, nothing else needs to be updated.
+	 */
+	protected void upgradeDatabaseFormatVersion48WithoutCommit() {
+		checkedActivate(3);
+		
+		if(mRequestURI == null)
+			throw new NullPointerException("mRequestURI==null");
+		
+		mCryptoKey = mRequestURI.getCryptoKey();
+		mExtra = mRequestURI.getExtra();
+		mEdition = mRequestURI.getEdition();
+		mRequestURI.removeFrom(mDB);
+		mRequestURI = null;
+		checkedStore();
+	}
+
+	/**
+	 * Decodes the routing key from an ID, see {@link #getIDFromURI(FreenetURI)}.
+	 */
+	public static final byte[] getRoutingKeyFromID(String id) {
+		try {
+			return Base64.decode(id);
+		} catch (IllegalBase64Exception e) {
+			throw new IllegalArgumentException("Invalid identity ID: " + id, e);
+		}
+	}
+
+	/**
+	 * Constructs a new {@link FreenetURI} object on each call, the URI is not stored, see {@link #mCryptoKey}.
+	 * 
 	 * @return The requestURI ({@link FreenetURI}) to fetch this Identity 
 	 */
 	public final FreenetURI getRequestURI() {
-		checkedActivate(3);
-		return mRequestURI;
+		checkedActivate(2);
+		return new FreenetURI("USK", WebOfTrust.WOT_NAME, (String[])null, getRoutingKeyFromID(mID), mCryptoKey, mExtra, mEdition);
+	}
+	
+	/**
+	 * @return The crypto key of the request URI. Must not be modified.
+	 */
+	protected final byte[] getCryptoKey() {
+		checkedActivate(2);
+		return mCryptoKey;
 	}
 
 	/**
 	 * Get the edition number of the request URI of this identity.
 	 */
 	public final long getEdition() {
-		return getRequestURI().getEdition();
+		// checkedActivate(depth) is not needed, long is a db4o primitive type
+		return mEdition;
 	}
 	
 	public final FetchState getCurrentEditionFetchState() {
@@ -186,16 +269,16 @@ public class Identity extends Persistent implements Cloneable {
 	 * @throws InvalidParameterException If the new edition is less than the current one.
 	 */
 	protected void setEdition(long newEdition) throws InvalidParameterException {
-		checkedActivate(3);
+		checkedActivate(2);
 		
-		long currentEdition = mRequestURI.getEdition();
+		long currentEdition = mEdition;
 		
 		if (newEdition < currentEdition) {
 			throw new InvalidParameterException("The edition of an identity cannot be lowered.");
 		}
 		
 		if (newEdition > currentEdition) {
-			mRequestURI = mRequestURI.setSuggestedEdition(newEdition);
+			mEdition = newEdition;
 			mCurrentEditionFetchState = FetchState.NotFetched;
 			if (newEdition > mLatestEditionHint) {
 				// Do not call setNewEditionHint() to prevent confusing logging.
@@ -234,8 +317,8 @@ public class Identity extends Persistent implements Cloneable {
 	 * Decrease the current edition by one. Used by {@link #markForRefetch()}.
 	 */
 	private final void decreaseEdition() {
-		checkedActivate(3);
-		mRequestURI = mRequestURI.setSuggestedEdition(Math.max(getEdition() - 1, 0));
+		// checkedActivate(depth) is not needed, long is a db4o primitive type
+		mEdition = Math.max(mEdition - 1, 0);
 		// TODO: I decided that we should not decrease the edition hint here. Think about that again.
 	}
 	
@@ -717,6 +800,114 @@ public class Identity extends Persistent implements Cloneable {
 		}
 	}
 	
+	/**
+	 * @return The best score value of all {@link Score}s of this identity, {@link #NO_SCORE} if it has none.
+	 */
+	protected final int getBestScore() {
+		// checkedActivate(depth) is not needed, int is a db4o primitive type
+		return mBestScore;
+	}
+	
+	/**
+	 * @return The best capacity of all {@link Score}s of this identity, 0 if it has none.
+	 */
+	protected final int getBestCapacity() {
+		// checkedActivate(depth) is not needed, int is a db4o primitive type
+		return mBestCapacity;
+	}
+	
+	/**
+	 * @return True if this identity should be fetched, see {@link WebOfTrust#shouldFetchIdentity(Identity)}.
+	 */
+	protected final boolean shouldFetch() {
+		// checkedActivate(depth) is not needed, boolean is a db4o primitive type
+		return mShouldFetch;
+	}
+	
+	private final boolean computeShouldFetch() {
+		return this instanceof OwnIdentity || (mBestScore != NO_SCORE && (mBestCapacity > 0 || mBestScore >= 0));
+	}
+	
+	/**
+	 * Called by {@link Score#storeWithoutCommit()} after a Score of this identity was stored. Updates the best score and capacity.
+	 * Does not commit the transaction.
+	 * 
+	 * @param wasStored True if the Score was stored before, then oldValue and oldCapacity are its previously stored values.
+	 */
+	protected final void onScoreStored(final Score score, final boolean wasStored, final int oldValue, final int oldCapacity) {
+		checkedActivate(1);
+		
+		final int newValue = score.getScore();
+		final int newCapacity = score.getCapacity();
+		
+		// If the score was the best one and decreased, another score might be the best one now.
+		if(wasStored && ((oldValue == mBestScore && newValue < oldValue) || (oldCapacity == mBestCapacity && newCapacity < oldCapacity))) {
+			recomputeBestScore(null);
+			return;
+		}
+		
+		final int bestScore = mBestScore;
+		final int bestCapacity = mBestCapacity;
+		mBestScore = Math.max(mBestScore, newValue);
+		mBestCapacity = Math.max(mBestCapacity, newCapacity);
+		
+		if(mBestScore != bestScore || mBestCapacity != bestCapacity)
+			storeBestScore();
+	}
+	
+	/**
+	 * Called by {@link Score#deleteWithoutCommit()} after a Score of this identity was deleted. Updates the best score and capacity.
+	 * Does not commit the transaction.
+	 * 
+	 * @param oldValue The value of the deleted Score as it was stored.
+	 * @param oldCapacity The capacity of the deleted Score as it was stored.
+	 */
+	protected final void onScoreDeleted(final Score score, final int oldValue, final int oldCapacity) {
+		checkedActivate(1);
+		
+		if(oldValue == mBestScore || (oldCapacity == mBestCapacity && oldCapacity > 0))
+			recomputeBestScore(score);
+	}
+	
+	/**
+	 * Computes the best score and capacity from the {@link Score}s of this identity in the database and stores them if they changed.
+	 * Does not commit the transaction.
+	 * 
+	 * @param ignoredScore A Score which was deleted in the current transaction and must not be considered. Can be null.
+	 * @return True if the best score or capacity was not correct.
+	 */
+	protected final boolean recomputeBestScore(final Score ignoredScore) {
+		checkedActivate(1);
+		
+		int bestScore = NO_SCORE;
+		int bestCapacity = 0;
+		
+		for(Score score : mWebOfTrust.getScores(this)) {
+			if(score == ignoredScore)
+				continue;
+			
+			bestScore = Math.max(bestScore, score.getScore());
+			bestCapacity = Math.max(bestCapacity, score.getCapacity());
+		}
+		
+		if(bestScore == mBestScore && bestCapacity == mBestCapacity && mShouldFetch == computeShouldFetch())
+			return false;
+		
+		mBestScore = bestScore;
+		mBestCapacity = bestCapacity;
+		storeBestScore();
+		return true;
+	}
+	
+	private final void storeBestScore() {
+		mShouldFetch = computeShouldFetch();
+		
+		// The identity is stored after its first Score in some code paths, for example in WebOfTrust.restoreIdentity().
+		// Its storeWithoutCommit() will then store the values.
+		if(mDB.isStored(this))
+			checkedStore();
+	}
+	
 	/**
 	 * Stores this identity in the database without committing the transaction
 	 * You must synchronize on the WoT, on the identity and then on the database when using this function!
@@ -728,7 +919,8 @@ public class Identity extends Persistent implements Cloneable {
 			activateProperties();
 
 			// checkedStore(mID); /* Not stored because db4o considers it as a primitive and automatically stores it. */
-			checkedStore(mRequestURI);
+			// checkedStore(mCryptoKey); /* Not stored because db4o considers it as a primitive and automatically stores it. */
+			// checkedStore(mExtra); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			// checkedStore(mFirstFetchedDate); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			// checkedStore(mLastFetchedDate); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			// checkedStore(mLastChangedDate); /* Not stored because db4o considers it as a primitive and automatically stores it. */
@@ -737,6 +929,10 @@ public class Identity extends Persistent implements Cloneable {
 			checkedStore(mProperties);
 			checkedStore(mContexts);
 			checkedStore();
+			
+			final SnapshotPublisher publisher = mWebOfTrust.getSnapshotPublisher();
+			if(publisher != null)
+				publisher.onIdentityStored(this);
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
@@ -748,6 +944,8 @@ public class Identity extends Persistent implements Cloneable {
 	 */
 	public final void storeAndCommit() {
 		synchronized(mWebOfTrust) {
+		mWebOfTrust.getLock().lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try {
 				storeWithoutCommit();
@@ -757,6 +955,9 @@ public class Identity extends Persistent implements Cloneable {
 				checkedRollbackAndThrow(e);
 			}
 		}
+		} finally {
+			mWebOfTrust.getLock().unlockWrite();
+		}
 		}
 	}
 	
@@ -771,7 +972,8 @@ public class Identity extends Persistent implements Cloneable {
 			activateProperties();
 			
 			// mDB.delete(mID); /* Not stored because db4o considers it as a primitive and automatically stores it. */
-			mRequestURI.removeFrom(mDB);
+			// mDB.delete(mCryptoKey); /* Not stored because db4o considers it as a primitive and automatically stores it. */
+			// mDB.delete(mExtra); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			checkedDelete(mCurrentEditionFetchState); // TODO: Is this still necessary?
 			// mDB.delete(mLastFetchedDate); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			// mDB.delete(mLastChangedDate); /* Not stored because db4o considers it as a primitive and automatically stores it. */
@@ -779,6 +981,10 @@ public class Identity extends Persistent implements Cloneable {
 			// mDB.delete(mDoesPublishTrustList); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			checkedDelete(mProperties);
 			checkedDelete(mContexts);
+			
+			final SnapshotPublisher publisher = mWebOfTrust.getSnapshotPublisher();
+			if(publisher != null)
+				publisher.onIdentityDeleted(this);
 			checkedDelete();
 		}
 		catch(RuntimeException e) {
@@ -793,17 +999,23 @@ public class Identity extends Persistent implements Cloneable {
 		if(mID == null)
 			throw new NullPointerException("mID==null");
 
-		if(mRequestURI == null)
-			throw new NullPointerException("mRequestURI==null");
+		if(mCryptoKey == null)
+			throw new NullPointerException("mCryptoKey==null");
 		
-		if(!mID.equals(getIDFromURI(mRequestURI)))
+		if(mExtra == null)
+			throw new NullPointerException("mExtra==null");
+		
+		if(!mID.equals(getIDFromURI(getRequestURI())))
 			throw new IllegalStateException("ID does not match request URI!");
 		
+		if(mEdition < 0)
+			throw new IllegalStateException("Invalid edition: " + mEdition);
+		
 		if(mCurrentEditionFetchState == null)
 			throw new NullPointerException("mFetchState==null");
 		
-		if(mLatestEditionHint < 0 || mLatestEditionHint < mRequestURI.getEdition())
-			throw new IllegalStateException("Invalid edition hint: " + mLatestEditionHint + "; current edition: " + mRequestURI.getEdition());
+		if(mLatestEditionHint < 0 || mLatestEditionHint < mEdition)
+			throw new IllegalStateException("Invalid edition hint: " + mLatestEditionHint + "; current edition: " + mEdition);
 		
 		if(mLastFetchedDate == null)
 			throw new NullPointerException("mLastFetchedDate==null");
@@ -8,14 +8,18 @@ package plugins.WebOfTrust;
 
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 
-import com.db4o.ObjectSet;
 import com.db4o.ext.ExtObjectContainer;
-import com.db4o.query.Query;
+import com.db4o.ext.StoredClass;
 
 import freenet.client.FetchContext;
 import freenet.client.FetchResult;
@@ -33,6 +37,7 @@ import freenet.pluginmanager.PluginRespirator;
 import freenet.support.Logger;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
@@ -40,15 +45,27 @@ import freenet.support.io.NativeThread;
  * Fetches Identities from Freenet.
  * Contains an ArrayList of all current requests.
  * 
- * TODO: There is some synchronization missing for the fetcher in some places where fetcher commands are issued.
- * It still works because those places are typically synchronized on the WoT anyway. We should fix it nevertheless.
- * Maybe we just might want to get rid of synchronization on the fetcher for storing commands... I will have to investigate.
+ * The fetches are started, aborted and updated by commands which are queued in memory by the store*CommandWithoutCommit() functions
+ * and processed by {@link #run()}, see {@link CommandQueue}. Storing commands does not need any lock on the fetcher.
  * 
  * @author xor (xor@freenetproject.org), Julien Cornuwel (batosai@freenetproject.org)
  */
-public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable {
+public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable, Persistent.TransactionListener {
 	
-	private static final long PROCESS_COMMANDS_DELAY = 60 * 1000;
+	/** Delay of processing the commands if at most {@link #BATCH_THRESHOLD} are queued, so a new fetch starts almost immediately. */
+	private static final long MIN_PROCESS_COMMANDS_DELAY = 10;
+	
+	/** Delay of processing the commands if more are queued: They are typically caused by a burst of transactions, for example the import
+	 * of a large trust list, whose commands are batched so they are processed with fewer acquisitions of the locks of the WoT. */
+	private static final long PROCESS_COMMANDS_DELAY = 10 * 1000;
+	
+	private static final int BATCH_THRESHOLD = 64;
+	
+	/** Maximal amount of commands which {@link #run()} processes at once. If more are queued, it releases the locks of the WoT so other
+	 * threads can use it and continues after {@link #CONTINUE_PROCESSING_DELAY}. */
+	private static final int MAX_COMMANDS_PER_RUN = 256;
+	
+	private static final long CONTINUE_PROCESSING_DELAY = 100;
 	
 	private final WebOfTrust mWoT;
 	
@@ -69,13 +86,31 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	
 	private final TrivialTicker mTicker;
 	
+	/** The time when the {@link #run()} which is queued at the {@link #mTicker} is due, Long.MAX_VALUE if none is queued.
+	 * Synchronized on {@link #mScheduleLock}, which does not lock anything but the ticker. */
+	private long mScheduledProcessingTime = Long.MAX_VALUE;
+	
+	private final Object mScheduleLock = new Object();
+	
+	private final CommandQueue mCommands = new CommandQueue();
+	
+	private final int mMaxCommandsPerRun;
+	
 	/**
 	 * Creates a new IdentityFetcher.
 	 * 
 	 * @param myWoT A reference to a {@link WebOfTrust}
 	 */
 	protected IdentityFetcher(WebOfTrust myWoT, PluginRespirator respirator) {
+		this(myWoT, respirator, MAX_COMMANDS_PER_RUN);
+	}
+	
+	/**
+	 * Constructor for the unit tests, which need to test the processing of more commands than fit into a single {@link #run()}.
+	 */
+	IdentityFetcher(WebOfTrust myWoT, PluginRespirator respirator, int maxCommandsPerRun) {
 		mWoT = myWoT;
+		mMaxCommandsPerRun = maxCommandsPerRun;
 		
 		mDB = mWoT.getDatabase();
 		
@@ -93,193 +128,386 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		
 		mRequestClient = mWoT.getRequestClient();
 		
-		deleteAllCommands();
+		Persistent.registerTransactionListener(mDB, this);
 	}
 	
-	public static class IdentityFetcherCommand extends Persistent {
+	/**
+	 * The type of a queued command. The commands which are queued for a single identity are coalesced into one, see
+	 * {@link CommandQueue#coalesce(CommandType, CommandType)}.
+	 */
+	static enum CommandType {
+		StartFetch,
+		AbortFetch,
+		UpdateEditionHint
+	}
+	
+	private static final class Command {
+		
+		private final CommandType mType;
+		
+		/** The time when the first of the commands which were coalesced into this one was queued, for the latency statistics. */
+		private final long mQueuedTime;
 		
-		@IndexedField
-		private final String mIdentityID;
+		/** Commands with a higher priority are processed first if not all queued commands fit into a single {@link IdentityFetcher#run()}.
+		 * The priority of a {@link CommandType#StartFetch} command is the best capacity of the identity, so identities which are
+		 * trusted directly or closely by an own identity are fetched first. Other commands have priority 0. */
+		private final int mPriority;
 		
-		protected IdentityFetcherCommand(String myIdentityID) {
-			mIdentityID = myIdentityID;
+		private Command(CommandType type, long queuedTime, int priority) {
+			mType = type;
+			mQueuedTime = queuedTime;
+			mPriority = priority;
 		}
 		
-		protected String getIdentityID() {
-			return mIdentityID;
+	}
+	
+	/**
+	 * The commands of the IdentityFetcher. They are only kept in memory: Their only purpose is to start, abort or update the fetches which
+	 * are running in the node, which are lost at restart anyway. At startup, the fetches of all identities are started from the database.
+	 * 
+	 * The commands are queued during a database transaction which changes the identities whose fetches they refer to. They must only be
+	 * executed if that transaction is committed, therefore they are kept in a separate map until {@link Persistent#checkedCommit(
+	 * ExtObjectContainer, Object)} notifies the IdentityFetcher, and discarded if the transaction is rolled back. Notice that
+	 * {@link Persistent#checkedGroupCommit(ExtObjectContainer, Object)} defers the notification until the changes are actually committed.
+	 * 
+	 * Each identity has at most one command in each of the maps, a further command for the same identity is coalesced with it. 
+	 * 
+	 * The queue is synchronized on itself and does not lock anything else, so it can be used from the commit and rollback notifications
+	 * which are called while the database is locked.
+	 */
+	private static final class CommandQueue {
+		
+		/** The commands of committed transactions, by identity ID. The iteration order is the order in which they were queued. */
+		private LinkedHashMap<String, Command> mCommitted = new LinkedHashMap<String, Command>(128); /* TODO: profile & tweak */
+		
+		/** The commands of the current transaction, by identity ID. */
+		private final LinkedHashMap<String, Command> mUncommitted = new LinkedHashMap<String, Command>(16);
+		
+		/** Amount of commands which were coalesced with a command which was already queued for the same identity */
+		private long mCoalescedCount = 0;
+		
+		/** Amount of commands which were discarded because their transaction was rolled back */
+		private long mDiscardedCount = 0;
+		
+		private long mProcessedCount = 0;
+		
+		private long mTotalLatency = 0;
+		
+		private long mMaxLatency = 0;
+		
+		/* Statistics of the StartFetch commands which were processed successfully: The time from the change of the trust which caused
+		 * the fetch to the start of the fetch. */
+		
+		private long mStartedFetchCount = 0;
+		
+		private long mTotalFetchStartLatency = 0;
+		
+		private long mMaxFetchStartLatency = 0;
+		
+		/**
+		 * Coalesces two commands of the same identity: The last start or abort command wins. An update of the edition hint is done by
+		 * a start command anyway and useless if the fetch is aborted, so it only remains if it is the only command.
+		 * 
+		 * @param queued The command which was queued first, null if there is none.
+		 * @param next The command which was queued after it.
+		 */
+		private static CommandType coalesce(CommandType queued, CommandType next) {
+			if(queued == null || next != CommandType.UpdateEditionHint)
+				return next;
+			
+			return queued;
 		}
-
-		@Override
-		public void startupDatabaseIntegrityTest() throws Exception {
-			if(mIdentityID == null)
-				throw new RuntimeException("mIdentityID==null");
+		
+		private static void coalesceInto(LinkedHashMap<String, Command> commands, String identityID, Command next) {
+			final Command queued = commands.get(identityID);
+			
+			if(queued == null) {
+				commands.put(identityID, next);
+				return;
+			}
 			
-			// TODO: Validate the ID
+			final CommandType type = coalesce(queued.mType, next.mType);
+			final int priority = type == queued.mType ? Math.max(queued.mPriority, next.mPriority) : next.mPriority;
+			
+			if(type != queued.mType || priority != queued.mPriority) // Keep the queued time and the position of the older command
+				commands.put(identityID, new Command(type, queued.mQueuedTime, priority));
 		}
-
-	}
-	
-	protected static final class StartFetchCommand extends IdentityFetcherCommand {
-
-		protected StartFetchCommand(Identity identity) {
-			super(identity.getID());
+		
+		public synchronized void add(String identityID, CommandType type, int priority) {
+			final Command queued = mUncommitted.get(identityID);
+			
+			if(queued != null)
+				++mCoalescedCount;
+			
+			if(type == CommandType.UpdateEditionHint && queued != null && queued.mType == CommandType.AbortFetch)
+				Logger.error(this, "Update edition hint command is useless, an abort fetch command is queued!");
+			
+			coalesceInto(mUncommitted, identityID, new Command(type, System.currentTimeMillis(), priority));
 		}
 		
-		protected StartFetchCommand(String identityID) {
-			super(identityID);
+		/**
+		 * @return True if commands were added to the committed ones.
+		 */
+		public synchronized boolean commit() {
+			if(mUncommitted.isEmpty())
+				return false;
+			
+			for(Map.Entry<String, Command> entry : mUncommitted.entrySet()) {
+				if(mCommitted.containsKey(entry.getKey()))
+					++mCoalescedCount;
+				
+				coalesceInto(mCommitted, entry.getKey(), entry.getValue());
+			}
+			
+			mUncommitted.clear();
+			return true;
 		}
 		
-	}
-	
-	protected static final class AbortFetchCommand extends IdentityFetcherCommand {
-
-		protected AbortFetchCommand(Identity identity) {
-			super(identity.getID());
+		public synchronized void rollback() {
+			mDiscardedCount += mUncommitted.size();
+			mUncommitted.clear();
+		}
+		
+		/**
+		 * Removes up to the given amount of committed commands from the queue and returns them. If there are more, the ones with the
+		 * highest {@link Command#mPriority} are returned, in the order in which they were queued if their priority is equal.
+		 */
+		public synchronized LinkedHashMap<String, Command> takeCommitted(int max) {
+			if(mCommitted.size() <= max) {
+				final LinkedHashMap<String, Command> result = mCommitted;
+				mCommitted = new LinkedHashMap<String, Command>(Math.max(128, result.size()));
+				return result;
+			}
+			
+			final ArrayList<Map.Entry<String, Command>> sorted = new ArrayList<Map.Entry<String, Command>>(mCommitted.entrySet());
+			
+			// Collections.sort() is stable, so the queue order is kept for equal priorities
+			Collections.sort(sorted, new Comparator<Map.Entry<String, Command>>() {
+				public int compare(Map.Entry<String, Command> e1, Map.Entry<String, Command> e2) {
+					final int p1 = e1.getValue().mPriority;
+					final int p2 = e2.getValue().mPriority;
+					return p1 > p2 ? -1 : (p1 < p2 ? 1 : 0);
+				}
+			});
+			
+			final LinkedHashMap<String, Command> result = new LinkedHashMap<String, Command>(max * 2);
+			for(Map.Entry<String, Command> entry : sorted.subList(0, max))
+				result.put(entry.getKey(), entry.getValue());
+			
+			for(String identityID : result.keySet())
+				mCommitted.remove(identityID);
+			
+			return result;
+		}
+		
+		public synchronized void onProcessed(Command command, long time) {
+			final long latency = time - command.mQueuedTime;
+			++mProcessedCount;
+			mTotalLatency += latency;
+			mMaxLatency = Math.max(mMaxLatency, latency);
+		}
+		
+		public synchronized void onFetchStarted(Command command, long time) {
+			final long latency = time - command.mQueuedTime;
+			++mStartedFetchCount;
+			mTotalFetchStartLatency += latency;
+			mMaxFetchStartLatency = Math.max(mMaxFetchStartLatency, latency);
+		}
+		
+		public synchronized CommandType getCommittedCommand(String identityID) {
+			final Command command = mCommitted.get(identityID);
+			return command != null ? command.mType : null;
+		}
+		
+		public synchronized int getCommittedCount() {
+			return mCommitted.size();
+		}
+		
+		public synchronized long getOldestCommittedAge(long time) {
+			if(mCommitted.isEmpty())
+				return 0;
+			
+			return time - mCommitted.values().iterator().next().mQueuedTime;
 		}
 		
 	}
 	
-	protected static final class UpdateEditionHintCommand extends IdentityFetcherCommand {
-
-		protected UpdateEditionHintCommand(Identity identity) {
-			super(identity.getID());
-		}
+	/**
+	 * Deletes the persistent commands which were stored in the database by older versions. Their classes do not exist anymore, so they are
+	 * looked up by name. Called by {@link WebOfTrust#upgradeDB()}.
+	 * 
+	 * @return The amount of deleted commands.
+	 */
+	protected static int upgradeDatabaseFormatVersion47WithoutCommit(ExtObjectContainer db) {
+		int deleted = 0;
 		
-		protected UpdateEditionHintCommand(String identityID) {
-			super(identityID);
+		for(String className : new String[] { "StartFetchCommand", "AbortFetchCommand", "UpdateEditionHintCommand" }) {
+			final StoredClass storedClass = db.storedClass(IdentityFetcher.class.getName() + "$" + className);
+			if(storedClass == null)
+				continue;
+			
+			for(long id : storedClass.getIDs()) {
+				db.delete(db.getByID(id));
+				++deleted;
+			}
 		}
 		
+		return deleted;
 	}
 	
-	private static final class NoSuchCommandException extends Exception {
-		private static final long serialVersionUID = 1L;
+	/**
+	 * The fetch is prioritized by the best capacity of the identity, so its scores should be updated before calling this.
+	 */
+	public void storeStartFetchCommandWithoutCommit(Identity identity) {
+		Logger.debug(this, "Start fetch command received for " + identity);
+		mCommands.add(identity.getID(), CommandType.StartFetch, identity.getBestCapacity());
 	}
 	
-	private static final class DuplicateCommandException extends RuntimeException {
-		private static final long serialVersionUID = 1L;
+	public void storeStartFetchCommandWithoutCommit(String identityID) {
+		Logger.debug(this, "Start fetch command received for " + identityID);
+		mCommands.add(identityID, CommandType.StartFetch, 0);
 	}
 	
-	private IdentityFetcherCommand getCommand(Class<? extends IdentityFetcherCommand> commandType, Identity identity)
-		throws NoSuchCommandException {
-		
-		return getCommand(commandType, identity.getID());
+	public void storeAbortFetchCommandWithoutCommit(Identity identity) {
+		Logger.debug(this, "Abort fetch command received for " + identity);
+		mCommands.add(identity.getID(), CommandType.AbortFetch, 0);
 	}
 	
-	private IdentityFetcherCommand getCommand(final Class<? extends IdentityFetcherCommand> commandType, final String identityID)
-		throws NoSuchCommandException {
-		
-		final Query q = mDB.query();
-		q.constrain(commandType);
-		q.descend("mIdentityID").constrain(identityID);
-		final ObjectSet<IdentityFetcherCommand> result = new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NoSuchCommandException();
-			default: throw new DuplicateCommandException();
-		}
+	public void storeUpdateEditionHintCommandWithoutCommit(String identityID) {
+		Logger.debug(this, "Update edition hint command received for " + identityID);
+		mCommands.add(identityID, CommandType.UpdateEditionHint, 0);
 	}
 	
-	private ObjectSet<IdentityFetcherCommand> getCommands(final Class<? extends IdentityFetcherCommand> commandType) {
-		final Query q = mDB.query();
-		q.constrain(commandType);
-		return new Persistent.InitializingObjectSet<IdentityFetcher.IdentityFetcherCommand>(mWoT, q);
+	/**
+	 * Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object)}. Does not synchronize on this IdentityFetcher because the
+	 * database is locked already, which {@link #run()} locks after it.
+	 */
+	public void onCommit() {
+		if(mCommands.commit())
+			scheduleCommandProcessing(getProcessCommandsDelay());
 	}
 	
-	private synchronized void deleteAllCommands() {
-		synchronized(mDB.lock()) {
-			try {
-				Logger.debug(this, "Deleting all identity fetcher commands ...");
-				
-				int amount = 0;
-				
-				for(IdentityFetcherCommand command : getCommands(IdentityFetcherCommand.class)) {
-					command.deleteWithoutCommit();
-					++amount;
-				}
-				
-				Logger.debug(this, "Deleted " + amount + " commands.");
-				
-				Persistent.checkedCommit(mDB, this);
-			}
-			catch(RuntimeException e) {
-				Persistent.checkedRollbackAndThrow(mDB, this, e);
-			}
-		}
+	/**
+	 * Called by {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)}.
+	 */
+	public void onRollback() {
+		mCommands.rollback();
 	}
 	
-	public void storeStartFetchCommandWithoutCommit(Identity identity) {
-		storeStartFetchCommandWithoutCommit(identity.getID());
+	/**
+	 * @return The command which is queued for the given identity and committed, null if there is none. For the unit tests.
+	 */
+	protected CommandType getQueuedCommand(String identityID) {
+		return mCommands.getCommittedCommand(identityID);
 	}
 	
-	public void storeStartFetchCommandWithoutCommit(String identityID) {
-		Logger.debug(this, "Start fetch command received for " + identityID);
-		
-		try {
-			getCommand(AbortFetchCommand.class, identityID).deleteWithoutCommit();
-			Logger.debug(this, "Deleting abort fetch command for " + identityID);
+	/**
+	 * @return The amount of identities for which committed commands are waiting to be processed.
+	 */
+	public int getQueuedCommandCount() {
+		return mCommands.getCommittedCount();
+	}
+	
+	/**
+	 * @return The time in milliseconds for which the oldest queued command has been waiting, 0 if there is none.
+	 */
+	public long getOldestQueuedCommandAge() {
+		return mCommands.getOldestCommittedAge(System.currentTimeMillis());
+	}
+	
+	public long getProcessedCommandCount() {
+		synchronized(mCommands) {
+			return mCommands.mProcessedCount;
 		}
-		catch(NoSuchCommandException e) { }
-		
-		try {
-			getCommand(StartFetchCommand.class, identityID);
-			Logger.debug(this, "Start fetch command already in queue!");
+	}
+	
+	/**
+	 * @return The average time in milliseconds between queuing and processing of the processed commands.
+	 */
+	public long getAverageCommandLatency() {
+		synchronized(mCommands) {
+			return mCommands.mProcessedCount > 0 ? mCommands.mTotalLatency / mCommands.mProcessedCount : 0;
 		}
-		catch(NoSuchCommandException e) {
-			final StartFetchCommand cmd = new StartFetchCommand(identityID);
-			cmd.initializeTransient(mWoT);
-			cmd.storeWithoutCommit();
-			scheduleCommandProcessing();
+	}
+	
+	/**
+	 * @return The maximal time in milliseconds between queuing and processing of the processed commands.
+	 */
+	public long getMaxCommandLatency() {
+		synchronized(mCommands) {
+			return mCommands.mMaxLatency;
 		}
 	}
 	
-	public void storeAbortFetchCommandWithoutCommit(Identity identity) {
-		Logger.debug(this, "Abort fetch command received for " + identity);
-		
-		try {
-			getCommand(StartFetchCommand.class, identity).deleteWithoutCommit();
-			Logger.debug(this, "Deleting start fetch command for " + identity);
+	/**
+	 * @return The average time in milliseconds from queuing a {@link CommandType#StartFetch} command, typically because a trust value
+	 *     was changed, to the start of the fetch.
+	 */
+	public long getAverageFetchStartLatency() {
+		synchronized(mCommands) {
+			return mCommands.mStartedFetchCount > 0 ? mCommands.mTotalFetchStartLatency / mCommands.mStartedFetchCount : 0;
 		}
-		catch(NoSuchCommandException e) { }
-		
-		try {
-			getCommand(AbortFetchCommand.class, identity);
-			Logger.debug(this, "Abort fetch command already in queue!");
+	}
+	
+	/**
+	 * @return The maximal time in milliseconds from queuing a {@link CommandType#StartFetch} command to the start of the fetch.
+	 */
+	public long getMaxFetchStartLatency() {
+		synchronized(mCommands) {
+			return mCommands.mMaxFetchStartLatency;
 		}
-		catch(NoSuchCommandException e) {
-			final AbortFetchCommand cmd = new AbortFetchCommand(identity);
-			cmd.initializeTransient(mWoT);
-			cmd.storeWithoutCommit();
-			scheduleCommandProcessing();
+	}
+	
+	public long getCoalescedCommandCount() {
+		synchronized(mCommands) {
+			return mCommands.mCoalescedCount;
 		}
 	}
 	
-	public void storeUpdateEditionHintCommandWithoutCommit(String identityID) {
-		Logger.debug(this, "Update edition hint command received for " + identityID);
-		
-		try {
-			getCommand(AbortFetchCommand.class, identityID);
-			Logger.error(this, "Update edition hint command is useless, an abort fetch command is queued!");
+	public long getDiscardedCommandCount() {
+		synchronized(mCommands) {
+			return mCommands.mDiscardedCount;
 		}
-		catch(NoSuchCommandException e1) {
-			try {
-				getCommand(UpdateEditionHintCommand.class, identityID);
-				Logger.debug(this, "Update edition hint command already in queue!");
-			}
-			catch(NoSuchCommandException e2) {
-				final UpdateEditionHintCommand cmd = new UpdateEditionHintCommand(identityID);
-				cmd.initializeTransient(mWoT);
-				cmd.storeWithoutCommit();
-				scheduleCommandProcessing();
-			}
+	}
+	
+	/**
+	 * @return The delay after which the queued commands are processed: {@link #MIN_PROCESS_COMMANDS_DELAY} if only few are queued,
+	 *     {@link #PROCESS_COMMANDS_DELAY} for batching them if many are queued.
+	 */
+	long getProcessCommandsDelay() {
+		return mCommands.getCommittedCount() <= BATCH_THRESHOLD ? MIN_PROCESS_COMMANDS_DELAY : PROCESS_COMMANDS_DELAY;
+	}
+	
+	/**
+	 * Queues {@link #run()} at the ticker unless a run is queued already which is due at the same time or earlier. A queued run which is
+	 * due later is replaced: queueTimedJob() would ignore the new one as a duplicate, so a batch delay would delay the quick processing.
+	 */
+	void scheduleCommandProcessing(long delay) {
+		synchronized(mScheduleLock) {
+			final long time = System.currentTimeMillis() + delay;
+			
+			if(time >= mScheduledProcessingTime)
+				return;
+			
+			if(mTicker != null) {
+				if(mScheduledProcessingTime != Long.MAX_VALUE)
+					mTicker.removeQueuedJob(this);
+				
+				mTicker.queueTimedJob(this, "WoT IdentityFetcher", delay, false, true);
+			} else
+				Logger.warning(this, "Cannot schedule command processing: Ticker is null.");
+			
+			mScheduledProcessingTime = time;
 		}
 	}
 	
-	private void scheduleCommandProcessing() {
-		if(mTicker != null)
-			mTicker.queueTimedJob(this, "WoT IdentityFetcher", PROCESS_COMMANDS_DELAY, false, true);
-		else
-			Logger.warning(this, "Cannot schedule command processing: Ticker is null.");
+	/**
+	 * @return The time when the queued {@link #run()} is due, Long.MAX_VALUE if none is queued. For the unit tests.
+	 */
+	long getScheduledProcessingTime() {
+		synchronized(mScheduleLock) {
+			return mScheduledProcessingTime;
+		}
 	}
 	
 	public int getPriority() {
@@ -287,52 +515,55 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	}
 	
 	public void run() {
+		// The ticker has dequeued us, a commit from now on must queue us again
+		synchronized(mScheduleLock) {
+			mScheduledProcessingTime = Long.MAX_VALUE;
+		}
+		
 		synchronized(mWoT) { // Lock needed because we do getIdentityByID() in fetch()
 		synchronized(this) {
-		synchronized(mDB.lock()) {
-			try  {
-				Logger.debug(this, "Processing identity fetcher commands ...");
-				
-				for(IdentityFetcherCommand command : getCommands(AbortFetchCommand.class)) {
-					try {
-						abortFetch(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch(Exception e) {
-						Logger.error(this, "Aborting fetch failed", e);
-					}
-				}
-				
-				for(IdentityFetcherCommand command : getCommands(StartFetchCommand.class)) {
-					try {
-						fetch(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch (Exception e) {
-						Logger.error(this, "Fetching identity failed", e);
-					}
-					
-				}
+		mWoT.getLock().lockRead();
+		try {
+			final LinkedHashMap<String, Command> commands = mCommands.takeCommitted(mMaxCommandsPerRun);
+			
+			Logger.debug(this, "Processing " + commands.size() + " identity fetcher commands ...");
+			
+			for(Map.Entry<String, Command> entry : commands.entrySet()) {
+				final Command command = entry.getValue();
 				
-				for(IdentityFetcherCommand command : getCommands(UpdateEditionHintCommand.class)) {
-					try {
-						editionHintUpdated(command.getIdentityID());
-						command.deleteWithoutCommit();
-					} catch (Exception e) { 
-						Logger.error(this, "Updating edition hint failed", e);
+				try {
+					switch(command.mType) {
+						case AbortFetch:
+							abortFetch(entry.getKey());
+							break;
+						case StartFetch:
+							fetch(entry.getKey());
+							if(mRequests.containsKey(entry.getKey()))
+								mCommands.onFetchStarted(command, System.currentTimeMillis());
+							break;
+						case UpdateEditionHint:
+							editionHintUpdated(entry.getKey());
+							break;
 					}
-					
+				} catch(Exception e) {
+					Logger.error(this, "Processing " + command.mType + " command failed for " + entry.getKey(), e);
 				}
 				
-				Logger.debug(this, "Processing finished.");
-				
-				Persistent.checkedCommit(mDB, this);
-			} catch(RuntimeException e) {
-				Persistent.checkedRollback(mDB, this, e);
+				mCommands.onProcessed(command, System.currentTimeMillis());
 			}
+			
+			final int remaining = mCommands.getCommittedCount();
+			Logger.debug(this, "Processing finished, " + remaining + " commands remaining.");
+			
+			if(remaining > 0) // Continue with the commands which did not fit into this run
+				scheduleCommandProcessing(CONTINUE_PROCESSING_DELAY);
+		} finally {
+			mWoT.getLock().unlockRead();
 		}
 		}
 		}
 	}
-	
+
 	protected void fetch(String identityID) throws Exception {
 		try {
 			synchronized(mWoT) {
@@ -465,7 +696,8 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	}
 
 	/**
-	 * Called when an identity is successfully fetched.
+	 * Called when an identity is successfully fetched. Queues it at the {@link IdentityImporter} so the thread of the node does not
+	 * wait for the locks of the WoT, or imports it directly if there is none.
 	 */
 	public void onFound(USK origUSK, long edition, FetchResult result) {
 		FreenetURI realURI = origUSK.getURI().setSuggestedEdition(edition);
@@ -477,9 +709,14 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 		
 		try {
 			bucket = result.asBucket();
-			inputStream = bucket.getInputStream();
 			
-			mWoT.getXMLTransformer().importIdentity(realURI, inputStream);
+			final IdentityImporter importer = mWoT.getIdentityImporter();
+			if(importer != null)
+				importer.enqueue(realURI, BucketTools.toByteArray(bucket));
+			else {
+				inputStream = bucket.getInputStream();
+				mWoT.getXMLTransformer().importIdentity(realURI, inputStream);
+			}
 		}
 		catch (Throwable e) {
 			Logger.error(this, "Parsing failed for " + realURI, e);
@@ -0,0 +1,551 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Imports the identity XML files which the {@link IdentityFetcher} has fetched, decoupled from the threads of the node which deliver them:
+ * - {@link #enqueue(FreenetURI, byte[])} queues the XML. It does not wait for the locks of the WoT, which might be held by a score
+ *   computation for a long time.
+ * - A pool of {@link #PARSER_THREADS} threads parses the queued XML in parallel without any lock.
+ * - A single writer thread imports the parsed identities with {@link XMLTransformer#importIdentity(FreenetURI, ParsedIdentityXML)}.
+ *   It keeps the locks of the WoT for batches of up to {@link #WRITE_BATCH_SIZE} identities, so a burst of fetched editions acquires
+ *   them much less often. The imports of a batch are committed by group commit, which is flushed before the locks are released.
+ *   If an import is rolled back, the imports whose commits were deferred are rolled back with it and imported again.
+ *
+ * Only the newest edition of an identity is kept: If an edition is queued while an older one is waiting to be parsed or imported, the
+ * older one is dropped, a queued edition which is not newer than a waiting one is dropped immediately. A queued edition which is older
+ * than the imported one is dropped without parsing it by looking up the imported edition in the lock-free {@link WebOfTrustSnapshot}.
+ * The editions which are dropped after being parsed or which are superseded while waiting for the locks of the WoT are skipped before
+ * the import. {@link #getSkippedParseCount()} and {@link #getSkippedImportCount()} tell how much work this saves.
+ *
+ * The XML of the waiting identities is bounded by {@link #MAX_QUEUED_BYTES}. If it is exceeded, enqueue() blocks until the writer has
+ * caught up: This slows down the node callbacks instead of running out of memory while the writer waits for the locks.
+ */
+public final class IdentityImporter {
+
+	/** The maximal size of the XML of all identities which are waiting to be parsed or imported. */
+	public static final int MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+	/** The maximal amount of identities which the writer imports while holding the locks of the WoT. */
+	public static final int WRITE_BATCH_SIZE = 32;
+
+	/** The amount of threads which parse identity XML in parallel. */
+	public static final int PARSER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final class QueuedImport {
+
+		private final String mIdentityID;
+
+		private final FreenetURI mURI;
+
+		private final long mEdition;
+
+		/** The XML, null after it was parsed */
+		private byte[] mXML;
+
+		private final int mSize;
+
+		/** Null until it was parsed */
+		private ParsedIdentityXML mParsed;
+
+		/** When {@link IdentityImporter#enqueue(FreenetURI, byte[])} was called, for the latency statistics. */
+		private final long mQueuedTime;
+
+		private QueuedImport(FreenetURI uri, byte[] xml, long queuedTime) {
+			mIdentityID = Identity.getIDFromURI(uri);
+			mURI = uri;
+			mEdition = uri.getEdition();
+			mXML = xml;
+			mSize = xml.length;
+			mQueuedTime = queuedTime;
+		}
+
+	}
+
+	private final WebOfTrust mWoT;
+
+	/** Null if the stages are only run by calling {@link #parseNext()} and {@link #writeBatch()}, which the unit tests do. */
+	private final ExecutorService mParserExecutor;
+
+	/** Null if the stages are only run by calling {@link #parseNext()} and {@link #writeBatch()}, which the unit tests do. */
+	private final ExecutorService mWriterExecutor;
+
+	/** The identities whose XML is waiting to be parsed, by identity ID, in the order in which they were queued. */
+	private final LinkedHashMap<String, QueuedImport> mQueued = new LinkedHashMap<String, QueuedImport>();
+
+	/** The parsed identities which are waiting to be imported, by identity ID. */
+	private final LinkedHashMap<String, QueuedImport> mParsed = new LinkedHashMap<String, QueuedImport>();
+
+	/** The XML size of all identities which are waiting to be parsed, are being parsed or are waiting to be imported. */
+	private int mQueuedBytes = 0;
+
+	private int mParsingCount = 0;
+
+	private boolean mWriterRunning = false;
+
+	private volatile boolean mTerminated = false;
+
+	private long mEnqueuedCount = 0;
+
+	/**
+	 * The newest edition of each identity which is waiting to be parsed, is being parsed, is waiting to be imported or is being imported.
+	 * The entry is removed when that edition leaves the pipeline, older editions are then recognized by the edition in the
+	 * {@link WebOfTrustSnapshot}.
+	 */
+	private final HashMap<String, Long> mNewestEditions = new HashMap<String, Long>();
+
+	/** Amount of editions which were not parsed because a newer edition of the same identity was queued or imported already */
+	private long mSkippedParseCount = 0;
+
+	/** Amount of parsed editions which were not imported because a newer edition of the same identity was queued */
+	private long mSkippedImportCount = 0;
+
+	private long mImportedCount = 0;
+
+	private long mFailedCount = 0;
+
+	private long mBatchCount = 0;
+
+	private long mTotalLatency = 0;
+
+	private long mMaxLatency = 0;
+
+	/** The total time in milliseconds for which {@link #enqueue(FreenetURI, byte[])} blocked because {@link #MAX_QUEUED_BYTES} was exceeded */
+	private long mBlockedTime = 0;
+
+	private final Runnable mParser = new Runnable() {
+		public void run() {
+			parseNext();
+		}
+	};
+
+	private final Runnable mWriter = new Runnable() {
+		public void run() {
+			while(!mTerminated && writeBatch() > 0);
+		}
+	};
+
+
+	/**
+	 * @param useThreads False if the stages should only be run by calling {@link #parseNext()} and {@link #writeBatch()}, for the unit tests.
+	 */
+	public IdentityImporter(WebOfTrust myWoT, boolean useThreads) {
+		mWoT = myWoT;
+
+		if(useThreads) {
+			mParserExecutor = Executors.newFixedThreadPool(PARSER_THREADS, new ImporterThreadFactory("WoT identity XML parser"));
+			mWriterExecutor = Executors.newSingleThreadExecutor(new ImporterThreadFactory("WoT identity XML import"));
+		} else {
+			mParserExecutor = null;
+			mWriterExecutor = null;
+		}
+	}
+
+	private static final class ImporterThreadFactory implements ThreadFactory {
+		private final String mName;
+
+		private int mThreadNumber = 0;
+
+		private ImporterThreadFactory(String name) {
+			mName = name;
+		}
+
+		public synchronized Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, mName + " " + (++mThreadNumber));
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+
+	/**
+	 * Queues the given edition of an identity for being imported. Blocks if the queued XML exceeds {@link #MAX_QUEUED_BYTES}.
+	 *
+	 * @param uri The URI of the fetched edition.
+	 * @param xml The fetched XML, must not be modified by the caller afterwards.
+	 */
+	public synchronized void enqueue(FreenetURI uri, byte[] xml) {
+		if(mTerminated)
+			return;
+
+		final QueuedImport newImport = new QueuedImport(uri, xml, System.currentTimeMillis());
+		++mEnqueuedCount;
+
+		if(isOutdated(newImport)) {
+			Logger.debug(this, "Not parsing " + newImport.mURI + ", a newer edition is known already.");
+			++mSkippedParseCount;
+			return;
+		}
+
+		if(mQueuedBytes > 0 && mQueuedBytes + newImport.mSize > MAX_QUEUED_BYTES) {
+			final long startTime = System.currentTimeMillis();
+			Logger.normal(this, "The identity import queue is full, waiting for the import of " + mQueuedBytes + " bytes of XML ...");
+
+			try {
+				while(!mTerminated && mQueuedBytes > 0 && mQueuedBytes + newImport.mSize > MAX_QUEUED_BYTES)
+					wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			mBlockedTime += System.currentTimeMillis() - startTime;
+
+			if(mTerminated)
+				return;
+
+			// Another edition of the identity might have been queued or imported while waiting
+			if(isOutdated(newImport)) {
+				Logger.debug(this, "Not parsing " + newImport.mURI + ", a newer edition was queued while waiting.");
+				++mSkippedParseCount;
+				return;
+			}
+		}
+
+		mNewestEditions.put(newImport.mIdentityID, newImport.mEdition);
+
+		final QueuedImport queued = mQueued.remove(newImport.mIdentityID);
+		if(queued != null) {
+			Logger.debug(this, "Not parsing " + queued.mURI + ", a newer edition was queued.");
+			++mSkippedParseCount;
+			release(queued);
+		}
+
+		final QueuedImport parsed = mParsed.remove(newImport.mIdentityID);
+		if(parsed != null) {
+			Logger.debug(this, "Not importing " + parsed.mURI + ", a newer edition was queued.");
+			++mSkippedImportCount;
+			release(parsed);
+		}
+
+		mQueued.put(newImport.mIdentityID, newImport);
+		mQueuedBytes += newImport.mSize;
+
+		if(mParserExecutor != null)
+			mParserExecutor.execute(mParser);
+	}
+
+	/**
+	 * An edition which is equal to the imported one is not outdated: It is fetched again if the identity was marked for refetching, see
+	 * {@link Identity#markForRefetch()}. {@link XMLTransformer#importIdentity(FreenetURI, ParsedIdentityXML)} ignores older editions, so
+	 * this check only saves work.
+	 *
+	 * @return True if the same or a newer edition of the identity is in the pipeline, or a newer one was imported already.
+	 */
+	private boolean isOutdated(QueuedImport newImport) {
+		final Long newest = mNewestEditions.get(newImport.mIdentityID);
+		if(newest != null && newest >= newImport.mEdition)
+			return true;
+
+		final WebOfTrustSnapshot.IdentityEntry imported = mWoT.getSnapshot().getIdentityByID(newImport.mIdentityID);
+		return imported != null && imported.getEdition() > newImport.mEdition;
+	}
+
+	/**
+	 * @return True if a newer edition of the identity of the given import, which is in the pipeline, was queued.
+	 */
+	private synchronized boolean isSuperseded(QueuedImport queuedImport) {
+		final Long newest = mNewestEditions.get(queuedImport.mIdentityID);
+		return newest != null && newest > queuedImport.mEdition;
+	}
+
+	/**
+	 * Must be called when the given import leaves the pipeline because it was imported or dropped.
+	 */
+	private void release(QueuedImport queuedImport) {
+		mQueuedBytes -= queuedImport.mSize;
+
+		final Long newest = mNewestEditions.get(queuedImport.mIdentityID);
+		if(newest != null && newest == queuedImport.mEdition)
+			mNewestEditions.remove(queuedImport.mIdentityID);
+
+		notifyAll();
+	}
+
+	/**
+	 * Parses the XML of the identity which was queued first. Called by the threads of the parser pool, or by the unit tests.
+	 *
+	 * @return False if no identity was waiting to be parsed.
+	 */
+	boolean parseNext() {
+		final QueuedImport next;
+
+		synchronized(this) {
+			final Iterator<QueuedImport> iter = mQueued.values().iterator();
+			if(mTerminated || !iter.hasNext())
+				return false;
+
+			next = iter.next();
+			iter.remove();
+			++mParsingCount;
+		}
+
+		try {
+			next.mParsed = mWoT.getXMLTransformer().parseIdentityXML(new ByteArrayInputStream(next.mXML));
+			next.mXML = null;
+		} finally {
+			synchronized(this) {
+				--mParsingCount;
+
+				// A newer edition might have been queued while parsing
+				if(next.mParsed != null && !mTerminated && isSuperseded(next)) {
+					Logger.debug(this, "Not importing " + next.mURI + ", a newer edition was queued while parsing.");
+					++mSkippedImportCount;
+					release(next);
+				} else if(next.mParsed == null || mTerminated) {
+					release(next);
+				} else {
+					mParsed.put(next.mIdentityID, next);
+
+					if(mWriterExecutor != null && !mWriterRunning) {
+						mWriterRunning = true;
+						mWriterExecutor.execute(mWriter);
+					}
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Imports the given identities again with an immediate commit each, after a rollback has discarded their deferred commits.
+	 * 
+	 * @return The amount of identities whose import failed again.
+	 */
+	private int redo(final XMLTransformer transformer, final ArrayList<QueuedImport> imports) {
+		int failed = 0;
+		
+		for(QueuedImport queuedImport : imports) {
+			Logger.normal(this, "Importing " + queuedImport.mURI + " again, it was rolled back.");
+			
+			try {
+				transformer.importIdentity(queuedImport.mURI, queuedImport.mParsed, false);
+			} catch(Exception e) {
+				Logger.error(this, "Importing " + queuedImport.mURI + " again failed", e);
+				++failed;
+			}
+		}
+		
+		return failed;
+	}
+
+	/**
+	 * Imports up to {@link #WRITE_BATCH_SIZE} parsed identities while holding the locks of the WoT. Called by the writer thread, or by
+	 * the unit tests.
+	 *
+	 * @return The amount of imported identities, 0 if none was waiting to be imported.
+	 */
+	int writeBatch() {
+		final ArrayList<QueuedImport> batch = new ArrayList<QueuedImport>(WRITE_BATCH_SIZE);
+
+		synchronized(this) {
+			final Iterator<QueuedImport> iter = mParsed.values().iterator();
+			while(iter.hasNext() && batch.size() < WRITE_BATCH_SIZE) {
+				batch.add(iter.next());
+				iter.remove();
+			}
+
+			if(batch.isEmpty() || mTerminated) {
+				mWriterRunning = false;
+				return 0;
+			}
+		}
+
+		int imported = 0;
+		int failed = 0;
+		int skipped = 0;
+		final boolean[] processed = new boolean[batch.size()];
+		final XMLTransformer transformer = mWoT.getXMLTransformer();
+		final ExtObjectContainer db = mWoT.getDatabase();
+		// The imports of this batch whose commits are currently deferred by group commit
+		final ArrayList<QueuedImport> deferred = new ArrayList<QueuedImport>(batch.size());
+
+		// The same locks as XMLTransformer.importIdentity() takes, so it does not acquire them for each identity
+		synchronized(mWoT) {
+		synchronized(mWoT.getIdentityFetcher()) {
+		mWoT.getLock().lockWrite();
+		try {
+			for(int i = 0; i < batch.size(); ++i) {
+				if(mTerminated)
+					break;
+
+				final QueuedImport queuedImport = batch.get(i);
+
+				// A newer edition might have been queued while waiting for the locks
+				if(isSuperseded(queuedImport)) {
+					Logger.debug(this, "Not importing " + queuedImport.mURI + ", a newer edition was queued.");
+					++skipped;
+					continue;
+				}
+
+				processed[i] = true;
+				final long rolledBackCommits = Persistent.getRolledBackCommitCount(db);
+				try {
+					transformer.importIdentity(queuedImport.mURI, queuedImport.mParsed, true);
+					++imported;
+					deferred.add(queuedImport);
+				} catch(Exception e) {
+					Logger.error(this, "Importing " + queuedImport.mURI + " failed", e);
+					++failed;
+					
+					// The rollback of the failed import has discarded the deferred ones, nobody else would import them again
+					if(Persistent.getRolledBackCommitCount(db) != rolledBackCommits) {
+						final int failedAgain = redo(transformer, deferred);
+						imported -= failedAgain;
+						failed += failedAgain;
+					}
+				}
+				
+				if(Persistent.getDeferredCommitCount(db) == 0)
+					deferred.clear();
+			}
+		} finally {
+			try {
+				// Nobody must see the deferred imports before they are committed
+				mWoT.flushGroupCommit();
+			} finally {
+				mWoT.getLock().unlockWrite();
+			}
+		}
+		}
+		}
+
+		synchronized(this) {
+			final long time = System.currentTimeMillis();
+
+			for(int i = 0; i < batch.size(); ++i) {
+				final QueuedImport queuedImport = batch.get(i);
+				release(queuedImport);
+
+				if(processed[i]) {
+					final long latency = time - queuedImport.mQueuedTime;
+					mTotalLatency += latency;
+					mMaxLatency = Math.max(mMaxLatency, latency);
+				}
+			}
+
+			mImportedCount += imported;
+			mFailedCount += failed;
+			mSkippedImportCount += skipped;
+			++mBatchCount;
+		}
+
+		return batch.size();
+	}
+
+	/**
+	 * Drops all waiting identities and stops the threads. The import of the current batch is finished.
+	 */
+	public void terminate() {
+		synchronized(this) {
+			mTerminated = true;
+			mQueued.clear();
+			mParsed.clear();
+			mNewestEditions.clear();
+			notifyAll();
+		}
+
+		if(mParserExecutor != null)
+			mParserExecutor.shutdownNow();
+
+		if(mWriterExecutor != null) {
+			// Not interrupted, the writer might be in a database transaction
+			mWriterExecutor.shutdown();
+			try {
+				if(!mWriterExecutor.awaitTermination(30, TimeUnit.SECONDS))
+					Logger.error(this, "The identity import did not terminate.");
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return The amount of identities whose XML is waiting to be parsed or is being parsed.
+	 */
+	public synchronized int getQueuedCount() {
+		return mQueued.size() + mParsingCount;
+	}
+
+	/**
+	 * @return The amount of parsed identities which are waiting to be imported.
+	 */
+	public synchronized int getParsedCount() {
+		return mParsed.size();
+	}
+
+	public synchronized int getQueuedBytes() {
+		return mQueuedBytes;
+	}
+
+	public synchronized long getEnqueuedCount() {
+		return mEnqueuedCount;
+	}
+
+	/**
+	 * @return The amount of fetched editions which were not parsed because a newer edition of the same identity was queued or imported.
+	 */
+	public synchronized long getSkippedParseCount() {
+		return mSkippedParseCount;
+	}
+
+	/**
+	 * @return The amount of parsed editions which were not imported because a newer edition of the same identity was queued.
+	 */
+	public synchronized long getSkippedImportCount() {
+		return mSkippedImportCount;
+	}
+
+	public synchronized long getImportedCount() {
+		return mImportedCount;
+	}
+
+	public synchronized long getFailedCount() {
+		return mFailedCount;
+	}
+
+	public synchronized long getBatchCount() {
+		return mBatchCount;
+	}
+
+	/**
+	 * @return The average time in milliseconds from queuing an identity to the end of its import.
+	 */
+	public synchronized long getAverageLatency() {
+		final long processed = mImportedCount + mFailedCount;
+		return processed > 0 ? mTotalLatency / processed : 0;
+	}
+
+	/**
+	 * @return The maximal time in milliseconds from queuing an identity to the end of its import.
+	 */
+	public synchronized long getMaxLatency() {
+		return mMaxLatency;
+	}
+
+	/**
+	 * @return The total time in milliseconds for which the node's threads were blocked because too much XML was queued.
+	 */
+	public synchronized long getBlockedTime() {
+		return mBlockedTime;
+	}
+
+}
@@ -0,0 +1,232 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * A bounded cache for the point lookups of {@link WebOfTrust#getTrust(Identity, Identity)} and
+ * {@link WebOfTrust#getScore(OwnIdentity, Identity)}: It maps a pair of identities to the single object which exists for them in the
+ * database, or to the information that there is none.
+ *
+ * The key of a pair is the db4o object ID of the truster in the upper 32 bits and the one of the trustee in the lower 32 bits. The cache
+ * is direct-mapped like a CPU cache: Each key has exactly one slot in a fixed-size array, a colliding key evicts the previous one. This
+ * keeps the cache bounded without any bookkeeping and without boxing the keys.
+ *
+ * The cache is kept in sync with the database by the store and delete functions of {@link Trust} and {@link Score}, which call
+ * {@link #invalidate(Identity, Identity)}. Because objects which were looked up during a transaction might be rolled back, the keys
+ * which were modified since the last commit are recorded and invalidated if the transaction is rolled back, see
+ * {@link Persistent.TransactionListener}.
+ *
+ * The cache is synchronized so it can be used by readers which hold the read lock of the {@link WebOfTrust}. Writers must hold the write
+ * lock when storing or deleting objects so no reader can cache an object of an uncommitted transaction.
+ *
+ * @param <T> Either {@link Trust} or {@link Score}.
+ */
+public final class IdentityPairCache<T extends Persistent> implements Persistent.TransactionListener {
+
+	/** Cached for pairs for which no object exists in the database. */
+	private static final Object NOT_FOUND = new Object();
+
+	/** Returned by {@link #get(Identity, Identity)} for pairs which are not cached. */
+	private static final Object MISS = new Object();
+
+	/** Maximal amount of keys which are recorded for undoing a transaction. If exceeded, a rollback clears the whole cache. */
+	private static final int MAX_UNDO_LOG_SIZE = 64 * 1024;
+
+	private final ExtObjectContainer mDB;
+
+	/** The keys of the slots, 0 for empty slots */
+	private final long[] mKeys;
+
+	/** The cached objects of the slots: A T or {@link #NOT_FOUND} */
+	private final Object[] mValues;
+
+	/** The keys which were modified since the last commit or rollback */
+	private long[] mUndoLog = new long[64];
+
+	private int mUndoLogSize = 0;
+
+	/** True if the undo log cannot be used for rolling back the current transaction, a rollback will clear the cache then. */
+	private boolean mUndoLogInvalid = false;
+
+	private long mHits = 0;
+
+	private long mMisses = 0;
+
+
+	/**
+	 * @param capacity The amount of slots. Rounded up to a power of 2.
+	 */
+	public IdentityPairCache(ExtObjectContainer db, int capacity) {
+		mDB = db;
+
+		int size = 16;
+		while(size < capacity)
+			size *= 2;
+
+		mKeys = new long[size];
+		mValues = new Object[size];
+	}
+
+	/**
+	 * @return The key of the given pair or 0 if it cannot be cached because one of the identities is not stored or its object ID does not
+	 *     fit into 32 bits.
+	 */
+	private long getKey(Identity truster, Identity trustee) {
+		if(truster == null || trustee == null)
+			return 0;
+
+		final long trusterID = mDB.getID(truster);
+		final long trusteeID = mDB.getID(trustee);
+
+		if(trusterID <= 0 || trusterID > Integer.MAX_VALUE || trusteeID <= 0 || trusteeID > Integer.MAX_VALUE)
+			return 0;
+
+		return (trusterID << 32) | trusteeID;
+	}
+
+	private int getSlot(long key) {
+		// Mix the bits so that the pairs of a single truster do not cluster in the table
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key & (mKeys.length - 1);
+	}
+
+	/**
+	 * @return The cached object, {@link #isNotFound(Object)} if it is cached that there is no object, or {@link #isHit(Object)} is false
+	 *     if the pair is not cached.
+	 */
+	public synchronized Object get(Identity truster, Identity trustee) {
+		final long key = getKey(truster, trustee);
+		if(key == 0) {
+			++mMisses;
+			return MISS;
+		}
+
+		final int slot = getSlot(key);
+		if(mKeys[slot] != key) {
+			++mMisses;
+			return MISS;
+		}
+
+		++mHits;
+		return mValues[slot];
+	}
+
+	public static boolean isHit(Object result) {
+		return result != MISS;
+	}
+
+	public static boolean isNotFound(Object result) {
+		return result == NOT_FOUND;
+	}
+
+	/**
+	 * Caches the result of a database query for the given pair.
+	 *
+	 * @param value The object which exists for the pair, or null if there is none.
+	 */
+	public synchronized void put(Identity truster, Identity trustee, T value) {
+		final long key = getKey(truster, trustee);
+		if(key == 0)
+			return;
+
+		final int slot = getSlot(key);
+		recordUndo(key);
+		mKeys[slot] = key;
+		mValues[slot] = value != null ? value : NOT_FOUND;
+	}
+
+	/**
+	 * To be called when an object of the given pair was stored or deleted.
+	 */
+	public synchronized void invalidate(Identity truster, Identity trustee) {
+		final long key = getKey(truster, trustee);
+		if(key == 0)
+			return;
+
+		final int slot = getSlot(key);
+		if(mKeys[slot] == key) {
+			mKeys[slot] = 0;
+			mValues[slot] = null;
+		}
+	}
+
+	/**
+	 * Removes all objects from the cache. To be called when the database was modified without the store and delete functions of the cached
+	 * class, for example when an identity is deleted.
+	 */
+	public synchronized void clear() {
+		for(int i = 0; i < mKeys.length; ++i) {
+			mKeys[i] = 0;
+			mValues[i] = null;
+		}
+
+		// Objects which are cached during the rest of the transaction might be rolled back
+		mUndoLogInvalid = true;
+	}
+
+	/**
+	 * Records the key of an object which is cached during a transaction. Keys which are invalidated do not need to be recorded because
+	 * they are not in the cache anymore.
+	 */
+	private void recordUndo(long key) {
+		if(mUndoLogInvalid)
+			return;
+
+		if(mUndoLogSize == MAX_UNDO_LOG_SIZE) {
+			mUndoLogInvalid = true;
+			return;
+		}
+
+		if(mUndoLogSize == mUndoLog.length) {
+			final long[] newUndoLog = new long[mUndoLog.length * 2];
+			System.arraycopy(mUndoLog, 0, newUndoLog, 0, mUndoLogSize);
+			mUndoLog = newUndoLog;
+		}
+
+		mUndoLog[mUndoLogSize++] = key;
+	}
+
+	private void clearUndoLog() {
+		mUndoLogSize = 0;
+		mUndoLogInvalid = false;
+	}
+
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+
+	public synchronized void onCommit() {
+		clearUndoLog();
+	}
+
+	public synchronized void onRollback() {
+		if(mUndoLogInvalid) {
+			clear();
+		} else {
+			for(int i = 0; i < mUndoLogSize; ++i) {
+				final long key = mUndoLog[i];
+				final int slot = getSlot(key);
+				if(mKeys[slot] == key) {
+					mKeys[slot] = 0;
+					mValues[slot] = null;
+				}
+			}
+		}
+
+		clearUndoLog();
+	}
+
+	public synchronized String toString() {
+		return "hits: " + mHits + "; misses: " + mMisses;
+	}
+
+}
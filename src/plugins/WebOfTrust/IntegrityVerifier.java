@@ -0,0 +1,358 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.TrivialTicker;
+import freenet.support.io.NativeThread;
+
+/**
+ * Verifies the integrity of the database in the background while WoT is running:
+ * - {@link Persistent#startupDatabaseIntegrityTest()} is run for every object.
+ * - Duplicate identities, trusts and scores are detected by hashing their IDs.
+ * - Orphan trusts and scores, whose truster or trustee is missing, are detected.
+ *
+ * The objects are processed class by class in the order of their db4o IDs, in chunks of {@link #CHUNK_SIZE} objects. A chunk is tested
+ * with the read lock of WoT, duplicate and orphan objects are then deleted by {@link WebOfTrust#deleteDuplicateAndOrphanObjects(List)}
+ * with the write lock. Between the chunks all locks are released for {@link #CHUNK_DELAY} so the verification does not block the user
+ * interfaces or the fetcher for long.
+ *
+ * The progress is stored in the {@link Configuration} after each chunk so a verification which was interrupted by a restart resumes
+ * where it stopped. Objects which are stored while a verification is running are tested by the next one if they are stored before
+ * the current position of the verification.
+ */
+public final class IntegrityVerifier implements PrioRunnable {
+
+	/** The number of objects which are tested while holding the read lock. */
+	public static final int CHUNK_SIZE = 1000;
+
+	/** The delay in milliseconds between two chunks. */
+	public static final long CHUNK_DELAY = 1000;
+
+	/** The delay in milliseconds after the startup of WoT until the verification starts. */
+	public static final long STARTUP_DELAY = 60 * 1000;
+
+	/** The maximal number of findings which are kept for the web interface, see {@link #getFindings()}. */
+	public static final int MAX_FINDINGS = 100;
+
+	/**
+	 * The classes whose objects are tested, in the order in which they are tested. The index of the current class is stored as
+	 * {@link Configuration#INTEGRITY_TEST_PHASE}. Identities are tested before trusts and scores so the trusts and scores of
+	 * deleted duplicate identities are not reported as orphans.
+	 */
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends Persistent>[] PHASES = new Class[] {
+		Identity.class,
+		Trust.class,
+		Score.class,
+		Configuration.class,
+		IntroductionPuzzle.class
+	};
+
+	private final WebOfTrust mWoT;
+
+	private final ExtObjectContainer mDB;
+
+	/** Schedules the chunks. Null if the verification is only run by calling {@link #run()}, which the unit tests do. */
+	private final TrivialTicker mTicker;
+
+	private final int mChunkSize;
+
+	/** Index of the class in {@link #PHASES} whose objects are tested currently. */
+	private int mPhase;
+
+	/** The db4o ID of the last object which was tested in the current phase, -1 if none was tested yet. */
+	private long mLastObjectID;
+
+	/** The sorted db4o IDs of all objects of the current phase, null if the phase did not start yet. */
+	private long[] mObjectIDs;
+
+	/** Index of the next object in {@link #mObjectIDs} which is tested. */
+	private int mNextObjectIndex;
+
+	/** The IDs (not the db4o IDs) of the objects of the current phase which were tested already, for detecting duplicates. */
+	private final HashSet<String> mTestedIDs = new HashSet<String>();
+
+	private boolean mFinished = false;
+
+	private volatile boolean mTerminated = false;
+
+	/* Statistics for the web interface, they start at 0 at each startup even if the verification is resumed. */
+
+	private long mStartTime = 0;
+
+	private int mTestedObjects = 0;
+
+	private int mFailedTests = 0;
+
+	private int mDeletedObjects = 0;
+
+	/** Descriptions of the failed tests and deleted objects, the newest last. At most {@link #MAX_FINDINGS} are kept. */
+	private final LinkedList<String> mFindings = new LinkedList<String>();
+
+
+	public IntegrityVerifier(WebOfTrust myWoT, TrivialTicker myTicker) {
+		this(myWoT, myTicker, CHUNK_SIZE);
+	}
+
+	IntegrityVerifier(WebOfTrust myWoT, TrivialTicker myTicker, int chunkSize) {
+		mWoT = myWoT;
+		mDB = mWoT.getDatabase();
+		mTicker = myTicker;
+		mChunkSize = chunkSize;
+
+		final Configuration config = mWoT.getConfig();
+		synchronized(config) {
+			mPhase = config.getInt(Configuration.INTEGRITY_TEST_PHASE);
+			mLastObjectID = Long.parseLong(config.getString(Configuration.INTEGRITY_TEST_LAST_OBJECT_ID));
+		}
+
+		if(mPhase < 0 || mPhase >= PHASES.length) {
+			Logger.error(this, "Invalid stored phase " + mPhase + ", restarting the integrity verification.");
+			mPhase = 0;
+			mLastObjectID = -1;
+		}
+
+		if(mPhase > 0 || mLastObjectID >= 0)
+			Logger.normal(this, "Resuming the database integrity verification at " + PHASES[mPhase].getSimpleName() + " " + mLastObjectID);
+	}
+
+	/**
+	 * Schedules the first chunk after {@link #STARTUP_DELAY}.
+	 */
+	public void start() {
+		mTicker.queueTimedJob(this, "WoT database integrity verification", STARTUP_DELAY, false, true);
+	}
+
+	/**
+	 * Stops the verification, its progress is kept in the {@link Configuration} so it is resumed at the next startup.
+	 * Does not wait for a running chunk to finish.
+	 */
+	public void terminate() {
+		mTerminated = true;
+		if(mTicker != null)
+			mTicker.shutdown();
+	}
+
+	public int getPriority() {
+		return NativeThread.LOW_PRIORITY;
+	}
+
+	/**
+	 * Tests the next chunk of objects and schedules the chunk after it if the verification is not finished.
+	 */
+	public void run() {
+		if(mTerminated)
+			return;
+
+		boolean finished;
+		try {
+			finished = processChunk();
+		} catch(RuntimeException e) {
+			// For example if the database was closed because WoT is terminating. We try again with the next chunk.
+			Logger.error(this, "Database integrity verification failed", e);
+			finished = false;
+		}
+
+		if(!finished && !mTerminated && mTicker != null)
+			mTicker.queueTimedJob(this, "WoT database integrity verification", CHUNK_DELAY, false, true);
+	}
+
+	/**
+	 * @return True if the verification is finished.
+	 */
+	private synchronized boolean processChunk() {
+		if(mFinished)
+			return true;
+
+		if(mStartTime == 0)
+			mStartTime = System.currentTimeMillis();
+
+		if(mObjectIDs == null)
+			startPhase();
+
+		final Class<? extends Persistent> clazz = PHASES[mPhase];
+		final int end = Math.min(mNextObjectIndex + mChunkSize, mObjectIDs.length);
+		// db4o IDs of the objects to delete
+		final ArrayList<Long> deletableObjects = new ArrayList<Long>();
+
+		mWoT.getLock().lockRead();
+		try {
+			for(; mNextObjectIndex < end; ++mNextObjectIndex) {
+				final long id = mObjectIDs[mNextObjectIndex];
+				final Persistent p = mWoT.getStoredObjectByID(id, clazz);
+				mLastObjectID = id;
+
+				if(p == null) // Deleted since the phase started
+					continue;
+
+				++mTestedObjects;
+
+				try {
+					p.startupDatabaseIntegrityTest();
+				} catch(Exception e) {
+					Logger.error(this, "Integrity test failed for " + p, e);
+					++mFailedTests;
+					addFinding("Integrity test failed for " + p + ": " + e);
+				}
+
+				if(p instanceof Identity) {
+					final Identity identity = (Identity)p;
+					if(!mTestedIDs.add(identity.getID())) {
+						Logger.error(this, "Found duplicate identity " + identity);
+						deletableObjects.add(id);
+					}
+				} else if(p instanceof Trust) {
+					final Trust trust = (Trust)p;
+					if(mWoT.isOrphan(trust.getTruster(), trust.getTrustee())) {
+						Logger.error(this, "Found orphan trust, truster = " + trust.getTruster() + ", trustee = " + trust.getTrustee());
+						deletableObjects.add(id);
+					} else if(!mTestedIDs.add(trust.getID())) {
+						Logger.error(this, "Found duplicate trust " + trust);
+						deletableObjects.add(id);
+					}
+				} else if(p instanceof Score) {
+					final Score score = (Score)p;
+					if(mWoT.isOrphan(score.getTruster(), score.getTrustee())) {
+						Logger.error(this, "Found orphan score, truster = " + score.getTruster() + ", trustee = " + score.getTrustee());
+						deletableObjects.add(id);
+					} else if(!mTestedIDs.add(score.getID())) {
+						Logger.error(this, "Found duplicate score " + score);
+						deletableObjects.add(id);
+					}
+				}
+			}
+		} finally {
+			mWoT.getLock().unlockRead();
+		}
+
+		if(deletableObjects.size() > 0) {
+			final int deleted = mWoT.deleteDuplicateAndOrphanObjects(deletableObjects);
+			mDeletedObjects += deleted;
+			addFinding("Deleted " + deleted + " duplicate or orphan objects of class " + clazz.getSimpleName());
+		}
+
+		if(mNextObjectIndex == mObjectIDs.length) {
+			mObjectIDs = null;
+			mTestedIDs.clear();
+			mLastObjectID = -1;
+
+			if(++mPhase == PHASES.length) {
+				Logger.normal(this, "Database integrity verification finished in " + (System.currentTimeMillis() - mStartTime) + "ms: Tested "
+						+ mTestedObjects + " objects, " + mFailedTests + " tests failed, deleted " + mDeletedObjects + " objects.");
+				mFinished = true;
+				// The next startup starts a new verification
+				mPhase = 0;
+			}
+		}
+
+		storeProgress();
+		return mFinished;
+	}
+
+	/**
+	 * Gets the db4o IDs of the objects of the current phase. If the phase is resumed, the IDs of the objects which were tested before
+	 * the restart are added to {@link #mTestedIDs}.
+	 */
+	private void startPhase() {
+		final Class<? extends Persistent> clazz = PHASES[mPhase];
+
+		mWoT.getLock().lockRead();
+		try {
+			final Query q = mDB.query();
+			q.constrain(clazz);
+			mObjectIDs = q.execute().ext().getIDs();
+			Arrays.sort(mObjectIDs);
+
+			mNextObjectIndex = 0;
+			while(mNextObjectIndex < mObjectIDs.length && mObjectIDs[mNextObjectIndex] <= mLastObjectID) {
+				final Persistent p = mWoT.getStoredObjectByID(mObjectIDs[mNextObjectIndex], clazz);
+				if(p instanceof Identity)
+					mTestedIDs.add(((Identity)p).getID());
+				else if(p instanceof Trust)
+					mTestedIDs.add(((Trust)p).getID());
+				else if(p instanceof Score)
+					mTestedIDs.add(((Score)p).getID());
+				++mNextObjectIndex;
+			}
+		} finally {
+			mWoT.getLock().unlockRead();
+		}
+
+		Logger.normal(this, "Verifying the integrity of " + (mObjectIDs.length - mNextObjectIndex) + " objects of class " + clazz.getSimpleName());
+	}
+
+	private void storeProgress() {
+		final Configuration config = mWoT.getConfig();
+		// The write lock must be locked before the Configuration monitor, see Configuration.storeAndCommit()
+		mWoT.getLock().lockWrite();
+		try {
+			config.set(Configuration.INTEGRITY_TEST_PHASE, mPhase);
+			config.set(Configuration.INTEGRITY_TEST_LAST_OBJECT_ID, Long.toString(mLastObjectID));
+			config.storeAndCommit();
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
+	}
+
+	private synchronized void addFinding(String finding) {
+		mFindings.add(finding);
+		if(mFindings.size() > MAX_FINDINGS)
+			mFindings.removeFirst();
+	}
+
+	public synchronized boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * @return The simple name of the class whose objects are tested currently, null if the verification is finished.
+	 */
+	public synchronized String getCurrentClass() {
+		return mFinished ? null : PHASES[mPhase].getSimpleName();
+	}
+
+	/**
+	 * @return The percentage of the objects of the current class which were tested.
+	 */
+	public synchronized int getCurrentClassProgressPercent() {
+		if(mFinished)
+			return 100;
+		if(mObjectIDs == null || mObjectIDs.length == 0)
+			return 0;
+		return (int)(100L * mNextObjectIndex / mObjectIDs.length);
+	}
+
+	public synchronized int getTestedObjectCount() {
+		return mTestedObjects;
+	}
+
+	public synchronized int getFailedTestCount() {
+		return mFailedTests;
+	}
+
+	public synchronized int getDeletedObjectCount() {
+		return mDeletedObjects;
+	}
+
+	/**
+	 * @return A copy of the descriptions of the failed tests and deleted objects, the newest last.
+	 */
+	public synchronized List<String> getFindings() {
+		return new ArrayList<String>(mFindings);
+	}
+
+}
@@ -0,0 +1,138 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+/**
+ * A hash map from primitive long to primitive int which does not box its keys and values.
+ * Used for mapping db4o object IDs to the ordinals of the in-memory indices of WoT, for example in the {@link TrustGraph}.
+ *
+ * The key 0 is not allowed because it is used for marking empty slots. This is not a problem for db4o object IDs: db4o returns 0 as the ID
+ * of objects which are not stored.
+ *
+ * Removal is not supported because none of the users needs it. The map is not synchronized.
+ */
+public final class LongIntHashMap {
+
+	private static final float MAX_LOAD_FACTOR = 0.5f;
+
+	private long[] mKeys;
+
+	private int[] mValues;
+
+	private int mSize = 0;
+
+
+	public LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while(capacity * MAX_LOAD_FACTOR < expectedSize)
+			capacity *= 2;
+
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+	}
+
+	private static int hash(long key) {
+		// Mix the bits so that sequential IDs do not cluster in the table
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+
+	/**
+	 * @return The value which is mapped to the given key, or the given default value if there is none.
+	 */
+	public int get(final long key, final int defaultValue) {
+		if(key == 0)
+			throw new IllegalArgumentException("Key 0 is not allowed.");
+
+		final int mask = mKeys.length - 1;
+
+		for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			final long slotKey = mKeys[slot];
+
+			if(slotKey == key)
+				return mValues[slot];
+
+			if(slotKey == 0)
+				return defaultValue;
+		}
+	}
+
+	public boolean containsKey(final long key) {
+		if(key == 0)
+			throw new IllegalArgumentException("Key 0 is not allowed.");
+
+		return getSlot(key) >= 0;
+	}
+
+	private int getSlot(final long key) {
+		final int mask = mKeys.length - 1;
+
+		for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			final long slotKey = mKeys[slot];
+
+			if(slotKey == key)
+				return slot;
+
+			if(slotKey == 0)
+				return -1;
+		}
+	}
+
+	/**
+	 * Maps the given key to the given value, replacing any existing mapping.
+	 */
+	public void put(final long key, final int value) {
+		if(key == 0)
+			throw new IllegalArgumentException("Key 0 is not allowed.");
+
+		if((mSize + 1) > mKeys.length * MAX_LOAD_FACTOR)
+			resize(mKeys.length * 2);
+
+		final int mask = mKeys.length - 1;
+
+		for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			final long slotKey = mKeys[slot];
+
+			if(slotKey == key) {
+				mValues[slot] = value;
+				return;
+			}
+
+			if(slotKey == 0) {
+				mKeys[slot] = key;
+				mValues[slot] = value;
+				++mSize;
+				return;
+			}
+		}
+	}
+
+	private void resize(final int newCapacity) {
+		final long[] oldKeys = mKeys;
+		final int[] oldValues = mValues;
+
+		mKeys = new long[newCapacity];
+		mValues = new int[newCapacity];
+		mSize = 0;
+
+		for(int i = 0; i < oldKeys.length; ++i) {
+			if(oldKeys[i] != 0)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		for(int i = 0; i < mKeys.length; ++i)
+			mKeys[i] = 0;
+
+		mSize = 0;
+	}
+
+}
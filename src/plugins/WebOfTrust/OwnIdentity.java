@@ -7,6 +7,7 @@ import java.net.MalformedURLException;
 import java.util.Arrays;
 import java.util.Date;
 
+import plugins.WebOfTrust.Persistent.IndexedClass;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import freenet.keys.FreenetURI;
 import freenet.support.CurrentTimeUTC;
@@ -17,6 +18,7 @@ import freenet.support.CurrentTimeUTC;
  * @author xor (xor@freenetproject.org)
  * @author Julien Cornuwel (batosai@freenetproject.org)
  */
+@IndexedClass
 public final class OwnIdentity extends Identity {
 	
 	protected FreenetURI mInsertURI;
@@ -41,10 +43,11 @@ public final class OwnIdentity extends Identity {
 		if(!insertURI.isUSK() && !insertURI.isSSK())
 			throw new IllegalArgumentException("Identity URI keytype not supported: " + insertURI);
 		
-		// initializeTransient() was not called yet so we must use mRequestURI.getEdition() instead of this.getEdition()
-		mInsertURI = insertURI.setKeyType("USK").setDocName(WebOfTrust.WOT_NAME).setSuggestedEdition(mRequestURI.getEdition()).setMetaString(null);
+		// The edition of the request URI is always 0 here, see super()
+		mInsertURI = insertURI.setKeyType("USK").setDocName(WebOfTrust.WOT_NAME).setSuggestedEdition(0).setMetaString(null);
 		
-		if(!Arrays.equals(mRequestURI.getCryptoKey(), mInsertURI.getCryptoKey()))
+		// initializeTransient() was not called yet so we must use requestURI.getCryptoKey() instead of this.getCryptoKey()
+		if(!Arrays.equals(requestURI.getCryptoKey(), mInsertURI.getCryptoKey()))
 			throw new RuntimeException("Request and insert URI do not fit together!");
 		
 		mLastInsertDate = new Date(0);
@@ -223,10 +226,10 @@ public final class OwnIdentity extends Identity {
 		if(mInsertURI == null)
 			throw new NullPointerException("mInsertURI==null");
 		
-		if(!Arrays.equals(mRequestURI.getCryptoKey(), mInsertURI.getCryptoKey()))
+		if(!Arrays.equals(getCryptoKey(), mInsertURI.getCryptoKey()))
 			throw new IllegalStateException("Request and insert URI do not fit together!");
 		
-		if(mInsertURI.getEdition() != mRequestURI.getEdition())
+		if(mInsertURI.getEdition() != getEdition())
 			throw new IllegalStateException("Insert and request editions do not match!");
 		
 		if(mLastInsertDate == null)
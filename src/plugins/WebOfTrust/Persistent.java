@@ -7,11 +7,17 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.db4o.ObjectSet;
 import com.db4o.ext.ExtObjectContainer;
@@ -43,6 +49,14 @@ public abstract class Persistent {
 	 */
 	protected transient ExtObjectContainer mDB;
 	
+	/**
+	 * The value of {@link #computeDigest()} for the state of this object which is stored in the database, valid if
+	 * {@link #mStoredDigestKnown} is true. Used for keeping the {@link DatabaseDigest} up to date.
+	 */
+	private transient long mStoredDigest;
+	
+	private transient boolean mStoredDigestKnown = false;
+	
 	
 	/**
 	 * The date when this persistent object was created. 
@@ -69,9 +83,214 @@ public abstract class Persistent {
 	/**
 	 * This annotation should be added to all Persistent classes which the database should be configured to generate an index on.
 	 * If a class is indexed you MUST add it to the list of persistent classes in {@link WebOfTrust.openDatabase} 
+	 * 
+	 * A class needs an index if it is instantiated and queries are constrained by the class only, for example to obtain all objects of
+	 * it, or if queries of a parent class shall return its objects. Without an index such queries return nothing!
 	 */
+	@Target( ElementType.TYPE )
+	@Retention( RetentionPolicy.RUNTIME )
 	public @interface IndexedClass { }
 	
+	/**
+	 * Implemented by in-memory structures which mirror the content of the database, for example the {@link TrustGraph}.
+	 * They change their state together with the database objects inside of a transaction and therefore must be told whether the
+	 * transaction was committed or rolled back. Register them with {@link #registerTransactionListener(ExtObjectContainer, TransactionListener)}.
+	 */
+	public interface TransactionListener {
+		/**
+		 * Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object)} after the database has committed the transaction.
+		 * You are synchronized on the lock() of the database when this is called.
+		 */
+		public void onCommit();
+		
+		/**
+		 * Called by {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)} after the database has rolled back the transaction.
+		 * You are synchronized on the lock() of the database when this is called.
+		 */
+		public void onRollback();
+	}
+	
+	/**
+	 * The registered {@link TransactionListener}s per database. The static commit/rollback functions only receive the database as parameter
+	 * so we must be able to look the listeners up from it.
+	 */
+	private static final WeakHashMap<ExtObjectContainer, ArrayList<TransactionListener>> transactionListeners = 
+		new WeakHashMap<ExtObjectContainer, ArrayList<TransactionListener>>();
+	
+	/**
+	 * Registers a {@link TransactionListener} which is notified about every commit and rollback of the given database.
+	 */
+	public static final void registerTransactionListener(final ExtObjectContainer db, final TransactionListener listener) {
+		synchronized(transactionListeners) {
+			ArrayList<TransactionListener> listeners = transactionListeners.get(db);
+			
+			if(listeners == null) {
+				listeners = new ArrayList<TransactionListener>(4);
+				transactionListeners.put(db, listeners);
+			}
+			
+			listeners.add(listener);
+		}
+	}
+	
+	/**
+	 * Removes all {@link TransactionListener}s of the given database. To be called when closing it.
+	 */
+	public static final void unregisterTransactionListeners(final ExtObjectContainer db) {
+		synchronized(transactionListeners) {
+			transactionListeners.remove(db);
+		}
+	}
+	
+	/**
+	 * The group commit settings and state of a database, see {@link Persistent#checkedGroupCommit(ExtObjectContainer, Object)}.
+	 */
+	private static final class GroupCommit {
+		/** The maximal time in milliseconds for which a commit is deferred. */
+		final long mMaxDelay;
+		
+		/** The maximal number of deferred commits. */
+		final int mMaxCommits;
+		
+		int mDeferredCommits = 0;
+		
+		long mFirstDeferredCommitTime;
+		
+		/** The number of deferred commits which were discarded by rollbacks, in total. */
+		long mRolledBackCommits = 0;
+		
+		GroupCommit(long maxDelay, int maxCommits) {
+			mMaxDelay = maxDelay;
+			mMaxCommits = maxCommits;
+		}
+	}
+	
+	/**
+	 * The {@link GroupCommit} per database, databases without entry do not use group commit.
+	 */
+	private static final WeakHashMap<ExtObjectContainer, GroupCommit> groupCommits = new WeakHashMap<ExtObjectContainer, GroupCommit>();
+	
+	/**
+	 * Enables group commit for the given database: {@link #checkedGroupCommit(ExtObjectContainer, Object)} defers commits until either
+	 * maxDelay milliseconds have passed since the first deferred commit or maxCommits commits were deferred.
+	 * Pending deferred commits are committed by this function, so the call to it must be embedded in a transaction just like
+	 * {@link #checkedCommit(ExtObjectContainer, Object)}.
+	 * 
+	 * @param maxDelay The maximal delay in milliseconds. If it or maxCommits is 0 or less, group commit is disabled.
+	 */
+	public static final void setGroupCommit(final ExtObjectContainer db, final Object loggingObject, final long maxDelay,
+			final int maxCommits) {
+		flushGroupCommit(db, loggingObject);
+		
+		synchronized(groupCommits) {
+			if(maxDelay > 0 && maxCommits > 0)
+				groupCommits.put(db, new GroupCommit(maxDelay, maxCommits));
+			else
+				groupCommits.remove(db);
+		}
+	}
+	
+	private static final GroupCommit getGroupCommit(final ExtObjectContainer db) {
+		synchronized(groupCommits) {
+			return groupCommits.get(db);
+		}
+	}
+	
+	/**
+	 * Commits the transaction like {@link #checkedCommit(ExtObjectContainer, Object)} if group commit is disabled, see
+	 * {@link #setGroupCommit(ExtObjectContainer, Object, long, int)}. Otherwise the commit is deferred: The changes are committed by the
+	 * next real commit which happens when the limits of the group commit are reached, by {@link #flushGroupCommit(ExtObjectContainer, Object)}
+	 * or by any call to checkedCommit().
+	 * 
+	 * ATTENTION: db4o has only a single transaction per database, so the deferred changes are not isolated from the following ones:
+	 * - Everyone who takes the locks after the caller would see the uncommitted changes, so the caller MUST call flushGroupCommit()
+	 *   before releasing the write lock of the {@link WebOfTrust} and the lock() of the database.
+	 * - A rollback discards the deferred changes along with the failed transaction. The caller must redo them, it can detect this with
+	 *   {@link #getRolledBackCommitCount(ExtObjectContainer)}. Nobody else would: For example an identity edition whose import is rolled
+	 *   back is not fetched again because the USK subscription has already moved past it.
+	 * - A crash loses the deferred changes as well. This is only acceptable for changes which are redone after a restart, for example the
+	 *   import of identity XML: The fetches are restarted from the editions which were stored in the database then.
+	 * 
+	 * The {@link TransactionListener}s are notified when the changes are actually committed.
+	 * The call to this function must be embedded in a transaction just like checkedCommit().
+	 */
+	public static final void checkedGroupCommit(final ExtObjectContainer db, final Object loggingObject) {
+		final GroupCommit groupCommit = getGroupCommit(db);
+		
+		if(groupCommit == null) {
+			checkedCommit(db, loggingObject);
+			return;
+		}
+		
+		final long now = CurrentTimeUTC.getInMillis();
+		
+		if(groupCommit.mDeferredCommits == 0)
+			groupCommit.mFirstDeferredCommitTime = now;
+		
+		if(++groupCommit.mDeferredCommits >= groupCommit.mMaxCommits || now - groupCommit.mFirstDeferredCommitTime >= groupCommit.mMaxDelay) {
+			checkedCommit(db, loggingObject);
+			return;
+		}
+		
+		Logger.debug(loggingObject, "Deferred commit, " + groupCommit.mDeferredCommits + " commits pending.");
+	}
+	
+	/**
+	 * Commits the deferred commits of {@link #checkedGroupCommit(ExtObjectContainer, Object)} if there are any.
+	 * The call to this function must be embedded in a transaction just like checkedCommit().
+	 */
+	public static final void flushGroupCommit(final ExtObjectContainer db, final Object loggingObject) {
+		final GroupCommit groupCommit = getGroupCommit(db);
+		
+		if(groupCommit != null && groupCommit.mDeferredCommits > 0)
+			checkedCommit(db, loggingObject);
+	}
+	
+	/**
+	 * @return The number of commits which {@link #checkedGroupCommit(ExtObjectContainer, Object)} has deferred since the last real commit.
+	 *     You must be synchronized on the lock() of the database to obtain an exact value.
+	 */
+	public static final int getDeferredCommitCount(final ExtObjectContainer db) {
+		final GroupCommit groupCommit = getGroupCommit(db);
+		return groupCommit != null ? groupCommit.mDeferredCommits : 0;
+	}
+	
+	/**
+	 * @return The total number of deferred commits which rollbacks have discarded since group commit was enabled. If it increases during
+	 *     a transaction, the changes of the previous deferred commits must be redone, see {@link #checkedGroupCommit(ExtObjectContainer,
+	 *     Object)}. You must be synchronized on the lock() of the database to obtain an exact value.
+	 */
+	public static final long getRolledBackCommitCount(final ExtObjectContainer db) {
+		final GroupCommit groupCommit = getGroupCommit(db);
+		return groupCommit != null ? groupCommit.mRolledBackCommits : 0;
+	}
+	
+	/**
+	 * System property which enables the activation audit of {@link #checkedActivate(Object, int)} if set to "true".
+	 * The audit is slow, it is meant for running the unit tests with a low activation depth, see {@link WebOfTrust#ACTIVATION_DEPTH_PROPERTY}.
+	 */
+	public static final String ACTIVATION_AUDIT_PROPERTY = "plugins.WebOfTrust.activationAudit";
+	
+	private static volatile boolean activationAuditEnabled = "true".equals(System.getProperty(ACTIVATION_AUDIT_PROPERTY));
+	
+	/** Amount of problems which the activation audit has found, for the unit tests. */
+	private static final AtomicInteger activationAuditFailures = new AtomicInteger(0);
+	
+	public static final void setActivationAuditEnabled(final boolean enabled) {
+		activationAuditEnabled = enabled;
+	}
+	
+	public static final int getActivationAuditFailures() {
+		return activationAuditFailures.get();
+	}
+	
+	private static final TransactionListener[] getTransactionListeners(final ExtObjectContainer db) {
+		synchronized(transactionListeners) {
+			final ArrayList<TransactionListener> listeners = transactionListeners.get(db);
+			return listeners != null ? listeners.toArray(new TransactionListener[listeners.size()]) : new TransactionListener[0];
+		}
+	}
+	
 	public void testDatabaseIntegrity() {
 		testDatabaseIntegrity(mWebOfTrust, mDB);
 	}
@@ -106,16 +325,89 @@ public abstract class Persistent {
 	 * Logs an error if the object is not active.<br /><br />
 	 * 
 	 * Activates the object to the specified depth.<br /><br />
+	 * 
+	 * Objects which are returned by queries and getters are always active, even if the activation depth of the database is only 1, so an
+	 * inactive object means that it was obtained by accessing a member variable of an object which was not activated deep enough.
+	 * If the activation audit is enabled, see {@link #ACTIVATION_AUDIT_PROPERTY}, it also checks whether the depth was sufficient: All objects
+	 * which are reachable from the member variables of the object must be active, except other Persistent objects, which are activated by
+	 * their own getters. Depth 1 is not audited because it is used by getters of db4o primitive types only, which do not need the member
+	 * objects.
 	 */
 	protected final void checkedActivate(final Object object, final int depth) {
 		if(mDB.isStored(object)) {
-			if(!mDB.isActive(object))
-				Logger.error(this, "Trying to store a non-active object: " + object);
+			if(!mDB.isActive(object)) {
+				if(activationAuditEnabled) {
+					activationAuditFailures.incrementAndGet();
+					Logger.error(this, "Trying to activate a non-active object: " + object, new RuntimeException());
+				} else
+					Logger.error(this, "Trying to store a non-active object: " + object);
+			}
+				
+			mDB.activate(object, depth);
+			
+			if(activationAuditEnabled && depth > 1)
+				auditActivation(object, depth);
+		}
+	}
+	
+	/**
+	 * Checks whether all objects which are reachable from the member variables of the given object are active, see
+	 * {@link #checkedActivate(Object, int)}. Logs an error for each one which is not.
+	 */
+	private final void auditActivation(final Object object, final int depth) {
+		final IdentityHashMap<Object, Object> visited = new IdentityHashMap<Object, Object>();
+		visited.put(object, object);
+		auditActivation(object, object.getClass().getSimpleName(), depth, visited);
+	}
+	
+	private final void auditActivation(final Object object, final String path, final int depth, final IdentityHashMap<Object, Object> visited) {
+		if(object.getClass().isArray()) {
+			if(object.getClass().getComponentType().isPrimitive())
+				return;
+			
+			final Object[] array = (Object[])object;
+			for(int i = 0; i < array.length; ++i)
+				auditMember(array[i], path + "[" + i + "]", depth, visited);
+			return;
+		}
+		
+		for(Class<?> clazz = object.getClass(); clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for(Field field : clazz.getDeclaredFields()) {
+				final int modifiers = field.getModifiers();
+				if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.getType().isPrimitive())
+					continue;
+				
+				final Object value;
+				try {
+					field.setAccessible(true);
+					value = field.get(object);
+				} catch(Exception e) {
+					// Member variables of JRE classes might not be accessible, db4o accesses them in the same way though.
+					continue;
+				}
 				
-			mDB.activate(this, depth);
+				auditMember(value, path + "." + field.getName(), depth, visited);
+			}
 		}
 	}
 	
+	private final void auditMember(final Object member, final String path, final int depth, final IdentityHashMap<Object, Object> visited) {
+		if(member == null || member instanceof Persistent || member instanceof String || member instanceof Number
+				|| member instanceof Boolean || member instanceof Character || member instanceof Date)
+			return;
+		
+		if(visited.put(member, member) != null)
+			return;
+		
+		if(mDB.isStored(member) && !mDB.isActive(member)) {
+			activationAuditFailures.incrementAndGet();
+			Logger.error(this, "Activation depth " + depth + " is not sufficient for " + path, new RuntimeException());
+			return;
+		}
+		
+		auditActivation(member, path, depth, visited);
+	}
+	
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
 	 * 
@@ -212,6 +504,14 @@ public abstract class Persistent {
 		db.rollback();
 		System.gc(); 
 		Logger.error(loggingObject, "ROLLED BACK!", error);
+		final GroupCommit groupCommit = getGroupCommit(db);
+		if(groupCommit != null && groupCommit.mDeferredCommits > 0) {
+			Logger.warning(loggingObject, "The rollback discarded " + groupCommit.mDeferredCommits + " deferred commits.");
+			groupCommit.mRolledBackCommits += groupCommit.mDeferredCommits;
+			groupCommit.mDeferredCommits = 0;
+		}
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onRollback();
 		testDatabaseIntegrity(null, db);
 	}
 
@@ -302,6 +602,70 @@ public abstract class Persistent {
 	}
 	
 
+	/**
+	 * Computes the hash of this object which is added to the {@link DatabaseDigest}. Only the member variables which are verified at startup
+	 * need to be included. The default implementation returns 0, which means that objects of the class are not part of the digest.
+	 */
+	protected long computeDigest() {
+		return 0;
+	}
+	
+	/**
+	 * Must be called by setters of member variables which are included in {@link #computeDigest()} before the variable is changed:
+	 * The digest of the stored state must be removed from the {@link DatabaseDigest} when the object is stored again.
+	 * 
+	 * If the transaction is rolled back, the in-memory state of the object might differ from the stored one, so the DatabaseDigest might become
+	 * wrong. This is acceptable because a wrong digest only causes the verification of all scores at the next startup.
+	 */
+	protected final void rememberStoredDigest() {
+		if(!mStoredDigestKnown && mDB != null && mDB.isStored(this)) {
+			mStoredDigest = computeDigest();
+			mStoredDigestKnown = true;
+		}
+	}
+	
+	/**
+	 * To be called by storeWithoutCommit() of classes which implement {@link #computeDigest()}, before the object is stored.
+	 */
+	protected final void updateDigestOnStore() {
+		final DatabaseDigest digest = mWebOfTrust.getDatabaseDigest();
+		if(digest == null) // Not initialized yet, it will be computed from the database when it is.
+			return;
+		
+		rememberStoredDigest();
+		if(mStoredDigestKnown)
+			digest.remove(mStoredDigest);
+		
+		mStoredDigest = computeDigest();
+		mStoredDigestKnown = true;
+		digest.add(mStoredDigest);
+	}
+	
+	/**
+	 * To be called by storeWithoutCommit() and deleteWithoutCommit() of objects which belong to the given identity in the
+	 * {@link WebOfTrustSnapshot}: The truster of a {@link Trust}, the trustee of a {@link Score}.
+	 */
+	protected final void updateSnapshotOnChange(Identity identity) {
+		final SnapshotPublisher publisher = mWebOfTrust.getSnapshotPublisher();
+		if(publisher != null) // Not initialized yet, the first snapshot will be created from the database.
+			publisher.onIdentityChanged(identity);
+	}
+	
+	/**
+	 * To be called by deleteWithoutCommit() of classes which implement {@link #computeDigest()}, before the object is deleted.
+	 */
+	protected final void updateDigestOnDelete() {
+		final DatabaseDigest digest = mWebOfTrust.getDatabaseDigest();
+		if(digest == null)
+			return;
+		
+		rememberStoredDigest();
+		if(mStoredDigestKnown)
+			digest.remove(mStoredDigest);
+		
+		mStoredDigestKnown = false;
+	}
+	
 	/**
 	 * This is one of the only functions which outside classes should use. It is used for committing the transaction. 
 	 * The call to this function must be embedded in a transaction, that is a block of:<br />
@@ -314,6 +678,11 @@ public abstract class Persistent {
 		testDatabaseIntegrity(null, db);
 		db.commit();
 		Logger.debug(loggingObject, "COMMITED.");
+		final GroupCommit groupCommit = getGroupCommit(db);
+		if(groupCommit != null)
+			groupCommit.mDeferredCommits = 0;
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onCommit();
 		testDatabaseIntegrity(null, db);
 	}
 	
@@ -0,0 +1,214 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The read/write lock of the {@link WebOfTrust}. It separates code which only reads the database (the web interface, FCP queries) from code
+ * which modifies it so that readers can run concurrently with each other and do not have to wait for the WoT monitor.
+ *
+ * Writers must lock the write lock between locking the WoT (and other monitors such as the IntroductionPuzzleStore) and locking the
+ * database:<br />
+ * <code>
+ * synchronized(mWoT) {<br />
+ * mWoT.getLock().lockWrite(); try {<br />
+ * synchronized(mDB.lock()) {<br />
+ *     ... <br />
+ * }<br />
+ * } finally { mWoT.getLock().unlockWrite(); }<br />
+ * }<br />
+ * </code>
+ *
+ * Readers must lock only the read lock. While holding it they must not lock the WoT or any other monitor which writers lock before the write
+ * lock, and they must not modify the database: The read lock cannot be upgraded to the write lock.
+ *
+ * The lock keeps statistics about how often and how long it was held and how long threads had to wait for it so that contention can be
+ * monitored. Reentrant locking is counted only once.
+ */
+public final class ReadWriteLockWithStatistics {
+
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+	/** The amount of read locks the current thread holds, ReentrantReadWriteLock.getReadHoldCount() is not available in Java 5 */
+	private final ThreadLocal<int[]> mReadHoldCount = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * The time at which the current thread locked the read lock, in nanoseconds. Null if the thread held the write lock at that time, the
+	 * read lock is not counted then.
+	 */
+	private final ThreadLocal<Long> mReadLockTime = new ThreadLocal<Long>();
+
+	/** The time at which the write lock was locked, in nanoseconds. Only accessed by the holder of the write lock. */
+	private long mWriteLockTime;
+
+	private final Statistics mReadStatistics = new Statistics();
+
+	private final Statistics mWriteStatistics = new Statistics();
+
+
+	/**
+	 * Statistics of one of the two locks. All times are in nanoseconds.
+	 */
+	public static final class Statistics {
+
+		private final AtomicLong mAcquisitions = new AtomicLong(0);
+
+		private final AtomicLong mContendedAcquisitions = new AtomicLong(0);
+
+		private final AtomicLong mWaitTime = new AtomicLong(0);
+
+		private final AtomicLong mHoldTime = new AtomicLong(0);
+
+		private final AtomicLong mMaxHoldTime = new AtomicLong(0);
+
+		private void onAcquired(boolean contended, long waitTime) {
+			mAcquisitions.incrementAndGet();
+			if(contended) {
+				mContendedAcquisitions.incrementAndGet();
+				mWaitTime.addAndGet(waitTime);
+			}
+		}
+
+		private void onReleased(long holdTime) {
+			mHoldTime.addAndGet(holdTime);
+
+			long max;
+			do {
+				max = mMaxHoldTime.get();
+			} while(holdTime > max && !mMaxHoldTime.compareAndSet(max, holdTime));
+		}
+
+		/** @return How often the lock was acquired. */
+		public long getAcquisitions() {
+			return mAcquisitions.get();
+		}
+
+		/** @return How often a thread had to wait for the lock. */
+		public long getContendedAcquisitions() {
+			return mContendedAcquisitions.get();
+		}
+
+		/** @return The total time which threads have waited for the lock. */
+		public long getWaitTime() {
+			return mWaitTime.get();
+		}
+
+		/** @return The total time for which the lock was held. */
+		public long getHoldTime() {
+			return mHoldTime.get();
+		}
+
+		/** @return The longest time for which the lock was held at once. */
+		public long getMaxHoldTime() {
+			return mMaxHoldTime.get();
+		}
+
+		/** @return The average time for which the lock was held. */
+		public long getAverageHoldTime() {
+			final long acquisitions = getAcquisitions();
+			return acquisitions > 0 ? getHoldTime() / acquisitions : 0;
+		}
+
+		public String toString() {
+			return "acquisitions: " + getAcquisitions() + "; contended: " + getContendedAcquisitions()
+				+ "; total wait time: " + getWaitTime() / 1000000 + "ms; total hold time: " + getHoldTime() / 1000000
+				+ "ms; average hold time: " + getAverageHoldTime() / 1000 + "us; maximal hold time: " + getMaxHoldTime() / 1000000 + "ms";
+		}
+	}
+
+
+	public void lockRead() {
+		final int[] holdCount = mReadHoldCount.get();
+		if(holdCount[0] > 0) {
+			mLock.readLock().lock();
+			++holdCount[0];
+			return;
+		}
+
+		if(mLock.isWriteLockedByCurrentThread()) {
+			// Writers can always lock the read lock, not counted
+			mLock.readLock().lock();
+			holdCount[0] = 1;
+			mReadLockTime.set(null);
+			return;
+		}
+
+		final boolean contended = !mLock.readLock().tryLock();
+		final long startTime = System.nanoTime();
+		if(contended)
+			mLock.readLock().lock();
+		final long lockTime = System.nanoTime();
+
+		holdCount[0] = 1;
+		mReadLockTime.set(lockTime);
+		mReadStatistics.onAcquired(contended, lockTime - startTime);
+	}
+
+	public void unlockRead() {
+		final int[] holdCount = mReadHoldCount.get();
+		if(holdCount[0] <= 0)
+			throw new IllegalMonitorStateException("The read lock is not held by the current thread");
+
+		if(--holdCount[0] == 0) {
+			final Long lockTime = mReadLockTime.get();
+			if(lockTime != null)
+				mReadStatistics.onReleased(System.nanoTime() - lockTime);
+			mReadLockTime.set(null);
+		}
+
+		mLock.readLock().unlock();
+	}
+
+	public void lockWrite() {
+		if(mLock.isWriteLockedByCurrentThread()) {
+			mLock.writeLock().lock();
+			return;
+		}
+
+		if(mReadHoldCount.get()[0] > 0)
+			throw new IllegalMonitorStateException("The read lock cannot be upgraded to the write lock");
+
+		final boolean contended = !mLock.writeLock().tryLock();
+		final long startTime = System.nanoTime();
+		if(contended)
+			mLock.writeLock().lock();
+		final long lockTime = System.nanoTime();
+
+		mWriteLockTime = lockTime;
+		mWriteStatistics.onAcquired(contended, lockTime - startTime);
+	}
+
+	public void unlockWrite() {
+		if(mLock.getWriteHoldCount() == 1)
+			mWriteStatistics.onReleased(System.nanoTime() - mWriteLockTime);
+
+		mLock.writeLock().unlock();
+	}
+
+	/**
+	 * @return True if the current thread holds the write lock.
+	 */
+	public boolean isWriteLockedByCurrentThread() {
+		return mLock.isWriteLockedByCurrentThread();
+	}
+
+	public Statistics getReadStatistics() {
+		return mReadStatistics;
+	}
+
+	public Statistics getWriteStatistics() {
+		return mWriteStatistics;
+	}
+
+	public String toString() {
+		return "Read lock: " + mReadStatistics + "\nWrite lock: " + mWriteStatistics;
+	}
+
+}
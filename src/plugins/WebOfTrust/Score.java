@@ -5,6 +5,7 @@ package plugins.WebOfTrust;
 
 import java.util.Date;
 
+import plugins.WebOfTrust.Persistent.IndexedClass;
 import freenet.support.CurrentTimeUTC;
 
 
@@ -16,6 +17,7 @@ import freenet.support.CurrentTimeUTC;
  * @author xor (xor@freenetproject.org)
  * @author Julien Cornuwel (batosai@freenetproject.org)
  */
+@IndexedClass
 public final class Score extends Persistent implements Cloneable {
 	
 	/** The OwnIdentity which assigns this score to the trustee */
@@ -26,6 +28,16 @@ public final class Score extends Persistent implements Cloneable {
 	@IndexedField
 	private final Identity mTrustee;
 	
+	/**
+	 * The ID of the truster and the ID of the trustee, see {@link #getID(OwnIdentity, Identity)}. {@link WebOfTrust#getScore(OwnIdentity,
+	 * Identity)} probes its index so db4o does not have to intersect the results of the indices of mTruster and mTrustee.
+	 * It is not unique: While {@link WebOfTrust#restoreIdentity(String, String)} replaces an Identity by an OwnIdentity, both have the same
+	 * ID. Lookups must check the truster and trustee of the result.
+	 * Not final because {@link #upgradeDatabaseFormatVersion49WithoutCommit()} must be able to set it.
+	 */
+	@IndexedField
+	private String mID;
+	
 	/** The actual score of the Identity. Used to decide if the OwnIdentity sees the Identity or not */
 	@IndexedField
 	private int mValue;
@@ -41,6 +53,15 @@ public final class Score extends Persistent implements Cloneable {
 	 * The date when the value, rank or capacity was last changed.
 	 */
 	private Date mLastChangedDate;
+	
+	/* The value and capacity as they are stored in the database, valid if mStoredValuesKnown is true. Needed for updating the best score
+	 * and capacity of the trustee, see Identity.onScoreStored() */
+	
+	private transient int mStoredValue;
+	
+	private transient int mStoredCapacity;
+	
+	private transient boolean mStoredValuesKnown = false;
 
 
 	/**
@@ -61,6 +82,7 @@ public final class Score extends Persistent implements Cloneable {
 			
 		mTruster = myTruster;
 		mTrustee = myTrustee;
+		mID = getID(myTruster, myTrustee);
 		setValue(myValue);
 		setRank(myRank);
 		setCapacity(myCapacity);
@@ -80,6 +102,20 @@ public final class Score extends Persistent implements Cloneable {
 				"; rank: " + getRank() + "; capacity : " + getCapacity() + "]";
 	}
 
+	/**
+	 * @return The ID of the score of the given trustee in the trust tree of the given truster: The ID of the truster, an "@" and the ID of
+	 *     the trustee.
+	 */
+	public static String getID(OwnIdentity truster, Identity trustee) {
+		return truster.getID() + "@" + trustee.getID();
+	}
+	
+	/** @return The ID of this score, see {@link #getID(OwnIdentity, Identity)}. */
+	public String getID() {
+		// checkedActivate(depth) is not needed, String is a db4o primitive type
+		return mID;
+	}
+
 	/**
 	 * @return in which OwnIdentity's trust tree this score is
 	 */
@@ -116,6 +152,7 @@ public final class Score extends Persistent implements Cloneable {
 		if(mValue == newValue)
 			return;
 		
+		rememberStoredState();
 		mValue = newValue;
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
@@ -140,6 +177,7 @@ public final class Score extends Persistent implements Cloneable {
 		if(newRank == mRank)
 			return;
 		
+		rememberStoredState();
 		mRank = newRank;
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
@@ -164,6 +202,7 @@ public final class Score extends Persistent implements Cloneable {
 		if(newCapacity == mCapacity)
 			return;
 		
+		rememberStoredState();
 		mCapacity = newCapacity;
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
@@ -185,19 +224,90 @@ public final class Score extends Persistent implements Cloneable {
 		return mLastChangedDate;
 	}
 	
+	/**
+	 * Must be called before the value, rank or capacity is changed, see {@link Persistent#rememberStoredDigest()}.
+	 */
+	private void rememberStoredState() {
+		rememberStoredDigest();
+		
+		if(!mStoredValuesKnown && mDB != null && mDB.isStored(this)) {
+			mStoredValue = mValue;
+			mStoredCapacity = mCapacity;
+			mStoredValuesKnown = true;
+		}
+	}
+	
 	protected void storeWithoutCommit() {
 		try {		
 			// 2 is the maximal depth of all getter functions. You have to adjust this when introducing new member variables.
 			checkedActivate(2);
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
+			updateDigestOnStore();
+			
+			final boolean wasStored = mDB.isStored(this);
+			rememberStoredState();
 			checkedStore();
+			
+			getTrustee().onScoreStored(this, wasStored, mStoredValue, mStoredCapacity);
+			updateSnapshotOnChange(mTrustee);
+			invalidateCache();
+			mStoredValue = mValue;
+			mStoredCapacity = mCapacity;
+			mStoredValuesKnown = true;
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
 	}
 	
+	protected void deleteWithoutCommit() {
+		try {
+			// 2 is the maximal depth of all getter functions. You have to adjust this when introducing new member variables.
+			checkedActivate(2);
+			updateDigestOnDelete();
+			rememberStoredState();
+			checkedDelete();
+			
+			// The trustee is missing if this is an orphan score which is deleted by the IntegrityVerifier
+			if(mTrustee != null && mDB.isStored(mTrustee))
+				getTrustee().onScoreDeleted(this, mStoredValue, mStoredCapacity);
+			updateSnapshotOnChange(mTrustee);
+			invalidateCache();
+			mStoredValuesKnown = false;
+		}
+		catch(final RuntimeException e) {
+			checkedRollbackAndThrow(e);
+		}
+	}
+	
+	/**
+	 * Only for being used by {@link WebOfTrust#upgradeDB()}: Computes {@link #mID}, which did not exist in database format version -49.
+	 * Does not change anything which the best score of the trustee, the digest or the caches depend on, they do not need to be updated.
+	 */
+	protected void upgradeDatabaseFormatVersion49WithoutCommit() {
+		checkedActivate(2);
+		mID = getID(getTruster(), getTrustee());
+		checkedStore();
+	}
+	
+	/**
+	 * Removes this score from the cache of {@link WebOfTrust#getScore(OwnIdentity, Identity)}.
+	 */
+	private void invalidateCache() {
+		final IdentityPairCache<Score> cache = mWebOfTrust.getScoreCache();
+		if(cache != null) // Not initialized yet, it is empty then.
+			cache.invalidate(mTruster, mTrustee);
+	}
+	
+	/**
+	 * Hashes the truster, trustee, value, rank and capacity for the {@link DatabaseDigest}.
+	 */
+	@Override
+	protected long computeDigest() {
+		return DatabaseDigest.computeScoreDigest(getTruster(), getTrustee(), getScore(), getRank(), getCapacity());
+	}
+	
 	/**
 	 * Test if two scores are equal.
 	 * - <b>All</b> attributes are compared <b>except</b> the dates.<br />
@@ -248,6 +358,12 @@ public final class Score extends Persistent implements Cloneable {
 		if(mTrustee == null)
 			throw new NullPointerException("mTrustee==null");
 		
+		if(mID == null)
+			throw new NullPointerException("mID==null");
+		
+		if(!mID.equals(getID(getTruster(), getTrustee())))
+			throw new IllegalStateException("mID does not match the truster and trustee: " + mID);
+		
 		if(mRank < -1)
 			throw new IllegalStateException("Invalid rank: " + mRank);
 	
@@ -0,0 +1,223 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
+
+/**
+ * Publishes a new {@link WebOfTrustSnapshot} after each committed transaction which modified an {@link Identity}, a {@link Trust} or a
+ * {@link Score}.
+ *
+ * The store and delete functions of those classes tell the publisher which identities have changed: An identity is changed if it was
+ * stored, if it gave a trust value or if it received a score. Only the {@link WebOfTrustSnapshot.IdentityEntry} of changed identities is
+ * re-created from the database when the transaction is committed, all other entries are taken from the previous snapshot.
+ * If the transaction is rolled back, the changes are forgotten.
+ *
+ * The snapshot is published via a volatile reference so readers always see a completely constructed snapshot.
+ *
+ * You have to synchronize on the lock() of the database when using this class.
+ */
+public final class SnapshotPublisher implements Persistent.TransactionListener {
+
+	private static final int[] EMPTY_INTS = new int[0];
+
+	private static final byte[] EMPTY_BYTES = new byte[0];
+
+	private static final String[] EMPTY_STRINGS = new String[0];
+
+	private final WebOfTrust mWoT;
+
+	private volatile WebOfTrustSnapshot mSnapshot;
+
+	/**
+	 * The upper 32 bits are the startup time in seconds so the version numbers are increasing across restarts as well, the lower 32 bits are
+	 * incremented with each published snapshot.
+	 */
+	private long mNextVersion;
+
+	/** The ordinals of the identities which were changed by the current transaction */
+	private final BitSet mChangedIdentities = new BitSet();
+
+	/** The rebuild count of the {@link TrustGraph} when the current snapshot was published. If it changed, the ordinals have changed. */
+	private int mTrustGraphRebuildCount;
+
+
+	public SnapshotPublisher(WebOfTrust myWoT) {
+		mWoT = myWoT;
+		mNextVersion = (CurrentTimeUTC.getInMillis() / 1000) << 32;
+	}
+
+	/**
+	 * Creates the snapshot from the whole database. To be called at startup.
+	 */
+	protected void rebuild() {
+		final TrustGraph graph = mWoT.getTrustGraph();
+		mTrustGraphRebuildCount = graph.getRebuildCount();
+		mChangedIdentities.clear();
+
+		for(Identity identity : mWoT.getAllIdentities())
+			mChangedIdentities.set(graph.getOrCreateOrdinal(identity));
+
+		publish(WebOfTrustSnapshot.empty());
+	}
+
+	/**
+	 * @return The latest published snapshot. Never null after {@link #rebuild()}.
+	 */
+	public WebOfTrustSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/**
+	 * Called by {@link Identity#storeWithoutCommit()} after the identity was stored.
+	 */
+	protected void onIdentityStored(Identity identity) {
+		mChangedIdentities.set(mWoT.getTrustGraph().getOrCreateOrdinal(identity));
+	}
+
+	/**
+	 * Called by {@link Identity#deleteWithoutCommit()} before the identity is deleted.
+	 */
+	protected void onIdentityDeleted(Identity identity) {
+		final int ordinal = mWoT.getTrustGraph().getOrdinal(identity);
+		if(ordinal != TrustGraph.NO_ORDINAL)
+			mChangedIdentities.set(ordinal);
+	}
+
+	/**
+	 * Called when a {@link Trust} or a {@link Score} of the given identity was stored or deleted: The truster of a trust, the trustee of a
+	 * score. Null for orphan objects, nothing is done then.
+	 */
+	protected void onIdentityChanged(Identity identity) {
+		if(identity == null)
+			return;
+
+		final int ordinal = mWoT.getTrustGraph().getOrdinal(identity);
+		if(ordinal != TrustGraph.NO_ORDINAL)
+			mChangedIdentities.set(ordinal);
+	}
+
+	/**
+	 * Publishes a new snapshot which contains the given previous snapshot with the entries of the changed identities replaced.
+	 */
+	private void publish(WebOfTrustSnapshot previous) {
+		final long startTime = System.nanoTime();
+		final TrustGraph graph = mWoT.getTrustGraph();
+		final int changedCount = mChangedIdentities.cardinality();
+
+		final WebOfTrustSnapshot.IdentityEntry[] identities = new WebOfTrustSnapshot.IdentityEntry[graph.size()];
+		System.arraycopy(previous.getIdentities(), 0, identities, 0, previous.size());
+
+		Map<String, Integer> ordinals = previous.getOrdinals();
+		boolean ordinalsCopied = false;
+
+		for(int ordinal = mChangedIdentities.nextSetBit(0); ordinal >= 0; ordinal = mChangedIdentities.nextSetBit(ordinal + 1)) {
+			final WebOfTrustSnapshot.IdentityEntry oldEntry = identities[ordinal];
+			final Identity identity = graph.getIdentity(ordinal);
+			final WebOfTrustSnapshot.IdentityEntry newEntry = identity != null && mWoT.getDatabase().isStored(identity)
+				? createEntry(graph, ordinal, identity) : null;
+			identities[ordinal] = newEntry;
+
+			final boolean removeID = oldEntry != null && (newEntry == null || !oldEntry.getID().equals(newEntry.getID()));
+			final boolean addID = newEntry != null && (oldEntry == null || removeID);
+
+			if((removeID || addID) && !ordinalsCopied) {
+				ordinals = new HashMap<String, Integer>(ordinals);
+				ordinalsCopied = true;
+			}
+
+			// When an OwnIdentity is restored, the Identity with the same ID is deleted in the same transaction. The ID must stay mapped
+			// to the new ordinal no matter in which order we process them.
+			if(removeID) {
+				final Integer mappedOrdinal = ordinals.get(oldEntry.getID());
+				if(mappedOrdinal != null && mappedOrdinal.intValue() == ordinal)
+					ordinals.remove(oldEntry.getID());
+			}
+			if(addID)
+				ordinals.put(newEntry.getID(), ordinal);
+		}
+
+		mChangedIdentities.clear();
+		mSnapshot = new WebOfTrustSnapshot(mNextVersion++, identities, ordinalsCopied ? Collections.unmodifiableMap(ordinals) : ordinals,
+				graph.snapshot());
+
+		Logger.minor(this, "Published snapshot " + mSnapshot.getVersion() + " with " + changedCount + " changed identities in "
+				+ (System.nanoTime() - startTime) / 1000 + "us");
+	}
+
+	private WebOfTrustSnapshot.IdentityEntry createEntry(TrustGraph graph, int ordinal, Identity identity) {
+		final ArrayList<Trust> givenTrusts = new ArrayList<Trust>();
+		for(Trust trust : mWoT.getGivenTrusts(identity))
+			givenTrusts.add(trust);
+
+		int[] trustees = EMPTY_INTS;
+		byte[] trusteeValues = EMPTY_BYTES;
+		String[] trusteeComments = EMPTY_STRINGS;
+
+		if(givenTrusts.size() > 0) {
+			// Sorted by ordinal so the entry can do binary searches, we sort packed ordinal/index pairs to avoid a Comparator
+			final long[] sorted = new long[givenTrusts.size()];
+			for(int i = 0; i < sorted.length; ++i)
+				sorted[i] = ((long)graph.getOrCreateOrdinal(givenTrusts.get(i).getTrustee()) << 32) | i;
+			Arrays.sort(sorted);
+
+			trustees = new int[sorted.length];
+			trusteeValues = new byte[sorted.length];
+			trusteeComments = new String[sorted.length];
+			for(int i = 0; i < sorted.length; ++i) {
+				final Trust trust = givenTrusts.get((int)sorted[i]);
+				trustees[i] = (int)(sorted[i] >>> 32);
+				trusteeValues[i] = trust.getValue();
+				trusteeComments[i] = trust.getComment();
+			}
+		}
+
+		final ArrayList<Score> scores = new ArrayList<Score>();
+		for(Score score : mWoT.getScores(identity))
+			scores.add(score);
+
+		final int[] scoreOwners = new int[scores.size()];
+		final int[] scoreValues = new int[scores.size()];
+		final int[] scoreRanks = new int[scores.size()];
+		final int[] scoreCapacities = new int[scores.size()];
+		for(int i = 0; i < scoreOwners.length; ++i) {
+			final Score score = scores.get(i);
+			scoreOwners[i] = graph.getOrCreateOrdinal(score.getTruster());
+			scoreValues[i] = score.getScore();
+			scoreRanks[i] = score.getRank();
+			scoreCapacities[i] = score.getCapacity();
+		}
+
+		return new WebOfTrustSnapshot.IdentityEntry(ordinal, identity, trustees, trusteeValues, trusteeComments,
+				scoreOwners, scoreValues, scoreRanks, scoreCapacities);
+	}
+
+	public void onCommit() {
+		final TrustGraph graph = mWoT.getTrustGraph();
+
+		if(graph.getRebuildCount() != mTrustGraphRebuildCount) {
+			Logger.normal(this, "The trust graph was rebuilt, rebuilding the snapshot.");
+			rebuild();
+			return;
+		}
+
+		if(mChangedIdentities.isEmpty())
+			return;
+
+		publish(mSnapshot);
+	}
+
+	public void onRollback() {
+		mChangedIdentities.clear();
+	}
+
+}
@@ -5,6 +5,7 @@ package plugins.WebOfTrust;
 
 import java.util.Date;
 
+import plugins.WebOfTrust.Persistent.IndexedClass;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import freenet.support.CurrentTimeUTC;
 import freenet.support.StringValidityChecker;
@@ -15,6 +16,7 @@ import freenet.support.StringValidityChecker;
  * @author xor (xor@freenetproject.org)
  * @author Julien Cornuwel (batosai@freenetproject.org)
  */
+@IndexedClass
 public final class Trust extends Persistent implements Cloneable {
 	
 	public static transient final int MAX_TRUST_COMMENT_LENGTH = 256;
@@ -27,6 +29,16 @@ public final class Trust extends Persistent implements Cloneable {
 	@IndexedField
 	private final Identity mTrustee;
 	
+	/**
+	 * The ID of the truster and the ID of the trustee, see {@link #getID(Identity, Identity)}. {@link WebOfTrust#getTrust(Identity, Identity)}
+	 * probes its index so db4o does not have to intersect the results of the indices of mTruster and mTrustee.
+	 * It is not unique: While {@link WebOfTrust#restoreIdentity(String, String)} replaces an Identity by an OwnIdentity, both have the same
+	 * ID. Lookups must check the truster and trustee of the result.
+	 * Not final because {@link #upgradeDatabaseFormatVersion49WithoutCommit()} must be able to set it.
+	 */
+	@IndexedField
+	private String mID;
+	
 	/** The value assigned with the trust, from -100 to +100 where negative means distrust */
 	@IndexedField
 	private byte mValue;
@@ -81,6 +93,7 @@ public final class Trust extends Persistent implements Cloneable {
 		
 		mTruster = truster;
 		mTrustee = trustee;
+		mID = getID(truster, trustee);
 		setValue(value);
 		mComment = "";	// Simplify setComment
 		setComment(comment);
@@ -94,6 +107,19 @@ public final class Trust extends Persistent implements Cloneable {
 		return "[" + getTruster().getNickname() + " trusts " + getTrustee().getNickname() + " with value " + getValue() + "; comment: \"" + getComment() + "\"]";
 	}
 
+	/**
+	 * @return The ID of a trust from the given truster to the given trustee: The ID of the truster, an "@" and the ID of the trustee.
+	 */
+	public static String getID(Identity truster, Identity trustee) {
+		return truster.getID() + "@" + trustee.getID();
+	}
+	
+	/** @return The ID of this trust, see {@link #getID(Identity, Identity)}. */
+	public String getID() {
+		// checkedActivate(depth) is not needed, String is a db4o primitive type
+		return mID;
+	}
+
 	/** @return The Identity that gives this trust. */
 	public Identity getTruster() {
 		checkedActivate(2);
@@ -126,6 +152,7 @@ public final class Trust extends Persistent implements Cloneable {
 		// checkedActivate(depth) is not needed, byte is a db4o primitive type
 		
 		if(mValue != newValue) {
+			rememberStoredDigest();
 			mValue = newValue;
 			mLastChangedDate = CurrentTimeUTC.get();
 		}
@@ -191,12 +218,58 @@ public final class Trust extends Persistent implements Cloneable {
 			checkedActivate(2);
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
+			updateDigestOnStore();
 			checkedStore();
+			mWebOfTrust.getTrustGraph().onTrustStored(mTruster, mTrustee, mValue);
+			updateSnapshotOnChange(mTruster);
+			invalidateCache();
+		}
+		catch(final RuntimeException e) {
+			checkedRollbackAndThrow(e);
+		}
+	}
+	
+	protected void deleteWithoutCommit() {
+		try {
+			// 2 is the maximal depth of all getter functions. You have to adjust this when introducing new member variables.
+			checkedActivate(2);
+			updateDigestOnDelete();
+			checkedDelete();
+			mWebOfTrust.getTrustGraph().onTrustDeleted(mTruster, mTrustee);
+			updateSnapshotOnChange(mTruster);
+			invalidateCache();
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
 	}
+	
+	/**
+	 * Only for being used by {@link WebOfTrust#upgradeDB()}: Computes {@link #mID}, which did not exist in database format version -49.
+	 * Does not change anything which the trust graph, the digest or the caches depend on, they do not need to be updated.
+	 */
+	protected void upgradeDatabaseFormatVersion49WithoutCommit() {
+		checkedActivate(2);
+		mID = getID(getTruster(), getTrustee());
+		checkedStore();
+	}
+	
+	/**
+	 * Removes this trust from the cache of {@link WebOfTrust#getTrust(Identity, Identity)}.
+	 */
+	private void invalidateCache() {
+		final IdentityPairCache<Trust> cache = mWebOfTrust.getTrustCache();
+		if(cache != null) // Not initialized yet, it is empty then.
+			cache.invalidate(mTruster, mTrustee);
+	}
+	
+	/**
+	 * Hashes the truster, trustee and value for the {@link DatabaseDigest}.
+	 */
+	@Override
+	protected long computeDigest() {
+		return DatabaseDigest.computeTrustDigest(getTruster(), getTrustee(), getValue());
+	}
 
 	/**
 	 * Test if two trust objects are equal.<br />
@@ -253,6 +326,12 @@ public final class Trust extends Persistent implements Cloneable {
 		if(mTrustee == null)
 			throw new NullPointerException("mTrustee==null");
 		
+		if(mID == null)
+			throw new NullPointerException("mID==null");
+		
+		if(!mID.equals(getID(getTruster(), getTrustee())))
+			throw new IllegalStateException("mID does not match the truster and trustee: " + mID);
+		
 		if(mValue < -100 || mValue > 100)
 			throw new IllegalStateException("Invalid value: " + mValue);
 		
@@ -0,0 +1,669 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.Arrays;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.support.Logger;
+
+/**
+ * An in-memory index of all {@link Trust} values which exist in the database, used by the score computation to walk the trust graph
+ * without querying the database for each edge.
+ *
+ * Each {@link Identity} which is involved in a trust relationship is assigned an ordinal, which is an int in the range of
+ * [0, {@link #size()}). The edges of the graph are stored per ordinal in primitive arrays: The ordinals of the trustees sorted ascending plus
+ * a parallel byte[] of the trust values - and the same for the reverse direction, the trusters.
+ * When the index is built at startup, the arrays are filled from a sorted array of all edges as in the CSR (compressed sparse row) layout.
+ * The difference to a single CSR array is that each identity has its own array so that adding or removing a single trust value only has
+ * to move the edges of the two involved identities instead of the whole graph.
+ *
+ * Ordinals are mapped to the db4o object ID of the identity, NOT to its {@link Identity#getID()}: When restoring an {@link OwnIdentity}, the
+ * old {@link Identity} and the new OwnIdentity exist with the same ID for a while and they have different trust values.
+ * Ordinals are never freed, deleted identities just keep their ordinal without any edges until the index is rebuilt.
+ *
+ * The adjacency arrays are never modified in place: Adding, modifying or removing an edge replaces the arrays of the two involved identities
+ * with modified copies. This allows {@link #snapshot()} to create an immutable copy of the graph by only copying the outer arrays.
+ *
+ * The index is kept in sync with the database by {@link Trust#storeWithoutCommit()} and {@link Trust#deleteWithoutCommit()}.
+ * It records the changes of the current transaction and reverts them if the transaction is rolled back, see
+ * {@link Persistent.TransactionListener}.
+ *
+ * Functions which modify the index, such as {@link #getOrCreateOrdinal(Identity)} and {@link #rebuild()}, must be called while holding
+ * the write lock of the {@link WebOfTrust}, see {@link ReadWriteLockWithStatistics}. The other functions only need its read lock.
+ * Code which holds neither lock must use a {@link #snapshot()}.
+ */
+public final class TrustGraph implements Persistent.TransactionListener {
+
+	/** Returned by {@link #getOrdinal(Identity)} if the identity has not been assigned an ordinal yet. */
+	public static final int NO_ORDINAL = -1;
+
+	/** Returned by {@link #getTrustValue(int, int)} if there is no trust value. Trust values are in the range of -100 to +100. */
+	public static final int NO_TRUST = Integer.MIN_VALUE;
+
+	/** Ordinals are packed into 23 bits by {@link #packEdge(int, int, byte)} when building the index. */
+	private static final int MAX_ORDINALS = 1 << 23;
+
+	/** Maximal amount of changes of a single transaction which are recorded for undoing them. If exceeded, a rollback rebuilds the index. */
+	private static final int MAX_UNDO_LOG_SIZE = 1024 * 1024;
+
+	private static final int[] EMPTY_ORDINALS = new int[0];
+
+	private static final byte[] EMPTY_VALUES = new byte[0];
+
+	private final WebOfTrust mWoT;
+
+	private final ExtObjectContainer mDB;
+
+	/** Maps the db4o object ID of an identity to its ordinal */
+	private final LongIntHashMap mOrdinals = new LongIntHashMap(1024);
+
+	/** Maps the ordinal of an identity to its db4o object ID */
+	private long[] mObjectIDs;
+
+	/** Amount of ordinals which have been assigned */
+	private int mSize;
+
+	/** Total amount of edges */
+	private int mEdgeCount;
+
+	/* Forward direction: truster ordinal => trustee ordinals */
+
+	private int[][] mTrustees;
+
+	private byte[][] mTrusteeValues;
+
+	private int[] mTrusteeCounts;
+
+	/* Reverse direction: trustee ordinal => truster ordinals */
+
+	private int[][] mTrusters;
+
+	private byte[][] mTrusterValues;
+
+	private int[] mTrusterCounts;
+
+	/* Undo log of the current transaction: The previous value of each modified edge, NO_TRUST if it did not exist. */
+
+	private int[] mUndoTrusters = new int[64];
+
+	private int[] mUndoTrustees = new int[64];
+
+	private int[] mUndoValues = new int[64];
+
+	private int mUndoLogSize = 0;
+
+	/** True if the undo log cannot be used for rolling back the current transaction, a rollback will rebuild the index then. */
+	private boolean mUndoLogInvalid = false;
+
+	/** Incremented by {@link #rebuild()}, which assigns new ordinals. */
+	private int mRebuildCount = 0;
+
+
+	public TrustGraph(WebOfTrust myWoT) {
+		mWoT = myWoT;
+		mDB = mWoT.getDatabase();
+		clear(1024);
+	}
+
+	private void clear(int capacity) {
+		mOrdinals.clear();
+		mObjectIDs = new long[capacity];
+		mSize = 0;
+		mEdgeCount = 0;
+
+		mTrustees = new int[capacity][];
+		mTrusteeValues = new byte[capacity][];
+		mTrusteeCounts = new int[capacity];
+
+		mTrusters = new int[capacity][];
+		mTrusterValues = new byte[capacity][];
+		mTrusterCounts = new int[capacity];
+	}
+
+	/**
+	 * Builds the index from all {@link Identity} and {@link Trust} objects in the database.
+	 * To be called at startup and whenever the index might have become inconsistent with the database.
+	 */
+	protected void rebuild() {
+		Logger.normal(this, "Building trust graph index...");
+		final long startTime = System.currentTimeMillis();
+
+		// A single query for sizing the index and filling it
+		final ObjectSet<Identity> identities = mWoT.getAllIdentities();
+
+		clear(Math.max(1024, identities.size()));
+
+		for(Identity identity : identities)
+			getOrCreateOrdinal(identity);
+
+		// We first collect all edges in two arrays sorted by truster respectively trustee to fill the adjacency arrays in CSR style.
+		// This needs only one pass over the Trust objects and no re-allocation of the adjacency arrays.
+		long[] forwardEdges = new long[1024];
+		long[] reverseEdges = new long[1024];
+		int edgeCount = 0;
+
+		for(Trust trust : mWoT.getAllTrusts()) {
+			final int truster;
+			final int trustee;
+
+			try {
+				truster = getOrCreateOrdinal(trust.getTruster());
+				trustee = getOrCreateOrdinal(trust.getTrustee());
+			} catch(NullPointerException e) {
+				// Orphan trust, the IntegrityVerifier will delete it.
+				Logger.error(this, "Ignoring orphan trust: " + trust, e);
+				continue;
+			}
+
+			if(edgeCount == forwardEdges.length) {
+				forwardEdges = grow(forwardEdges, edgeCount * 2);
+				reverseEdges = grow(reverseEdges, edgeCount * 2);
+			}
+
+			forwardEdges[edgeCount] = packEdge(truster, trustee, trust.getValue());
+			reverseEdges[edgeCount] = packEdge(trustee, truster, trust.getValue());
+			++edgeCount;
+		}
+
+		++mRebuildCount;
+
+		Arrays.sort(forwardEdges, 0, edgeCount);
+		Arrays.sort(reverseEdges, 0, edgeCount);
+
+		fillAdjacency(forwardEdges, edgeCount, mTrustees, mTrusteeValues, mTrusteeCounts);
+		fillAdjacency(reverseEdges, edgeCount, mTrusters, mTrusterValues, mTrusterCounts);
+
+		mEdgeCount = edgeCount;
+
+		// If we are rebuilt inside of a transaction, the undo log does not contain the changes which happened before.
+		mUndoLogSize = 0;
+		mUndoLogInvalid = true;
+
+		Logger.normal(this, "Trust graph index built: " + mSize + " identities, " + mEdgeCount + " trust values, took "
+				+ (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	private static long[] grow(long[] array, int newLength) {
+		final long[] result = new long[newLength];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * Packs an edge into a long which sorts by node first and by neighbour second.
+	 */
+	private static long packEdge(int node, int neighbour, byte value) {
+		return ((long)node << 40) | ((long)neighbour << 8) | (value & 0xFF);
+	}
+
+	private void fillAdjacency(long[] sortedEdges, int edgeCount, int[][] neighbours, byte[][] values, int[] counts) {
+		int start = 0;
+
+		while(start < edgeCount) {
+			final int node = (int)(sortedEdges[start] >>> 40);
+
+			int end = start + 1;
+			while(end < edgeCount && (int)(sortedEdges[end] >>> 40) == node)
+				++end;
+
+			final int count = end - start;
+			final int[] nodeNeighbours = new int[count];
+			final byte[] nodeValues = new byte[count];
+
+			for(int i = 0; i < count; ++i) {
+				final long edge = sortedEdges[start + i];
+				nodeNeighbours[i] = (int)((edge >>> 8) & 0xFFFFFFFFL);
+				nodeValues[i] = (byte)edge;
+			}
+
+			neighbours[node] = nodeNeighbours;
+			values[node] = nodeValues;
+			counts[node] = count;
+
+			start = end;
+		}
+	}
+
+	/**
+	 * @return The amount of ordinals which have been assigned. All ordinals are smaller than this.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return How often the index has been rebuilt. Ordinals which were obtained before the last rebuild are not valid anymore.
+	 */
+	public int getRebuildCount() {
+		return mRebuildCount;
+	}
+
+	/**
+	 * @return The amount of trust values in the index.
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+
+	/**
+	 * @return The ordinal of the given identity or {@link #NO_ORDINAL} if it has none because it has neither given nor received trust values.
+	 */
+	public int getOrdinal(Identity identity) {
+		final long objectID = mDB.getID(identity);
+
+		if(objectID == 0)
+			return NO_ORDINAL;
+
+		return mOrdinals.get(objectID, NO_ORDINAL);
+	}
+
+	/**
+	 * Gets the ordinal of the given identity, assigns a new one if it has none yet. The identity must be stored in the database.
+	 */
+	public int getOrCreateOrdinal(Identity identity) {
+		final long objectID = mDB.getID(identity);
+
+		if(objectID == 0)
+			throw new IllegalArgumentException("Identity is not stored: " + identity);
+
+		int ordinal = mOrdinals.get(objectID, NO_ORDINAL);
+
+		if(ordinal == NO_ORDINAL) {
+			ordinal = mSize;
+
+			if(ordinal >= MAX_ORDINALS)
+				throw new IllegalStateException("Too many identities for the trust graph index: " + ordinal);
+
+			if(ordinal == mObjectIDs.length)
+				growNodes(mObjectIDs.length * 2);
+
+			mObjectIDs[ordinal] = objectID;
+			mTrustees[ordinal] = EMPTY_ORDINALS;
+			mTrusteeValues[ordinal] = EMPTY_VALUES;
+			mTrusters[ordinal] = EMPTY_ORDINALS;
+			mTrusterValues[ordinal] = EMPTY_VALUES;
+			mOrdinals.put(objectID, ordinal);
+			++mSize;
+		}
+
+		return ordinal;
+	}
+
+	private void growNodes(int newCapacity) {
+		final long[] objectIDs = new long[newCapacity];
+		System.arraycopy(mObjectIDs, 0, objectIDs, 0, mSize);
+		mObjectIDs = objectIDs;
+
+		final int[][] trustees = new int[newCapacity][];
+		final byte[][] trusteeValues = new byte[newCapacity][];
+		final int[] trusteeCounts = new int[newCapacity];
+		System.arraycopy(mTrustees, 0, trustees, 0, mSize);
+		System.arraycopy(mTrusteeValues, 0, trusteeValues, 0, mSize);
+		System.arraycopy(mTrusteeCounts, 0, trusteeCounts, 0, mSize);
+		mTrustees = trustees;
+		mTrusteeValues = trusteeValues;
+		mTrusteeCounts = trusteeCounts;
+
+		final int[][] trusters = new int[newCapacity][];
+		final byte[][] trusterValues = new byte[newCapacity][];
+		final int[] trusterCounts = new int[newCapacity];
+		System.arraycopy(mTrusters, 0, trusters, 0, mSize);
+		System.arraycopy(mTrusterValues, 0, trusterValues, 0, mSize);
+		System.arraycopy(mTrusterCounts, 0, trusterCounts, 0, mSize);
+		mTrusters = trusters;
+		mTrusterValues = trusterValues;
+		mTrusterCounts = trusterCounts;
+	}
+
+	/**
+	 * Gets the identity with the given ordinal from the database.
+	 *
+	 * @return The identity or null if it has been deleted.
+	 */
+	public Identity getIdentity(int ordinal) {
+		final Object object = mDB.getByID(mObjectIDs[ordinal]);
+
+		if(!(object instanceof Identity))
+			return null;
+
+		final Identity identity = (Identity)object;
+		mDB.activate(identity, 4); // 4 is the maximal depth of all getter functions of Identity
+		identity.initializeTransient(mWoT);
+		return identity;
+	}
+
+	/**
+	 * @return The ordinals of the identities which the given identity trusts, sorted ascending. Only the first
+	 * 	{@link #getTrusteeCount(int)} entries are valid. You must not modify the array.
+	 */
+	public int[] getTrustees(int trusterOrdinal) {
+		return mTrustees[trusterOrdinal];
+	}
+
+	/**
+	 * @return The trust values which the given identity has assigned, in the same order as {@link #getTrustees(int)}. You must not modify the array.
+	 */
+	public byte[] getTrusteeValues(int trusterOrdinal) {
+		return mTrusteeValues[trusterOrdinal];
+	}
+
+	public int getTrusteeCount(int trusterOrdinal) {
+		return mTrusteeCounts[trusterOrdinal];
+	}
+
+	/**
+	 * @return The ordinals of the identities which trust the given identity, sorted ascending. Only the first
+	 * 	{@link #getTrusterCount(int)} entries are valid. You must not modify the array.
+	 */
+	public int[] getTrusters(int trusteeOrdinal) {
+		return mTrusters[trusteeOrdinal];
+	}
+
+	/**
+	 * @return The trust values which the given identity has received, in the same order as {@link #getTrusters(int)}. You must not modify the array.
+	 */
+	public byte[] getTrusterValues(int trusteeOrdinal) {
+		return mTrusterValues[trusteeOrdinal];
+	}
+
+	public int getTrusterCount(int trusteeOrdinal) {
+		return mTrusterCounts[trusteeOrdinal];
+	}
+
+	/**
+	 * @return The value of the trust from the given truster to the given trustee or {@link #NO_TRUST} if there is none. Any of the ordinals
+	 * 	may be {@link #NO_ORDINAL}.
+	 */
+	public int getTrustValue(int trusterOrdinal, int trusteeOrdinal) {
+		if(trusterOrdinal == NO_ORDINAL || trusteeOrdinal == NO_ORDINAL)
+			return NO_TRUST;
+
+		final int index = binarySearch(mTrustees[trusterOrdinal], mTrusteeCounts[trusterOrdinal], trusteeOrdinal);
+		return index >= 0 ? mTrusteeValues[trusterOrdinal][index] : NO_TRUST;
+	}
+
+	/**
+	 * Creates an immutable copy of the current state of the graph. Its cost is linear in the amount of identities, not in the amount of trust
+	 * values, because the adjacency arrays are shared with the graph.
+	 *
+	 * The snapshot can be used by other threads without synchronization.
+	 */
+	public Snapshot snapshot() {
+		final int[][] trustees = new int[mSize][];
+		final byte[][] trusteeValues = new byte[mSize][];
+		final int[] trusteeCounts = new int[mSize];
+		final int[][] trusters = new int[mSize][];
+		final byte[][] trusterValues = new byte[mSize][];
+		final int[] trusterCounts = new int[mSize];
+
+		System.arraycopy(mTrustees, 0, trustees, 0, mSize);
+		System.arraycopy(mTrusteeValues, 0, trusteeValues, 0, mSize);
+		System.arraycopy(mTrusteeCounts, 0, trusteeCounts, 0, mSize);
+		System.arraycopy(mTrusters, 0, trusters, 0, mSize);
+		System.arraycopy(mTrusterValues, 0, trusterValues, 0, mSize);
+		System.arraycopy(mTrusterCounts, 0, trusterCounts, 0, mSize);
+
+		return new Snapshot(mSize, trustees, trusteeValues, trusteeCounts, trusters, trusterValues, trusterCounts);
+	}
+
+	/**
+	 * An immutable copy of a {@link TrustGraph}, see {@link TrustGraph#snapshot()}. Its functions behave the same as the ones of TrustGraph.
+	 */
+	public static final class Snapshot {
+
+		private final int mSize;
+
+		private final int[][] mTrustees;
+
+		private final byte[][] mTrusteeValues;
+
+		private final int[] mTrusteeCounts;
+
+		private final int[][] mTrusters;
+
+		private final byte[][] mTrusterValues;
+
+		private final int[] mTrusterCounts;
+
+		private Snapshot(int size, int[][] trustees, byte[][] trusteeValues, int[] trusteeCounts, int[][] trusters, byte[][] trusterValues,
+				int[] trusterCounts) {
+			mSize = size;
+			mTrustees = trustees;
+			mTrusteeValues = trusteeValues;
+			mTrusteeCounts = trusteeCounts;
+			mTrusters = trusters;
+			mTrusterValues = trusterValues;
+			mTrusterCounts = trusterCounts;
+		}
+
+		public int size() {
+			return mSize;
+		}
+
+		public int[] getTrustees(int trusterOrdinal) {
+			return mTrustees[trusterOrdinal];
+		}
+
+		public byte[] getTrusteeValues(int trusterOrdinal) {
+			return mTrusteeValues[trusterOrdinal];
+		}
+
+		public int getTrusteeCount(int trusterOrdinal) {
+			return mTrusteeCounts[trusterOrdinal];
+		}
+
+		public int[] getTrusters(int trusteeOrdinal) {
+			return mTrusters[trusteeOrdinal];
+		}
+
+		public byte[] getTrusterValues(int trusteeOrdinal) {
+			return mTrusterValues[trusteeOrdinal];
+		}
+
+		public int getTrusterCount(int trusteeOrdinal) {
+			return mTrusterCounts[trusteeOrdinal];
+		}
+
+		public int getTrustValue(int trusterOrdinal, int trusteeOrdinal) {
+			if(trusterOrdinal == NO_ORDINAL || trusteeOrdinal == NO_ORDINAL || trusterOrdinal >= mSize || trusteeOrdinal >= mSize)
+				return NO_TRUST;
+
+			final int index = binarySearch(mTrustees[trusterOrdinal], mTrusteeCounts[trusterOrdinal], trusteeOrdinal);
+			return index >= 0 ? mTrusteeValues[trusterOrdinal][index] : NO_TRUST;
+		}
+	}
+
+	/**
+	 * Same as {@link java.util.Arrays#binarySearch(int[], int)} but limited to the first count elements of the array.
+	 */
+	private static int binarySearch(int[] array, int count, int key) {
+		int low = 0;
+		int high = count - 1;
+
+		while(low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int value = array[middle];
+
+			if(value < key)
+				low = middle + 1;
+			else if(value > key)
+				high = middle - 1;
+			else
+				return middle;
+		}
+
+		return -(low + 1);
+	}
+
+	/**
+	 * Called by {@link Trust#storeWithoutCommit()} after the trust was stored.
+	 */
+	protected void onTrustStored(Identity truster, Identity trustee, byte value) {
+		final int trusterOrdinal = getOrCreateOrdinal(truster);
+		final int trusteeOrdinal = getOrCreateOrdinal(trustee);
+		final int oldValue = getTrustValue(trusterOrdinal, trusteeOrdinal);
+
+		if(oldValue == value)
+			return;
+
+		logUndo(trusterOrdinal, trusteeOrdinal, oldValue);
+		setEdge(trusterOrdinal, trusteeOrdinal, value);
+	}
+
+	/**
+	 * Called by {@link Trust#deleteWithoutCommit()} after the trust was deleted.
+	 * Any of the identities may be null for orphan trusts, nothing is done then.
+	 */
+	protected void onTrustDeleted(Identity truster, Identity trustee) {
+		if(truster == null || trustee == null)
+			return;
+
+		final int trusterOrdinal = getOrdinal(truster);
+		final int trusteeOrdinal = getOrdinal(trustee);
+		final int oldValue = getTrustValue(trusterOrdinal, trusteeOrdinal);
+
+		if(oldValue == NO_TRUST) {
+			Logger.error(this, "Deleted trust was not in the index: " + truster + " trusts " + trustee);
+			return;
+		}
+
+		logUndo(trusterOrdinal, trusteeOrdinal, oldValue);
+		removeEdge(trusterOrdinal, trusteeOrdinal);
+	}
+
+	private void setEdge(int trusterOrdinal, int trusteeOrdinal, byte value) {
+		if(putEdge(mTrustees, mTrusteeValues, mTrusteeCounts, trusterOrdinal, trusteeOrdinal, value))
+			++mEdgeCount;
+		putEdge(mTrusters, mTrusterValues, mTrusterCounts, trusteeOrdinal, trusterOrdinal, value);
+	}
+
+	private void removeEdge(int trusterOrdinal, int trusteeOrdinal) {
+		if(removeEdge(mTrustees, mTrusteeValues, mTrusteeCounts, trusterOrdinal, trusteeOrdinal))
+			--mEdgeCount;
+		removeEdge(mTrusters, mTrusterValues, mTrusterCounts, trusteeOrdinal, trusterOrdinal);
+	}
+
+	/**
+	 * Replaces the adjacency arrays of the node with copies which contain the given edge. The old arrays are not modified because they might
+	 * be referenced by a {@link Snapshot}.
+	 *
+	 * @return True if the edge was added, false if an existing edge was modified.
+	 */
+	private static boolean putEdge(int[][] neighbours, byte[][] values, int[] counts, int node, int neighbour, byte value) {
+		final int[] nodeNeighbours = neighbours[node];
+		final byte[] nodeValues = values[node];
+		final int count = counts[node];
+
+		int index = binarySearch(nodeNeighbours, count, neighbour);
+
+		if(index >= 0) {
+			// The neighbours do not change so the array can be shared with snapshots
+			final byte[] newValues = new byte[count];
+			System.arraycopy(nodeValues, 0, newValues, 0, count);
+			newValues[index] = value;
+			values[node] = newValues;
+			return false;
+		}
+
+		index = -(index + 1);
+
+		final int[] newNeighbours = new int[count + 1];
+		final byte[] newValues = new byte[count + 1];
+		System.arraycopy(nodeNeighbours, 0, newNeighbours, 0, index);
+		System.arraycopy(nodeValues, 0, newValues, 0, index);
+		newNeighbours[index] = neighbour;
+		newValues[index] = value;
+		System.arraycopy(nodeNeighbours, index, newNeighbours, index + 1, count - index);
+		System.arraycopy(nodeValues, index, newValues, index + 1, count - index);
+
+		neighbours[node] = newNeighbours;
+		values[node] = newValues;
+		counts[node] = count + 1;
+		return true;
+	}
+
+	/**
+	 * Replaces the adjacency arrays of the node with copies which do not contain the given edge. The old arrays are not modified because they
+	 * might be referenced by a {@link Snapshot}.
+	 *
+	 * @return True if the edge existed.
+	 */
+	private static boolean removeEdge(int[][] neighbours, byte[][] values, int[] counts, int node, int neighbour) {
+		final int[] nodeNeighbours = neighbours[node];
+		final byte[] nodeValues = values[node];
+		final int count = counts[node];
+
+		final int index = binarySearch(nodeNeighbours, count, neighbour);
+
+		if(index < 0)
+			return false;
+
+		final int[] newNeighbours = count > 1 ? new int[count - 1] : EMPTY_ORDINALS;
+		final byte[] newValues = count > 1 ? new byte[count - 1] : EMPTY_VALUES;
+		System.arraycopy(nodeNeighbours, 0, newNeighbours, 0, index);
+		System.arraycopy(nodeValues, 0, newValues, 0, index);
+		System.arraycopy(nodeNeighbours, index + 1, newNeighbours, index, count - index - 1);
+		System.arraycopy(nodeValues, index + 1, newValues, index, count - index - 1);
+
+		neighbours[node] = newNeighbours;
+		values[node] = newValues;
+		counts[node] = count - 1;
+		return true;
+	}
+
+	private void logUndo(int trusterOrdinal, int trusteeOrdinal, int oldValue) {
+		if(mUndoLogInvalid)
+			return;
+
+		if(mUndoLogSize == MAX_UNDO_LOG_SIZE) {
+			mUndoLogInvalid = true;
+			mUndoLogSize = 0;
+			return;
+		}
+
+		if(mUndoLogSize == mUndoTrusters.length) {
+			final int newLength = mUndoLogSize * 2;
+			final int[] trusters = new int[newLength];
+			final int[] trustees = new int[newLength];
+			final int[] values = new int[newLength];
+			System.arraycopy(mUndoTrusters, 0, trusters, 0, mUndoLogSize);
+			System.arraycopy(mUndoTrustees, 0, trustees, 0, mUndoLogSize);
+			System.arraycopy(mUndoValues, 0, values, 0, mUndoLogSize);
+			mUndoTrusters = trusters;
+			mUndoTrustees = trustees;
+			mUndoValues = values;
+		}
+
+		mUndoTrusters[mUndoLogSize] = trusterOrdinal;
+		mUndoTrustees[mUndoLogSize] = trusteeOrdinal;
+		mUndoValues[mUndoLogSize] = oldValue;
+		++mUndoLogSize;
+	}
+
+	public void onCommit() {
+		mUndoLogSize = 0;
+		mUndoLogInvalid = false;
+	}
+
+	public void onRollback() {
+		if(mUndoLogInvalid) {
+			Logger.normal(this, "Undo log not usable, rebuilding the trust graph index after rollback.");
+			rebuild();
+		} else {
+			for(int i = mUndoLogSize - 1; i >= 0; --i) {
+				if(mUndoValues[i] == NO_TRUST)
+					removeEdge(mUndoTrusters[i], mUndoTrustees[i]);
+				else
+					setEdge(mUndoTrusters[i], mUndoTrustees[i], (byte)mUndoValues[i]);
+			}
+		}
+
+		mUndoLogSize = 0;
+		mUndoLogInvalid = false;
+	}
+
+}
@@ -4,11 +4,29 @@
 package plugins.WebOfTrust;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import plugins.WebOfTrust.exceptions.DuplicateIdentityException;
 import plugins.WebOfTrust.exceptions.DuplicateScoreException;
@@ -28,7 +46,10 @@ import plugins.WebOfTrust.ui.web.WebInterface;
 import com.db4o.Db4o;
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
+import com.db4o.defragment.Defragment;
+import com.db4o.defragment.DefragmentConfig;
 import com.db4o.ext.ExtObjectContainer;
+import com.db4o.io.MemoryIoAdapter;
 import com.db4o.query.Query;
 import com.db4o.reflect.jdk.JdkReflector;
 
@@ -48,6 +69,7 @@ import freenet.pluginmanager.PluginReplySender;
 import freenet.pluginmanager.PluginRespirator;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
+import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
 
 /**
@@ -75,7 +97,7 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	public static final String WOT_NAME = "WebOfTrustRC1"; // FIXME: Change to "WebOfTrust" when deploying 0.4 final.
 	
 	public static final String DATABASE_FILENAME =  WOT_NAME + ".db4o"; 
-	public static final int DATABASE_FORMAT_VERSION = -50;  // FIXME: Change to 1 when deploying 0.4 final. 
+	public static final int DATABASE_FORMAT_VERSION = -46;  // FIXME: Change to 1 when deploying 0.4 final. 
 	
 	/**
 	 * The official seed identities of the WoT plugin: If a newbie wants to download the whole offficial web of trust, he needs at least one
@@ -87,6 +109,38 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		"USK@mMjZoaCid0rUpkdkuZRKTWPI5X1JCHw3sMFI2M-YcSM,rTHG6svyYfD2rb3G8TJ5KXg5VGouTqoVcOqAOTeBlho,AQACAAE/WebOfTrustRC1/1", // xor
 		"USK@0mjeg8Pie1pLEmvpTPr7~ujBuO6-BifbCyRvF61q3Zg,CgpicQS79hGEB5i0Ha41G6cAJ2bw~Ou3KLlSu54HINE,AQACAAE/WebOfTrustRC1/0" // nextgens
 	};
+	
+	/**
+	 * System property for configuring the db4o activation depth, that is how deep the object graph of objects which are returned by queries
+	 * is loaded. The database cannot be used for configuring it because the depth must be set before opening the database.
+	 * All getters activate the objects which they need explicitly so {@link #LOW_ACTIVATION_DEPTH} works and saves memory and time in
+	 * loops over many {@link Trust} or {@link Score} objects. The unit tests can check this with {@link Persistent#ACTIVATION_AUDIT_PROPERTY}.
+	 */
+	public static final String ACTIVATION_DEPTH_PROPERTY = "plugins.WebOfTrust.activationDepth";
+	
+	public static final int DEFAULT_ACTIVATION_DEPTH = 10;
+	
+	public static final int LOW_ACTIVATION_DEPTH = 1;
+	
+	/**
+	 * System property for testing index configurations: A comma-separated list of indices which {@link #openDatabase(File)} does
+	 * not create although the annotations of the persistent classes request them. A class index is specified by the simple name of the class,
+	 * for example "Score", a field index by the simple class name and the field name, for example "Score.mValue".
+	 * See IndexConfigurationTest in the unit tests.
+	 */
+	public static final String DISABLED_INDICES_PROPERTY = "plugins.WebOfTrust.disabledIndices";
+	
+	/**
+	 * System property for testing index configurations: If "true", {@link #openDatabase(File)} creates class indices for all persistent
+	 * classes as db4o does by default, not only for the ones which have the {@link Persistent.IndexedClass} annotation.
+	 */
+	public static final String ALL_CLASS_INDICES_PROPERTY = "plugins.WebOfTrust.allClassIndices";
+	
+	/** Amount of slots of the caches of {@link #getTrust(Identity, Identity)} and {@link #getScore(OwnIdentity, Identity)}. */
+	private static final int LOOKUP_CACHE_SIZE = 64 * 1024;
+	
+	/** Amount of identities which {@link #computeAllScoresWithoutCommit()} loads from the database at once. */
+	private static final int FULL_SCORE_COMPUTATION_BATCH_SIZE = 1024;
 
 	/* References from the node */
 	
@@ -98,8 +152,19 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	/* References from the plugin itself */
 	
 	/* Database & configuration of the plugin */
+	/** The file of the database, null if it is in memory, see {@link #WebOfTrust(String, MemoryIoAdapter)}. */
+	private File mDatabaseFile;
 	private ExtObjectContainer mDB;
 	private Configuration mConfig;
+	
+	/**
+	 * Separates the readers of the database from the writers, see {@link ReadWriteLockWithStatistics} for the locking order.
+	 * Code which only reads, such as the web interface and the FCP queries, locks the read lock instead of this WebOfTrust so it does not
+	 * block other readers and is not blocked by long running code which does not modify the database.
+	 * Therefore, the query functions which readers use, for example {@link #getIdentityByID(String)}, {@link #getScore(OwnIdentity, Identity)}
+	 * and {@link #getTrust(Identity, Identity)}, must not be synchronized.
+	 */
+	private final ReadWriteLockWithStatistics mLock = new ReadWriteLockWithStatistics();
 	private IntroductionPuzzleStore mPuzzleStore;
 	
 	/** Used for exporting identities, identity introductions and introduction puzzles to XML and importing them from XML. */
@@ -137,10 +202,64 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	
 	/* Actual data of the WoT */
 	
+	/** The queries for identities, trusts and scores, see {@link #getStorage()}. */
+	private WoTStorage mStorage;
+	
+	/** In-memory index of all trust values, used by the score computation instead of querying the database for each edge. */
+	private TrustGraph mTrustGraph;
+	
+	/** Digest of all {@link Trust} and {@link Score} objects, used for deciding whether the scores must be verified at startup. */
+	private DatabaseDigest mDatabaseDigest;
+	
+	/** Publishes the {@link WebOfTrustSnapshot} which readers can use without locking anything, see {@link #getSnapshot()}. */
+	private SnapshotPublisher mSnapshotPublisher;
+	
+	/** Cache of {@link #getTrust(Identity, Identity)} */
+	private IdentityPairCache<Trust> mTrustCache;
+	
+	/** Cache of {@link #getScore(OwnIdentity, Identity)} */
+	private IdentityPairCache<Score> mScoreCache;
+	
+	/**
+	 * True once the stored scores are known to be correct, that is after they were verified at startup or the verification was skipped.
+	 * Only then the {@link DatabaseDigest} is stored at shutdown, so a failed startup causes the verification at the next startup.
+	 */
+	private boolean mScoresVerified = false;
+	
+	/** Verifies the integrity of the database in the background. Null if WoT is not running in a node, for example in unit tests. */
+	private IntegrityVerifier mIntegrityVerifier;
+	
+	/** Imports the fetched identity XML in the background. Null if WoT is not running in a node, the fetcher imports synchronously then. */
+	private IdentityImporter mIdentityImporter;
+	
+	/** Computes the trust trees of multiple tree owners in parallel, see {@link #computeAllScoresWithoutCommit()}. Created on demand. */
+	private ExecutorService mScoreComputationExecutor;
+	
 	private boolean mFullScoreComputationNeeded = false;
 	
 	private boolean mTrustListImportInProgress = false;
 	
+	/** Sum of the sizes of the dirty regions which were recomputed by {@link #computeScoresOfDirtyRegionWithoutCommit} during the current trust list import */
+	private int mTrustListImportDirtyIdentities = 0;
+	
+	/* Statistics of the score computation, see {@link #updateScoresWithoutCommit(Trust, Trust)} */
+	
+	/** Amount of trust changes which were handled by the incremental computation */
+	private int mIncrementalScoreComputationCount = 0;
+	
+	/** Amount of trust removals which were handled by the partial computation of the dirty region */
+	private int mPartialScoreComputationCount = 0;
+	
+	/** Sum of the sizes of the dirty regions of all partial computations */
+	private long mPartialScoreComputationDirtyIdentities = 0;
+	
+	/** Amount of full computations which were needed because a trust change could not be handled by the incremental or partial computation */
+	private int mFullScoreComputationCount = 0;
+	
+	/** The peak live heap of the last run of {@link #computeAllScoresWithoutCommit()} in bytes, sampled after each batch of identities,
+	 * see {@link #getLiveHeap()}. */
+	private long mFullScoreComputationPeakLiveHeap = 0;
+	
 	
 	/* User interfaces */
 	
@@ -155,13 +274,31 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 			System.setProperty("java.awt.headless", "true"); 
 	
 			mPR = myPR;
+			long phaseStartTime = System.currentTimeMillis();
 			mDB = openDatabase(new File(getUserDataDirectory(), DATABASE_FILENAME));
+			mStorage = new Db4oStorage(this);
+			phaseStartTime = logStartupPhase("Opening the database", phaseStartTime);
 			
 			mConfig = getOrCreateConfig();
 			if(mConfig.getDatabaseFormatVersion() > WebOfTrust.DATABASE_FORMAT_VERSION)
 				throw new RuntimeException("The WoT plugin's database format is newer than the WoT plugin which is being used.");
+			phaseStartTime = logStartupPhase("Loading the configuration", phaseStartTime);
 			
 			upgradeDB();
+			phaseStartTime = logStartupPhase("Upgrading the database", phaseStartTime);
+			
+			initLookupCaches();
+			initTrustGraph();
+			phaseStartTime = logStartupPhase("Building the trust graph", phaseStartTime);
+			
+			initDatabaseDigest();
+			final boolean scoreVerificationNeeded = isScoreVerificationNeeded();
+			phaseStartTime = logStartupPhase("Computing the database digest", phaseStartTime);
+			
+			initSnapshotPublisher();
+			phaseStartTime = logStartupPhase("Creating the snapshot", phaseStartTime);
+			
+			initGroupCommit();
 			
 			mXMLTransformer = new XMLTransformer(this);
 			mPuzzleStore = new IntroductionPuzzleStore(this);
@@ -183,42 +320,53 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 			};
 			
 			mInserter = new IdentityInserter(this);
+			mIdentityImporter = new IdentityImporter(this, true);
 			mFetcher = new IdentityFetcher(this, getPluginRespirator());		
 			
-			verifyDatabaseIntegrity();
-			
 			// TODO: Don't do this as soon as we are sure that score computation works.
-			Logger.normal(this, "Veriying all stored scores ...");
-			synchronized(this) {
-			synchronized(mDB.lock()) {
+			// The integrity of the database is verified in the background by the IntegrityVerifier, which computes the scores if it
+			// deletes any Trust or Score objects.
+			if(scoreVerificationNeeded) {
+				Logger.normal(this, "Veriying all stored scores ...");
+				synchronized(this) {
+				mLock.lockWrite();
 				try {
-					computeAllScoresWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
-				} catch(RuntimeException e) {
-					Persistent.checkedRollbackAndThrow(mDB, this, e);
+				synchronized(mDB.lock()) {
+					try {
+						computeAllScoresWithoutCommit();
+						Persistent.checkedCommit(mDB, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(mDB, this, e);
+					}
 				}
-			}
-			}
+				} finally {
+					mLock.unlockWrite();
+				}
+				}
+			} else
+				Logger.normal(this, "The database did not change since the last clean shutdown, not verifying the stored scores.");
+			mScoresVerified = true;
+			phaseStartTime = logStartupPhase("Verifying the scores", phaseStartTime);
 			
 			// Database is up now, integrity is checked. We can start to actually do stuff
 			
 			createSeedIdentities();
+			phaseStartTime = logStartupPhase("Creating the seed identities", phaseStartTime);
 			
 			Logger.debug(this, "Starting fetches of all identities...");
 			synchronized(this) {
 			synchronized(mFetcher) {
-				for(Identity identity : getAllIdentities()) {
-					if(shouldFetchIdentity(identity)) {
-						try {
-							mFetcher.fetch(identity.getID());
-						}
-						catch(Exception e) {
-							Logger.error(this, "Fetching identity failed!", e);
-						}
+				for(Identity identity : getAllIdentitiesToFetch()) {
+					try {
+						mFetcher.fetch(identity.getID());
+					}
+					catch(Exception e) {
+						Logger.error(this, "Fetching identity failed!", e);
 					}
 				}
 			}
 			}
+			phaseStartTime = logStartupPhase("Starting the fetches", phaseStartTime);
 			
 			mInserter.start();
 			
@@ -230,6 +378,10 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 
 			mWebInterface = new WebInterface(this, SELF_URI);
 			mFCPInterface = new FCPInterface(this);
+			logStartupPhase("Starting the introduction and user interfaces", phaseStartTime);
+			
+			mIntegrityVerifier = new IntegrityVerifier(this, new TrivialTicker(mPR.getNode().executor));
+			mIntegrityVerifier.start();
 			
 			Logger.debug(this, "WoT startup completed.");
 		}
@@ -255,12 +407,32 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @param databaseFilename The filename of the database.
 	 */
 	public WebOfTrust(String databaseFilename) {
-		mDB = openDatabase(new File(databaseFilename));
+		this(databaseFilename, null);
+	}
+	
+	/**
+	 * Constructor for unit tests and benchmarks, see {@link #WebOfTrust(String)}.
+	 * 
+	 * @param databaseFilename The filename of the database.
+	 * @param memoryStorage If not null, the database is not stored on disk but in the given {@link MemoryIoAdapter} under the given filename.
+	 *     Creating a new WebOfTrust with the same adapter and filename after {@link #terminate()} opens the same database again, a new
+	 *     adapter starts with an empty database. Its memory is freed once the adapter is garbage collected.
+	 */
+	public WebOfTrust(String databaseFilename, MemoryIoAdapter memoryStorage) {
+		mDB = memoryStorage != null ? openInMemoryDatabase(databaseFilename, memoryStorage) : openDatabase(new File(databaseFilename));
+		mStorage = new Db4oStorage(this);
 		mConfig = getOrCreateConfig();
 		
 		if(mConfig.getDatabaseFormatVersion() > WebOfTrust.DATABASE_FORMAT_VERSION)
 			throw new RuntimeException("The WoT plugin's database format is newer than the WoT plugin which is being used.");
 		
+		initLookupCaches();
+		initTrustGraph();
+		initDatabaseDigest();
+		initSnapshotPublisher();
+		
+		mPuzzleStore = new IntroductionPuzzleStore(this); // Needed by restoreIdentity()
+		mXMLTransformer = new XMLTransformer(this);
 		mFetcher = new IdentityFetcher(this, null);
 	}
 	
@@ -281,13 +453,42 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	private ExtObjectContainer openDatabase(File file) {
 		Logger.debug(this, "Using db4o " + Db4o.version());
 		
+		final File defragmentBackup = getDefragmentBackupFile(file);
+		if(!file.exists() && defragmentBackup.exists()) {
+			Logger.error(this, "The defragmentation was interrupted, restoring the database from " + defragmentBackup);
+			if(!defragmentBackup.renameTo(file))
+				throw new RuntimeException("Cannot rename " + defragmentBackup + " to " + file);
+		}
+		
+		mDatabaseFile = file;
+		return Db4o.openFile(getNewDatabaseConfiguration(), file.getAbsolutePath()).ext();
+	}
+	
+	/**
+	 * Opens a database which is not stored on disk, for unit tests and benchmarks. It uses the same configuration as
+	 * {@link #openDatabase(File)}, including the indices, so queries behave the same way.
+	 */
+	private ExtObjectContainer openInMemoryDatabase(String name, MemoryIoAdapter memoryStorage) {
+		Logger.debug(this, "Using db4o " + Db4o.version() + " with an in-memory database");
+		
+		final com.db4o.config.Configuration cfg = getNewDatabaseConfiguration();
+		cfg.io(memoryStorage);
+		
+		mDatabaseFile = null;
+		return Db4o.openFile(cfg, name).ext();
+	}
+	
+	/**
+	 * @return The db4o configuration of the database, used for opening and for defragmenting it.
+	 */
+	private com.db4o.config.Configuration getNewDatabaseConfiguration() {
 		com.db4o.config.Configuration cfg = Db4o.newConfiguration();
 		
 		// Required config options:
 		cfg.reflectWith(new JdkReflector(getPluginClassLoader()));
-		// TODO: Optimization: We do explicit activation everywhere. We could change this to 1 and test whether it still works.
-		// We have to do very careful testing though, toad_ said that db4o bugs can occur with depth 1 and manual activation...
-		cfg.activationDepth(10);
+		// We do explicit activation everywhere so a depth of 1 works. It is not the default yet because toad_ said that db4o bugs can occur
+		// with depth 1 and manual activation...
+		cfg.activationDepth(getActivationDepth());
 		cfg.exceptionsOnNotStorable(true);
         // The shutdown hook does auto-commit. We do NOT want auto-commit: if a transaction hasn't commit()ed, it's not safe to commit it.
         cfg.automaticShutDown(false);
@@ -304,229 +505,477 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
         	OwnIdentity.class,
         	Trust.class,
         	Score.class,
-        	IdentityFetcher.IdentityFetcherCommand.class,
-        	IdentityFetcher.AbortFetchCommand.class,
-        	IdentityFetcher.StartFetchCommand.class,
-        	IdentityFetcher.UpdateEditionHintCommand.class,
         	IntroductionPuzzle.class,
         	OwnIntroductionPuzzle.class
         };
         
+        final HashSet<String> disabledIndices = getDisabledIndices();
+        final boolean allClassIndices = "true".equals(System.getProperty(ALL_CLASS_INDICES_PROPERTY));
+        
         for(Class<? extends Persistent> clazz : persistentClasses) {
-        	boolean classHasIndex = clazz.getAnnotation(Persistent.IndexedClass.class) != null;
+        	// A class index is needed by queries which are constrained by the class only, for example getAllIdentities(). It contains only
+        	// the objects of the exact class, queries for a parent class use the indices of all child classes. Therefore classes which are
+        	// never instantiated, for example Persistent, do not need one even though they are queried.
+        	boolean classHasIndex = allClassIndices || clazz.getAnnotation(Persistent.IndexedClass.class) != null;
         	
-        	// TODO: We enable class indexes for all classes to make sure nothing breaks because it is the db4o default, check whether enabling
-        	// them only for the classes where we need them does not cause any harm.
-        	classHasIndex = true;
+        	if(disabledIndices.contains(clazz.getSimpleName()))
+        		classHasIndex = false;
         	
         	Logger.debug(this, "Peristent class: " + clazz.getCanonicalName() + "; hasIndex==" + classHasIndex);
         	
-        	// TODO: Make very sure that it has no negative side effects if we disable class indices for some classes
-        	// Maybe benchmark in comparison to a database which has class indices enabled for ALL classes.
         	cfg.objectClass(clazz).indexed(classHasIndex);
    
         	// Check the class' fields for @IndexedField annotations
         	for(Field field : clazz.getDeclaredFields()) {
-        		if(field.getAnnotation(Persistent.IndexedField.class) != null) {
-        			Logger.debug(this, "Registering indexed field " + clazz.getCanonicalName() + '.' + field.getName());
-        			cfg.objectClass(clazz).objectField(field.getName()).indexed(true);
-        		}
+        		if(field.getAnnotation(Persistent.IndexedField.class) != null)
+        			registerIndexedField(cfg, clazz, field.getName(), disabledIndices);
         	}
         	
     		// Check whether the class itself has an @IndexedField annotation
     		final Persistent.IndexedField annotation =  clazz.getAnnotation(Persistent.IndexedField.class);
     		if(annotation != null) {
-        		for(String fieldName : annotation.names()) {
-        			Logger.debug(this, "Registering indexed field " + clazz.getCanonicalName() + '.' + fieldName);
-        			cfg.objectClass(clazz).objectField(fieldName).indexed(true);
-        		}
+        		for(String fieldName : annotation.names())
+        			registerIndexedField(cfg, clazz, fieldName, disabledIndices);
     		}
         }
         
-        // TODO: We should check whether db4o inherits the indexed attribute to child classes, for example for this one:
-        // Unforunately, db4o does not provide any way to query the indexed() property of fields, you can only set it
-        // We might figure out whether inheritance works by writing a benchmark.
+        // The index of a field is registered for the class which declares it. Queries for child classes, for example getOwnIdentityByID(),
+        // descend into the field of the parent class and therefore should use its index.
 
-		return Db4o.openFile(cfg, file.getAbsolutePath()).ext();
+		return cfg;
 	}
 	
-	private synchronized void upgradeDB() {
-		int databaseVersion = mConfig.getDatabaseFormatVersion();
+	private static File getDefragmentBackupFile(File databaseFile) {
+		return new File(databaseFile.getPath() + ".backup");
+	}
+	
+	/**
+	 * @return The percentage of the database file which is free space, i.e. the space of deleted objects which db4o did not reuse.
+	 *     Must be called while the database is open.
+	 */
+	private int getFreeSpacePercent() {
+		final long totalSize = mDB.systemInfo().totalSize();
+		return totalSize > 0 ? (int)(mDB.systemInfo().freespaceSize() * 100 / totalSize) : 0;
+	}
+	
+	/**
+	 * Copies the live objects of the database file into a fresh file with the same configuration, which releases the free space of
+	 * deleted objects. The database must be closed. The old file is renamed to a backup file during the copying and deleted afterwards;
+	 * if the copying is interrupted, {@link #openDatabase(File)} restores the backup.
+	 */
+	private void defragmentDatabase(File file) throws IOException {
+		final File backup = getDefragmentBackupFile(file);
+		final long sizeBefore = file.length();
+		final long startTime = System.currentTimeMillis();
 		
-		if(databaseVersion == WebOfTrust.DATABASE_FORMAT_VERSION)
+		Logger.normal(this, "Defragmenting the database " + file + ", size: " + sizeBefore / 1024 + "KiB ...");
+		
+		final DefragmentConfig config = new DefragmentConfig(file.getAbsolutePath(), backup.getAbsolutePath());
+		config.db4oConfig(getNewDatabaseConfiguration());
+		config.forceBackupDelete(true);
+		Defragment.defrag(config);
+		
+		if(!backup.delete())
+			Logger.error(this, "Cannot delete the backup of the defragmentation: " + backup);
+		
+		Logger.normal(this, "Defragmented the database in " + (System.currentTimeMillis() - startTime) + "ms, size before: "
+				+ sizeBefore / 1024 + "KiB, size after: " + file.length() / 1024 + "KiB");
+	}
+	
+	private void registerIndexedField(com.db4o.config.Configuration cfg, Class<? extends Persistent> clazz, String fieldName, HashSet<String> disabledIndices) {
+		if(disabledIndices.contains(clazz.getSimpleName() + '.' + fieldName)) {
+			Logger.normal(this, "Not registering disabled index " + clazz.getCanonicalName() + '.' + fieldName);
 			return;
+		}
+		
+		Logger.debug(this, "Registering indexed field " + clazz.getCanonicalName() + '.' + fieldName);
+		cfg.objectClass(clazz).objectField(fieldName).indexed(true);
+	}
+	
+	/**
+	 * @return The indices which are disabled by {@link #DISABLED_INDICES_PROPERTY}.
+	 */
+	private static HashSet<String> getDisabledIndices() {
+		final HashSet<String> result = new HashSet<String>();
+		final String property = System.getProperty(DISABLED_INDICES_PROPERTY);
+		if(property == null)
+			return result;
+		
+		for(String index : property.split(",")) {
+			index = index.trim();
+			if(index.length() > 0)
+				result.add(index);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return The db4o activation depth which is configured by {@link #ACTIVATION_DEPTH_PROPERTY}, {@link #DEFAULT_ACTIVATION_DEPTH} if
+	 *     it is not set or invalid.
+	 */
+	public static int getActivationDepth() {
+		final String property = System.getProperty(ACTIVATION_DEPTH_PROPERTY);
+		if(property == null)
+			return DEFAULT_ACTIVATION_DEPTH;
 		
-		synchronized(mDB.lock()) {
 		try {
-			//if(databaseVersion == 1) {
-			//
-			//}
+			final int depth = Integer.parseInt(property.trim());
+			if(depth >= 1)
+				return depth;
+		} catch(NumberFormatException e) { }
 		
+		Logger.error(WebOfTrust.class, "Invalid " + ACTIVATION_DEPTH_PROPERTY + ": " + property);
+		return DEFAULT_ACTIVATION_DEPTH;
+	}
 	
-			if(databaseVersion != WebOfTrust.DATABASE_FORMAT_VERSION)
-				throw new RuntimeException("Your database is too outdated to be upgraded automatically, please create a new one by deleting " 
-					+ DATABASE_FILENAME + ". Contact the developers if you really need your old data.");
+	/**
+	 * Creates the caches of {@link #getTrust(Identity, Identity)} and {@link #getScore(OwnIdentity, Identity)} and registers them for being
+	 * notified about commits and rollbacks. Must be called before anything stores or deletes {@link Trust} or {@link Score} objects.
+	 */
+	private synchronized void initLookupCaches() {
+		synchronized(mDB.lock()) {
+			mTrustCache = new IdentityPairCache<Trust>(mDB, LOOKUP_CACHE_SIZE);
+			mScoreCache = new IdentityPairCache<Score>(mDB, LOOKUP_CACHE_SIZE);
+			Persistent.registerTransactionListener(mDB, mTrustCache);
+			Persistent.registerTransactionListener(mDB, mScoreCache);
 		}
-		catch(RuntimeException e) {
-			Persistent.checkedRollbackAndThrow(mDB, this, e);
+	}
+	
+	/**
+	 * Builds the {@link TrustGraph} from the database and registers it for being notified about commits and rollbacks.
+	 */
+	private synchronized void initTrustGraph() {
+		synchronized(mDB.lock()) {
+			mTrustGraph = new TrustGraph(this);
+			mTrustGraph.rebuild();
+			Persistent.registerTransactionListener(mDB, mTrustGraph);
+		}
+	}
+	
+	/**
+	 * Computes the {@link DatabaseDigest} from the database and registers it for being notified about commits and rollbacks.
+	 * Must be called before anything stores or deletes {@link Trust} or {@link Score} objects.
+	 */
+	private synchronized void initDatabaseDigest() {
+		synchronized(mDB.lock()) {
+			mDatabaseDigest = new DatabaseDigest(this);
+			mDatabaseDigest.rebuild();
+			Persistent.registerTransactionListener(mDB, mDatabaseDigest);
 		}
+	}
+	
+	/**
+	 * Creates the first {@link WebOfTrustSnapshot} from the database and registers the {@link SnapshotPublisher} for being notified about
+	 * commits and rollbacks. Must be called after {@link #initTrustGraph()}.
+	 */
+	private synchronized void initSnapshotPublisher() {
+		synchronized(mDB.lock()) {
+			mSnapshotPublisher = new SnapshotPublisher(this);
+			mSnapshotPublisher.rebuild();
+			Persistent.registerTransactionListener(mDB, mSnapshotPublisher);
 		}
 	}
 	
-	private synchronized void verifyDatabaseIntegrity() {
-		deleteDuplicateObjects();
-		deleteOrphanObjects();
-		
-		Logger.normal(this, "Testing database integrity...");
+	/**
+	 * Enables group commit of bulk operations as configured by {@link Configuration#GROUP_COMMIT_MAX_DELAY} and
+	 * {@link Configuration#GROUP_COMMIT_MAX_COMMITS}. Not used by the unit tests.
+	 */
+	private synchronized void initGroupCommit() {
+		final int maxDelay = mConfig.getInt(Configuration.GROUP_COMMIT_MAX_DELAY);
+		final int maxCommits = mConfig.getInt(Configuration.GROUP_COMMIT_MAX_COMMITS);
 		
-		final Query q = mDB.query();
-		q.constrain(Persistent.class);
+		if(maxDelay <= 0 || maxCommits <= 0) {
+			Logger.normal(this, "Group commit is disabled.");
+			return;
+		}
 		
-		for(final Persistent p : new Persistent.InitializingObjectSet<Persistent>(this, q)) {
-			try {
-				p.startupDatabaseIntegrityTest();
-			} catch(Exception e) {
-				Logger.error(this, "Integrity test failed for " + p, e);
-			}
+		mLock.lockWrite();
+		try {
+		synchronized(mDB.lock()) {
+			Persistent.setGroupCommit(mDB, this, maxDelay, maxCommits);
+		}
+		} finally {
+			mLock.unlockWrite();
 		}
 		
-		Logger.normal(this, "Database integrity test finished.");
+		Logger.normal(this, "Group commit: Commits of bulk operations are deferred for up to " + maxDelay + "ms or " + maxCommits + " commits.");
 	}
 	
 	/**
-	 * Debug function for deleting duplicate identities etc. which might have been created due to bugs :)
+	 * Commits the commits which were deferred by {@link Persistent#checkedGroupCommit(ExtObjectContainer, Object)}, if any.
+	 * Must be called before the write lock which was held while deferring them is released, see checkedGroupCommit().
 	 */
-	private synchronized void deleteDuplicateObjects() {
-		synchronized(mDB.lock()) {
+	protected synchronized void flushGroupCommit() {
+		mLock.lockWrite();
 		try {
-			HashSet<String> deleted = new HashSet<String>();
-
-			Logger.debug(this, "Searching for duplicate identities ...");
-
-			for(Identity identity : getAllIdentities()) {
-				Query q = mDB.query();
-				q.constrain(Identity.class);
-				q.descend("mID").constrain(identity.getID());
-				q.constrain(identity).identity().not();
-				ObjectSet<Identity> duplicates = new Persistent.InitializingObjectSet<Identity>(this, q);
-				for(Identity duplicate : duplicates) {
-					if(deleted.contains(duplicate.getID()) == false) {
-						Logger.error(duplicate, "Deleting duplicate identity " + duplicate.getRequestURI());
-						deleteIdentity(duplicate);
-					}
-				}
-				deleted.add(identity.getID());
+		synchronized(mDB.lock()) {
+			try {
+				Persistent.flushGroupCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollback(mDB, this, e);
 			}
-			Persistent.checkedCommit(mDB, this);
-			
-			Logger.debug(this, "Finished searching for duplicate identities.");
-		}
-		catch(RuntimeException e) {
-			Persistent.checkedRollback(mDB, this, e);
 		}
+		} finally {
+			mLock.unlockWrite();
 		}
-
+	}
+	
+	/**
+	 * @return The number of deferred commits which rollbacks have discarded, see {@link Persistent#getRolledBackCommitCount(
+	 *     ExtObjectContainer)}. Their changes were redone by whoever deferred them.
+	 */
+	public synchronized long getRolledBackCommitCount() {
 		synchronized(mDB.lock()) {
-		try {
-		Logger.debug(this, "Searching for duplicate Trust objects ...");
-
-		boolean duplicateTrustFound = false;
-		for(OwnIdentity truster : getAllOwnIdentities()) {
-			HashSet<String> givenTo = new HashSet<String>();
-
-			for(Trust trust : getGivenTrusts(truster)) {
-				if(givenTo.contains(trust.getTrustee().getID()) == false)
-					givenTo.add(trust.getTrustee().getID());
-				else {
-					Logger.error(this, "Deleting duplicate given trust:" + trust);
-					removeTrustWithoutCommit(trust);
-					duplicateTrustFound = true;
-				}
-			}
-		}
-		
-		if(duplicateTrustFound) {
-			computeAllScoresWithoutCommit();
+			return Persistent.getRolledBackCommitCount(mDB);
 		}
-		
-		Persistent.checkedCommit(mDB, this);
-		Logger.debug(this, "Finished searching for duplicate trust objects.");
+	}
+	
+	/**
+	 * @return The background import of fetched identities, null if WoT is not running in a node.
+	 */
+	public IdentityImporter getIdentityImporter() {
+		return mIdentityImporter;
+	}
+	
+	/**
+	 * @return The background verification of the database integrity, null if WoT is not running in a node.
+	 */
+	public IntegrityVerifier getIntegrityVerifier() {
+		return mIntegrityVerifier;
+	}
+	
+	private synchronized long getDatabaseDigestValue() {
+		synchronized(mDB.lock()) {
+			return mDatabaseDigest.get();
 		}
-		catch(RuntimeException e) {
-			Persistent.checkedRollback(mDB, this, e);
+	}
+	
+	/**
+	 * Compares the {@link DatabaseDigest} with the one which was stored in the {@link Configuration} at the last clean shutdown.
+	 * Clears the stored one so that a crash before the next clean shutdown causes the verification at the next startup.
+	 * 
+	 * @return True if the scores might have been changed without being computed by us and must be verified.
+	 */
+	private synchronized boolean isScoreVerificationNeeded() {
+		mLock.lockWrite();
+		try {
+		synchronized(mDB.lock()) {
+			final String storedDigest = mConfig.getString(Configuration.DATABASE_DIGEST_AT_SHUTDOWN);
+			final long currentDigest = mDatabaseDigest.get();
+			boolean verificationNeeded;
+			
+			if(mConfig.getBoolean(Configuration.ALWAYS_VERIFY_SCORES_AT_STARTUP)) {
+				Logger.normal(this, "Verification of the scores at startup is enabled in the configuration.");
+				verificationNeeded = true;
+			} else if(storedDigest == null || storedDigest.length() == 0) {
+				Logger.normal(this, "WoT was not terminated cleanly, the scores must be verified.");
+				verificationNeeded = true;
+			} else if(!storedDigest.equals(Long.toString(currentDigest))) {
+				Logger.error(this, "The database digest does not match the one of the last shutdown, the scores must be verified: stored "
+						+ storedDigest + ", actual " + currentDigest);
+				verificationNeeded = true;
+			} else
+				verificationNeeded = false;
+			
+			mConfig.set(Configuration.DATABASE_DIGEST_AT_SHUTDOWN, "");
+			mConfig.storeAndCommit();
+			
+			return verificationNeeded;
 		}
+		} finally {
+			mLock.unlockWrite();
 		}
-		
-		/* TODO: Also delete duplicate score */
 	}
 	
 	/**
-	 * Debug function for deleting trusts or scores of which one of the involved partners is missing.
+	 * Logs the time which a phase of the startup took.
+	 * @return The current time, to be used as start time of the next phase.
 	 */
-	private synchronized void deleteOrphanObjects() {
+	private long logStartupPhase(String phase, long phaseStartTime) {
+		final long time = System.currentTimeMillis();
+		Logger.normal(this, "Startup: " + phase + " took " + (time - phaseStartTime) + "ms");
+		return time;
+	}
+	
+	private synchronized void upgradeDB() {
+		int databaseVersion = mConfig.getDatabaseFormatVersion();
+		
+		if(databaseVersion == WebOfTrust.DATABASE_FORMAT_VERSION)
+			return;
+		
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
-			try {
-				boolean orphanTrustFound = true;
+		try {
+			//if(databaseVersion == 1) {
+			//
+			//}
+			
+			// Version -49 added the best score, best capacity and fetch state of Identity which are cached from its Scores.
+			if(databaseVersion == -50) {
+				Logger.normal(this, "Upgrading database version " + databaseVersion);
 				
-				Query q = mDB.query();
-				q.constrain(Trust.class);
-				q.descend("mTruster").constrain(null).identity().or(q.descend("mTrustee").constrain(null).identity());
-				ObjectSet<Trust> orphanTrusts = new Persistent.InitializingObjectSet<Trust>(this, q);
+				for(Identity identity : getAllIdentities())
+					identity.recomputeBestScore(null);
 				
-				for(Trust trust : orphanTrusts) {
-					if(trust.getTruster() != null && trust.getTrustee() != null) {
-						// TODO: Remove this workaround for the db4o bug as soon as we are sure that it does not happen anymore.
-						Logger.error(this, "Db4o bug: constrain(null).identity() did not work for " + trust);
-						continue;
-					}
-					
-					Logger.error(trust, "Deleting orphan trust, truster = " + trust.getTruster() + ", trustee = " + trust.getTrustee());
-					orphanTrustFound = true;
-					trust.deleteWithoutCommit();
-				}
+				mConfig.setDatabaseFormatVersion(++databaseVersion);
+				mConfig.storeAndCommit();
+			}
+			
+			// Version -48 added the composite key mID of Trust and Score which getTrust() and getScore() query for.
+			// The loops below must not use getTrust() or getScore() because they would not find objects without mID.
+			if(databaseVersion == -49) {
+				Logger.normal(this, "Upgrading database version " + databaseVersion);
 				
-				if(orphanTrustFound) {
-					computeAllScoresWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
-				}
+				for(Trust trust : getAllTrusts())
+					trust.upgradeDatabaseFormatVersion49WithoutCommit();
+				
+				for(Score score : getAllScores())
+					score.upgradeDatabaseFormatVersion49WithoutCommit();
+				
+				mConfig.setDatabaseFormatVersion(++databaseVersion);
+				mConfig.storeAndCommit();
 			}
-			catch(Exception e) {
-				Persistent.checkedRollback(mDB, this, e); 
+			
+			// Version -47 replaced the FreenetURI object of the request URI of Identity by its crypto key, extra bytes and edition.
+			if(databaseVersion == -48) {
+				Logger.normal(this, "Upgrading database version " + databaseVersion);
+				
+				for(Identity identity : getAllIdentities())
+					identity.upgradeDatabaseFormatVersion48WithoutCommit();
+				
+				mConfig.setDatabaseFormatVersion(++databaseVersion);
+				mConfig.storeAndCommit();
 			}
+			
+			// Version -46 replaced the persistent commands of the IdentityFetcher by an in-memory queue.
+			if(databaseVersion == -47) {
+				Logger.normal(this, "Upgrading database version " + databaseVersion);
+				
+				final int deleted = IdentityFetcher.upgradeDatabaseFormatVersion47WithoutCommit(mDB);
+				Logger.normal(this, "Deleted " + deleted + " identity fetcher commands.");
+				
+				// The commands were one of the phases of the IntegrityVerifier, the stored phase might refer to a different class now.
+				mConfig.set(Configuration.INTEGRITY_TEST_PHASE, Configuration.INTEGRITY_TEST_PHASE_DEFAULT);
+				mConfig.set(Configuration.INTEGRITY_TEST_LAST_OBJECT_ID, Configuration.INTEGRITY_TEST_LAST_OBJECT_ID_DEFAULT);
+				
+				mConfig.setDatabaseFormatVersion(++databaseVersion);
+				mConfig.storeAndCommit();
+			}
+		
+	
+			if(databaseVersion != WebOfTrust.DATABASE_FORMAT_VERSION)
+				throw new RuntimeException("Your database is too outdated to be upgraded automatically, please create a new one by deleting " 
+					+ DATABASE_FILENAME + ". Contact the developers if you really need your old data.");
+		}
+		catch(RuntimeException e) {
+			Persistent.checkedRollbackAndThrow(mDB, this, e);
+		}
+		}
+		} finally {
+			mLock.unlockWrite();
 		}
+	}
+	
+	/**
+	 * Deletes the given duplicate identities and duplicate or orphan trusts and scores which were found by the {@link IntegrityVerifier}.
+	 * The objects might have changed since they were tested without the write lock, so each of them is checked again before deleting it.
+	 * The trusts and scores of a deleted duplicate identity are deleted with it, the fetches and puzzles are kept for the remaining
+	 * identity with the same ID. If anything was deleted, the trust graph is rebuilt and all scores are computed.
+	 * 
+	 * @param ids The db4o IDs of the objects, see {@link ExtObjectContainer#getID(Object)}.
+	 * @return The number of deleted objects.
+	 */
+	protected synchronized int deleteDuplicateAndOrphanObjects(List<Long> ids) {
+		int deleted = 0;
 		
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try {
-				boolean orphanScoresFound = true;
-				
-				Query q = mDB.query();
-				q.constrain(Score.class);
-				q.descend("mTruster").constrain(null).identity().or(q.descend("mTrustee").constrain(null).identity());
-				ObjectSet<Score> orphanScores = new Persistent.InitializingObjectSet<Score>(this, q);
-				
-				for(Score score : orphanScores) {
-					if(score.getTruster() != null && score.getTrustee() != null) {
-						// TODO: Remove this workaround for the db4o bug as soon as we are sure that it does not happen anymore.
-						Logger.error(this, "Db4o bug: constrain(null).identity() did not work for " + score);
-						continue;
-					}
+				for(long id : ids) {
+					final Persistent p = getStoredObjectByID(id, Persistent.class);
 					
-					Logger.error(score, "Deleting orphan score, truster = " + score.getTruster() + ", trustee = " + score.getTrustee());
-					orphanScoresFound = true;
-					score.deleteWithoutCommit();
+					if(p instanceof Identity) {
+						final Identity identity = (Identity)p;
+						if(countObjectsWithID(Identity.class, identity.getID()) > 1) {
+							Logger.error(identity, "Deleting duplicate identity " + identity.getRequestURI());
+							for(Score score : getScores(identity))
+								score.deleteWithoutCommit();
+							if(identity instanceof OwnIdentity) {
+								for(Score score : getGivenScores((OwnIdentity)identity))
+									score.deleteWithoutCommit();
+							}
+							for(Trust trust : getReceivedTrusts(identity))
+								trust.deleteWithoutCommit();
+							for(Trust trust : getGivenTrusts(identity))
+								trust.deleteWithoutCommit();
+							identity.deleteWithoutCommit();
+							++deleted;
+						}
+					} else if(p instanceof Trust) {
+						final Trust trust = (Trust)p;
+						if(isOrphan(trust.getTruster(), trust.getTrustee()) || countObjectsWithID(Trust.class, trust.getID()) > 1) {
+							Logger.error(trust, "Deleting duplicate or orphan trust " + trust);
+							trust.deleteWithoutCommit();
+							++deleted;
+						}
+					} else if(p instanceof Score) {
+						final Score score = (Score)p;
+						if(isOrphan(score.getTruster(), score.getTrustee()) || countObjectsWithID(Score.class, score.getID()) > 1) {
+							Logger.error(score, "Deleting duplicate or orphan score " + score);
+							score.deleteWithoutCommit();
+							++deleted;
+						}
+					}
 				}
 				
-				if(orphanScoresFound) {
+				if(deleted > 0) {
+					// The trust graph index cannot represent duplicate trusts properly, so we rebuild it from the remaining ones.
+					mTrustGraph.rebuild();
 					computeAllScoresWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
 				}
+				
+				Persistent.checkedCommit(mDB, this);
 			}
-			catch(Exception e) {
-				Persistent.checkedRollback(mDB, this, e);
+			catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
 		}
+		} finally {
+			mLock.unlockWrite();
+		}
+		
+		return deleted;
 	}
 	
+	/**
+	 * @return True if the truster or trustee of a {@link Trust} or {@link Score} is missing.
+	 */
+	protected boolean isOrphan(Identity truster, Identity trustee) {
+		return truster == null || trustee == null || !mDB.isStored(truster) || !mDB.isStored(trustee);
+	}
+	
+	/**
+	 * @return The object with the given db4o ID, null if it was deleted.
+	 */
+	protected <T extends Persistent> T getStoredObjectByID(long id, Class<T> clazz) {
+		final Object object = mDB.getByID(id);
+		if(object == null || !mDB.isStored(object) || !clazz.isInstance(object))
+			return null;
+		
+		final T result = clazz.cast(object);
+		result.initializeTransient(this);
+		return result;
+	}
+	
+	private int countObjectsWithID(Class<? extends Persistent> clazz, String id) {
+		final Query q = mDB.query();
+		q.constrain(clazz);
+		q.descend("mID").constrain(id);
+		return q.execute().size();
+	}
 	
 	/**
 	 * Loads an existing Config object from the database and adds any missing default values to it, creates and stores a new one if none exists.
@@ -609,13 +1058,32 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	protected int computeCapacity(OwnIdentity truster, Identity trustee, int rank) {
 		if(truster == trustee)
 			return 100;
-		 
-		try {
-			if(getTrust(truster, trustee).getValue() <= 0) { // Security check, if rank computation breaks this will hit.
-				assert(rank == Integer.MAX_VALUE);
-				return 0;
-			}
-		} catch(NotTrustedException e) { }
+		
+		return computeCapacity(mTrustGraph.getOrdinal(truster), mTrustGraph.getOrdinal(trustee), rank);
+	}
+	
+	/**
+	 * Same as {@link #computeCapacity(OwnIdentity, Identity, int)} but works on the ordinals of the {@link TrustGraph}.
+	 * Any of the ordinals may be {@link TrustGraph#NO_ORDINAL}.
+	 */
+	private int computeCapacity(int trusterOrdinal, int trusteeOrdinal, int rank) {
+		if(trusterOrdinal == trusteeOrdinal && trusterOrdinal != TrustGraph.NO_ORDINAL)
+			return 100;
+		
+		return computeCapacity(mTrustGraph.getTrustValue(trusterOrdinal, trusteeOrdinal), rank);
+	}
+	
+	/**
+	 * Same as {@link #computeCapacity(OwnIdentity, Identity, int)} but does not need the database or the {@link TrustGraph}.
+	 * Must not be used for computing the capacity of the tree owner itself.
+	 * 
+	 * @param treeOwnerTrust The value of the trust which the tree owner has assigned to the identity or {@link TrustGraph#NO_TRUST} if there is none.
+	 */
+	private static int computeCapacity(int treeOwnerTrust, int rank) {
+		if(treeOwnerTrust != TrustGraph.NO_TRUST && treeOwnerTrust <= 0) { // Security check, if rank computation breaks this will hit.
+			assert(rank == Integer.MAX_VALUE);
+			return 0;
+		}
 		
 		if(rank == -1 || rank == Integer.MAX_VALUE)
 			return 0;
@@ -640,19 +1108,217 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * 
 	 * @return True if all stored scores were correct. False if there were any errors in stored scores.
 	 */
-	protected synchronized boolean computeAllScoresWithoutCommit() {
-		Logger.debug(this, "Doing a full computation of all Scores...");
+	protected synchronized boolean computeAllScoresWithoutCommit() {
+		Logger.debug(this, "Doing a full computation of all Scores...");
+		
+		final long startTime = System.currentTimeMillis();
+		long peakLiveHeap = getLiveHeap();
+		boolean returnValue = true;
+		
+		// The graph is walked via the TrustGraph index instead of querying the database for the given and received trusts of each identity.
+		// Identities are referenced by their ordinal in the index, the rank values are stored in an array indexed by ordinal.
+		// The trust trees of the tree owners are independent of each other so they are computed in parallel on a snapshot of the graph.
+		// The results are then written to the database by this thread because db4o transactions are not thread-safe.
+		final TrustGraph graph = mTrustGraph;
+		final LinkedList<OwnIdentity> treeOwnerList = new LinkedList<OwnIdentity>();
+		final LinkedList<TrustTreeComputation> computationList = new LinkedList<TrustTreeComputation>();
+		
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			int treeOwnerRank = -1;
+			
+			try {
+				treeOwnerRank = getScore(treeOwner, treeOwner).getRank();
+			} catch(NotInTrustTreeException e) {
+				// This only happens in unit tests.
+			}
+			
+			treeOwnerList.add(treeOwner);
+			computationList.add(new TrustTreeComputation(graph.getOrCreateOrdinal(treeOwner), treeOwnerRank));
+		}
+		
+		final TrustGraph.Snapshot snapshot = graph.snapshot();
+		for(TrustTreeComputation computation : computationList)
+			computation.mGraph = snapshot;
+		
+		executeTrustTreeComputations(computationList);
+		peakLiveHeap = Math.max(peakLiveHeap, getLiveHeap());
+		
+		final OwnIdentity[] treeOwners = treeOwnerList.toArray(new OwnIdentity[treeOwnerList.size()]);
+		final TrustTreeComputation[] computations = computationList.toArray(new TrustTreeComputation[computationList.size()]);
+		
+		final IdentityHashMap<Identity, Integer> treeOwnerIndices = new IdentityHashMap<Identity, Integer>(treeOwners.length * 2);
+		for(int owner = 0; owner < treeOwners.length; ++owner)
+			treeOwnerIndices.put(treeOwners[owner], owner);
+		
+		// Only the db4o object IDs of the identities are loaded at once. The identities and their scores are loaded in batches and
+		// deactivated after their batch was processed so the memory usage does not grow with the size of the database, the rest of the
+		// pass only uses ordinals and the int arrays.
+		final long[] identityIDs = getAllIdentityObjectIDs();
+		final ArrayList<Persistent> batchObjects = new ArrayList<Persistent>(FULL_SCORE_COMPUTATION_BATCH_SIZE * (1 + treeOwners.length));
+		final Score[] storedScores = new Score[treeOwners.length];
+		
+		for(int batchStart = 0; batchStart < identityIDs.length; batchStart += FULL_SCORE_COMPUTATION_BATCH_SIZE) {
+			final int batchEnd = Math.min(batchStart + FULL_SCORE_COMPUTATION_BATCH_SIZE, identityIDs.length);
+			
+			for(int i = batchStart; i < batchEnd; ++i) {
+				final Identity target = (Identity)getByObjectIDForBatch(identityIDs[i], 4, batchObjects); // 4 is the maximal depth of all getter functions of Identity
+				final int targetOrdinal = graph.getOrdinal(target);
+				
+				// A single query for the scores of the target in all trust trees instead of one per tree owner
+				Arrays.fill(storedScores, null);
+				for(long scoreID : getReceivedScoreObjectIDs(target)) {
+					final Score score = (Score)getByObjectIDForBatch(scoreID, 2, batchObjects); // 2 is the maximal depth of all getter functions of Score
+					final Integer owner = treeOwnerIndices.get(score.getTruster());
+					if(owner == null)
+						continue; // Not a score of a tree owner, the integrity verification reports it
+					
+					if(storedScores[owner] != null)
+						throw new DuplicateScoreException(treeOwners[owner], target, 2);
+					
+					storedScores[owner] = score;
+				}
+				
+				// Scores are a rating of an identity from the view of an OwnIdentity so we compute them per OwnIdentity.
+				for(int owner = 0; owner < treeOwners.length; ++owner) {
+					final OwnIdentity treeOwner = treeOwners[owner];
+					final int treeOwnerOrdinal = computations[owner].mTreeOwnerOrdinal;
+					final int[] rankValues = computations[owner].mRanks;
+					final int[] scoreValues = computations[owner].mScores;
+					
+					// Identities which received their ordinal after the snapshot was taken have no trust values and therefore no rank.
+					final int targetRank = (targetOrdinal != TrustGraph.NO_ORDINAL && targetOrdinal < rankValues.length) ? rankValues[targetOrdinal] : -1;
+					
+					Score expectedScore = null;
+					if(targetRank != -1) {
+						expectedScore = new Score(treeOwner, target, scoreValues[targetOrdinal], targetRank,
+								computeCapacity(treeOwnerOrdinal, targetOrdinal, targetRank));
+						expectedScore.initializeTransient(this);
+					}
+					
+					if(!updateStoredScoreWithoutCommit(treeOwner, target, storedScores[owner], expectedScore, !mFullScoreComputationNeeded))
+						returnValue = false;
+				}
+				
+				// The best score of each identity is maintained when its Scores are stored, verify it as well.
+				if(target.recomputeBestScore(null)) {
+					Logger.error(this, "Best score or capacity was wrong for " + target);
+					returnValue = false;
+				}
+			}
+			
+			for(Persistent object : batchObjects) {
+				if(!mDB.isStored(object)) // Deleted scores cannot be deactivated
+					continue;
+				
+				// The score might have been cached by a getScore() call during the batch
+				if(object instanceof Score)
+					mScoreCache.invalidate(((Score)object).getTruster(), ((Score)object).getTrustee());
+				
+				mDB.deactivate(object, 1);
+			}
+			batchObjects.clear();
+			Arrays.fill(storedScores, null);
+			
+			peakLiveHeap = Math.max(peakLiveHeap, getLiveHeap());
+		}
+		
+		mFullScoreComputationNeeded = false;
+		mFullScoreComputationPeakLiveHeap = peakLiveHeap;
+		
+		Logger.normal(this, "Full score computation of " + identityIDs.length + " identities in " + treeOwners.length + " trust trees finished in "
+				+ (System.currentTimeMillis() - startTime) + "ms, peak live heap: " + peakLiveHeap / (1024 * 1024) + "MiB");
+		
+		return returnValue;
+	}
+	
+	/**
+	 * Gets the db4o object IDs of all identities without loading the identities themselves. Use {@link #getIdentityByObjectID(long)} for
+	 * loading them.
+	 */
+	private long[] getAllIdentityObjectIDs() {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		return query.execute().ext().getIDs();
+	}
+	
+	/**
+	 * Gets the db4o object IDs of the scores which the given identity has received in all trust trees, without loading the scores.
+	 */
+	private long[] getReceivedScoreObjectIDs(Identity trustee) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return query.execute().ext().getIDs();
+	}
+	
+	/**
+	 * Loads an object of a batch of {@link #computeAllScoresWithoutCommit()} by its db4o object ID. If it was not active yet, it is added
+	 * to the given list so it can be deactivated after the batch. Objects which were active already are not added: They might be
+	 * referenced by the caller, the lookup caches or the rest of the plugin.
+	 */
+	private Persistent getByObjectIDForBatch(long objectID, int activationDepth, ArrayList<Persistent> batchObjects) {
+		final Persistent object = (Persistent)mDB.getByID(objectID);
+		if(!mDB.isActive(object))
+			batchObjects.add(object);
+		
+		mDB.activate(object, activationDepth);
+		object.initializeTransient(this);
+		return object;
+	}
+	
+	/**
+	 * Gets the heap memory which was in use after the latest garbage collection of each heap memory pool, that is the live objects without
+	 * the garbage which accumulated since. The used heap of {@link Runtime} would include that garbage. Does not trigger a garbage
+	 * collection, so the value only changes when the JVM has collected garbage.
+	 */
+	private static long getLiveHeap() {
+		long liveHeap = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() != MemoryType.HEAP)
+				continue;
+			
+			final MemoryUsage usage = pool.getCollectionUsage();
+			if(usage != null)
+				liveHeap += usage.getUsed();
+		}
+		return liveHeap;
+	}
+	
+	/**
+	 * Computes the ranks and score values of all identities in the trust tree of a single tree owner, see {@link #computeAllScoresWithoutCommit()}.
+	 * Only uses a {@link TrustGraph.Snapshot} and not the database so the trust trees of multiple tree owners can be computed in parallel.
+	 */
+	private static final class TrustTreeComputation implements Callable<TrustTreeComputation> {
 		
-		boolean returnValue = true;
-		final ObjectSet<Identity> allIdentities = getAllIdentities();
+		private final int mTreeOwnerOrdinal;
 		
-		// Scores are a rating of an identity from the view of an OwnIdentity so we compute them per OwnIdentity.
-		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-			// At the end of the loop body, this table will be filled with the ranks of all identities which are visible for treeOwner.
+		/** The rank of the tree owner in its own trust tree, should be 0. -1 if it has none. */
+		private final int mTreeOwnerRank;
+		
+		private TrustGraph.Snapshot mGraph;
+		
+		/** The result: The rank of each identity, indexed by ordinal. -1 if it has no rank. */
+		private int[] mRanks;
+		
+		/** The result: The score value of each identity which has a rank, indexed by ordinal. */
+		private int[] mScores;
+		
+		TrustTreeComputation(int treeOwnerOrdinal, int treeOwnerRank) {
+			mTreeOwnerOrdinal = treeOwnerOrdinal;
+			mTreeOwnerRank = treeOwnerRank;
+		}
+		
+		public TrustTreeComputation call() {
+			final TrustGraph.Snapshot graph = mGraph;
+			final int treeOwnerOrdinal = mTreeOwnerOrdinal;
+			
+			// At the end of the rank computation, this table will be filled with the ranks of all identities which are visible for treeOwner.
 			// An identity is visible if there is a trust chain from the owner to it.
 			// The rank is the distance in trust steps from the treeOwner.			
 			// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
-			final HashMap<Identity, Integer> rankValues = new HashMap<Identity, Integer>(allIdentities.size() * 2);
+			// Identities which are not visible have a rank of -1.
+			final int[] rankValues = new int[graph.size()];
+			Arrays.fill(rankValues, -1);
 			
 			// Compute the rank values
 			{
@@ -675,48 +1341,49 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 				// - and we never import their trust lists. 
 				// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
 				// introduction puzzles cannot inherit their rank to their trustees.
-				final LinkedList<Identity> unprocessedTrusters = new LinkedList<Identity>();
+				//
+				// An identity is only added to the queue when it receives a rank which is less than infinite for the first time so the queue
+				// cannot contain more elements than there are identities.
+				final int[] unprocessedTrusters = new int[graph.size()];
+				int queueHead = 0;
+				int queueTail = 0;
 				
 				// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
 				
-				try {
-					Score selfScore = getScore(treeOwner, treeOwner);
-					
-					if(selfScore.getRank() >= 0) { // It can only give it's rank if it has a valid one
-						rankValues.put(treeOwner, selfScore.getRank());
-						unprocessedTrusters.addLast(treeOwner);
-					} else {
-						rankValues.put(treeOwner, null);
-					}
-				} catch(NotInTrustTreeException e) {
-					// This only happens in unit tests.
+				if(mTreeOwnerRank >= 0) { // It can only give it's rank if it has a valid one
+					rankValues[treeOwnerOrdinal] = mTreeOwnerRank;
+					unprocessedTrusters[queueTail++] = treeOwnerOrdinal;
 				}
 				 
-				while(!unprocessedTrusters.isEmpty()) {
-					final Identity truster = unprocessedTrusters.removeFirst();
+				while(queueHead < queueTail) {
+					final int truster = unprocessedTrusters[queueHead++];
 	
-					final Integer trusterRank = rankValues.get(truster);
+					final int trusterRank = rankValues[truster];
 					
 					// The truster cannot give his rank to his trustees because he has none (or infinite), they receive no rank at all.
-					if(trusterRank == null || trusterRank == Integer.MAX_VALUE) {
+					if(trusterRank == -1 || trusterRank == Integer.MAX_VALUE) {
 						// (Normally this does not happen because we do not enqueue the identities if they have no rank but we check for security)
 						continue;
 					}
 					
 					final int trusteeRank = trusterRank + 1;
 					
-					for(Trust trust : getGivenTrusts(truster)) {
-						final Identity trustee = trust.getTrustee();
-						final Integer oldTrusteeRank = rankValues.get(trustee);
-						
+					final int[] trustees = graph.getTrustees(truster);
+					final byte[] trustValues = graph.getTrusteeValues(truster);
+					final int trusteeCount = graph.getTrusteeCount(truster);
+					
+					for(int i = 0; i < trusteeCount; ++i) {
+						final int trustee = trustees[i];
+						final byte trustValue = trustValues[i];
+						final int oldTrusteeRank = rankValues[trustee];
 						
-						if(oldTrusteeRank == null) { // The trustee was not processed yet
-							if(trust.getValue() > 0) {
-								rankValues.put(trustee, trusteeRank);
-								unprocessedTrusters.addLast(trustee);
+						if(oldTrusteeRank == -1) { // The trustee was not processed yet
+							if(trustValue > 0) {
+								rankValues[trustee] = trusteeRank;
+								unprocessedTrusters[queueTail++] = trustee;
 							}
 							else
-								rankValues.put(trustee, Integer.MAX_VALUE);
+								rankValues[trustee] = Integer.MAX_VALUE;
 						} else {
 							// Breadth first search will process all rank one identities are processed before any rank two identities, etc.
 							assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
@@ -724,13 +1391,9 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 							if(oldTrusteeRank == Integer.MAX_VALUE) {
 								// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
 								// given by the tree owner.
-								try {
-									getTrust(treeOwner, trustee);
-								} catch(NotTrustedException e) {
-									if(trust.getValue() > 0) {
-										rankValues.put(trustee, trusteeRank);
-										unprocessedTrusters.addLast(trustee);
-									}
+								if(trustValue > 0 && graph.getTrustValue(treeOwnerOrdinal, trustee) == TrustGraph.NO_TRUST) {
+									rankValues[trustee] = trusteeRank;
+									unprocessedTrusters[queueTail++] = trustee;
 								}
 							}
 						}
@@ -741,126 +1404,209 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 			// Rank values of all visible identities are computed now.
 			// Next step is to compute the scores of all identities
 			
-			for(Identity target : allIdentities) {
+			final int[] scoreValues = new int[graph.size()];
+			
+			for(int target = 0; target < graph.size(); ++target) {
 				// The score of an identity is the sum of all weighted trust values it has received.
 				// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
-				Integer targetScore;
-				final Integer targetRank = rankValues.get(target);
+				final int targetRank = rankValues[target];
 				
-				if(targetRank == null) {
-					targetScore = null;
-				} else {
-					// The treeOwner trusts himself.
-					if(targetRank == 0) {
-						targetScore = Integer.MAX_VALUE;
-					}
-					else {
-						// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
-						try {
-							targetScore = (int)getTrust(treeOwner, target).getValue();
-						} catch(NotTrustedException e) {
-							targetScore = 0;
-							for(Trust receivedTrust : getReceivedTrusts(target)) {
-								final Identity truster = receivedTrust.getTruster();
-								final Integer trusterRank = rankValues.get(truster);
-								
-								// The capacity is a weight function for trust values which are given from an identity:
-								// The higher the rank, the less the capacity.
-								// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
-								final int capacity = computeCapacity(treeOwner, truster, trusterRank != null ? trusterRank : -1);
-								
-								targetScore += (receivedTrust.getValue() * capacity) / 100;
-							}
-						}
-					}
+				if(targetRank == -1) // It has no score
+					continue;
+				
+				// The treeOwner trusts himself.
+				if(targetRank == 0) {
+					scoreValues[target] = Integer.MAX_VALUE;
+					continue;
 				}
 				
-				Score expectedScore = null;
-				if(targetScore != null) {
-					expectedScore = new Score(treeOwner, target, targetScore, targetRank, computeCapacity(treeOwner, target, targetRank));
-					expectedScore.initializeTransient(this);
+				// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
+				final int treeOwnerTrust = graph.getTrustValue(treeOwnerOrdinal, target);
+				
+				if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+					scoreValues[target] = treeOwnerTrust;
+					continue;
 				}
 				
-				boolean needToCheckFetchStatus = false;
-				boolean oldShouldFetch = false;
-				int oldCapacity = 0;
+				int sum = 0;
 				
-				// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
-				try {
-					Score storedScore = getScore(treeOwner, target);
-					oldCapacity = storedScore.getCapacity();
+				final int[] trusters = graph.getTrusters(target);
+				final byte[] trustValues = graph.getTrusterValues(target);
+				final int trusterCount = graph.getTrusterCount(target);
+				
+				for(int i = 0; i < trusterCount; ++i) {
+					final int truster = trusters[i];
 					
-					if(expectedScore == null) {
-						returnValue = false;
-						if(!mFullScoreComputationNeeded)
-							Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + storedScore, new RuntimeException());
-						
-						needToCheckFetchStatus = true;
-						oldShouldFetch = shouldFetchIdentity(target);
-						
-						storedScore.deleteWithoutCommit();
-						
-					} else {
-						if(!expectedScore.equals(storedScore)) {
-							returnValue = false;
-							if(!mFullScoreComputationNeeded)
-								Logger.error(this, "Correcting wrong score: Should have been " + expectedScore + " but was " + storedScore, new RuntimeException());
-							
-							needToCheckFetchStatus = true;
-							oldShouldFetch = shouldFetchIdentity(target);
-							
-							storedScore.setRank(expectedScore.getRank());
-							storedScore.setCapacity(expectedScore.getCapacity());
-							storedScore.setValue(expectedScore.getScore());
-
-							storedScore.storeWithoutCommit();
-						}
-					}
-				} catch(NotInTrustTreeException e) {
-					oldCapacity = 0;
+					// The capacity is a weight function for trust values which are given from an identity:
+					// The higher the rank, the less the capacity.
+					// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
+					final int capacity = computeCapacity(graph.getTrustValue(treeOwnerOrdinal, truster), rankValues[truster]);
 					
-					if(expectedScore != null) {
-						returnValue = false;
-						if(!mFullScoreComputationNeeded)
-							Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + expectedScore, new RuntimeException());
-						
-						needToCheckFetchStatus = true;
-						oldShouldFetch = shouldFetchIdentity(target);
-						
-						expectedScore.storeWithoutCommit();
-					}
+					sum += (trustValues[i] * capacity) / 100;
 				}
 				
-				if(needToCheckFetchStatus) {
-					// If fetch status changed from false to true, we need to start fetching it
-					// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
-					// cause new identities to be imported from their trust list, capacity > 0 allows this.
-					// If the fetch status changed from true to false, we need to stop fetching it
-					if((!oldShouldFetch || (oldCapacity == 0 && expectedScore != null && expectedScore.getCapacity() > 0)) && shouldFetchIdentity(target) ) {
-						if(!oldShouldFetch)
-							Logger.debug(this, "Fetch status changed from false to true, refetching " + target);
-						else
-							Logger.debug(this, "Capacity changed from 0 to " + expectedScore.getCapacity() + ", refetching" + target);
-
-						target.markForRefetch();
-						target.storeWithoutCommit();
-
-						mFetcher.storeStartFetchCommandWithoutCommit(target);
-					}
-					else if(oldShouldFetch && !shouldFetchIdentity(target)) {
-						Logger.debug(this, "Fetch status changed from true to false, aborting fetch of " + target);
+				scoreValues[target] = sum;
+			}
+			
+			mRanks = rankValues;
+			mScores = scoreValues;
+			return this;
+		}
+	}
+	
+	/**
+	 * Runs the given computations on the score computation thread pool and waits for them to finish. If there is only one, it is run
+	 * by the calling thread.
+	 */
+	private void executeTrustTreeComputations(final List<TrustTreeComputation> computations) {
+		if(computations.size() == 1) {
+			computations.get(0).call();
+			return;
+		}
+		
+		final LinkedList<Future<TrustTreeComputation>> futures = new LinkedList<Future<TrustTreeComputation>>();
+		
+		try {
+			for(TrustTreeComputation computation : computations)
+				futures.add(getScoreComputationExecutor().submit(computation));
+			
+			for(Future<TrustTreeComputation> future : futures)
+				future.get();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			for(Future<TrustTreeComputation> future : futures)
+				future.cancel(true);
+		}
+	}
+	
+	/**
+	 * Gets the thread pool for computing the trust trees of multiple tree owners in parallel. Its size is the amount of available processors.
+	 */
+	private synchronized ExecutorService getScoreComputationExecutor() {
+		if(mScoreComputationExecutor == null) {
+			mScoreComputationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int mThreadNumber = 0;
+				
+				public synchronized Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "WoT score computation " + (++mThreadNumber));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return mScoreComputationExecutor;
+	}
+	
+	/**
+	 * Compares the stored {@link Score} of the target in the trust tree of the treeOwner with the given expected one and corrects the stored one
+	 * if they differ: Creates, updates or deletes it. Starts or aborts the fetching of the target if its fetch status changes.
+	 * 
+	 * This function does neither lock the database nor commit the transaction.
+	 * 
+	 * @param expectedScore The correct score of the target. Null if the target should not have a score because it has no rank.
+	 * @param logCorrections If true, an error is logged if the stored score was wrong.
+	 * @return True if the stored score was correct.
+	 */
+	private synchronized boolean updateStoredScoreWithoutCommit(OwnIdentity treeOwner, Identity target, Score expectedScore, boolean logCorrections) {
+		Score storedScore;
+		try {
+			storedScore = getScore(treeOwner, target);
+		} catch(NotInTrustTreeException e) {
+			storedScore = null;
+		}
+		
+		return updateStoredScoreWithoutCommit(treeOwner, target, storedScore, expectedScore, logCorrections);
+	}
+	
+	/**
+	 * Same as {@link #updateStoredScoreWithoutCommit(OwnIdentity, Identity, Score, boolean)} but takes the stored score which the caller
+	 * has looked up already.
+	 * 
+	 * @param storedScore The stored score of the target in the trust tree of the treeOwner, null if there is none.
+	 */
+	private synchronized boolean updateStoredScoreWithoutCommit(OwnIdentity treeOwner, Identity target, Score storedScore, Score expectedScore,
+			boolean logCorrections) {
+		boolean correct = true;
+		
+		boolean needToCheckFetchStatus = false;
+		boolean oldShouldFetch = false;
+		int oldCapacity = 0;
+		
+		// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
+		if(storedScore != null) {
+			oldCapacity = storedScore.getCapacity();
+			
+			if(expectedScore == null) {
+				correct = false;
+				if(logCorrections)
+					Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + storedScore, new RuntimeException());
+				
+				needToCheckFetchStatus = true;
+				oldShouldFetch = shouldFetchIdentity(target);
+				
+				storedScore.deleteWithoutCommit();
+				
+			} else {
+				if(!expectedScore.equals(storedScore)) {
+					correct = false;
+					if(logCorrections)
+						Logger.error(this, "Correcting wrong score: Should have been " + expectedScore + " but was " + storedScore, new RuntimeException());
+					
+					needToCheckFetchStatus = true;
+					oldShouldFetch = shouldFetchIdentity(target);
+					
+					storedScore.setRank(expectedScore.getRank());
+					storedScore.setCapacity(expectedScore.getCapacity());
+					storedScore.setValue(expectedScore.getScore());
 
-						mFetcher.storeAbortFetchCommandWithoutCommit(target);
-					}
+					storedScore.storeWithoutCommit();
 				}
 			}
+		} else {
+			oldCapacity = 0;
+			
+			if(expectedScore != null) {
+				correct = false;
+				if(logCorrections)
+					Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + expectedScore, new RuntimeException());
+				
+				needToCheckFetchStatus = true;
+				oldShouldFetch = shouldFetchIdentity(target);
+				
+				expectedScore.storeWithoutCommit();
+			}
 		}
 		
-		mFullScoreComputationNeeded = false;
-		
-		Logger.debug(this, "Full score computation finished.");
+		if(needToCheckFetchStatus) {
+			// If fetch status changed from false to true, we need to start fetching it
+			// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
+			// cause new identities to be imported from their trust list, capacity > 0 allows this.
+			// If the fetch status changed from true to false, we need to stop fetching it
+			if((!oldShouldFetch || (oldCapacity == 0 && expectedScore != null && expectedScore.getCapacity() > 0)) && shouldFetchIdentity(target) ) {
+				if(!oldShouldFetch)
+					Logger.debug(this, "Fetch status changed from false to true, refetching " + target);
+				else
+					Logger.debug(this, "Capacity changed from 0 to " + expectedScore.getCapacity() + ", refetching" + target);
+
+				target.markForRefetch();
+				target.storeWithoutCommit();
+
+				mFetcher.storeStartFetchCommandWithoutCommit(target);
+			}
+			else if(oldShouldFetch && !shouldFetchIdentity(target)) {
+				Logger.debug(this, "Fetch status changed from true to false, aborting fetch of " + target);
+
+				mFetcher.storeAbortFetchCommandWithoutCommit(target);
+			}
+		}
 		
-		return returnValue;
+		return correct;
 	}
 	
 	private synchronized void createSeedIdentities() {
@@ -947,21 +1693,74 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 			Logger.error(this, "Error during termination.", e);
 		}
 		
+		try {
+			if(mIdentityImporter != null)
+				mIdentityImporter.terminate();
+		}
+		catch(Exception e) {
+			Logger.error(this, "Error during termination.", e);
+		}
+		
+		try {
+			synchronized(this) {
+				if(mScoreComputationExecutor != null)
+					mScoreComputationExecutor.shutdownNow();
+			}
+		}
+		catch(Exception e) {
+			Logger.error(this, "Error during termination.", e);
+		}
+		
+		try {
+			if(mIntegrityVerifier != null)
+				mIntegrityVerifier.terminate();
+		}
+		catch(Exception e) {
+			Logger.error(this, "Error during termination.", e);
+		}
+		
 		
 		try {
 			if(mDB != null) {
 				/* TODO: At 2009-06-15, it does not seem possible to ask db4o for whether a transaction is pending.
 				 * If it becomes possible some day, we should check that here, and log an error if there is an uncommitted transaction. 
 				 * - All transactions should be committed after obtaining the lock() on the database. */
+				mLock.lockWrite();
+				try {
 				synchronized(mDB.lock()) {
+					// Commit the changes which group commit has deferred, they would be rolled back otherwise
+					Persistent.setGroupCommit(mDB, this, 0, 0);
 					Persistent.checkedRollback(mDB, this, null);
+					
+					// The scores must be verified at the next startup if they were not verified at this startup.
+					if(mScoresVerified) {
+						mConfig.set(Configuration.DATABASE_DIGEST_AT_SHUTDOWN, Long.toString(mDatabaseDigest.get()));
+						mConfig.storeAndCommit();
+					}
+					
+					final int freeSpacePercent = getFreeSpacePercent();
+					final int defragmentFreeSpacePercent = mConfig.getInt(Configuration.DEFRAGMENT_FREE_SPACE_PERCENT);
+					final boolean defragment = mDatabaseFile != null && defragmentFreeSpacePercent > 0
+							&& freeSpacePercent >= defragmentFreeSpacePercent;
+					Logger.normal(this, "Free space in the database: " + freeSpacePercent + "%");
+					
+					Persistent.unregisterTransactionListeners(mDB);
 					mDB.close();
+					
+					if(defragment)
+						defragmentDatabase(mDatabaseFile);
+				}
+				} finally {
+					mLock.unlockWrite();
 				}
 			}
 		}
 		catch(Exception e) {
 			Logger.error(this, "Error during termination.", e);
 		}
+		
+		Logger.normal(this, "Lock statistics:\n" + mLock);
+		Logger.normal(this, "Trust cache: " + mTrustCache + "; score cache: " + mScoreCache);
 
 		Logger.debug(this, "WoT plugin terminated.");
 	}
@@ -981,17 +1780,11 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @throws DuplicateIdentityException if there are more than one identity with this id in the database
 	 * @throws UnknownIdentityException if there is no identity with this id in the database
 	 */
-	public synchronized Identity getIdentityByID(String id) throws UnknownIdentityException {
-		final Query query = mDB.query();
-		query.constrain(Identity.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<Identity> result = new Persistent.InitializingObjectSet<Identity>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new UnknownIdentityException(id);
-			default: throw new DuplicateIdentityException(id, result.size());
-		}  
+	public Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Identity identity = mStorage.getIdentityByID(id);
+		if(identity == null)
+			throw new UnknownIdentityException(id);
+		return identity;
 	}
 	
 	/**
@@ -1001,17 +1794,11 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @return The requested OwnIdentity
 	 * @throws UnknownIdentityException if there is now OwnIdentity with that id
 	 */
-	public synchronized OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
-		final Query query = mDB.query();
-		query.constrain(OwnIdentity.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<OwnIdentity> result = new Persistent.InitializingObjectSet<OwnIdentity>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new UnknownIdentityException(id);
-			default: throw new DuplicateIdentityException(id, result.size());
-		}  
+	public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		final OwnIdentity identity = mStorage.getOwnIdentityByID(id);
+		if(identity == null)
+			throw new UnknownIdentityException(id);
+		return identity;
 	}
 
 	/**
@@ -1064,14 +1851,12 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	
 	/**
 	 * Returns all identities that are in the database
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @return An {@link ObjectSet} containing all identities present in the database 
 	 */
 	public ObjectSet<Identity> getAllIdentities() {
-		final Query query = mDB.query();
-		query.constrain(Identity.class);
-		return new Persistent.InitializingObjectSet<Identity>(this, query);
+		return mStorage.getAllIdentities();
 	}
 	
 	public static enum SortOrder {
@@ -1085,7 +1870,7 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	
 	/**
 	 * Get a filtered and sorted list of identities.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list.
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list.
 	 */
 	public ObjectSet<Identity> getAllIdentitiesFilteredAndSorted(OwnIdentity truster, String nickFilter, SortOrder sortInstruction) {
 		Query q = mDB.query();
@@ -1138,20 +1923,17 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	/**
 	 * Returns all non-own identities that are in the database.
 	 * 
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 */
 	public ObjectSet<Identity> getAllNonOwnIdentities() {
-		final Query q = mDB.query();
-		q.constrain(Identity.class);
-		q.constrain(OwnIdentity.class).not();
-		return new Persistent.InitializingObjectSet<Identity>(this, q);
+		return mStorage.getAllNonOwnIdentities();
 	}
 	
 	/**
 	 * Returns all non-own identities that are in the database, sorted descending by their date of modification, i.e. recently
 	 * modified identities will be at the beginning of the list.
 	 * 
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * Used by the IntroductionClient for fetching puzzles from recently modified identities.
 	 */
@@ -1167,14 +1949,12 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	
 	/**
 	 * Returns all own identities that are in the database
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @return An {@link ObjectSet} containing all identities present in the database.
 	 */
 	public ObjectSet<OwnIdentity> getAllOwnIdentities() {
-		final Query q = mDB.query();
-		q.constrain(OwnIdentity.class);
-		return new Persistent.InitializingObjectSet<OwnIdentity>(this, q);
+		return mStorage.getAllOwnIdentities();
 	}
 
 	
@@ -1232,44 +2012,39 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @return The {@link Score} of this Identity in the required trust tree
 	 * @throws NotInTrustTreeException if this identity is not in the required trust tree 
 	 */
-	public synchronized Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTruster").constrain(truster).identity();
-		query.descend("mTrustee").constrain(trustee).identity();
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NotInTrustTreeException(truster, trustee);
-			default: throw new DuplicateScoreException(truster, trustee, result.size());
+	public Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
+		final Object cached = mScoreCache.get(truster, trustee);
+		if(IdentityPairCache.isHit(cached)) {
+			if(IdentityPairCache.isNotFound(cached))
+				throw new NotInTrustTreeException(truster, trustee);
+			return (Score)cached;
 		}
+		
+		final Score score = mStorage.getScore(truster, trustee);
+		mScoreCache.put(truster, trustee, score);
+		if(score == null)
+			throw new NotInTrustTreeException(truster, trustee);
+		return score;
 	}
 
 	/**
 	 * Gets a list of all this Identity's Scores.
-	 * You have to synchronize on this WoT around the call to this function and the processing of the returned list! 
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} around the call to this function and the processing of the returned list! 
 	 * 
 	 * @return An {@link ObjectSet} containing all {@link Score} this Identity has.
 	 */
 	public ObjectSet<Score> getScores(final Identity identity) {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTrustee").constrain(identity).identity();
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+		return mStorage.getReceivedScores(identity);
 	}
 	
 	/**
 	 * Get a list of all scores which the passed own identity has assigned to other identities.
 	 * 
-	 * You have to synchronize on this WoT around the call to this function and the processing of the returned list! 
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} around the call to this function and the processing of the returned list! 
 	 * @return An {@link ObjectSet} containing all {@link Score} this Identity has given.
 	 */
 	public ObjectSet<Score> getGivenScores(final OwnIdentity truster) {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTruster").constrain(truster).identity();
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+		return mStorage.getGivenScores(truster);
 	}
 	
 	/**
@@ -1278,17 +2053,12 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @return the best score this Identity has
 	 * @throws NotInTrustTreeException If the identity has no score in any trusttree.
 	 */
-	public synchronized int getBestScore(final Identity identity) throws NotInTrustTreeException {
-		int bestScore = Integer.MIN_VALUE;
-		final ObjectSet<Score> scores = getScores(identity);
+	public int getBestScore(final Identity identity) throws NotInTrustTreeException {
+		final int bestScore = identity.getBestScore();
 		
-		if(scores.size() == 0)
+		if(bestScore == Identity.NO_SCORE)
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestScore = Math.max(score.getScore(), bestScore);
-		
 		return bestScore;
 	}
 	
@@ -1297,27 +2067,18 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @throws NotInTrustTreeException If the identity is not in any trust tree. Can be interpreted as capacity 0.
 	 */
 	public int getBestCapacity(final Identity identity) throws NotInTrustTreeException {
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
-		
-		if(scores.size() == 0)
+		if(identity.getBestScore() == Identity.NO_SCORE)
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-		
-		return bestCapacity;
+		return identity.getBestCapacity();
 	}
 	
 	/**
 	 * Get all scores in the database.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 */
 	public ObjectSet<Score> getAllScores() {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+		return mStorage.getAllScores();
 	}
 	
 	/**
@@ -1328,28 +2089,23 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		if(identity instanceof OwnIdentity)
 			return true;
 		
-		int bestScore = Integer.MIN_VALUE;
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
-			
-		if(scores.size() == 0)
-			return false;
-			
-		// TODO: Cache the best score of an identity as a member variable.
-		for(Score score : scores) { 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-			bestScore  = Math.max(score.getScore(), bestScore);
-			
-			if(bestCapacity > 0 || bestScore >= 0)
-				return true;
-		}
-			
-		return false;
+		return identity.shouldFetch();
+	}
+	
+	/**
+	 * Gets all identities for which {@link #shouldFetchIdentity(Identity)} returns true.
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
+	 */
+	public ObjectSet<Identity> getAllIdentitiesToFetch() {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		query.descend("mShouldFetch").constrain(true);
+		return new Persistent.InitializingObjectSet<Identity>(this, query);
 	}
 	
 	/**
 	 * Gets Identities matching a specified score criteria.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @param truster The owner of the trust tree, null if you want the trusted identities of all owners.
 	 * @param select Score criteria, can be > zero, zero or negative. Greater than zero returns all identities with score >= 0, zero with score equal to 0
@@ -1383,36 +2139,34 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * @return The trust given to the trustee by the specified truster
 	 * @throws NotTrustedException if the truster doesn't trust the trustee
 	 */
-	public synchronized Trust getTrust(final Identity truster, final Identity trustee) throws NotTrustedException, DuplicateTrustException {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTruster").constrain(truster).identity();
-		query.descend("mTrustee").constrain(trustee).identity();
-		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NotTrustedException(truster, trustee);
-			default: throw new DuplicateTrustException(truster, trustee, result.size());
+	public Trust getTrust(final Identity truster, final Identity trustee) throws NotTrustedException, DuplicateTrustException {
+		final Object cached = mTrustCache.get(truster, trustee);
+		if(IdentityPairCache.isHit(cached)) {
+			if(IdentityPairCache.isNotFound(cached))
+				throw new NotTrustedException(truster, trustee);
+			return (Trust)cached;
 		}
+		
+		final Trust trust = mStorage.getTrust(truster, trustee);
+		mTrustCache.put(truster, trustee, trust);
+		if(trust == null)
+			throw new NotTrustedException(truster, trustee);
+		return trust;
 	}
 
 	/**
 	 * Gets all trusts given by the given truster.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has given.
 	 */
 	public ObjectSet<Trust> getGivenTrusts(final Identity truster) {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTruster").constrain(truster).identity();
-		return new Persistent.InitializingObjectSet<Trust>(this, query);
+		return mStorage.getGivenTrusts(truster);
 	}
 	
 	/**
 	 * Gets given trust values of an identity matching a specified trust value criteria.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @param truster The identity which given the trust values.
 	 * @param select Trust value criteria, can be > zero, zero or negative. Greater than zero returns all trust values >= 0, zero returns trust values equal to 0.
@@ -1437,7 +2191,7 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	}
 	/**
 	 * Gets all trusts given by the given truster in a trust list older than the given edition number.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 */
 	protected ObjectSet<Trust> getGivenTrustsOlderThan(final Identity truster, final long edition) {
 		final Query q = mDB.query();
@@ -1449,20 +2203,17 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 
 	/**
 	 * Gets all trusts received by the given trustee.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has received.
 	 */
 	public ObjectSet<Trust> getReceivedTrusts(final Identity trustee) {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTrustee").constrain(trustee).identity();
-		return new Persistent.InitializingObjectSet<Trust>(this, query);
+		return mStorage.getReceivedTrusts(trustee);
 	}
 	
 	/**
 	 * Gets received trust values of an identity matching a specified trust value criteria.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @param trustee The identity which has received the trust values.
 	 * @param select Trust value criteria, can be > zero, zero or negative. Greater than zero returns all trust values >= 0, zero returns trust values equal to 0.
@@ -1488,14 +2239,12 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	
 	/**
 	 * Gets all trusts.
-	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 * You have to synchronize on this WoT or lock the read lock of {@link #getLock()} when calling the function and processing the returned list!
 	 * 
 	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has received.
 	 */
 	public ObjectSet<Trust> getAllTrusts() {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		return new Persistent.InitializingObjectSet<Trust>(this, query); 
+		return mStorage.getAllTrusts();
 	}
 	
 	/**
@@ -1549,6 +2298,8 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	synchronized void setTrust(OwnIdentity truster, Identity trustee, byte newValue, String newComment)
 		throws InvalidParameterException {
 		
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try {
 				setTrustWithoutCommit(truster, trustee, newValue, newComment);
@@ -1558,6 +2309,9 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
 		}
+		} finally {
+			mLock.unlockWrite();
+		}
 	}
 	
 	/**
@@ -1600,6 +2354,101 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		updateScoresWithoutCommit(trust, null);
 	}
 
+	/**
+	 * Replaces the trust values which the truster has given with the given trust list. To be used for importing trust lists instead of
+	 * calling {@link #setTrustWithoutCommit(Identity, Identity, byte, String)} per trust value and {@link #removeTrustWithoutCommit(Trust)}
+	 * per removed one: The new trust list is compared with the stored one in memory and the scores are updated for all changed trust values
+	 * together instead of once per trust value.
+	 * 
+	 * This function does neither lock the database nor commit the transaction. You have to surround it with
+	 * synchronized(mDB.lock()) {
+	 *     try { ... importTrustListWithoutCommit(...); mDB.commit(); }
+	 *     catch(RuntimeException e) { System.gc(); mDB.rollback(); throw e; }
+	 * }
+	 * 
+	 * @param truster The identity whose trust list is imported. Its edition must already be the one of the trust list.
+	 * @param newTrustList The new trust values of the truster, they must not be stored yet. If there are multiple trust values for the same
+	 * 	trustee, the last one is used.
+	 */
+	protected synchronized void importTrustListWithoutCommit(final Identity truster, final List<Trust> newTrustList) {
+		final HashMap<String, Trust> oldTrusts = new HashMap<String, Trust>();
+		for(Trust trust : getGivenTrusts(truster))
+			oldTrusts.put(trust.getTrustee().getID(), trust);
+		
+		final HashMap<String, Trust> newTrusts = new HashMap<String, Trust>(newTrustList.size() * 2);
+		for(Trust trust : newTrustList) {
+			trust.initializeTransient(this);
+			
+			if(trust.getTruster() != truster)
+				throw new IllegalArgumentException("The trust list contains a trust value of another truster: " + trust);
+			
+			newTrusts.put(trust.getTrustee().getID(), trust);
+		}
+		
+		// The trust values which were created or changed without becoming <= 0, they are handled by the incremental computation.
+		final LinkedList<Trust> changedTrusts = new LinkedList<Trust>();
+		// The trustees of the trust values which were removed or changed to <= 0, they are handled by the partial computation.
+		final LinkedList<Identity> dirtyTrustees = new LinkedList<Identity>();
+		
+		try {
+			for(Trust newTrust : newTrusts.values()) {
+				final Trust trust = oldTrusts.remove(newTrust.getTrustee().getID());
+				
+				if(trust == null) {
+					newTrust.storeWithoutCommit();
+					changedTrusts.add(newTrust);
+					continue;
+				}
+				
+				final byte oldValue = trust.getValue();
+				trust.trusterEditionUpdated();
+				trust.setComment(newTrust.getComment());
+				trust.setValue(newTrust.getValue());
+				trust.storeWithoutCommit();
+				
+				if(oldValue == trust.getValue())
+					continue;
+				
+				if(oldValue > 0 && trust.getValue() <= 0)
+					dirtyTrustees.add(trust.getTrustee());
+				else
+					changedTrusts.add(trust);
+			}
+		} catch(InvalidParameterException e) {
+			// The values were validated by the constructor of the new Trust already.
+			throw new RuntimeException(e);
+		}
+		
+		for(Trust trust : oldTrusts.values()) {
+			trust.deleteWithoutCommit();
+			dirtyTrustees.add(trust.getTrustee());
+		}
+		
+		if(!newTrusts.isEmpty()) {
+			truster.updated();
+			truster.storeWithoutCommit();
+		}
+		
+		Logger.debug(this, "Imported trust list of " + truster + ": " + changedTrusts.size() + " trust values created or changed, "
+				+ dirtyTrustees.size() + " removed or distrusted, now updating Scores.");
+		
+		// The partial computation must be done first: The incremental computation cannot remove ranks which were inherited via the removed
+		// trust values, see updateScoresIncrementallyWithoutCommit().
+		if(!mFullScoreComputationNeeded && !dirtyTrustees.isEmpty())
+			updateScoresOfDirtyRegionWithoutCommit(truster, dirtyTrustees);
+		
+		if(!mFullScoreComputationNeeded && !changedTrusts.isEmpty()) {
+			++mIncrementalScoreComputationCount;
+			updateScoresIncrementallyWithoutCommit(truster, changedTrusts);
+		}
+		
+		if(mFullScoreComputationNeeded && !mTrustListImportInProgress) {
+			++mFullScoreComputationCount;
+			computeAllScoresWithoutCommit();
+			assert(computeAllScoresWithoutCommit()); // It is stable
+		}
+	}
+
 	/**
 	 * Initializes this OwnIdentity's trust tree without commiting the transaction. 
 	 * Meaning : It creates a Score object for this OwnIdentity in its own trust so it can give trust to other Identities. 
@@ -1630,27 +2479,38 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * Computes the trustee's Score value according to the trusts it has received and the capacity of its trusters in the specified
 	 * trust tree.
 	 * 
+	 * The ranks of the trusters are read from the given table, the capacities are computed from them. Only the ranks which are not in the
+	 * table yet are loaded from the database, see {@link #getStoredRank(OwnIdentity, int, OrdinalMap)}.
+	 * 
 	 * @param truster The OwnIdentity that owns the trust tree
 	 * @param trustee The identity for which the score shall be computed.
+	 * @param ranks The ranks of the identities in the trust tree of the truster.
 	 * @return The new Score of the identity. Integer.MAX_VALUE if the trustee is equal to the truster.
 	 * @throws DuplicateScoreException if there already exist more than one {@link Score} objects for the trustee (should never happen)
 	 */
-	private synchronized int computeScoreValue(OwnIdentity truster, Identity trustee) throws DuplicateScoreException {
+	private synchronized int computeScoreValue(OwnIdentity truster, Identity trustee, OrdinalMap ranks) throws DuplicateScoreException {
 		if(trustee == truster)
 			return Integer.MAX_VALUE;
 		
 		int value = 0;
 		
-		try {
-			return getTrust(truster, trustee).getValue();
-		}
-		catch(NotTrustedException e) { }
+		final int trusteeOrdinal = mTrustGraph.getOrdinal(trustee);
+		if(trusteeOrdinal == TrustGraph.NO_ORDINAL) // It has not received any trust values.
+			return value;
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
-			try {
-				final Score trusterScore = getScore(truster, trust.getTruster());
-				value += ( trust.getValue() * trusterScore.getCapacity() ) / 100;
-			} catch (NotInTrustTreeException e) {}
+		final int treeOwnerOrdinal = mTrustGraph.getOrdinal(truster);
+		final int treeOwnerTrust = mTrustGraph.getTrustValue(treeOwnerOrdinal, trusteeOrdinal);
+		if(treeOwnerTrust != TrustGraph.NO_TRUST)
+			return treeOwnerTrust;
+		
+		final int[] trusters = mTrustGraph.getTrusters(trusteeOrdinal);
+		final byte[] trustValues = mTrustGraph.getTrusterValues(trusteeOrdinal);
+		final int trusterCount = mTrustGraph.getTrusterCount(trusteeOrdinal);
+		
+		for(int i = 0; i < trusterCount; ++i) {
+			// Identities which are not in the trust tree have a rank of -1 and therefore a capacity of 0.
+			final int capacity = computeCapacity(treeOwnerOrdinal, trusters[i], getStoredRank(truster, trusters[i], ranks));
+			value += ( trustValues[i] * capacity ) / 100;
 		}
 		return value;
 	}
@@ -1674,42 +2534,52 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	 * 
 	 * Notice that 0 is included in infinite rank to prevent identities which have only solved introduction puzzles from having a capacity.
 	 * 
+	 * The ranks of the trusters are read from the given table like in {@link #computeScoreValue(OwnIdentity, Identity, OrdinalMap)}.
+	 * 
 	 * @param truster The OwnIdentity that owns the trust tree
+	 * @param ranks The ranks of the identities in the trust tree of the truster.
 	 * @return The new Rank if this Identity
 	 * @throws DuplicateScoreException if there already exist more than one {@link Score} objects for the trustee (should never happen)
 	 */
-	private synchronized int computeRank(OwnIdentity truster, Identity trustee) throws DuplicateScoreException {
+	private synchronized int computeRank(OwnIdentity truster, Identity trustee, OrdinalMap ranks) throws DuplicateScoreException {
 		if(trustee == truster)
 			return 0;
 		
 		int rank = -1;
 		
-		try {
-			Trust treeOwnerTrust = getTrust(truster, trustee);
-			
-			if(treeOwnerTrust.getValue() > 0)
+		final int trusteeOrdinal = mTrustGraph.getOrdinal(trustee);
+		if(trusteeOrdinal == TrustGraph.NO_ORDINAL) // It has not received any trust values.
+			return rank;
+		
+		final int treeOwnerOrdinal = mTrustGraph.getOrdinal(truster);
+		final int treeOwnerTrust = mTrustGraph.getTrustValue(treeOwnerOrdinal, trusteeOrdinal);
+		if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+			if(treeOwnerTrust > 0)
 				return 1;
 			else
 				return Integer.MAX_VALUE;
-		} catch(NotTrustedException e) { }
+		}
+		
+		final int[] trusters = mTrustGraph.getTrusters(trusteeOrdinal);
+		final byte[] trustValues = mTrustGraph.getTrusterValues(trusteeOrdinal);
+		final int trusterCount = mTrustGraph.getTrusterCount(trusteeOrdinal);
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
-			try {
-				Score score = getScore(truster, trust.getTruster());
-
-				if(score.getCapacity() != 0) { // If the truster has no capacity, he can't give his rank
-					// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
-					if(trust.getValue() > 0 ) {
-						// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
-						if(rank == -1 || score.getRank() < rank)  
-							rank = score.getRank();						
-					} else {
-						// If the trustee has no rank yet we give him an infinite rank. because he is distrusted by the truster.
-						if(rank == -1)
-							rank = Integer.MAX_VALUE;
-					}
+		for(int i = 0; i < trusterCount; ++i) {
+			// Identities which are not in the trust tree have a rank of -1 and therefore a capacity of 0.
+			final int trusterRank = getStoredRank(truster, trusters[i], ranks);
+
+			if(computeCapacity(treeOwnerOrdinal, trusters[i], trusterRank) != 0) { // If the truster has no capacity, he can't give his rank
+				// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
+				if(trustValues[i] > 0 ) {
+					// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
+					if(rank == -1 || trusterRank < rank)  
+						rank = trusterRank;						
+				} else {
+					// If the trustee has no rank yet we give him an infinite rank. because he is distrusted by the truster.
+					if(rank == -1)
+						rank = Integer.MAX_VALUE;
 				}
-			} catch (NotInTrustTreeException e) {}
+			}
 		}
 		
 		if(rank == -1)
@@ -1736,6 +2606,7 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		}
 		
 		mTrustListImportInProgress = true;
+		mTrustListImportDirtyIdentities = 0;
 		assert(!mFullScoreComputationNeeded);
 		assert(computeAllScoresWithoutCommit()); // The database is intact before the import
 	}
@@ -1767,6 +2638,7 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		}
 		
 		if(mFullScoreComputationNeeded) {
+			++mFullScoreComputationCount;
 			computeAllScoresWithoutCommit();
 			assert(!mFullScoreComputationNeeded); // It properly clears the flag
 			assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit() is stable
@@ -1802,129 +2674,536 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		if(trustWasModified && oldTrust.getTrustee() != newTrust.getTrustee())
 			throw new IllegalArgumentException("oldTrust has different trustee, oldTrust:" + oldTrust + "; newTrust: " + newTrust);
 
-		if(!mFullScoreComputationNeeded && (trustWasCreated || trustWasModified)) {
-			for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+		// If a positive trust value was removed or changed to <= 0, the identities which have inherited their rank via it might get a worse rank.
+		// This cannot be done by the incremental computation below, see the comment about circles there. So we use the partial computation.
+		final boolean trustWasDistrusted = trustWasModified && oldTrust.getValue() > 0 && newTrust.getValue() <= 0;
+		
+		if(!mFullScoreComputationNeeded && (trustWasDeleted || trustWasDistrusted)) {
+			final Trust trust = trustWasDeleted ? oldTrust : newTrust;
+			updateScoresOfDirtyRegionWithoutCommit(trust.getTruster(), Collections.singletonList(trust.getTrustee()));
+		}
+		else if(!mFullScoreComputationNeeded && (trustWasCreated || trustWasModified)) {
+			++mIncrementalScoreComputationCount;
+			
+			// We cannot iteratively REMOVE an inherited rank, see updateScoresIncrementallyWithoutCommit().
+			assert(!trustWasDistrusted);
+			
+			final LinkedList<Trust> changedTrusts = new LinkedList<Trust>();
+			changedTrusts.add(newTrust);
+			updateScoresIncrementallyWithoutCommit(newTrust.getTruster(), changedTrusts);
+		}
+		
+		// I've disabled this assert because it makes debugging VERY slow. Instead, finishTrustListImport now does assert(computeAllScores...).
+		// assert(mFullScoreComputationNeeded || (!mFullScoreComputationNeeded && computeAllScoresWithoutCommit()));
+		
+		if(mFullScoreComputationNeeded && !mTrustListImportInProgress) {
+			// TODO: Optimization: This uses very much CPU and memory. We could optimize computeAllScores to NOT keep all objects in memory etc.
+			++mFullScoreComputationCount;
+			computeAllScoresWithoutCommit();
+			assert(computeAllScoresWithoutCommit()); // It is stable
+		}
+	}
+
+
+	/**
+	 * The partial part of {@link #updateScoresWithoutCommit(Trust, Trust)}: Calls {@link #computeScoresOfDirtyRegionWithoutCommit} and sets
+	 * {@link #mFullScoreComputationNeeded} if the dirty region is too large.
+	 * 
+	 * @param trustees The trustees of the trust values of the truster which were removed or changed to a value <= 0.
+	 */
+	private synchronized void updateScoresOfDirtyRegionWithoutCommit(final Identity truster, final Collection<Identity> trustees) {
+		// The full computation computes the whole trust tree of each tree owner so we compare with the sum of the sizes of all trust trees.
+		final long trustTreeSizes = (long)mTrustGraph.size() * getAllOwnIdentities().size();
+		int maxDirtyIdentities = (int)(trustTreeSizes * mConfig.getInt(Configuration.PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT) / 100);
+		// The partial computations of a single trust list import shall not need more time than a full computation at its end.
+		if(mTrustListImportInProgress)
+			maxDirtyIdentities -= mTrustListImportDirtyIdentities;
+		
+		final int dirtyIdentities = computeScoresOfDirtyRegionWithoutCommit(truster, trustees, maxDirtyIdentities);
+		
+		if(dirtyIdentities >= 0) {
+			++mPartialScoreComputationCount;
+			mPartialScoreComputationDirtyIdentities += dirtyIdentities;
+			if(mTrustListImportInProgress)
+				mTrustListImportDirtyIdentities += dirtyIdentities;
+		} else {
+			Logger.debug(this, "Dirty region of the trust values of " + truster + " is too large, a full score computation is needed.");
+			mFullScoreComputationNeeded = true;
+		}
+	}
+	
+	/**
+	 * The incremental part of {@link #updateScoresWithoutCommit(Trust, Trust)}: Updates the scores of the trustees of the given trust values,
+	 * which were created or changed without becoming <= 0, and propagates the changes to their trustees.
+	 * Sets {@link #mFullScoreComputationNeeded} if an identity lost its rank or capacity, this cannot be handled incrementally.
+	 * 
+	 * @param truster The truster of all given trust values.
+	 */
+	private synchronized void updateScoresIncrementallyWithoutCommit(final Identity truster, final List<Trust> changedTrusts) {
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			try {
+				// Throws to abort the update of the trustee's score: If the truster has no rank or capacity in the tree owner's view then we don't need to update the trustee's score.
+				if(getScore(treeOwner, truster).getCapacity() == 0)
+					continue;
+			} catch(NotInTrustTreeException e) {
+				continue;
+			}
+			
+			// We cannot iteratively REMOVE an inherited rank from the trustees because we don't know whether there is a circle in the trust values
+			// which would make the current identity get its old rank back via the circle: computeRank searches the trusters of an identity for the best
+			// rank, if we remove the rank from an identity, all its trustees will have a better rank and if one of them trusts the original identity
+			// then this function would run into an infinite loop. Decreasing or incrementing an existing rank is possible with this function because
+			// the rank received from the trustees will always be higher (that is exactly 1 more) than this identities rank.
+			// Therefore, the removal of an inherited rank is handled by computeScoresOfDirtyRegionWithoutCommit().
+			final LinkedList<Trust> unprocessedEdges = new LinkedList<Trust>(changedTrusts);
+			
+			// The ranks of the identities in the tree owner's trust tree, loaded from the database on demand and updated when a rank is
+			// computed, so the trusters of each trustee are not looked up in the database again for each of its received trust values.
+			final OrdinalMap ranks = new OrdinalMap();
+
+			while(!unprocessedEdges.isEmpty()) {
+				final Trust trust = unprocessedEdges.removeFirst();
+				final Identity trustee = trust.getTrustee();
+				
+				if(trustee == treeOwner)
+					continue;
+
+				Score trusteeScore;
+
 				try {
-					// Throws to abort the update of the trustee's score: If the truster has no rank or capacity in the tree owner's view then we don't need to update the trustee's score.
-					if(getScore(treeOwner, newTrust.getTruster()).getCapacity() == 0)
-						continue;
+					trusteeScore = getScore(treeOwner, trustee);
 				} catch(NotInTrustTreeException e) {
-					continue;
+					trusteeScore = new Score(treeOwner, trustee, 0, -1, 0);
+					trusteeScore.initializeTransient(this);
+				}
+
+				final Score oldScore = trusteeScore.clone();
+				boolean oldShouldFetch = shouldFetchIdentity(trustee);
+				
+				trusteeScore.setValue(computeScoreValue(treeOwner, trustee, ranks));
+				trusteeScore.setRank(computeRank(treeOwner, trustee, ranks));
+				trusteeScore.setCapacity(computeCapacity(treeOwner, trustee, trusteeScore.getRank()));
+				
+				final int trusteeOrdinal = mTrustGraph.getOrdinal(trustee);
+				if(trusteeOrdinal != TrustGraph.NO_ORDINAL)
+					ranks.put(trusteeOrdinal, trusteeScore.getRank());
+
+				// Normally we couldn't detect the following two cases due to circular trust values. However, if an own identity assigns a trust value,
+				// the rank and capacity are always computed based on the trust value of the own identity so we must also check this here:
+
+				if((oldScore.getRank() >= 0 && oldScore.getRank() < Integer.MAX_VALUE) // It had an inheritable rank
+						&& (trusteeScore.getRank() == -1 || trusteeScore.getRank() == Integer.MAX_VALUE)) { // It has no inheritable rank anymore
+					mFullScoreComputationNeeded = true;
+					break;
 				}
 				
-				// We cannot iteratively REMOVE an inherited rank from the trustees because we don't know whether there is a circle in the trust values
-				// which would make the current identity get its old rank back via the circle: computeRank searches the trusters of an identity for the best
-				// rank, if we remove the rank from an identity, all its trustees will have a better rank and if one of them trusts the original identity
-				// then this function would run into an infinite loop. Decreasing or incrementing an existing rank is possible with this function because
-				// the rank received from the trustees will always be higher (that is exactly 1 more) than this identities rank.
-				if(trustWasModified && oldTrust.getValue() > 0 && newTrust.getValue() <= 0) {
+				if(oldScore.getCapacity() > 0 && trusteeScore.getCapacity() == 0) {
 					mFullScoreComputationNeeded = true;
 					break;
 				}
 				
-				final LinkedList<Trust> unprocessedEdges = new LinkedList<Trust>();
-				unprocessedEdges.add(newTrust);
-
-				while(!unprocessedEdges.isEmpty()) {
-					final Trust trust = unprocessedEdges.removeFirst();
-					final Identity trustee = trust.getTrustee();
-					
-					if(trustee == treeOwner)
-						continue;
-
-					Score trusteeScore;
+				// Identities should not get into the queue if they have no rank, see the large if() about 20 lines below
+				assert(trusteeScore.getRank() >= 0); 
+				
+				if(trusteeScore.getRank() >= 0)
+					trusteeScore.storeWithoutCommit();
+				
+				// If fetch status changed from false to true, we need to start fetching it
+				// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
+				// cause new identities to be imported from their trust list, capacity > 0 allows this.
+				// If the fetch status changed from true to false, we need to stop fetching it
+				if((!oldShouldFetch || (oldScore.getCapacity()== 0 && trusteeScore.getCapacity() > 0)) && shouldFetchIdentity(trustee)) { 
+					if(!oldShouldFetch)
+						Logger.debug(this, "Fetch status changed from false to true, refetching " + trustee);
+					else
+						Logger.debug(this, "Capacity changed from 0 to " + trusteeScore.getCapacity() + ", refetching" + trustee);
+
+					trustee.markForRefetch();
+					trustee.storeWithoutCommit();
+
+					mFetcher.storeStartFetchCommandWithoutCommit(trustee);
+				}
+				else if(oldShouldFetch && !shouldFetchIdentity(trustee)) {
+					Logger.debug(this, "Fetch status changed from true to false, aborting fetch of " + trustee);
 
-					try {
-						trusteeScore = getScore(treeOwner, trustee);
-					} catch(NotInTrustTreeException e) {
-						trusteeScore = new Score(treeOwner, trustee, 0, -1, 0);
-						trusteeScore.initializeTransient(this);
+					mFetcher.storeAbortFetchCommandWithoutCommit(trustee);
+				}
+				
+				// If the rank or capacity changed then the trustees might be affected because the could have inherited theirs
+				if(oldScore.getRank() != trusteeScore.getRank() || oldScore.getCapacity() != trusteeScore.getCapacity()) {
+					// If this identity has no capacity or no rank then it cannot affect its trustees:
+					// (- If it had none and it has none now then there is none which can be inherited, this is obvious)
+					// - If it had one before and it was removed, this algorithm will have aborted already because a full computation is needed
+					if(trusteeScore.getCapacity() > 0 || (trusteeScore.getRank() >= 0 && trusteeScore.getRank() < Integer.MAX_VALUE)) {
+						// We need to update the trustees of trustee
+						for(Trust givenTrust : getGivenTrusts(trustee)) {
+							unprocessedEdges.add(givenTrust);
+						}
 					}
+				}
+			}
+			
+			if(mFullScoreComputationNeeded)
+				break;
+		}
+	}
 
-					final Score oldScore = trusteeScore.clone();
-					boolean oldShouldFetch = shouldFetchIdentity(trustee);
+	/**
+	 * Recomputes the scores in the trust trees of all own identities after positive trust values from the truster to the trustees were removed
+	 * or changed to a value <= 0. This is the case which the incremental computation of {@link #updateScoresWithoutCommit(Trust, Trust)} cannot handle.
+	 * 
+	 * For each tree owner, the "dirty region" is determined first: It consists of the trustees and of all identities whose stored rank might have
+	 * been inherited from an identity in the dirty region. Those are the trustees which have received a positive trust value and have a rank
+	 * of exactly one more than their truster, and the trustees which have received a trust value <= 0 and have an infinite rank.
+	 * The ranks of all other identities cannot change: Removing a trust value can only make ranks worse and their rank is inherited from an
+	 * identity outside of the dirty region.
+	 * The ranks of the dirty region are then computed by a shortest path search which is seeded with the ranks of the trusters outside of the
+	 * region. Finally, the scores of the dirty region and of its trustees are updated because the capacities of the dirty region might have changed.
+	 * 
+	 * The {@link TrustGraph} must already contain the new trust values or not contain them anymore if they were deleted.
+	 * 
+	 * This function does neither lock the database nor commit the transaction.
+	 * 
+	 * @param maxDirtyIdentities If the sum of the sizes of the dirty regions of all tree owners would exceed this, the computation is aborted.
+	 * @return The sum of the sizes of the dirty regions or -1 if the computation was aborted and a full computation is needed. If -1 is returned,
+	 * 	the stored scores of some tree owners might have been updated already. This is no problem because the full computation will fix all others.
+	 */
+	private synchronized int computeScoresOfDirtyRegionWithoutCommit(final Identity truster, final Collection<Identity> changedTrustees,
+			final int maxDirtyIdentities) {
+		
+		final TrustGraph graph = mTrustGraph;
+		final int trusterOrdinal = graph.getOrdinal(truster);
+		final int[] changedTrusteeOrdinals = new int[changedTrustees.size()];
+		int changedTrusteeCount = 0;
+		
+		for(Identity trustee : changedTrustees) {
+			final int trusteeOrdinal = graph.getOrdinal(trustee);
+			
+			if(trusterOrdinal == TrustGraph.NO_ORDINAL || trusteeOrdinal == TrustGraph.NO_ORDINAL) {
+				Logger.error(this, "The trust graph does not contain the truster or trustee: " + truster + "; " + trustee);
+				return -1;
+			}
+			
+			changedTrusteeOrdinals[changedTrusteeCount++] = trusteeOrdinal;
+		}
+		
+		int totalDirtyIdentities = 0;
+		
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			final int treeOwnerOrdinal = graph.getOrdinal(treeOwner);
+			if(treeOwnerOrdinal == TrustGraph.NO_ORDINAL) // It has never given a trust value so its trust tree only contains itself.
+				continue;
+			
+			// The tables below only contain the identities which the computation touches so their size does not depend on the size of the graph.
+			
+			// The rank of each identity in the tree owner's trust tree, loaded from the database on demand. Contains the new ranks of the dirty region
+			// after they have been computed.
+			final OrdinalMap ranks = new OrdinalMap();
+			
+			// If the truster has no capacity, the trust value had no effect on the tree owner's trust tree.
+			final int trusterRank = getStoredRank(treeOwner, trusterOrdinal, ranks);
+			if(trusterRank == -1 || trusterRank == Integer.MAX_VALUE)
+				continue;
+			
+			// Determine the dirty region by a breadth first search starting at the trustees.
+			final OrdinalMap dirtyRegion = new OrdinalMap();
+			
+			for(int i = 0; i < changedTrusteeCount; ++i) {
+				final int trusteeOrdinal = changedTrusteeOrdinals[i];
+				
+				// The rank and score of the tree owner itself never change.
+				if(dirtyRegion.contains(trusteeOrdinal) || trusteeOrdinal == treeOwnerOrdinal)
+					continue;
+				
+				if(totalDirtyIdentities + dirtyRegion.size() + 1 > maxDirtyIdentities)
+					return -1;
+				
+				dirtyRegion.put(trusteeOrdinal, 0);
+			}
+			
+			for(int i = 0; i < dirtyRegion.size(); ++i) {
+				final int identity = dirtyRegion.getOrdinal(i);
+				final int rank = getStoredRank(treeOwner, identity, ranks);
+				
+				if(rank == -1 || rank == Integer.MAX_VALUE) // It has no capacity so it cannot have given a rank to its trustees.
+					continue;
+				
+				final int[] trustees = graph.getTrustees(identity);
+				final byte[] trustValues = graph.getTrusteeValues(identity);
+				final int trusteeCount = graph.getTrusteeCount(identity);
+				
+				for(int j = 0; j < trusteeCount; ++j) {
+					final int dependent = trustees[j];
 					
-					trusteeScore.setValue(computeScoreValue(treeOwner, trustee));
-					trusteeScore.setRank(computeRank(treeOwner, trustee));
-					trusteeScore.setCapacity(computeCapacity(treeOwner, trustee, trusteeScore.getRank()));
-
-					// Normally we couldn't detect the following two cases due to circular trust values. However, if an own identity assigns a trust value,
-					// the rank and capacity are always computed based on the trust value of the own identity so we must also check this here:
-
-					if((oldScore.getRank() >= 0 && oldScore.getRank() < Integer.MAX_VALUE) // It had an inheritable rank
-							&& (trusteeScore.getRank() == -1 || trusteeScore.getRank() == Integer.MAX_VALUE)) { // It has no inheritable rank anymore
-						mFullScoreComputationNeeded = true;
-						break;
-					}
+					// If the tree owner has assigned a trust value, it decides the rank alone.
+					if(dirtyRegion.contains(dependent) || dependent == treeOwnerOrdinal
+							|| graph.getTrustValue(treeOwnerOrdinal, dependent) != TrustGraph.NO_TRUST)
+						continue;
+					
+					final int dependentRank = getStoredRank(treeOwner, dependent, ranks);
 					
-					if(oldScore.getCapacity() > 0 && trusteeScore.getCapacity() == 0) {
-						mFullScoreComputationNeeded = true;
-						break;
+					if((trustValues[j] > 0 && dependentRank == rank + 1) || (trustValues[j] <= 0 && dependentRank == Integer.MAX_VALUE)) {
+						if(totalDirtyIdentities + dirtyRegion.size() + 1 > maxDirtyIdentities)
+							return -1;
+						
+						dirtyRegion.put(dependent, 0);
 					}
+				}
+			}
+			
+			final int dirtyCount = dirtyRegion.size();
+			totalDirtyIdentities += dirtyCount;
+			
+			// Compute the new ranks of the dirty region. The search is seeded with the ranks which the dirty identities receive from the tree owner
+			// or from trusters outside of the region. The queue contains the pairs of (rank, ordinal), packed into a long so that they are sorted by rank.
+			final OrdinalMap distrusted = new OrdinalMap();
+			final PriorityQueue<Long> unprocessed = new PriorityQueue<Long>();
+			
+			for(int i = 0; i < dirtyCount; ++i)
+				ranks.put(dirtyRegion.getOrdinal(i), -1);
+			
+			for(int i = 0; i < dirtyCount; ++i) {
+				final int identity = dirtyRegion.getOrdinal(i);
+				final int treeOwnerTrust = graph.getTrustValue(treeOwnerOrdinal, identity);
+				
+				if(treeOwnerTrust != TrustGraph.NO_TRUST) {
+					if(treeOwnerTrust > 0)
+						unprocessed.add(((long)1 << 32) | identity);
+					else
+						distrusted.put(identity, 0);
+					continue;
+				}
+				
+				final int[] trusters = graph.getTrusters(identity);
+				final byte[] trustValues = graph.getTrusterValues(identity);
+				final int trusterCount = graph.getTrusterCount(identity);
+				
+				for(int j = 0; j < trusterCount; ++j) {
+					if(dirtyRegion.contains(trusters[j]))
+						continue;
 					
-					// Identities should not get into the queue if they have no rank, see the large if() about 20 lines below
-					assert(trusteeScore.getRank() >= 0); 
+					final int rank = getStoredRank(treeOwner, trusters[j], ranks);
+					if(rank == -1 || rank == Integer.MAX_VALUE)
+						continue;
 					
-					if(trusteeScore.getRank() >= 0)
-						mDB.store(trusteeScore);
+					if(trustValues[j] > 0)
+						unprocessed.add(((long)(rank + 1) << 32) | identity);
+					else
+						distrusted.put(identity, 0);
+				}
+			}
+			
+			while(!unprocessed.isEmpty()) {
+				final long entry = unprocessed.poll();
+				final int rank = (int)(entry >>> 32);
+				final int identity = (int)entry;
+				
+				if(ranks.get(identity) != -1) // It has already received a better rank.
+					continue;
+				
+				ranks.put(identity, rank);
+				
+				final int[] trustees = graph.getTrustees(identity);
+				final byte[] trustValues = graph.getTrusteeValues(identity);
+				final int trusteeCount = graph.getTrusteeCount(identity);
+				
+				for(int j = 0; j < trusteeCount; ++j) {
+					final int trusteeOfIdentity = trustees[j];
 					
-					// If fetch status changed from false to true, we need to start fetching it
-					// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
-					// cause new identities to be imported from their trust list, capacity > 0 allows this.
-					// If the fetch status changed from true to false, we need to stop fetching it
-					if((!oldShouldFetch || (oldScore.getCapacity()== 0 && trusteeScore.getCapacity() > 0)) && shouldFetchIdentity(trustee)) { 
-						if(!oldShouldFetch)
-							Logger.debug(this, "Fetch status changed from false to true, refetching " + trustee);
-						else
-							Logger.debug(this, "Capacity changed from 0 to " + trusteeScore.getCapacity() + ", refetching" + trustee);
-
-						trustee.markForRefetch();
-						trustee.storeWithoutCommit();
-
-						mFetcher.storeStartFetchCommandWithoutCommit(trustee);
-					}
-					else if(oldShouldFetch && !shouldFetchIdentity(trustee)) {
-						Logger.debug(this, "Fetch status changed from true to false, aborting fetch of " + trustee);
-
-						mFetcher.storeAbortFetchCommandWithoutCommit(trustee);
-					}
+					if(!dirtyRegion.contains(trusteeOfIdentity) || ranks.get(trusteeOfIdentity) != -1
+							|| graph.getTrustValue(treeOwnerOrdinal, trusteeOfIdentity) != TrustGraph.NO_TRUST)
+						continue;
 					
-					// If the rank or capacity changed then the trustees might be affected because the could have inherited theirs
-					if(oldScore.getRank() != trusteeScore.getRank() || oldScore.getCapacity() != trusteeScore.getCapacity()) {
-						// If this identity has no capacity or no rank then it cannot affect its trustees:
-						// (- If it had none and it has none now then there is none which can be inherited, this is obvious)
-						// - If it had one before and it was removed, this algorithm will have aborted already because a full computation is needed
-						if(trusteeScore.getCapacity() > 0 || (trusteeScore.getRank() >= 0 && trusteeScore.getRank() < Integer.MAX_VALUE)) {
-							// We need to update the trustees of trustee
-							for(Trust givenTrust : getGivenTrusts(trustee)) {
-								unprocessedEdges.add(givenTrust);
-							}
+					if(trustValues[j] > 0)
+						unprocessed.add(((long)(rank + 1) << 32) | trusteeOfIdentity);
+					else
+						distrusted.put(trusteeOfIdentity, 0);
+				}
+			}
+			
+			for(int i = 0; i < dirtyCount; ++i) {
+				final int identity = dirtyRegion.getOrdinal(i);
+				if(ranks.get(identity) == -1 && distrusted.contains(identity))
+					ranks.put(identity, Integer.MAX_VALUE);
+			}
+			
+			// The score values of the trustees of the dirty region depend on the capacities of the dirty region so they must be updated as well.
+			final OrdinalMap affected = new OrdinalMap();
+			
+			for(int i = 0; i < dirtyCount; ++i)
+				affected.put(dirtyRegion.getOrdinal(i), 0);
+			
+			for(int i = 0; i < dirtyCount; ++i) {
+				final int[] trustees = graph.getTrustees(dirtyRegion.getOrdinal(i));
+				final int trusteeCount = graph.getTrusteeCount(dirtyRegion.getOrdinal(i));
+				
+				for(int j = 0; j < trusteeCount; ++j) {
+					if(trustees[j] != treeOwnerOrdinal)
+						affected.put(trustees[j], 0);
+				}
+			}
+			
+			for(int i = 0; i < affected.size(); ++i) {
+				final int identity = affected.getOrdinal(i);
+				final Identity target = graph.getIdentity(identity);
+				
+				if(target == null)
+					continue;
+				
+				final int rank = getStoredRank(treeOwner, identity, ranks);
+				Score expectedScore = null;
+				
+				if(rank != -1) {
+					int value;
+					final int treeOwnerTrust = graph.getTrustValue(treeOwnerOrdinal, identity);
+					
+					if(treeOwnerTrust != TrustGraph.NO_TRUST)
+						value = treeOwnerTrust;
+					else {
+						value = 0;
+						
+						final int[] trusters = graph.getTrusters(identity);
+						final byte[] trustValues = graph.getTrusterValues(identity);
+						final int trusterCount = graph.getTrusterCount(identity);
+						
+						for(int j = 0; j < trusterCount; ++j) {
+							final int capacity = computeCapacity(treeOwnerOrdinal, trusters[j], getStoredRank(treeOwner, trusters[j], ranks));
+							value += (trustValues[j] * capacity) / 100;
 						}
 					}
+					
+					expectedScore = new Score(treeOwner, target, value, rank, computeCapacity(treeOwnerOrdinal, identity, rank));
+					expectedScore.initializeTransient(this);
 				}
 				
-				if(mFullScoreComputationNeeded)
-					break;
+				updateStoredScoreWithoutCommit(treeOwner, target, expectedScore, false);
 			}
 		}
 		
-		if(trustWasDeleted) { 
-			mFullScoreComputationNeeded = true;
+		return totalDirtyIdentities;
+	}
+	
+	/**
+	 * Marks entries of the rank tables of {@link #computeScoresOfDirtyRegionWithoutCommit} and {@link #updateScoresIncrementallyWithoutCommit}
+	 * which have not been loaded from the database yet.
+	 */
+	private static final int RANK_NOT_LOADED = -2;
+	
+	/**
+	 * Gets the rank of the identity with the given {@link TrustGraph} ordinal in the trust tree of the tree owner from the given table.
+	 * Loads it from the database if it is not in the table yet.
+	 * 
+	 * @return The rank or -1 if the identity has no rank.
+	 */
+	private int getStoredRank(final OwnIdentity treeOwner, final int ordinal, final OrdinalMap ranks) {
+		int rank = ranks.get(ordinal);
+		
+		if(rank == RANK_NOT_LOADED) {
+			final Identity identity = mTrustGraph.getIdentity(ordinal);
+			rank = -1;
+			
+			if(identity != null) {
+				try {
+					rank = getScore(treeOwner, identity).getRank();
+				} catch(NotInTrustTreeException e) { }
+			}
+			
+			ranks.put(ordinal, rank);
 		}
 		
-		// I've disabled this assert because it makes debugging VERY slow. Instead, finishTrustListImport now does assert(computeAllScores...).
-		// assert(mFullScoreComputationNeeded || (!mFullScoreComputationNeeded && computeAllScoresWithoutCommit()));
+		return rank;
+	}
+	
+	/**
+	 * Maps {@link TrustGraph} ordinals to int values, for the computations which only touch a small part of the graph: Unlike an array
+	 * which is indexed by ordinal, its memory usage and the time for creating it only depend on the amount of ordinals which are added.
+	 * The ordinals can be iterated in the order in which they were added, so it also serves as the queue of a breadth first search.
+	 */
+	private static final class OrdinalMap {
 		
-		if(mFullScoreComputationNeeded && !mTrustListImportInProgress) {
-			// TODO: Optimization: This uses very much CPU and memory. Write a partial computation function...
-			// TODO: Optimization: While we do not have a partial computation function, we could at least optimize computeAllScores to NOT
-			// keep all objects in memory etc.
-			computeAllScoresWithoutCommit();
-			assert(computeAllScoresWithoutCommit()); // It is stable
+		/** The ordinals are stored with an offset of 1 because the key 0 is not allowed in a {@link LongIntHashMap} */
+		private final LongIntHashMap mValues = new LongIntHashMap(16);
+		
+		/** The ordinals in the order in which they were added */
+		private int[] mOrdinals = new int[16];
+		
+		/**
+		 * @return The value of the given ordinal, {@link WebOfTrust#RANK_NOT_LOADED} if it was not added.
+		 */
+		int get(int ordinal) {
+			return mValues.get((long)ordinal + 1, RANK_NOT_LOADED);
+		}
+		
+		boolean contains(int ordinal) {
+			return mValues.containsKey((long)ordinal + 1);
+		}
+		
+		/**
+		 * Adds the given ordinal with the given value or replaces its value if it was added already.
+		 */
+		void put(int ordinal, int value) {
+			final int size = mValues.size();
+			mValues.put((long)ordinal + 1, value);
+			
+			if(mValues.size() == size) // It was added already
+				return;
+			
+			if(size == mOrdinals.length) {
+				final int[] ordinals = new int[size * 2];
+				System.arraycopy(mOrdinals, 0, ordinals, 0, size);
+				mOrdinals = ordinals;
+			}
+			mOrdinals[size] = ordinal;
+		}
+		
+		int size() {
+			return mValues.size();
+		}
+		
+		/**
+		 * @return The ordinal which was added as the given index-th one.
+		 */
+		int getOrdinal(int index) {
+			return mOrdinals[index];
 		}
 	}
-
 	
+	/**
+	 * @return The amount of trust changes for which the scores were updated by the incremental computation.
+	 */
+	public synchronized int getIncrementalScoreComputationCount() {
+		return mIncrementalScoreComputationCount;
+	}
+	
+	/**
+	 * @return The amount of trust removals for which the scores were updated by recomputing the dirty region only.
+	 */
+	public synchronized int getPartialScoreComputationCount() {
+		return mPartialScoreComputationCount;
+	}
+	
+	/**
+	 * @return The average amount of identities per trust removal whose rank had to be recomputed by the partial computation, summed over all tree owners.
+	 */
+	public synchronized float getAveragePartialScoreComputationDirtyIdentities() {
+		return mPartialScoreComputationCount > 0 ? (float)mPartialScoreComputationDirtyIdentities / mPartialScoreComputationCount : 0;
+	}
+	
+	/**
+	 * @return The amount of full score computations which were needed because of trust changes which the incremental and partial computation could not handle.
+	 */
+	public synchronized int getFullScoreComputationCount() {
+		return mFullScoreComputationCount;
+	}
+	
+	/**
+	 * @return The peak live heap of the last full score computation in bytes, 0 if there was none yet. See {@link #getLiveHeap()}.
+	 */
+	public synchronized long getFullScoreComputationPeakLiveHeap() {
+		return mFullScoreComputationPeakLiveHeap;
+	}
+
+
 	/* Client interface functions */
 	
 	public synchronized Identity addIdentity(String requestURI) throws MalformedURLException, InvalidParameterException {
@@ -1965,6 +3244,8 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	
 	public synchronized void deleteIdentity(Identity identity) {
 		synchronized(mPuzzleStore) {
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try {
 				deleteWithoutCommit(identity);
@@ -1974,6 +3255,9 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
 		}
+		} finally {
+			mLock.unlockWrite();
+		}
 		}
 	}
 	
@@ -1994,6 +3278,8 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 	public synchronized OwnIdentity createOwnIdentity(String insertURI, String requestURI, String nickName,
 			boolean publishTrustList, String context) throws MalformedURLException, InvalidParameterException {
 		
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			OwnIdentity identity;
 			
@@ -2044,11 +3330,16 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 				}
 			}
 		}
+		} finally {
+			mLock.unlockWrite();
+		}
 	}
 
 	public synchronized void restoreIdentity(String requestURI, String insertURI) throws MalformedURLException, InvalidParameterException {
 		OwnIdentity identity;
 		synchronized(mPuzzleStore) {
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try {
 				FreenetURI requestFreenetURI = new FreenetURI(requestURI);
@@ -2145,6 +3436,9 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
 		}
+		} finally {
+			mLock.unlockWrite();
+		}
 		}
 	}
 
@@ -2161,6 +3455,8 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		OwnIdentity truster = getOwnIdentityByID(ownTrusterID);
 		Identity trustee = getIdentityByID(trusteeID);
 
+		mLock.lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try  {
 				removeTrustWithoutCommit(truster, trustee);
@@ -2170,20 +3466,33 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
 		}
+		} finally {
+			mLock.unlockWrite();
+		}
 	}
 	
 	public synchronized void addContext(String ownIdentityID, String newContext) throws UnknownIdentityException, InvalidParameterException {
 		final Identity identity = getOwnIdentityByID(ownIdentityID);
-		identity.addContext(newContext);
-		identity.storeAndCommit();
+		mLock.lockWrite();
+		try {
+			identity.addContext(newContext);
+			identity.storeAndCommit();
+		} finally {
+			mLock.unlockWrite();
+		}
 		
 		Logger.debug(this, "Added context '" + newContext + "' to identity '" + identity.getNickname() + "'");
 	}
 
 	public synchronized void removeContext(String ownIdentityID, String context) throws UnknownIdentityException, InvalidParameterException {
 		final Identity identity = getOwnIdentityByID(ownIdentityID);
-		identity.removeContext(context);
-		identity.storeAndCommit();
+		mLock.lockWrite();
+		try {
+			identity.removeContext(context);
+			identity.storeAndCommit();
+		} finally {
+			mLock.unlockWrite();
+		}
 		
 		Logger.debug(this, "Removed context '" + context + "' from identity '" + identity.getNickname() + "'");
 	}
@@ -2196,16 +3505,26 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		throws UnknownIdentityException, InvalidParameterException {
 		
 		Identity identity = getOwnIdentityByID(ownIdentityID);
-		identity.setProperty(property, value);
-		identity.storeAndCommit();
+		mLock.lockWrite();
+		try {
+			identity.setProperty(property, value);
+			identity.storeAndCommit();
+		} finally {
+			mLock.unlockWrite();
+		}
 		
 		Logger.debug(this, "Added property '" + property + "=" + value + "' to identity '" + identity.getNickname() + "'");
 	}
 	
 	public synchronized void removeProperty(String ownIdentityID, String property) throws UnknownIdentityException, InvalidParameterException {
 		final Identity identity = getOwnIdentityByID(ownIdentityID);
-		identity.removeProperty(property);
-		identity.storeAndCommit();
+		mLock.lockWrite();
+		try {
+			identity.removeProperty(property);
+			identity.storeAndCommit();
+		} finally {
+			mLock.unlockWrite();
+		}
 		
 		Logger.debug(this, "Removed property '" + property + "' from identity '" + identity.getNickname() + "'");
 	}
@@ -2239,6 +3558,52 @@ public class WebOfTrust implements FredPlugin, FredPluginThreadless, FredPluginF
 		return mConfig;
 	}
 	
+	/**
+	 * Writers have to lock the write lock of the returned lock between locking this WebOfTrust and locking the database.
+	 * Readers can lock the read lock instead of this WebOfTrust, see {@link ReadWriteLockWithStatistics}.
+	 */
+	public ReadWriteLockWithStatistics getLock() {
+		return mLock;
+	}
+
+	/**
+	 * @return The queries for identities, trusts and scores which the query functions of this WebOfTrust delegate to.
+	 */
+	protected WoTStorage getStorage() {
+		return mStorage;
+	}
+
+	/**
+	 * You have to lock the read lock or the write lock of {@link #getLock()} when using the returned object, see {@link TrustGraph}.
+	 */
+	protected TrustGraph getTrustGraph() {
+		return mTrustGraph;
+	}
+	
+	protected DatabaseDigest getDatabaseDigest() {
+		return mDatabaseDigest;
+	}
+	
+	protected SnapshotPublisher getSnapshotPublisher() {
+		return mSnapshotPublisher;
+	}
+	
+	protected IdentityPairCache<Trust> getTrustCache() {
+		return mTrustCache;
+	}
+	
+	protected IdentityPairCache<Score> getScoreCache() {
+		return mScoreCache;
+	}
+	
+	/**
+	 * Gets the latest {@link WebOfTrustSnapshot}, which contains the identities, trust values and scores as of the last commit.
+	 * You do not need to lock anything for using it: It is immutable and a new one is published after each commit which changed them.
+	 */
+	public WebOfTrustSnapshot getSnapshot() {
+		return mSnapshotPublisher.getSnapshot();
+	}
+
 	public IdentityFetcher getIdentityFetcher() {
 		return mFetcher;
 	}
@@ -0,0 +1,264 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of the identities, trust values and scores of the {@link WebOfTrust} as of a committed transaction.
+ * It is published by the {@link SnapshotPublisher} after each transaction which modified them and can be obtained with
+ * {@link WebOfTrust#getSnapshot()}. It can be used by any thread without locking anything.
+ *
+ * Identities are addressed by the ordinals of the {@link TrustGraph}. The data of each identity is an immutable {@link IdentityEntry} which
+ * is shared with the previous snapshot if the identity did not change, and the trust values are a {@link TrustGraph.Snapshot}, which
+ * shares the adjacency arrays with the TrustGraph. Therefore, publishing a snapshot only copies the outer arrays plus the entries of the
+ * changed identities.
+ *
+ * Each snapshot has a version number which is higher than the one of all previous snapshots, also across restarts of WoT, so clients can
+ * use it for asking whether anything has changed since their last request.
+ *
+ * The insert URIs of own identities are not contained because snapshots are passed to code which does not need them.
+ */
+public final class WebOfTrustSnapshot {
+
+	private final long mVersion;
+
+	/** Indexed by ordinal, null for ordinals of deleted identities */
+	private final IdentityEntry[] mIdentities;
+
+	/** Maps the ID of an identity to its ordinal. Shared with the previous snapshot if no identity was added or deleted. */
+	private final Map<String, Integer> mOrdinals;
+
+	private final TrustGraph.Snapshot mTrustGraph;
+
+
+	/**
+	 * The state of a single {@link Identity} in a snapshot.
+	 */
+	public static final class IdentityEntry {
+
+		private final int mOrdinal;
+
+		private final String mID;
+
+		private final String mNickname;
+
+		private final String mRequestURI;
+
+		private final long mEdition;
+
+		private final boolean mIsOwnIdentity;
+
+		private final boolean mDoesPublishTrustList;
+
+		private final List<String> mContexts;
+
+		private final Map<String, String> mProperties;
+
+		/* The given trust values, sorted by the ordinal of the trustee */
+
+		private final int[] mTrustees;
+
+		private final byte[] mTrusteeValues;
+
+		private final String[] mTrusteeComments;
+
+		/* The scores of the identity, one per tree owner */
+
+		private final int[] mScoreOwners;
+
+		private final int[] mScoreValues;
+
+		private final int[] mScoreRanks;
+
+		private final int[] mScoreCapacities;
+
+		IdentityEntry(int ordinal, Identity identity, int[] trustees, byte[] trusteeValues, String[] trusteeComments,
+				int[] scoreOwners, int[] scoreValues, int[] scoreRanks, int[] scoreCapacities) {
+			mOrdinal = ordinal;
+			mID = identity.getID();
+			mNickname = identity.getNickname();
+			mRequestURI = identity.getRequestURI().toString();
+			mEdition = identity.getEdition();
+			mIsOwnIdentity = identity instanceof OwnIdentity;
+			mDoesPublishTrustList = identity.doesPublishTrustList();
+			mContexts = Collections.unmodifiableList(identity.getContexts());
+			mProperties = Collections.unmodifiableMap(identity.getProperties());
+			mTrustees = trustees;
+			mTrusteeValues = trusteeValues;
+			mTrusteeComments = trusteeComments;
+			mScoreOwners = scoreOwners;
+			mScoreValues = scoreValues;
+			mScoreRanks = scoreRanks;
+			mScoreCapacities = scoreCapacities;
+		}
+
+		public int getOrdinal() {
+			return mOrdinal;
+		}
+
+		public String getID() {
+			return mID;
+		}
+
+		/** @return The nickname or null if the identity was not fetched yet. */
+		public String getNickname() {
+			return mNickname;
+		}
+
+		public String getRequestURI() {
+			return mRequestURI;
+		}
+
+		/** @return The edition of the request URI, see {@link Identity#getEdition()}. */
+		public long getEdition() {
+			return mEdition;
+		}
+
+		public boolean isOwnIdentity() {
+			return mIsOwnIdentity;
+		}
+
+		public boolean doesPublishTrustList() {
+			return mDoesPublishTrustList;
+		}
+
+		public List<String> getContexts() {
+			return mContexts;
+		}
+
+		public boolean hasContext(String context) {
+			return mContexts.contains(context.trim());
+		}
+
+		public Map<String, String> getProperties() {
+			return mProperties;
+		}
+
+		public int getTrusteeCount() {
+			return mTrustees.length;
+		}
+
+		/** @return The ordinal of the trustee of the index-th trust value which this identity has given. */
+		public int getTrustee(int index) {
+			return mTrustees[index];
+		}
+
+		public byte getTrusteeValue(int index) {
+			return mTrusteeValues[index];
+		}
+
+		public String getTrusteeComment(int index) {
+			return mTrusteeComments[index];
+		}
+
+		/** @return The index of the trust value which this identity has given to the given trustee, or a negative value if there is none. */
+		public int indexOfTrustee(int trusteeOrdinal) {
+			return Arrays.binarySearch(mTrustees, trusteeOrdinal);
+		}
+
+		public int getScoreCount() {
+			return mScoreOwners.length;
+		}
+
+		/** @return The ordinal of the owner of the trust tree of the index-th score. */
+		public int getScoreOwner(int index) {
+			return mScoreOwners[index];
+		}
+
+		public int getScoreValue(int index) {
+			return mScoreValues[index];
+		}
+
+		public int getScoreRank(int index) {
+			return mScoreRanks[index];
+		}
+
+		public int getScoreCapacity(int index) {
+			return mScoreCapacities[index];
+		}
+
+		/** @return The index of the score in the trust tree of the given owner, or -1 if the identity is not in that tree. */
+		public int indexOfScoreOwner(int ownerOrdinal) {
+			for(int i = 0; i < mScoreOwners.length; ++i) {
+				if(mScoreOwners[i] == ownerOrdinal)
+					return i;
+			}
+			return -1;
+		}
+	}
+
+
+	WebOfTrustSnapshot(long version, IdentityEntry[] identities, Map<String, Integer> ordinals, TrustGraph.Snapshot trustGraph) {
+		mVersion = version;
+		mIdentities = identities;
+		mOrdinals = ordinals;
+		mTrustGraph = trustGraph;
+	}
+
+	/**
+	 * An empty snapshot without trust values. Only used as the predecessor of the first snapshot, it is never published.
+	 */
+	static WebOfTrustSnapshot empty() {
+		return new WebOfTrustSnapshot(0, new IdentityEntry[0], new HashMap<String, Integer>(), null);
+	}
+
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return The amount of ordinals. Some of them might not have an identity.
+	 */
+	public int size() {
+		return mIdentities.length;
+	}
+
+	/**
+	 * @return The identity with the given ordinal or null if there is none.
+	 */
+	public IdentityEntry getIdentity(int ordinal) {
+		return ordinal >= 0 && ordinal < mIdentities.length ? mIdentities[ordinal] : null;
+	}
+
+	/**
+	 * @return The identity with the given ID or null if there is none.
+	 */
+	public IdentityEntry getIdentityByID(String id) {
+		final Integer ordinal = mOrdinals.get(id);
+		return ordinal != null ? mIdentities[ordinal] : null;
+	}
+
+	/**
+	 * @return The trust values of the snapshot. Only use it with ordinals which are smaller than {@link #size()}.
+	 */
+	public TrustGraph.Snapshot getTrustGraph() {
+		return mTrustGraph;
+	}
+
+	/**
+	 * @return The comment of the trust value which the truster has given to the trustee, or null if there is no trust value.
+	 */
+	public String getTrustComment(int trusterOrdinal, int trusteeOrdinal) {
+		final IdentityEntry truster = getIdentity(trusterOrdinal);
+		if(truster == null)
+			return null;
+
+		final int index = truster.indexOfTrustee(trusteeOrdinal);
+		return index >= 0 ? truster.getTrusteeComment(index) : null;
+	}
+
+	IdentityEntry[] getIdentities() {
+		return mIdentities;
+	}
+
+	Map<String, Integer> getOrdinals() {
+		return mOrdinals;
+	}
+
+}
@@ -0,0 +1,78 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import plugins.WebOfTrust.exceptions.DuplicateIdentityException;
+import plugins.WebOfTrust.exceptions.DuplicateScoreException;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+
+import com.db4o.ObjectSet;
+
+/**
+ * The queries for {@link Identity}, {@link Trust} and {@link Score} objects which the {@link WebOfTrust} needs: Its query functions such as
+ * {@link WebOfTrust#getTrust(Identity, Identity)} or {@link WebOfTrust#getAllIdentities()} delegate to this instead of querying the database
+ * themselves. The caching of the point lookups and the exceptions for objects which do not exist stay in the WebOfTrust.
+ *
+ * {@link Db4oStorage} is the only implementation. The objects themselves store and delete themselves in the db4o database via
+ * {@link Persistent}, so an implementation must return the objects which db4o stores.
+ * The introduction puzzles are queried by the {@link plugins.WebOfTrust.introduction.IntroductionPuzzleStore}, the commands of the
+ * {@link IdentityFetcher} are not stored in the database.
+ *
+ * The callers must hold the same locks as for the corresponding function of the WebOfTrust. The returned {@link ObjectSet}s are loaded lazily,
+ * so the locks must be held while processing them.
+ */
+public interface WoTStorage {
+
+	/* Identities */
+
+	/**
+	 * @return The identity with the given ID, null if there is none.
+	 * @throws DuplicateIdentityException If there is more than one.
+	 */
+	public Identity getIdentityByID(String id);
+
+	/**
+	 * @return The own identity with the given ID, null if there is none.
+	 * @throws DuplicateIdentityException If there is more than one.
+	 */
+	public OwnIdentity getOwnIdentityByID(String id);
+
+	public ObjectSet<Identity> getAllIdentities();
+
+	public ObjectSet<Identity> getAllNonOwnIdentities();
+
+	public ObjectSet<OwnIdentity> getAllOwnIdentities();
+
+	/* Trusts */
+
+	/**
+	 * @return The trust which the truster has given to the trustee, null if there is none.
+	 * @throws DuplicateTrustException If there is more than one.
+	 */
+	public Trust getTrust(Identity truster, Identity trustee);
+
+	public ObjectSet<Trust> getGivenTrusts(Identity truster);
+
+	public ObjectSet<Trust> getReceivedTrusts(Identity trustee);
+
+	public ObjectSet<Trust> getAllTrusts();
+
+	/* Scores */
+
+	/**
+	 * @return The score of the trustee in the trust tree of the truster, null if there is none.
+	 * @throws DuplicateScoreException If there is more than one.
+	 */
+	public Score getScore(OwnIdentity truster, Identity trustee);
+
+	/**
+	 * @return The scores of the trustee in the trust trees of all own identities.
+	 */
+	public ObjectSet<Score> getReceivedScores(Identity trustee);
+
+	public ObjectSet<Score> getGivenScores(OwnIdentity truster);
+
+	public ObjectSet<Score> getAllScores();
+
+}
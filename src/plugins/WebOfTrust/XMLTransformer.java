@@ -3,9 +3,11 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -19,6 +21,8 @@ import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -30,7 +34,9 @@ import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
@@ -79,14 +85,31 @@ public final class XMLTransformer {
 	 */
 	public static final int MAX_IDENTITY_XML_BYTE_SIZE = 256 * 1024;
 	
+	/**
+	 * Maximal amount of elements in an identity XML file. A trust element with a valid request URI takes more than 64 bytes, so this does
+	 * not limit valid trust lists which fit into {@link #MAX_IDENTITY_XML_BYTE_SIZE}. It limits the work on bogus XML made of tiny elements.
+	 */
+	public static final int MAX_IDENTITY_XML_ELEMENT_COUNT = MAX_IDENTITY_XML_BYTE_SIZE / 64;
+	
 	private final WebOfTrust mWoT;
 	
 	private final ExtObjectContainer mDB;
 	
+	private final DocumentBuilderFactory mDocumentBuilderFactory;
+	
 	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
-	/** Used for parsing the identity XML when decoding identities*/
+	/** Used for parsing the XML of introductions and puzzles */
 	private final DocumentBuilder mDocumentBuilder;
 	
+	/** Used by {@link #parseIdentityXMLWithDOM(InputStream)}. A DocumentBuilder is not thread-safe, each thread gets its own one. */
+	private final ThreadLocal<DocumentBuilder> mIdentityDocumentBuilders;
+	
+	private final SAXParserFactory mSAXParserFactory;
+	
+	/** Used for parsing the identity XML when decoding identities. A SAXParser is not thread-safe, each thread gets its own one so
+	 * the {@link IdentityImporter} can parse in parallel. */
+	private final ThreadLocal<SAXParser> mIdentitySAXParsers;
+	
 	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
 	/** Created by mDocumentBuilder, used for building the identity XML DOM when encoding identities */
 	private final DOMImplementation mDOM;
@@ -110,8 +133,38 @@ public final class XMLTransformer {
 			xmlFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
 			// DOM parser uses .setAttribute() to pass to underlying Xerces
 			xmlFactory.setAttribute("http://apache.org/xml/features/disallow-doctype-decl", true);
+			mDocumentBuilderFactory = xmlFactory;
 			mDocumentBuilder = xmlFactory.newDocumentBuilder(); 
 			mDOM = mDocumentBuilder.getDOMImplementation();
+			
+			mIdentityDocumentBuilders = new ThreadLocal<DocumentBuilder>() {
+				protected DocumentBuilder initialValue() {
+					synchronized(mDocumentBuilderFactory) { // The factory is not thread-safe either
+						try {
+							return mDocumentBuilderFactory.newDocumentBuilder();
+						} catch(ParserConfigurationException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
+			
+			SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+			saxFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			saxFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			mSAXParserFactory = saxFactory;
+			
+			mIdentitySAXParsers = new ThreadLocal<SAXParser>() {
+				protected SAXParser initialValue() {
+					synchronized(mSAXParserFactory) { // The factory is not thread-safe either
+						try {
+							return mSAXParserFactory.newSAXParser();
+						} catch(Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
 
 			mSerializer = TransformerFactory.newInstance().newTransformer();
 			mSerializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
@@ -196,7 +249,10 @@ public final class XMLTransformer {
 		}
 	}
 	
-	private static final class ParsedIdentityXML {
+	/**
+	 * The content of an identity XML file, see {@link XMLTransformer#parseIdentityXML(InputStream)}.
+	 */
+	static final class ParsedIdentityXML {
 		static final class TrustListEntry {
 			final FreenetURI mTrusteeURI;
 			final byte mTrustValue;
@@ -223,20 +279,193 @@ public final class XMLTransformer {
 	}
 	
 	/**
-	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
+	 * Parses an identity XML file with a streaming SAX parser which fills the {@link ParsedIdentityXML} directly, without building a DOM.
+	 * Does not lock anything, so it can be called by multiple threads in parallel.
+	 * 
+	 * @param xmlInputStream An InputStream of the XML. Parsing fails as soon as it has returned more than {@link #MAX_IDENTITY_XML_BYTE_SIZE}
+	 *     bytes or more than {@link #MAX_IDENTITY_XML_ELEMENT_COUNT} elements.
+	 * @return The parsed data. If parsing failed, {@link ParsedIdentityXML#parseError} is set instead of throwing it: It is only thrown
+	 *     by {@link #importIdentity(FreenetURI, ParsedIdentityXML)} if the edition is not outdated.
 	 */
-	private ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) throws IOException {
-		// May not be accurate by definition of available(). So the JavaDoc requires the callers to obey the size limit, this is a double-check.
-		if(xmlInputStream.available() > MAX_IDENTITY_XML_BYTE_SIZE)
-			throw new IllegalArgumentException("XML contains too many bytes: " + xmlInputStream.available());
-		
+	ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) {
 		final ParsedIdentityXML result = new ParsedIdentityXML();
+		final SAXParser parser = mIdentitySAXParsers.get();
+		
+		try {
+			parser.parse(new SizeLimitedInputStream(xmlInputStream, MAX_IDENTITY_XML_BYTE_SIZE), new IdentityXMLHandler(result));
+		} catch(SAXException e) {
+			// The handler wraps exceptions which are not SAXExceptions
+			result.parseError = e.getException() != null ? e.getException() : e;
+		} catch(Exception e) {
+			result.parseError = e;
+		} finally {
+			parser.reset(); // A parser which has thrown might not be reusable otherwise
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Fills a {@link ParsedIdentityXML} while the SAX parser streams through the XML. Accepts the same XML as
+	 * {@link XMLTransformer#parseIdentityXMLWithDOM(InputStream)}: The first Identity element is used, its Context and Property elements
+	 * and the Trust elements of its first TrustList element are read at any depth. Missing attributes are read as "" as by the DOM.
+	 */
+	private static final class IdentityXMLHandler extends DefaultHandler {
+		
+		private final ParsedIdentityXML mResult;
+		
+		private int mElementCount = 0;
+		
+		private int mDepth = 0;
+		
+		/** The depth of the Identity element, -1 if the parser is not inside of it */
+		private int mIdentityDepth = -1;
+		
+		private boolean mIdentityFound = false;
+		
+		/** The depth of the TrustList element, -1 if the parser is not inside of it */
+		private int mTrustListDepth = -1;
+		
+		private boolean mTrustListFound = false;
+		
+		private IdentityXMLHandler(ParsedIdentityXML result) {
+			mResult = result;
+		}
+		
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			if(++mElementCount > MAX_IDENTITY_XML_ELEMENT_COUNT)
+				throw new SAXException("XML contains more than " + MAX_IDENTITY_XML_ELEMENT_COUNT + " elements");
+			
+			++mDepth;
+			
+			if(mIdentityDepth < 0) {
+				if(!mIdentityFound && "Identity".equals(qName))
+					startIdentity(attributes);
+				return;
+			}
+			
+			if("Context".equals(qName))
+				mResult.identityContexts.add(getAttribute(attributes, "Name"));
+			else if("Property".equals(qName))
+				mResult.identityProperties.put(getAttribute(attributes, "Name"), getAttribute(attributes, "Value"));
+			else if(mResult.identityPublishesTrustList) {
+				if(mTrustListDepth < 0) {
+					if(!mTrustListFound && "TrustList".equals(qName)) {
+						mTrustListFound = true;
+						mTrustListDepth = mDepth;
+					}
+				} else if("Trust".equals(qName)) {
+					try {
+						mResult.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+								new FreenetURI(getAttribute(attributes, "Identity")),
+								Byte.parseByte(getAttribute(attributes, "Value")),
+								getAttribute(attributes, "Comment")
+							));
+					} catch(MalformedURLException e) {
+						throw new SAXException(e);
+					} catch(NumberFormatException e) {
+						throw new SAXException(e);
+					}
+				}
+			}
+		}
 		
-		try {			
-			Document xmlDoc;
-			synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
-				xmlDoc = mDocumentBuilder.parse(xmlInputStream);
+		private void startIdentity(Attributes attributes) throws SAXException {
+			mIdentityFound = true;
+			mIdentityDepth = mDepth;
+			
+			final String version = getAttribute(attributes, "Version");
+			try {
+				if(Integer.parseInt(version) > XML_FORMAT_VERSION)
+					throw new SAXException("Version " + version + " > " + XML_FORMAT_VERSION);
+			} catch(NumberFormatException e) {
+				throw new SAXException(e);
 			}
+			
+			mResult.identityName = getAttribute(attributes, "Name");
+			mResult.identityPublishesTrustList = Boolean.parseBoolean(getAttribute(attributes, "PublishesTrustList"));
+			mResult.identityContexts = new ArrayList<String>();
+			mResult.identityProperties = new HashMap<String, String>();
+			if(mResult.identityPublishesTrustList)
+				mResult.identityTrustList = new ArrayList<ParsedIdentityXML.TrustListEntry>();
+		}
+		
+		public void endElement(String uri, String localName, String qName) {
+			if(mDepth == mTrustListDepth)
+				mTrustListDepth = -1;
+			
+			if(mDepth == mIdentityDepth)
+				mIdentityDepth = -1;
+			
+			--mDepth;
+		}
+		
+		public void endDocument() throws SAXException {
+			if(!mIdentityFound)
+				throw new SAXException("No Identity element");
+			
+			if(mResult.identityPublishesTrustList && !mTrustListFound)
+				throw new SAXException("No TrustList element");
+		}
+		
+		private static String getAttribute(Attributes attributes, String name) {
+			final String value = attributes.getValue(name);
+			return value != null ? value : "";
+		}
+	}
+	
+	/**
+	 * Throws an IOException as soon as more than the given amount of bytes was read, so the limit is enforced while streaming even if
+	 * available() does not tell the size.
+	 */
+	private static final class SizeLimitedInputStream extends FilterInputStream {
+		
+		private final int mLimit;
+		
+		private long mRemaining;
+		
+		private SizeLimitedInputStream(InputStream in, int limit) {
+			super(in);
+			mLimit = limit;
+			mRemaining = limit;
+		}
+		
+		public int read() throws IOException {
+			final int result = super.read();
+			if(result != -1 && --mRemaining < 0)
+				throw new IOException("XML contains more than " + mLimit + " bytes");
+			return result;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			// Read one byte beyond the limit so we notice if it is exceeded
+			final int result = super.read(b, off, (int)Math.min(len, mRemaining + 1));
+			if(result > 0) {
+				mRemaining -= result;
+				if(mRemaining < 0)
+					throw new IOException("XML contains more than " + mLimit + " bytes");
+			}
+			return result;
+		}
+		
+		public long skip(long n) throws IOException {
+			return super.skip(Math.min(n, mRemaining + 1));
+		}
+	}
+	
+	/**
+	 * Parses an identity XML file by building a DOM, the implementation which {@link #parseIdentityXML(InputStream)} replaced.
+	 * Only used by the unit tests for checking that both parse the same XML to the same result and by the benchmarks for comparing them.
+	 */
+	ParsedIdentityXML parseIdentityXMLWithDOM(InputStream xmlInputStream) {
+		final ParsedIdentityXML result = new ParsedIdentityXML();
+		
+		try {
+			// May not be accurate by definition of available(). So the JavaDoc requires the callers to obey the size limit, this is a double-check.
+			if(xmlInputStream.available() > MAX_IDENTITY_XML_BYTE_SIZE)
+				throw new IllegalArgumentException("XML contains too many bytes: " + xmlInputStream.available());
+			
+			final Document xmlDoc = mIdentityDocumentBuilders.get().parse(xmlInputStream);
 	
 			final Element identityElement = (Element)xmlDoc.getElementsByTagName("Identity").item(0);
 			
@@ -289,10 +518,25 @@ public final class XMLTransformer {
 	 * @param xmlInputStream The input stream containing the XML.
 	 */
 	public void importIdentity(FreenetURI identityURI, InputStream xmlInputStream) throws Exception  {
-		try { // Catch import problems so we can mark the edition as parsing failed
 		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
-		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
-		
+		importIdentity(identityURI, parseIdentityXML(xmlInputStream));
+	}
+	
+	/**
+	 * Imports an identity XML file which was parsed by {@link #parseIdentityXML(InputStream)}, see {@link #importIdentity(FreenetURI,
+	 * InputStream)}. Used by the {@link IdentityImporter}, which parses outside of the locks of the WoT.
+	 */
+	void importIdentity(FreenetURI identityURI, ParsedIdentityXML xmlData) throws Exception  {
+		importIdentity(identityURI, xmlData, false);
+	}
+	
+	/**
+	 * @param groupCommit If true, the transaction is committed by {@link Persistent#checkedGroupCommit(ExtObjectContainer, Object)}.
+	 *     The caller must then hold the locks of the WoT until it has called {@link WebOfTrust#flushGroupCommit()}, and redo the
+	 *     deferred imports if this import is rolled back.
+	 */
+	void importIdentity(FreenetURI identityURI, ParsedIdentityXML xmlData, boolean groupCommit) throws Exception  {
+		try { // Catch import problems so we can mark the edition as parsing failed
 		synchronized(mWoT) {
 		synchronized(mWoT.getIdentityFetcher()) {
 			final Identity identity = mWoT.getIdentityByURI(identityURI);
@@ -315,6 +559,8 @@ public final class XMLTransformer {
 					throw xmlData.parseError;
 				
 			
+				mWoT.getLock().lockWrite();
+				try {
 				synchronized(mDB.lock()) {
 				try { // Transaction rollback block
 					identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
@@ -367,6 +613,8 @@ public final class XMLTransformer {
 						if(positiveScore) {
 							identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
 						}
+						
+						final ArrayList<Trust> trustList = new ArrayList<Trust>(xmlData.identityTrustList.size());
 
 						for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
 							final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
@@ -392,35 +640,40 @@ public final class XMLTransformer {
 							}
 
 							if(trustee != null)
-								mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment);
+								trustList.add(new Trust(identity, trustee, trustValue, trustComment));
 						}
 
-						for(Trust trust : mWoT.getGivenTrustsOlderThan(identity, identityURI.getEdition())) {
-							mWoT.removeTrustWithoutCommit(trust);
-						}
+						// Trust values which are not in the new trust list are deleted.
+						mWoT.importTrustListWithoutCommit(identity, trustList);
 
 						IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
 						if(positiveScore) {
 							for(String id : identitiesWithUpdatedEditionHint)
 								identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
 
-							// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
+							// We do not have to store fetch commands for new identities here, importTrustListWithoutCommit() does it.
 						}
 					} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
 						// If it does not publish a trust list anymore, we delete all trust values it has given.
-						for(Trust trust : mWoT.getGivenTrusts(identity))
-							mWoT.removeTrustWithoutCommit(trust);
+						mWoT.importTrustListWithoutCommit(identity, new ArrayList<Trust>(0));
 					}
 
 					mWoT.finishTrustListImport();
 					identity.onFetched(); // Marks the identity as parsed successfully
-					identity.storeAndCommit();
+					identity.storeWithoutCommit();
+					if(groupCommit)
+						Persistent.checkedGroupCommit(mDB, this);
+					else
+						Persistent.checkedCommit(mDB, this);
 				}
 					catch(Exception e) { 
 					mWoT.abortTrustListImport(e); // Does the rollback
 					throw e;
 				} // try
 				} // synchronized(db.lock())
+				} finally {
+					mWoT.getLock().unlockWrite();
+				}
 		} // synchronized(mWoT)
 		} // synchronized(mWoT.getIdentityFetcher())
 		} // try
@@ -521,6 +774,8 @@ public final class XMLTransformer {
 			if(!puzzleOwner.hasContext(IntroductionPuzzle.INTRODUCTION_CONTEXT))
 				throw new InvalidParameterException("Trying to import an identity identroduction for an own identity which does not allow introduction.");
 			
+			mWoT.getLock().lockWrite();
+			try {
 			synchronized(mDB.lock()) {
 				try {
 					try {
@@ -559,6 +814,9 @@ public final class XMLTransformer {
 					throw error; // Satisfy the compiler
 				}
 			}
+			} finally {
+				mWoT.getLock().unlockWrite();
+			}
 		}
 		}
 
@@ -13,6 +13,7 @@ import java.util.TimeZone;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Persistent;
+import plugins.WebOfTrust.Persistent.IndexedClass;
 import plugins.WebOfTrust.TimeUtil;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
@@ -23,6 +24,7 @@ import freenet.support.CurrentTimeUTC;
  * An introduction puzzle is a puzzle (for example a CAPTCHA) which can be solved by a new identity to get onto the trust list
  * of already existing identities. This is the only way to get onto the web of trust if you do not know someone who will add you manually.
  */
+@IndexedClass
 public class IntroductionPuzzle extends Persistent {
 	
 	public static enum PuzzleType { Captcha };
@@ -98,6 +98,8 @@ public final class IntroductionPuzzleStore {
 			int deleted = 0;
 			
 			for(IntroductionPuzzle p : result) {
+				mWoT.getLock().lockWrite();
+				try {
 				synchronized(mDB.lock()) {
 				try {
 					Logger.debug(this, "Deleting expired puzzle, was valid until " + p.getValidUntilDate());
@@ -108,6 +110,9 @@ public final class IntroductionPuzzleStore {
 					Persistent.checkedRollback(mDB, this, e);
 				}
 				}
+				} finally {
+					mWoT.getLock().unlockWrite();
+				}
 			}
 			
 			
@@ -139,6 +144,8 @@ public final class IntroductionPuzzleStore {
 			while(deleteCount > 0 && result.hasNext()) {
 				final IntroductionPuzzle puzzle = result.next();
 
+				mWoT.getLock().lockWrite();
+				try {
 				synchronized(mDB.lock()) {
 				try {
 					puzzle.deleteWithoutCommit();
@@ -149,6 +156,9 @@ public final class IntroductionPuzzleStore {
 					Persistent.checkedRollback(mDB, this, e);	
 				}
 				}
+				} finally {
+					mWoT.getLock().unlockWrite();
+				}
 			}
 	}
 	
@@ -183,6 +193,8 @@ public final class IntroductionPuzzleStore {
 		/* TODO: Convert to assert() maybe when we are sure that this does not happen. Duplicate puzzles will be deleted after they
 		 * expire anyway. Further, isn't there a db4o option which ensures that mID is a primary key and therefore no duplicates can exist? */
 		synchronized(puzzle) {
+		mWoT.getLock().lockWrite();
+		try {
 		synchronized(mDB.lock()) {
 			try {
 				final IntroductionPuzzle existingPuzzle = getByID(puzzle.getID());
@@ -199,6 +211,9 @@ public final class IntroductionPuzzleStore {
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
 		}
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
 		}
 	}
 
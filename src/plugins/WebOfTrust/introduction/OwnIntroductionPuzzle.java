@@ -5,11 +5,13 @@ import java.util.UUID;
 
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.Persistent.IndexedClass;
 import plugins.WebOfTrust.TimeUtil;
 import plugins.WebOfTrust.WebOfTrust;
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
 
+@IndexedClass
 public class OwnIntroductionPuzzle extends IntroductionPuzzle {
 	
 	/**
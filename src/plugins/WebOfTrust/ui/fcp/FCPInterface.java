@@ -12,7 +12,9 @@ import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.Trust;
+import plugins.WebOfTrust.TrustGraph;
 import plugins.WebOfTrust.WebOfTrust;
+import plugins.WebOfTrust.WebOfTrustSnapshot;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NoSuchContextException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
@@ -223,7 +225,8 @@ public final class FCPInterface implements FredPluginFCP {
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
     	sfs.putOverwrite("Message", "Identity");
     	
-    	synchronized(mWoT) {
+    	mWoT.getLock().lockRead();
+    	try {
     		final OwnIdentity truster = mWoT.getOwnIdentityByID(trusterID);
     		final Identity identity = mWoT.getIdentityByID(identityID);
 
@@ -256,6 +259,8 @@ public final class FCPInterface implements FredPluginFCP {
 				sfs.putOverwrite("Property" + propertiesCounter + ".Name", property.getKey());
 				sfs.putOverwrite("Property" + propertiesCounter++ + ".Value", property.getValue());
 			}
+    	} finally {
+    		mWoT.getLock().unlockRead();
     	}
     	
 		return sfs;
@@ -265,7 +270,8 @@ public final class FCPInterface implements FredPluginFCP {
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "OwnIdentities");
 
-		synchronized(mWoT) {
+		mWoT.getLock().lockRead();
+		try {
 			final ObjectSet<OwnIdentity> result = mWoT.getAllOwnIdentities();
 	
 			for(int i = 0; result.hasNext(); ) {
@@ -290,6 +296,8 @@ public final class FCPInterface implements FredPluginFCP {
 				// This is here so you do not forget to do it IN the "if()" if you add an if() around the put() statements to allow selection
 				++i;
 			}
+		} finally {
+			mWoT.getLock().unlockRead();
 		}
 
 		return sfs;
@@ -308,53 +316,63 @@ public final class FCPInterface implements FredPluginFCP {
 		else if (selectString.equals("-")) select = -1;
 		else if (selectString.equals("0")) select = 0;
 		else throw new InvalidParameterException("Unhandled selection value (" + select + ")");
+		
+		final WebOfTrustSnapshot snapshot = mWoT.getSnapshot();
+		if(isKnownSnapshotVersion(params, snapshot))
+			return handleNotModified(snapshot);
 
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Identities");
+		sfs.putOverwrite("SnapshotVersion", Long.toString(snapshot.getVersion()));
 		
-		synchronized(mWoT) {
-			final OwnIdentity truster = trusterID != null ? mWoT.getOwnIdentityByID(trusterID) : null;
-			final ObjectSet<Score> result = mWoT.getIdentitiesByScore(truster, select);
-			final boolean getAll = context.equals("");
-	
-			for(int i = 0; result.hasNext(); ) {
-				final Score score = result.next();
-
-				if(getAll || score.getTrustee().hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
-					final Identity identity = score.getTrustee();
-					sfs.putOverwrite("Identity" + i, identity.getID());
-					sfs.putOverwrite("RequestURI" + i, identity.getRequestURI().toString());
-					sfs.putOverwrite("Nickname" + i, identity.getNickname() != null ? identity.getNickname() : "");
-
-					int contextCounter = 0;
-					for (String identityContext: identity.getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : identity.getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					
-					if(truster == null)
-		    			sfs.putOverwrite("ScoreOwner" + i, score.getTruster().getID());
-					
-					sfs.putOverwrite("Score" + i, Integer.toString(score.getScore()));
-					sfs.putOverwrite("Rank" + i, Integer.toString(score.getRank()));
-					
-					if(includeTrustValue) {
-			    		try {
-			    			final Trust trust = mWoT.getTrust(score.getTruster(), identity);
-			    			sfs.putOverwrite("Trust" + i, Byte.toString(trust.getValue()));
-			    		} catch (final NotTrustedException e1) {
-			    			sfs.putOverwrite("Trust" + i, "null");
-			    		}
-					}
-					
-					++i;
+		final int trusterOrdinal = trusterID != null ? getOwnIdentity(snapshot, trusterID).getOrdinal() : TrustGraph.NO_ORDINAL;
+		final boolean getAll = context.equals("");
+		
+		for(int ordinal = 0, i = 0; ordinal < snapshot.size(); ++ordinal) {
+			final WebOfTrustSnapshot.IdentityEntry identity = snapshot.getIdentity(ordinal);
+			
+			if(identity == null || identity.isOwnIdentity() || !(getAll || identity.hasContext(context)))
+				continue;
+			
+			for(int scoreIndex = 0; scoreIndex < identity.getScoreCount(); ++scoreIndex) {
+				final int scoreOwner = identity.getScoreOwner(scoreIndex);
+				final int scoreValue = identity.getScoreValue(scoreIndex);
+				
+				if(trusterOrdinal != TrustGraph.NO_ORDINAL && scoreOwner != trusterOrdinal)
+					continue;
+				
+				/* We include 0 in the list of identities with positive score because solving captchas gives no points to score */
+				if((select > 0 && scoreValue < 0) || (select < 0 && scoreValue >= 0) || (select == 0 && scoreValue != 0))
+					continue;
+				
+				// TODO: Allow the client to select what data he wants
+				sfs.putOverwrite("Identity" + i, identity.getID());
+				sfs.putOverwrite("RequestURI" + i, identity.getRequestURI());
+				sfs.putOverwrite("Nickname" + i, identity.getNickname() != null ? identity.getNickname() : "");
+				
+				int contextCounter = 0;
+				for (String identityContext: identity.getContexts()) {
+					sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
 				}
+				
+				int propertiesCounter = 0;
+				for (Entry<String, String> property : identity.getProperties().entrySet()) {
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+				}
+				
+				if(trusterOrdinal == TrustGraph.NO_ORDINAL)
+					sfs.putOverwrite("ScoreOwner" + i, snapshot.getIdentity(scoreOwner).getID());
+				
+				sfs.putOverwrite("Score" + i, Integer.toString(scoreValue));
+				sfs.putOverwrite("Rank" + i, Integer.toString(identity.getScoreRank(scoreIndex)));
+				
+				if(includeTrustValue) {
+					final int trust = snapshot.getTrustGraph().getTrustValue(scoreOwner, ordinal);
+					sfs.putOverwrite("Trust" + i, trust != TrustGraph.NO_TRUST ? Byte.toString((byte)trust) : "null");
+				}
+				
+				++i;
 			}
 		}
 		
@@ -365,39 +383,45 @@ public final class FCPInterface implements FredPluginFCP {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
     	
+    	final WebOfTrustSnapshot snapshot = mWoT.getSnapshot();
+    	if(isKnownSnapshotVersion(params, snapshot))
+    		return handleNotModified(snapshot);
+    	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "Identities");
+        sfs.putOverwrite("SnapshotVersion", Long.toString(snapshot.getVersion()));
         
         final boolean getAll = context.equals("");
         
-        synchronized(mWoT) {
-        	final ObjectSet<Trust> receivedTrusts = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID));
-
-			for(int i = 0; receivedTrusts.hasNext(); ) {
-				final Trust trust = receivedTrusts.next();
-
-				if(getAll || trust.getTruster().hasContext(params.get("Context"))) {
-					sfs.putOverwrite("Identity" + i, trust.getTruster().getID());
-					sfs.putOverwrite("Nickname" + i, trust.getTruster().getNickname());
-					sfs.putOverwrite("RequestURI" + i, trust.getTruster().getRequestURI().toString());
-					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
-					sfs.putOverwrite("Comment" + i, trust.getComment());
-
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					// TODO: Allow the client to select what data he wants
-					++i;
+        final int trusteeOrdinal = getIdentity(snapshot, identityID).getOrdinal();
+        final TrustGraph.Snapshot trustGraph = snapshot.getTrustGraph();
+        final int[] trusters = trustGraph.getTrusters(trusteeOrdinal);
+        final byte[] values = trustGraph.getTrusterValues(trusteeOrdinal);
+        
+		for(int trusterIndex = 0, i = 0; trusterIndex < trustGraph.getTrusterCount(trusteeOrdinal); ++trusterIndex) {
+			final WebOfTrustSnapshot.IdentityEntry truster = snapshot.getIdentity(trusters[trusterIndex]);
+
+			if(getAll || truster.hasContext(context)) {
+				sfs.putOverwrite("Identity" + i, truster.getID());
+				sfs.putOverwrite("Nickname" + i, truster.getNickname());
+				sfs.putOverwrite("RequestURI" + i, truster.getRequestURI());
+				sfs.putOverwrite("Value" + i, Byte.toString(values[trusterIndex]));
+				sfs.putOverwrite("Comment" + i, snapshot.getTrustComment(truster.getOrdinal(), trusteeOrdinal));
+
+				int contextCounter = 0;
+				for (String identityContext: truster.getContexts()) {
+					sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+				}
+
+				int propertiesCounter = 0;
+				for (Entry<String, String> property : truster.getProperties().entrySet()) {
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
 				}
+				// TODO: Allow the client to select what data he wants
+				++i;
 			}
-        }
+		}
         
         return sfs;
     }
@@ -418,12 +442,18 @@ public final class FCPInterface implements FredPluginFCP {
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
         	
-    		synchronized(mWoT) {
+    		mWoT.getLock().lockRead();
+    		try {
         		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
+    		} finally {
+    			mWoT.getLock().unlockRead();
+    		}
         } else {
-        	synchronized(mWoT) {
+        	mWoT.getLock().lockRead();
+        	try {
         		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID)).size();
+        	} finally {
+        		mWoT.getLock().unlockRead();
         	}
         }
     	
@@ -436,40 +466,42 @@ public final class FCPInterface implements FredPluginFCP {
     private SimpleFieldSet handleGetTrustees(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
+    	
+    	final WebOfTrustSnapshot snapshot = mWoT.getSnapshot();
+    	if(isKnownSnapshotVersion(params, snapshot))
+    		return handleNotModified(snapshot);
 
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "Identities");
+        sfs.putOverwrite("SnapshotVersion", Long.toString(snapshot.getVersion()));
         
         final boolean getAll = context.equals("");
+        
+        final WebOfTrustSnapshot.IdentityEntry truster = getIdentity(snapshot, identityID);
+
+        for(int trusteeIndex = 0, i = 0; trusteeIndex < truster.getTrusteeCount(); ++trusteeIndex) {
+        	final WebOfTrustSnapshot.IdentityEntry trustee = snapshot.getIdentity(truster.getTrustee(trusteeIndex));
+
+			if(getAll || trustee.hasContext(context)) {
+				sfs.putOverwrite("Identity" + i, trustee.getID());
+				sfs.putOverwrite("Nickname" + i, trustee.getNickname());
+				sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI());
+				sfs.putOverwrite("Value" + i, Byte.toString(truster.getTrusteeValue(trusteeIndex)));
+				sfs.putOverwrite("Comment" + i, truster.getTrusteeComment(trusteeIndex));
 
-        synchronized(mWoT) {
-        	final ObjectSet<Trust> givenTrusts = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID));
-
-        	for(int i = 0; givenTrusts.hasNext(); ) {
-        		final Trust trust = givenTrusts.next();
-        		final Identity trustee = trust.getTrustee();
-
-				if(getAll || trustee.hasContext(params.get("Context"))) {
-					sfs.putOverwrite("Identity" + i, trustee.getID());
-					sfs.putOverwrite("Nickname" + i, trustee.getNickname());
-					sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI().toString());
-					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
-					sfs.putOverwrite("Comment" + i, trust.getComment());
-
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					// TODO: Allow the client to select what data he wants
-					++i;
+				int contextCounter = 0;
+				for (String identityContext: truster.getContexts()) {
+					sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
 				}
-        	}
+
+				int propertiesCounter = 0;
+				for (Entry<String, String> property : truster.getProperties().entrySet()) {
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+				}
+				// TODO: Allow the client to select what data he wants
+				++i;
+			}
         }
         
         return sfs;
@@ -491,12 +523,18 @@ public final class FCPInterface implements FredPluginFCP {
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
         	
-    		synchronized(mWoT) {
+    		mWoT.getLock().lockRead();
+    		try {
         		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
+    		} finally {
+    			mWoT.getLock().unlockRead();
+    		}
         } else {
-        	synchronized(mWoT) {
+        	mWoT.getLock().lockRead();
+        	try {
         		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID)).size();
+        	} finally {
+        		mWoT.getLock().unlockRead();
         	}
         }
     	
@@ -608,6 +646,43 @@ public final class FCPInterface implements FredPluginFCP {
     	return sfs;
     }
     
+    /**
+     * Clients can pass the "SnapshotVersion" of a previous reply as "KnownSnapshotVersion" to get a "NotModified" reply instead of the
+     * full data if nothing has changed since then.
+     */
+    private boolean isKnownSnapshotVersion(final SimpleFieldSet params, final WebOfTrustSnapshot snapshot) throws InvalidParameterException {
+    	final String knownVersion = params.get("KnownSnapshotVersion");
+    	if(knownVersion == null)
+    		return false;
+    	
+    	try {
+    		return Long.parseLong(knownVersion) == snapshot.getVersion();
+    	} catch(NumberFormatException e) {
+    		throw new InvalidParameterException("Invalid KnownSnapshotVersion: " + knownVersion);
+    	}
+    }
+    
+    private SimpleFieldSet handleNotModified(final WebOfTrustSnapshot snapshot) {
+    	final SimpleFieldSet sfs = new SimpleFieldSet(true);
+    	sfs.putOverwrite("Message", "NotModified");
+    	sfs.putOverwrite("SnapshotVersion", Long.toString(snapshot.getVersion()));
+    	return sfs;
+    }
+    
+    private WebOfTrustSnapshot.IdentityEntry getIdentity(final WebOfTrustSnapshot snapshot, final String id) throws UnknownIdentityException {
+    	final WebOfTrustSnapshot.IdentityEntry identity = snapshot.getIdentityByID(id);
+    	if(identity == null)
+    		throw new UnknownIdentityException(id);
+    	return identity;
+    }
+    
+    private WebOfTrustSnapshot.IdentityEntry getOwnIdentity(final WebOfTrustSnapshot snapshot, final String id) throws UnknownIdentityException {
+    	final WebOfTrustSnapshot.IdentityEntry identity = getIdentity(snapshot, id);
+    	if(!identity.isOwnIdentity())
+    		throw new UnknownIdentityException(id);
+    	return identity;
+    }
+
     private SimpleFieldSet handlePing() {
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
     	sfs.putOverwrite("Message", "Pong");
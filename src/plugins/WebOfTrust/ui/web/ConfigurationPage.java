@@ -4,8 +4,12 @@
 package plugins.WebOfTrust.ui.web;
 
 import java.util.Arrays;
+import java.util.List;
 
 import plugins.WebOfTrust.Configuration;
+import plugins.WebOfTrust.IdentityFetcher;
+import plugins.WebOfTrust.IdentityImporter;
+import plugins.WebOfTrust.IntegrityVerifier;
 import freenet.clients.http.ToadletContext;
 import freenet.l10n.BaseL10n;
 import freenet.support.HTMLNode;
@@ -42,8 +46,99 @@ public class ConfigurationPage extends WebPageImpl {
 			for(String key : stringKeys) list1.addChild(new HTMLNode("li", key + ": " + config.getString(key)));
 		}
 
+		list2.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.ConfigurationBox.RolledBackCommits", "count",
+				Long.toString(wot.getRolledBackCommitCount()))));
+
 		HTMLNode box = addContentBox(l10n().getString("ConfigurationPage.ConfigurationBox.Header"));
 		box.addChild(list1);
 		box.addChild(list2);
+		
+		makeIdentityFetcherBox();
+		makeIdentityImporterBox();
+		makeIntegrityVerificationBox();
+	}
+	
+	private void makeIdentityFetcherBox() {
+		final IdentityFetcher fetcher = wot.getIdentityFetcher();
+		if(fetcher == null)
+			return;
+		
+		final HTMLNode box = addContentBox(l10n().getString("ConfigurationPage.IdentityFetcherBox.Header"));
+		final HTMLNode list = box.addChild("ul");
+		
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityFetcherBox.QueuedCommands",
+				new String[] { "count", "age" },
+				new String[] { Integer.toString(fetcher.getQueuedCommandCount()), Long.toString(fetcher.getOldestQueuedCommandAge() / 1000) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityFetcherBox.ProcessedCommands", "count",
+				Long.toString(fetcher.getProcessedCommandCount()))));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityFetcherBox.Latency",
+				new String[] { "average", "max" },
+				new String[] { Long.toString(fetcher.getAverageCommandLatency() / 1000), Long.toString(fetcher.getMaxCommandLatency() / 1000) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityFetcherBox.FetchStartLatency",
+				new String[] { "average", "max" },
+				new String[] { Long.toString(fetcher.getAverageFetchStartLatency()), Long.toString(fetcher.getMaxFetchStartLatency()) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityFetcherBox.CoalescedCommands", "count",
+				Long.toString(fetcher.getCoalescedCommandCount()))));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityFetcherBox.DiscardedCommands", "count",
+				Long.toString(fetcher.getDiscardedCommandCount()))));
+	}
+	
+	private void makeIdentityImporterBox() {
+		final IdentityImporter importer = wot.getIdentityImporter();
+		if(importer == null)
+			return;
+		
+		final HTMLNode box = addContentBox(l10n().getString("ConfigurationPage.IdentityImporterBox.Header"));
+		final HTMLNode list = box.addChild("ul");
+		
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityImporterBox.Queued",
+				new String[] { "queued", "parsed", "kib" },
+				new String[] { Integer.toString(importer.getQueuedCount()), Integer.toString(importer.getParsedCount()),
+					Integer.toString(importer.getQueuedBytes() / 1024) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityImporterBox.Imported",
+				new String[] { "imported", "failed", "batches" },
+				new String[] { Long.toString(importer.getImportedCount()), Long.toString(importer.getFailedCount()),
+					Long.toString(importer.getBatchCount()) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityImporterBox.Skipped",
+				new String[] { "parses", "imports", "enqueued" },
+				new String[] { Long.toString(importer.getSkippedParseCount()), Long.toString(importer.getSkippedImportCount()),
+					Long.toString(importer.getEnqueuedCount()) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityImporterBox.Latency",
+				new String[] { "average", "max" },
+				new String[] { Long.toString(importer.getAverageLatency()), Long.toString(importer.getMaxLatency()) })));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IdentityImporterBox.BlockedTime", "seconds",
+				Long.toString(importer.getBlockedTime() / 1000))));
+	}
+	
+	private void makeIntegrityVerificationBox() {
+		final IntegrityVerifier verifier = wot.getIntegrityVerifier();
+		if(verifier == null)
+			return;
+		
+		final HTMLNode box = addContentBox(l10n().getString("ConfigurationPage.IntegrityVerificationBox.Header"));
+		final HTMLNode list = box.addChild("ul");
+		
+		if(verifier.isFinished())
+			list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IntegrityVerificationBox.Finished")));
+		else {
+			list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IntegrityVerificationBox.Progress",
+					new String[] { "class", "percent" },
+					new String[] { verifier.getCurrentClass(), Integer.toString(verifier.getCurrentClassProgressPercent()) })));
+		}
+		
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IntegrityVerificationBox.TestedObjects", "count",
+				Integer.toString(verifier.getTestedObjectCount()))));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IntegrityVerificationBox.FailedTests", "count",
+				Integer.toString(verifier.getFailedTestCount()))));
+		list.addChild(new HTMLNode("li", l10n().getString("ConfigurationPage.IntegrityVerificationBox.DeletedObjects", "count",
+				Integer.toString(verifier.getDeletedObjectCount()))));
+		
+		final List<String> findings = verifier.getFindings();
+		if(findings.size() > 0) {
+			box.addChild("p", l10n().getString("ConfigurationPage.IntegrityVerificationBox.Findings"));
+			final HTMLNode findingList = box.addChild("ul");
+			for(String finding : findings)
+				findingList.addChild("li", finding);
+		}
 	}
 }
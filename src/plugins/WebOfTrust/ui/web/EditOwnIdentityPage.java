@@ -32,6 +32,7 @@ public class EditOwnIdentityPage extends WebPageImpl {
 	public void make() {
 		synchronized(wot) {
 			if(request.isPartSet("Edit")) {
+				wot.getLock().lockWrite();
 				try {
 					mIdentity.setPublishTrustList(request.isPartSet("PublishTrustList") && 
 						request.getPartAsString("PublishTrustList", 6).equals("true"));
@@ -58,7 +59,10 @@ public class EditOwnIdentityPage extends WebPageImpl {
 				}
 				catch(Exception e) {
 					addErrorBox(l10n().getString("EditOwnIdentityPage.SettingsSaveFailed"), e);
-				}	
+				}
+				finally {
+					wot.getLock().unlockWrite();
+				}
 			}
 
 			HTMLNode box = addContentBox(l10n().getString("EditOwnIdentityPage.EditIdentityBox.Header", "nickname", mIdentity.getNickname()));
@@ -3,6 +3,7 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust.ui.web;
 
+import plugins.WebOfTrust.ReadWriteLockWithStatistics;
 import plugins.WebOfTrust.Version;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
@@ -48,6 +49,15 @@ public class HomePage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.KnownIdentities") + ": " + wot.getAllNonOwnIdentities().size()));
 		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.TrustRelationships") + ": " + wot.getAllTrusts().size()));
 		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.ScoreRelationships") + ": " + wot.getAllScores().size()));
+		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.IncrementalScoreComputations") + ": " + wot.getIncrementalScoreComputationCount()));
+		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.PartialScoreComputations") + ": " + wot.getPartialScoreComputationCount()
+				+ " (" + l10n().getString("HomePage.SummaryBox.PartialScoreComputations.AverageDirtyIdentities") + ": " 
+				+ wot.getAveragePartialScoreComputationDirtyIdentities() + ")"));
+		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.FullScoreComputations") + ": " + wot.getFullScoreComputationCount()
+				+ " (" + l10n().getString("HomePage.SummaryBox.FullScoreComputations.PeakLiveHeap") + ": "
+				+ wot.getFullScoreComputationPeakLiveHeap() / (1024 * 1024) + " MiB)"));
+		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.ReadLock") + ": " + formatLockStatistics(wot.getLock().getReadStatistics())));
+		list.addChild(new HTMLNode("li", l10n().getString("HomePage.SummaryBox.WriteLock") + ": " + formatLockStatistics(wot.getLock().getWriteStatistics())));
 		
 		IntroductionPuzzleStore puzzleStore = wot.getIntroductionPuzzleStore();
 		synchronized(puzzleStore) {
@@ -60,4 +70,13 @@ public class HomePage extends WebPageImpl {
 		box.addChild(list);
 		}
 	}
+	
+	private String formatLockStatistics(ReadWriteLockWithStatistics.Statistics statistics) {
+		return statistics.getAcquisitions() + " "
+			+ l10n().getString("HomePage.SummaryBox.Lock.Acquisitions") + ", " + statistics.getContendedAcquisitions() + " "
+			+ l10n().getString("HomePage.SummaryBox.Lock.ContendedAcquisitions") + " ("
+			+ l10n().getString("HomePage.SummaryBox.Lock.WaitTime") + ": " + statistics.getWaitTime() / 1000000 + "ms), "
+			+ l10n().getString("HomePage.SummaryBox.Lock.AverageHoldTime") + ": " + statistics.getAverageHoldTime() / 1000 + "us, "
+			+ l10n().getString("HomePage.SummaryBox.Lock.MaxHoldTime") + ": " + statistics.getMaxHoldTime() / 1000000 + "ms";
+	}
 }
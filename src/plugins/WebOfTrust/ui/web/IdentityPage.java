@@ -64,7 +64,8 @@ public class IdentityPage extends WebPageImpl {
 	 * @see WebPage#make()
 	 */
 	public void make() {
-		synchronized(wot) {
+		wot.getLock().lockRead();
+		try {
 			HTMLNode trusteeTrustsNode = addContentBox(l10n().getString("IdentityPage.TrusteeTrustsBox.Header", "nickname", identity.getNickname()));
 			HTMLNode trusteesTable = trusteeTrustsNode.addChild("table");
 			HTMLNode trusteesTableHeader = trusteesTable.addChild("tr");
@@ -102,6 +103,8 @@ public class IdentityPage extends WebPageImpl {
 				trustRow.addChild("td", new String[]{"align", "style"}, new String[]{"right", "background-color:" + KnownIdentitiesPage.getTrustColor(trust.getValue()) + ";"}, Byte.toString(trust.getValue()));
 				trustRow.addChild("td", trust.getComment());
 			}
+		} finally {
+			wot.getLock().unlockRead();
 		}
 	}
 	
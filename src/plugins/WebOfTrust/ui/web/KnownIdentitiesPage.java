@@ -106,11 +106,14 @@ public class KnownIdentitiesPage extends WebPageImpl {
 				addErrorBox(l10n().getString("KnownIdentitiesPage.SelectOwnIdentity.Failed"), e);
 			}
 		} else {
-			synchronized(wot) {
+			wot.getLock().lockRead();
+			try {
 				ObjectSet<OwnIdentity> allOwnIdentities = wot.getAllOwnIdentities();
 				nbOwnIdentities = allOwnIdentities.size();
 				if(nbOwnIdentities == 1)
 					treeOwner = allOwnIdentities.next();
+			} finally {
+				wot.getLock().unlockRead();
 			}
 		}
 			
@@ -180,9 +183,12 @@ public class KnownIdentitiesPage extends WebPageImpl {
 		selectForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "page", "ViewTree" });
 		HTMLNode selectBox = selectForm.addChild("select", "name", "OwnerID");
 
-		synchronized(wot) {
+		wot.getLock().lockRead();
+		try {
 			for(OwnIdentity ownIdentity : wot.getAllOwnIdentities())
 				selectBox.addChild("option", "value", ownIdentity.getID(), ownIdentity.getNickname());
+		} finally {
+			wot.getLock().unlockRead();
 		}
 
 		selectForm.addChild(
@@ -289,7 +295,8 @@ public class KnownIdentitiesPage extends WebPageImpl {
 		
 		long currentTime = CurrentTimeUTC.getInMillis();
 
-		synchronized(wot) {
+		wot.getLock().lockRead();
+		try {
 		for(Identity id : wot.getAllIdentitiesFilteredAndSorted(treeOwner, nickFilter, sortInstruction)) {
 			if(id == treeOwner) continue;
 
@@ -349,6 +356,8 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			trusteesCell.addChild(new HTMLNode("a", "href", identitiesPageURI + "?id="+id.getID(),
 					Long.toString(wot.getGivenTrusts(id).size())));
 		}
+		} finally {
+			wot.getLock().unlockRead();
 		}
 	}
 	
@@ -0,0 +1,102 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+
+/**
+ * Tests whether WoT works with the {@link WebOfTrust#LOW_ACTIVATION_DEPTH} and the activation audit of
+ * {@link Persistent#checkedActivate(Object, int)} enabled.
+ */
+public final class ActivationDepthTest extends DatabaseBasedTest {
+
+	private final String uriO = "USK@8VTguDZehMlShIb7Q~F1wYpOnDK7pSZVwrGArACP~04,MK0wfPtNud~nWyp~oy0Kr1~kFuYfJ9~LlxNribWD4Us,AQACAAE/WoT/0";
+
+	private String mOldActivationDepth;
+
+	@Override
+	protected void setUp() throws Exception {
+		mOldActivationDepth = System.getProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY);
+		System.setProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY, Integer.toString(WebOfTrust.LOW_ACTIVATION_DEPTH));
+		Persistent.setActivationAuditEnabled(true);
+
+		super.setUp();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+
+		Persistent.setActivationAuditEnabled("true".equals(System.getProperty(Persistent.ACTIVATION_AUDIT_PROPERTY)));
+		setActivationDepthProperty(mOldActivationDepth);
+	}
+
+	private static void setActivationDepthProperty(String value) {
+		if(value != null)
+			System.setProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY, value);
+		else
+			System.clearProperty(WebOfTrust.ACTIVATION_DEPTH_PROPERTY);
+	}
+
+	public void testLowActivationDepth() throws Exception {
+		final int auditFailures = Persistent.getActivationAuditFailures();
+
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		for(int i = 0; i < 10; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			identity.addContext("Context" + i);
+			identity.setProperty("Property", Integer.toString(i));
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+
+		for(int i = 0; i < identities.size(); ++i)
+			mWoT.setTrust(o.getID(), identities.get(i).getID(), (byte)(i * 10), "Comment " + i);
+
+		// Load everything from the database again so the objects are only activated as deep as the getters need
+		flushCaches();
+
+		for(int i = 0; i < identities.size(); ++i) {
+			final Identity identity = mWoT.getIdentityByID(identities.get(i).getID());
+			assertEquals("Identity" + i, identity.getNickname());
+			assertEquals(identities.get(i).getRequestURI(), identity.getRequestURI());
+			assertTrue(identity.hasContext("Context" + i));
+			assertEquals(Integer.toString(i), identity.getProperty("Property"));
+
+			final Trust trust = mWoT.getTrust(mWoT.getOwnIdentityByID(o.getID()), identity);
+			assertEquals(i * 10, trust.getValue());
+			assertEquals("Comment " + i, trust.getComment());
+			assertEquals(o.getID(), trust.getTruster().getID());
+
+			final Score score = mWoT.getScore(mWoT.getOwnIdentityByID(o.getID()), identity);
+			assertEquals(i * 10, score.getScore());
+			assertEquals(1, score.getRank());
+		}
+
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+
+		assertEquals(auditFailures, Persistent.getActivationAuditFailures());
+	}
+
+	/**
+	 * Runs the tests of {@link ScoreTest} and {@link TrustTest} with the low activation depth, they open their own databases.
+	 */
+	public void testOtherTestsWithLowActivationDepth() throws Exception {
+		for(Class<?> testClass : new Class<?>[] { ScoreTest.class, TrustTest.class }) {
+			final TestResult result = new TestResult();
+			new TestSuite(testClass).run(result);
+			assertTrue(testClass.getSimpleName() + " failed with the low activation depth", result.wasSuccessful());
+		}
+	}
+
+}
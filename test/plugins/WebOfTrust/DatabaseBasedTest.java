@@ -4,8 +4,17 @@
 package plugins.WebOfTrust;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
 
 import junit.framework.TestCase;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.io.MemoryIoAdapter;
+
+import freenet.support.Base64;
 
 /**
  * A JUnit <code>TestCase</code> which opens a db4o database in setUp() and closes it in tearDown().
@@ -13,6 +22,10 @@ import junit.framework.TestCase;
  * file is deleted after the database has been closed. When setting up the test, it is assured that the database
  * file does not exist, the test will fail if it cannot be deleted.
  * 
+ * By default the database is kept in memory instead of a file, which makes the tests much faster. Tests which need the file
+ * override {@link #isDatabaseInMemory()}. Setting the system property "test.databaseOnDisk" to "true" uses a file for all tests.
+ * Tests which terminate the WoT and load the database again must use {@link #openWebOfTrust()} for that.
+ * 
  * The database can be accessed through the member variable <code>db</code>.
  * 
  * You have to call super.setUp() and super.tearDown() if you override one of those methods.
@@ -22,6 +35,11 @@ import junit.framework.TestCase;
 public class DatabaseBasedTest extends TestCase {
 
 	protected WebOfTrust mWoT;
+	
+	protected final Random mRandom = new Random();
+	
+	/** Stores the database if it is in memory, see {@link #isDatabaseInMemory()}. */
+	private MemoryIoAdapter mMemoryStorage;
 
 	/**
 	 * @return Returns the filename of the database. This is the name of the current test function plus ".db4o".
@@ -29,6 +47,20 @@ public class DatabaseBasedTest extends TestCase {
 	public String getDatabaseFilename() {
 		return getName() + ".db4o";
 	}
+	
+	/**
+	 * @return True if the database of the test is kept in memory instead of a file. Override to return false if the test needs the file.
+	 */
+	protected boolean isDatabaseInMemory() {
+		return !"true".equals(System.getProperty("test.databaseOnDisk"));
+	}
+	
+	/**
+	 * Opens the database of the test, in memory or from the file. After {@link WebOfTrust#terminate()} it opens the same database again.
+	 */
+	protected WebOfTrust openWebOfTrust() {
+		return new WebOfTrust(getDatabaseFilename(), mMemoryStorage);
+	}
 
 	/**
 	 * You have to call super.setUp() if you override this method.
@@ -42,7 +74,9 @@ public class DatabaseBasedTest extends TestCase {
 			databaseFile.delete();
 		assertFalse(databaseFile.exists());;
 		
-		mWoT = new WebOfTrust(getDatabaseFilename());
+		if(isDatabaseInMemory())
+			mMemoryStorage = new MemoryIoAdapter();
+		mWoT = openWebOfTrust();
 	}
 
 	/**
@@ -53,6 +87,8 @@ public class DatabaseBasedTest extends TestCase {
 		super.tearDown();
 		
 		mWoT.terminate();
+		// JUnit keeps the test objects until all tests have run
+		mMemoryStorage = null;
 		
 		new File(getDatabaseFilename()).delete();
 	}
@@ -64,12 +100,124 @@ public class DatabaseBasedTest extends TestCase {
 		
 	}
 	
+	/**
+	 * @return A random, syntactically valid request URI of an identity.
+	 */
+	protected String getRandomRequestURI() {
+		final byte[] routingKey = new byte[32];
+		final byte[] cryptoKey = new byte[32];
+		mRandom.nextBytes(routingKey);
+		mRandom.nextBytes(cryptoKey);
+		return "USK@" + Base64.encode(routingKey) + "," + Base64.encode(cryptoKey) + ",AQACAAE/WoT/0";
+	}
+	
+	/**
+	 * Generates a synthetic web of trust for tests and benchmarks. All trust values are stored in a single transaction and the scores are
+	 * computed once at the end, so large graphs can be created quickly.
+	 * 
+	 * Each own identity trusts up to averageDegree random identities with 100. Each identity gives trust values to distinct random
+	 * identities, about 10% of them negative.
+	 * 
+	 * @param averageDegree The average number of trust values which an identity gives.
+	 * @param powerLaw If false, every identity gives averageDegree trust values. If true, the number of given trust values follows a power law
+	 *     (a Pareto distribution with exponent 2 and the given mean) and half of the trustees are chosen with a probability proportional
+	 *     to the number of trust values they received already, so a few identities give and receive very many trust values as in the
+	 *     real web of trust.
+	 * @return The own identities followed by the other identities.
+	 */
+	protected ArrayList<Identity> generateGraph(int ownIdentityCount, int identityCount, int averageDegree, boolean powerLaw) throws Exception {
+		final ArrayList<Identity> result = new ArrayList<Identity>(ownIdentityCount + identityCount);
+		final ArrayList<Identity> identities = new ArrayList<Identity>(identityCount);
+		
+		for(int i = 0; i < ownIdentityCount; ++i)
+			result.add(mWoT.createOwnIdentity(getRandomRequestURI(), getRandomRequestURI(), "Own" + i, true, "Test"));
+		
+		final ExtObjectContainer db = mWoT.getDatabase();
+		synchronized(mWoT) {
+		mWoT.getLock().lockWrite();
+		try {
+		synchronized(db.lock()) {
+			try {
+				for(int i = 0; i < identityCount; ++i) {
+					final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+					identity.initializeTransient(mWoT);
+					identity.storeWithoutCommit();
+					identities.add(identity);
+				}
+				
+				for(int i = 0; i < ownIdentityCount; ++i)
+					storeRandomTrusts(result.get(i), identities, null, Math.min(averageDegree, identityCount), true);
+				
+				// The ordinals of the trustees of all trust values, for choosing trustees proportionally to their received trust values
+				final ArrayList<Integer> receivedTrusts = powerLaw ? new ArrayList<Integer>(identityCount * averageDegree) : null;
+				for(Identity truster : identities) {
+					int degree = averageDegree;
+					if(powerLaw)
+						degree = (int)Math.round(averageDegree / 2.0 / Math.sqrt(1 - mRandom.nextDouble()));
+					
+					storeRandomTrusts(truster, identities, receivedTrusts, Math.min(degree, identityCount - 1), false);
+				}
+				
+				mWoT.computeAllScoresWithoutCommit();
+				Persistent.checkedCommit(db, this);
+			}
+			catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(db, this, e);
+			}
+		}
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
+		}
+		
+		result.addAll(identities);
+		return result;
+	}
+	
+	/**
+	 * Stores trust values from the truster to the given amount of distinct random identities, see {@link #generateGraph(int, int, int, boolean)}.
+	 * @param receivedTrusts If not null, half of the trustees are chosen from it and the indices of all trustees are added to it.
+	 */
+	private void storeRandomTrusts(Identity truster, ArrayList<Identity> identities, ArrayList<Integer> receivedTrusts, int count,
+			boolean seed) throws InvalidParameterException {
+		
+		final HashSet<Integer> trustees = new HashSet<Integer>(count * 2);
+		while(trustees.size() < count) {
+			final int trustee;
+			if(receivedTrusts != null && receivedTrusts.size() > 0 && mRandom.nextBoolean())
+				trustee = receivedTrusts.get(mRandom.nextInt(receivedTrusts.size()));
+			else
+				trustee = mRandom.nextInt(identities.size());
+			
+			if(identities.get(trustee) == truster || !trustees.add(trustee))
+				continue;
+			
+			final byte value;
+			if(seed)
+				value = 100;
+			else if(mRandom.nextInt(10) == 0)
+				value = (byte)-(mRandom.nextInt(100) + 1);
+			else
+				value = (byte)(mRandom.nextInt(100) + 1);
+			
+			final Trust trust = new Trust(truster, identities.get(trustee), value, "");
+			trust.initializeTransient(mWoT);
+			trust.storeWithoutCommit();
+			
+			if(receivedTrusts != null)
+				receivedTrusts.add(trustee);
+		}
+	}
+	
 	protected void flushCaches() {
 		System.gc();
 		System.runFinalization();
 		if(mWoT != null) {
 			mWoT.getDatabase().rollback();
 			mWoT.getDatabase().purge();
+			// The lookup caches would keep the purged objects
+			mWoT.getTrustCache().clear();
+			mWoT.getScoreCache().clear();
 		}
 		System.gc();
 		System.runFinalization();
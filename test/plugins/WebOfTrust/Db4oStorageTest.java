@@ -0,0 +1,90 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+/**
+ * Tests the queries of {@link Db4oStorage}, which the query functions of {@link WebOfTrust} delegate to.
+ */
+public class Db4oStorageTest extends DatabaseBasedTest {
+
+	private WoTStorage mStorage;
+
+	private String mOwnerID;
+
+	private String mIdentityAID;
+
+	private String mIdentityBID;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mStorage = mWoT.getStorage();
+
+		final OwnIdentity owner = mWoT.createOwnIdentity(getRandomRequestURI(), getRandomRequestURI(), "Owner", true, "Test");
+		final Identity a = new Identity(getRandomRequestURI(), "A", true); a.initializeTransient(mWoT); a.storeAndCommit();
+		final Identity b = new Identity(getRandomRequestURI(), "B", true); b.initializeTransient(mWoT); b.storeAndCommit();
+
+		mWoT.setTrust(owner, a, (byte)100, "Foo");
+		mWoT.setTrustWithoutCommit(a, b, (byte)50, "Bar");
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+
+		mOwnerID = owner.getID();
+		mIdentityAID = a.getID();
+		mIdentityBID = b.getID();
+
+		flushCaches();
+	}
+
+	public void testIdentities() throws Exception {
+		final OwnIdentity owner = mStorage.getOwnIdentityByID(mOwnerID);
+		final Identity a = mStorage.getIdentityByID(mIdentityAID);
+
+		assertEquals(mOwnerID, owner.getID());
+		assertSame(owner, mStorage.getIdentityByID(mOwnerID));
+		assertEquals(mIdentityAID, a.getID());
+		assertNull(mStorage.getOwnIdentityByID(mIdentityAID));
+		assertNull(mStorage.getIdentityByID(new Identity(getRandomRequestURI(), "C", true).getID()));
+
+		assertEquals(3, mStorage.getAllIdentities().size());
+		assertEquals(2, mStorage.getAllNonOwnIdentities().size());
+		assertEquals(1, mStorage.getAllOwnIdentities().size());
+	}
+
+	public void testTrusts() {
+		final OwnIdentity owner = mStorage.getOwnIdentityByID(mOwnerID);
+		final Identity a = mStorage.getIdentityByID(mIdentityAID);
+		final Identity b = mStorage.getIdentityByID(mIdentityBID);
+
+		final Trust trust = mStorage.getTrust(a, b);
+		assertSame(a, trust.getTruster());
+		assertSame(b, trust.getTrustee());
+		assertEquals(50, trust.getValue());
+		assertNull(mStorage.getTrust(b, a));
+		assertNull(mStorage.getTrust(owner, b));
+
+		assertEquals(1, mStorage.getGivenTrusts(a).size());
+		assertEquals(1, mStorage.getReceivedTrusts(a).size());
+		assertEquals(0, mStorage.getGivenTrusts(b).size());
+		assertEquals(2, mStorage.getAllTrusts().size());
+	}
+
+	public void testScores() {
+		final OwnIdentity owner = mStorage.getOwnIdentityByID(mOwnerID);
+		final Identity a = mStorage.getIdentityByID(mIdentityAID);
+		final Identity b = mStorage.getIdentityByID(mIdentityBID);
+
+		final Score score = mStorage.getScore(owner, b);
+		assertSame(owner, score.getTruster());
+		assertSame(b, score.getTrustee());
+		assertEquals(2, score.getRank());
+		assertNotNull(mStorage.getScore(owner, a));
+		assertNotNull(mStorage.getScore(owner, owner));
+
+		assertEquals(1, mStorage.getReceivedScores(b).size());
+		assertEquals(3, mStorage.getGivenScores(owner).size());
+		assertEquals(3, mStorage.getAllScores().size());
+	}
+
+}
@@ -0,0 +1,97 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Tests {@link DatabaseBasedTest#generateGraph(int, int, int, boolean)} and the score computation on the synthetic graphs which it
+ * generates.
+ */
+public final class GeneratedGraphTest extends DatabaseBasedTest {
+
+	public void testGenerateGraph() throws Exception {
+		final int identityCount = 200;
+		final int degree = 5;
+
+		for(boolean powerLaw : new boolean[] { false, true }) {
+			final int oldIdentityCount = mWoT.getAllIdentities().size();
+			final int oldTrustCount = mWoT.getAllTrusts().size();
+
+			final ArrayList<Identity> identities = generateGraph(2, identityCount, degree, powerLaw);
+			assertEquals(2 + identityCount, identities.size());
+			assertTrue(identities.get(0) instanceof OwnIdentity);
+			assertTrue(identities.get(1) instanceof OwnIdentity);
+			assertEquals(oldIdentityCount + 2 + identityCount, mWoT.getAllIdentities().size());
+
+			final HashSet<String> trustIDs = new HashSet<String>();
+			int trustCount = 0;
+			for(Identity truster : identities) {
+				for(Trust trust : mWoT.getGivenTrusts(truster)) {
+					assertNotSame(truster, trust.getTrustee());
+					assertTrue(trustIDs.add(trust.getID()));
+					++trustCount;
+				}
+			}
+			assertEquals(mWoT.getAllTrusts().size() - oldTrustCount, trustCount);
+			assertEquals(2 * degree, mWoT.getGivenTrusts(identities.get(0)).size() + mWoT.getGivenTrusts(identities.get(1)).size());
+
+			if(!powerLaw)
+				assertEquals(2 * degree + identityCount * degree, trustCount);
+			else {
+				// The mean of the power law is the degree, allow for randomness
+				assertTrue(trustCount > identityCount * degree / 2);
+				assertTrue(trustCount < identityCount * degree * 2);
+			}
+		}
+
+		flushCaches();
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+
+	public void testUniformGraphScoreComputation() throws Exception {
+		testScoreComputation(false);
+	}
+
+	public void testPowerLawGraphScoreComputation() throws Exception {
+		testScoreComputation(true);
+	}
+
+	/**
+	 * Checks the scores after generating the graph and after incremental score computations of single trust changes of the owner.
+	 */
+	private void testScoreComputation(boolean powerLaw) throws Exception {
+		final int identityCount = 200;
+		final int trustChanges = 20;
+
+		final ArrayList<Identity> identities = generateGraph(1, identityCount, 5, powerLaw);
+		assertTrue(mWoT.getAllScores().size() > 1);
+
+		flushCaches();
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+
+		final OwnIdentity owner = (OwnIdentity)identities.get(0);
+		for(int i = 0; i < trustChanges; ++i) {
+			final Identity trustee = identities.get(1 + mRandom.nextInt(identityCount));
+			mWoT.setTrust(owner.getID(), trustee.getID(), (byte)(mRandom.nextInt(201) - 100), "Changed");
+		}
+
+		flushCaches();
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+
+}
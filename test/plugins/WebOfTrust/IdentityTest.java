@@ -4,11 +4,17 @@
 package plugins.WebOfTrust;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 
 import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.keys.FreenetURI;
 
 /**
  * @author xor (xor@freenetproject.org)
@@ -84,7 +90,7 @@ public class IdentityTest extends DatabaseBasedTest {
 		
 		flushCaches();
 		
-		mWoT = new WebOfTrust(getDatabaseFilename());
+		mWoT = openWebOfTrust();
 		
 		identity.initializeTransient(mWoT);  // Prevent DatabaseClosedException in .equals()
 		
@@ -97,6 +103,75 @@ public class IdentityTest extends DatabaseBasedTest {
 		assertEquals(identity.getLastChangeDate(), stored.getLastChangeDate());
 	}
 	
+	/**
+	 * Tests whether the request URI, which is constructed from the ID, crypto key, extra bytes and edition, survives changes of the edition
+	 * and loading the identity from the database.
+	 */
+	public void testRequestURI() throws Exception {
+		final FreenetURI expected = new FreenetURI(uri);
+		final Identity a = mWoT.getIdentityByURI(uri);
+		assertEquals(expected, a.getRequestURI());
+		assertEquals(0, a.getEdition());
+		assertTrue(Arrays.equals(expected.getRoutingKey(), Identity.getRoutingKeyFromID(a.getID())));
+		
+		// The document name and edition are normalized, the edition is used as hint only
+		final Identity b = new Identity(uriB.replace("/WoT/0", "/Other/10"), "B", true);
+		assertEquals(new FreenetURI(uriB), b.getRequestURI());
+		assertEquals(10, b.getLatestEditionHint());
+		
+		a.setEdition(5);
+		assertEquals(5, a.getEdition());
+		assertEquals(expected.setSuggestedEdition(5), a.getRequestURI());
+		a.storeAndCommit();
+		
+		a.markForRefetch();
+		assertEquals(4, a.getEdition());
+		
+		mWoT.terminate();
+		mWoT = null;
+		flushCaches();
+		mWoT = openWebOfTrust();
+		
+		final Identity stored = mWoT.getIdentityByURI(uri);
+		assertNotSame(a, stored);
+		assertEquals(5, stored.getEdition());
+		assertEquals(expected.setSuggestedEdition(5), stored.getRequestURI());
+		stored.startupDatabaseIntegrityTest();
+	}
+	
+	/**
+	 * Tests whether identities store their request URI without {@link FreenetURI} objects: Only the insert URIs of own identities are
+	 * stored as such.
+	 */
+	public void testNoStoredRequestURIs() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final ArrayList<String> uris = new ArrayList<String>();
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			for(int i = 0; i < 100; ++i) {
+				final String requestURI = getRandomRequestURI();
+				final Identity newIdentity = new Identity(requestURI, "Identity" + i, true);
+				newIdentity.initializeTransient(mWoT);
+				newIdentity.storeWithoutCommit();
+				uris.add(requestURI);
+			}
+			Persistent.checkedCommit(db, this);
+		}
+		}
+		
+		mWoT.createOwnIdentity(getRandomRequestURI(), getRandomRequestURI(), "Own", true, "Test");
+		identity = null;
+		flushCaches();
+		
+		final Query q = db.query();
+		q.constrain(FreenetURI.class);
+		assertEquals(1, q.execute().size());
+		
+		for(String requestURI : uris)
+			assertEquals(new FreenetURI(requestURI), mWoT.getIdentityByURI(requestURI).getRequestURI());
+	}
+	
 //	public void testEquals() {
 //		do {
 //			try {
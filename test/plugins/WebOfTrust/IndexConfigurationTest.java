@@ -0,0 +1,639 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import plugins.WebOfTrust.WebOfTrust.SortOrder;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
+import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.introduction.OwnIntroductionPuzzle;
+
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.support.CurrentTimeUTC;
+
+/**
+ * Tests the index configuration of {@link WebOfTrust#openDatabase(File)} which is driven by the {@link Persistent.IndexedClass} and
+ * {@link Persistent.IndexedField} annotations.
+ *
+ * {@link #testIndexConfigurationResults()} runs every query shape of {@link WebOfTrust} and {@link IntroductionPuzzleStore} on a generated
+ * database with the annotated indices, with class indices for all classes and with each of the field indices disabled, and checks that all
+ * of them return the same results. The point lookups of getTrust() and getScore() are also compared with the query by truster and trustee
+ * which they used before {@link Trust#getID()} and {@link Score#getID()} existed.
+ */
+public final class IndexConfigurationTest extends DatabaseBasedTest {
+
+	private final String uriO = "USK@8VTguDZehMlShIb7Q~F1wYpOnDK7pSZVwrGArACP~04,MK0wfPtNud~nWyp~oy0Kr1~kFuYfJ9~LlxNribWD4Us,AQACAAE/WoT/0";
+	private final String uriS = "USK@hAOgofNsQEbT~aRqGuXwt8vI7tOeQVCrcIHrD9PvS6g,fG7LHRJhczCAApOwgaXNJO41L8wRIZj9oN37LSLZZY8,AQACAAE/WoT/0";
+
+	/** The persistent classes of {@link WebOfTrust#openDatabase(File)} */
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends Persistent>[] PERSISTENT_CLASSES = new Class[] {
+		Identity.class,
+		OwnIdentity.class,
+		Trust.class,
+		Score.class,
+		IntroductionPuzzle.class,
+		OwnIntroductionPuzzle.class
+	};
+
+	/** The number of times each query shape is run with different parameters */
+	private static final int ITERATIONS = 20;
+
+	private String mOldDisabledIndices;
+
+	private String mOldAllClassIndices;
+
+	/* The parameters of the queries. They are stored as db4o object IDs because those stay valid when the database is copied. */
+
+	private long[] mIdentityObjectIDs;
+
+	private long[] mOwnIdentityObjectIDs;
+
+	private long[] mTrusterObjectIDs;
+
+	private long[] mTrusteeObjectIDs;
+
+	private long[] mPuzzleInserterObjectIDs;
+
+	private String[] mPuzzleIDs;
+
+	/* The parameters resolved in the database of the current configuration */
+
+	private WebOfTrust mTestedWoT;
+
+	private Identity[] mIdentities;
+
+	private OwnIdentity[] mOwnIdentities;
+
+	private Identity[] mTrusters;
+
+	private Identity[] mTrustees;
+
+	private Identity[] mPuzzleInserters;
+
+	private Date mToday;
+
+
+	/**
+	 * The test copies the database file for opening it with each configuration.
+	 */
+	@Override
+	protected boolean isDatabaseInMemory() {
+		return false;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		mOldDisabledIndices = System.getProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+		mOldAllClassIndices = System.getProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+		System.clearProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+		System.clearProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+
+		super.setUp();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+
+		setProperty(WebOfTrust.DISABLED_INDICES_PROPERTY, mOldDisabledIndices);
+		setProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY, mOldAllClassIndices);
+	}
+
+	private static void setProperty(String key, String value) {
+		if(value != null)
+			System.setProperty(key, value);
+		else
+			System.clearProperty(key);
+	}
+
+	/**
+	 * Tests whether the queries which depend on class indices still work with the annotated configuration: Queries for a parent class must
+	 * return the objects of the child classes, which are in the class indices of the child classes.
+	 */
+	public void testIndexConfiguration() throws Exception {
+		assertNotNull(Identity.class.getAnnotation(Persistent.IndexedClass.class));
+		assertNull(Persistent.class.getAnnotation(Persistent.IndexedClass.class));
+
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final Identity a = new Identity(getRandomRequestURI(), "A", true);
+		a.initializeTransient(mWoT);
+		a.storeAndCommit();
+		mWoT.setTrust(o, a, (byte)100, "Trust");
+
+		flushCaches();
+
+		assertEquals(2, mWoT.getAllIdentities().size());
+		assertEquals(1, mWoT.getAllOwnIdentities().size());
+		assertEquals(1, mWoT.getAllTrusts().size());
+		assertEquals(a.getID(), mWoT.getIdentityByID(a.getID()).getID());
+		assertEquals(o.getID(), mWoT.getIdentityByID(o.getID()).getID());
+
+		final Query q = mWoT.getDatabase().query();
+		q.constrain(Persistent.class);
+		assertTrue(q.execute().size() >= 4);
+	}
+
+	/**
+	 * Compares the results of all query shapes with the different index configurations to the configuration of class indices for all
+	 * classes: The annotated class indices must be sufficient and the field indices must not change any result.
+	 */
+	public void testIndexConfigurationResults() throws Exception {
+		generateDatabase(100);
+		mWoT.terminate();
+
+		final File template = new File(getName() + ".template.db4o");
+		copyFile(new File(getDatabaseFilename()), template);
+
+		final ArrayList<QueryShape> shapes = getQueryShapes();
+
+		try {
+			System.setProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY, "true");
+			final int[] allClassIndices = runConfiguration(template, shapes);
+			System.clearProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+
+			assertResultsEqual("annotated", allClassIndices, runConfiguration(template, shapes), shapes);
+
+			for(String disabled : getFieldIndices()) {
+				System.setProperty(WebOfTrust.DISABLED_INDICES_PROPERTY, disabled);
+				final int[] result = runConfiguration(template, shapes);
+				System.clearProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+
+				assertResultsEqual("without " + disabled, allClassIndices, result, shapes);
+			}
+		} finally {
+			System.clearProperty(WebOfTrust.ALL_CLASS_INDICES_PROPERTY);
+			System.clearProperty(WebOfTrust.DISABLED_INDICES_PROPERTY);
+			template.delete();
+
+			// tearDown() terminates it
+			mWoT = new WebOfTrust(getDatabaseFilename());
+		}
+	}
+
+	private static void assertResultsEqual(String configuration, int[] expected, int[] actual, ArrayList<QueryShape> shapes) {
+		for(int i = 0; i < shapes.size(); ++i)
+			assertEquals(shapes.get(i).mName + " " + configuration, expected[i], actual[i]);
+	}
+
+	private void generateDatabase(int identityCount) throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final IntroductionPuzzleStore puzzleStore = new IntroductionPuzzleStore(mWoT);
+		final Date now = CurrentTimeUTC.get();
+		final byte[] puzzleData = new byte[] { 1 };
+
+		final ArrayList<Identity> identities = new ArrayList<Identity>(identityCount + 2);
+		final OwnIdentity[] ownIdentities = new OwnIdentity[] {
+			mWoT.createOwnIdentity(uriO, uriO, "O", true, IntroductionPuzzle.INTRODUCTION_CONTEXT),
+			mWoT.createOwnIdentity(uriS, uriS, "S", true, IntroductionPuzzle.INTRODUCTION_CONTEXT)
+		};
+
+		for(int i = 0; i < identityCount; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			if(i % 10 == 0)
+				identity.addContext(IntroductionPuzzle.INTRODUCTION_CONTEXT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+
+		final ArrayList<Trust> trusts = new ArrayList<Trust>();
+		synchronized(mWoT) {
+		mWoT.getLock().lockWrite();
+		try {
+		synchronized(db.lock()) {
+			for(OwnIdentity truster : ownIdentities) {
+				for(int i = 0; i < Math.min(20, identities.size()); ++i)
+					trusts.add(new Trust(truster, identities.get(mRandom.nextInt(identities.size())), (byte)100, "Seed"));
+			}
+
+			for(Identity truster : identities) {
+				for(int i = 0; i < 10; ++i) {
+					final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+					if(trustee != truster)
+						trusts.add(new Trust(truster, trustee, (byte)(mRandom.nextInt(201) - 100), ""));
+				}
+			}
+
+			final ArrayList<Trust> storedTrusts = new ArrayList<Trust>(trusts.size());
+			for(Trust trust : trusts) {
+				try {
+					mWoT.getTrust(trust.getTruster(), trust.getTrustee());
+				} catch(NotTrustedException e) {
+					trust.initializeTransient(mWoT);
+					trust.storeWithoutCommit();
+					storedTrusts.add(trust);
+				}
+			}
+			trusts.clear();
+			trusts.addAll(storedTrusts);
+
+			mWoT.computeAllScoresWithoutCommit();
+
+			Persistent.checkedCommit(db, this);
+		}
+		} finally {
+			mWoT.getLock().unlockWrite();
+		}
+		}
+
+		final ArrayList<Identity> puzzleInserters = new ArrayList<Identity>();
+		final ArrayList<String> puzzleIDs = new ArrayList<String>();
+		for(OwnIdentity inserter : ownIdentities) {
+			for(int i = 0; i < 10; ++i) {
+				final OwnIntroductionPuzzle puzzle = new OwnIntroductionPuzzle(inserter, PuzzleType.Captcha, "image/jpeg", puzzleData, "solution",
+					now, i);
+				puzzleStore.storeAndCommit(puzzle);
+				puzzleIDs.add(puzzle.getID());
+			}
+			puzzleInserters.add(inserter);
+		}
+		for(Identity inserter : identities) {
+			if(!inserter.hasContext(IntroductionPuzzle.INTRODUCTION_CONTEXT))
+				continue;
+
+			for(int i = 0; i < 2; ++i) {
+				final IntroductionPuzzle puzzle = new IntroductionPuzzle(inserter, UUID.randomUUID().toString() + "@" + inserter.getID(),
+					PuzzleType.Captcha, "image/jpeg", puzzleData, now, new Date(now.getTime() + 24 * 60 * 60 * 1000), i);
+				puzzleStore.storeAndCommit(puzzle);
+				puzzleIDs.add(puzzle.getID());
+			}
+			puzzleInserters.add(inserter);
+		}
+
+		mIdentityObjectIDs = getObjectIDs(db, identities);
+		mOwnIdentityObjectIDs = getObjectIDs(db, Arrays.asList(ownIdentities));
+		mPuzzleInserterObjectIDs = getObjectIDs(db, puzzleInserters);
+		mPuzzleIDs = puzzleIDs.toArray(new String[puzzleIDs.size()]);
+
+		mTrusterObjectIDs = new long[trusts.size()];
+		mTrusteeObjectIDs = new long[trusts.size()];
+		for(int i = 0; i < trusts.size(); ++i) {
+			mTrusterObjectIDs[i] = db.getID(trusts.get(i).getTruster());
+			mTrusteeObjectIDs[i] = db.getID(trusts.get(i).getTrustee());
+		}
+	}
+
+	private static long[] getObjectIDs(ExtObjectContainer db, List<? extends Identity> identities) {
+		final long[] result = new long[identities.size()];
+		for(int i = 0; i < result.length; ++i)
+			result[i] = db.getID(identities.get(i));
+		return result;
+	}
+
+	/**
+	 * @return The values of {@link WebOfTrust#DISABLED_INDICES_PROPERTY} which disable each annotated field index.
+	 */
+	private static ArrayList<String> getFieldIndices() {
+		final ArrayList<String> result = new ArrayList<String>();
+
+		for(Class<? extends Persistent> clazz : PERSISTENT_CLASSES) {
+			for(Field field : clazz.getDeclaredFields()) {
+				if(field.getAnnotation(Persistent.IndexedField.class) != null)
+					result.add(clazz.getSimpleName() + "." + field.getName());
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Opens a copy of the template database with the index configuration of the current system properties and runs each query shape for
+	 * {@link #ITERATIONS} iterations.
+	 * 
+	 * @return The sum of the result sizes of all iterations of each query shape.
+	 */
+	private int[] runConfiguration(File template, ArrayList<QueryShape> shapes) throws Exception {
+		final File file = new File(getName() + ".configuration.db4o");
+		copyFile(template, file);
+
+		mTestedWoT = new WebOfTrust(file.getAbsolutePath());
+		try {
+			resolveParameters();
+
+			final int[] result = new int[shapes.size()];
+			for(int shape = 0; shape < shapes.size(); ++shape) {
+				for(int i = 0; i < ITERATIONS; ++i) {
+					mTestedWoT.getTrustCache().clear();
+					mTestedWoT.getScoreCache().clear();
+					result[shape] += runQuery(shapes.get(shape), i);
+				}
+			}
+			return result;
+		} finally {
+			mTestedWoT.terminate();
+			mTestedWoT = null;
+			file.delete();
+		}
+	}
+
+	private int runQuery(QueryShape shape, int iteration) throws Exception {
+		mTestedWoT.getLock().lockRead();
+		try {
+			return shape.run(iteration);
+		} finally {
+			mTestedWoT.getLock().unlockRead();
+		}
+	}
+
+	private void resolveParameters() {
+		final ExtObjectContainer db = mTestedWoT.getDatabase();
+
+		mIdentities = new Identity[mIdentityObjectIDs.length];
+		for(int i = 0; i < mIdentities.length; ++i)
+			mIdentities[i] = (Identity)getByObjectID(db, mIdentityObjectIDs[i]);
+
+		mOwnIdentities = new OwnIdentity[mOwnIdentityObjectIDs.length];
+		for(int i = 0; i < mOwnIdentities.length; ++i)
+			mOwnIdentities[i] = (OwnIdentity)getByObjectID(db, mOwnIdentityObjectIDs[i]);
+
+		mTrusters = new Identity[mTrusterObjectIDs.length];
+		mTrustees = new Identity[mTrusteeObjectIDs.length];
+		for(int i = 0; i < mTrusters.length; ++i) {
+			mTrusters[i] = (Identity)getByObjectID(db, mTrusterObjectIDs[i]);
+			mTrustees[i] = (Identity)getByObjectID(db, mTrusteeObjectIDs[i]);
+		}
+
+		mPuzzleInserters = new Identity[mPuzzleInserterObjectIDs.length];
+		for(int i = 0; i < mPuzzleInserters.length; ++i)
+			mPuzzleInserters[i] = (Identity)getByObjectID(db, mPuzzleInserterObjectIDs[i]);
+
+		mToday = TimeUtil.setTimeToZero(CurrentTimeUTC.get());
+	}
+
+	private Persistent getByObjectID(ExtObjectContainer db, long id) {
+		final Persistent object = (Persistent)db.getByID(id);
+		db.activate(object, 4);
+		object.initializeTransient(mTestedWoT);
+		return object;
+	}
+
+	private Identity identity(int iteration) {
+		return mIdentities[iteration % mIdentities.length];
+	}
+
+	private OwnIdentity ownIdentity(int iteration) {
+		return mOwnIdentities[iteration % mOwnIdentities.length];
+	}
+
+	private Identity puzzleInserter(int iteration) {
+		return mPuzzleInserters[iteration % mPuzzleInserters.length];
+	}
+
+	private Query query(Class<?> clazz) {
+		final Query q = mTestedWoT.getDatabase().query();
+		q.constrain(clazz);
+		return q;
+	}
+
+	/**
+	 * A query which is tested. The parameters are chosen by the number of the iteration so each configuration runs the same queries.
+	 */
+	private static abstract class QueryShape {
+		final String mName;
+
+		QueryShape(String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return The size of the result of the query.
+		 */
+		abstract int run(int iteration) throws Exception;
+	}
+
+	private ArrayList<QueryShape> getQueryShapes() {
+		final ArrayList<QueryShape> shapes = new ArrayList<QueryShape>();
+
+		/* WebOfTrust */
+
+		shapes.add(new QueryShape("WebOfTrust.getIdentityByID") { int run(int i) throws Exception {
+			try {
+				mTestedWoT.getIdentityByID(identity(i).getID());
+				return 1;
+			} catch(UnknownIdentityException e) {
+				return 0;
+			}
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getOwnIdentityByID") { int run(int i) throws Exception {
+			try {
+				mTestedWoT.getOwnIdentityByID(ownIdentity(i).getID());
+				return 1;
+			} catch(UnknownIdentityException e) {
+				return 0;
+			}
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllIdentities") { int run(int i) {
+			return mTestedWoT.getAllIdentities().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllIdentitiesFilteredAndSorted") { int run(int i) {
+			return mTestedWoT.getAllIdentitiesFilteredAndSorted(ownIdentity(i), "", SortOrder.ByScoreDescending).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllNonOwnIdentities") { int run(int i) {
+			return mTestedWoT.getAllNonOwnIdentities().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllNonOwnIdentitiesSortedByModification") { int run(int i) {
+			return mTestedWoT.getAllNonOwnIdentitiesSortedByModification().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllOwnIdentities") { int run(int i) {
+			return mTestedWoT.getAllOwnIdentities().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllIdentitiesToFetch") { int run(int i) {
+			return mTestedWoT.getAllIdentitiesToFetch().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getTrust") { int run(int i) throws Exception {
+			final int pair = i % mTrusters.length;
+			try {
+				mTestedWoT.getTrust(mTrusters[pair], mTrustees[pair]);
+				return 1;
+			} catch(NotTrustedException e) {
+				return 0;
+			}
+		}});
+		// The query of getTrust() before the composite key Trust.mID existed
+		shapes.add(new QueryShape("WebOfTrust.getTrust by mTruster and mTrustee") { int run(int i) {
+			final int pair = i % mTrusters.length;
+			final Query q = query(Trust.class);
+			q.descend("mTruster").constrain(mTrusters[pair]).identity();
+			q.descend("mTrustee").constrain(mTrustees[pair]).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenTrusts") { int run(int i) {
+			return mTestedWoT.getGivenTrusts(identity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenTrusts(select)") { int run(int i) {
+			return mTestedWoT.getGivenTrusts(identity(i), 1).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenTrustsOlderThan") { int run(int i) {
+			return mTestedWoT.getGivenTrustsOlderThan(identity(i), 1).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getReceivedTrusts") { int run(int i) {
+			return mTestedWoT.getReceivedTrusts(identity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getReceivedTrusts(select)") { int run(int i) {
+			return mTestedWoT.getReceivedTrusts(identity(i), 1).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllTrusts") { int run(int i) {
+			return mTestedWoT.getAllTrusts().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getScore") { int run(int i) throws Exception {
+			try {
+				mTestedWoT.getScore(ownIdentity(i), identity(i));
+				return 1;
+			} catch(NotInTrustTreeException e) {
+				return 0;
+			}
+		}});
+		// The query of getScore() before the composite key Score.mID existed
+		shapes.add(new QueryShape("WebOfTrust.getScore by mTruster and mTrustee") { int run(int i) {
+			final Query q = query(Score.class);
+			q.descend("mTruster").constrain(ownIdentity(i)).identity();
+			q.descend("mTrustee").constrain(identity(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getScores") { int run(int i) {
+			return mTestedWoT.getScores(identity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getGivenScores") { int run(int i) {
+			return mTestedWoT.getGivenScores(ownIdentity(i)).size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getBestCapacity") { int run(int i) throws Exception {
+			try {
+				return mTestedWoT.getBestCapacity(identity(i)) > 0 ? 1 : 0;
+			} catch(NotInTrustTreeException e) {
+				return 0;
+			}
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getAllScores") { int run(int i) {
+			return mTestedWoT.getAllScores().size();
+		}});
+		shapes.add(new QueryShape("WebOfTrust.getIdentitiesByScore") { int run(int i) {
+			return mTestedWoT.getIdentitiesByScore(ownIdentity(i), 1).size();
+		}});
+
+		/* IntroductionPuzzleStore: Most of its query functions are not accessible from this package, so the queries are replicated. */
+
+		shapes.add(new QueryShape("IntroductionPuzzleStore.deleteExpiredPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mValidUntilDate").constrain(CurrentTimeUTC.get()).smaller();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.deleteOldestUnsolvedPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mValidUntilDate").orderAscending();
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.onIdentityDeletion(mInserter)") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mInserter").constrain(puzzleInserter(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.onIdentityDeletion(mSolver)") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mSolver").constrain(identity(i)).identity();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getByID") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mID").constrain(mPuzzleIDs[i % mPuzzleIDs.length]);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getFreeIndex") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mInserter").constrain(ownIdentity(i)).identity();
+			q.descend("mDateOfInsertion").constrain(mToday);
+			q.descend("mIndex").orderDescending();
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUninsertedOwnPuzzlesByInserter") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mInserter").constrain(ownIdentity(i)).identity();
+			q.descend("mWasInserted").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUnsolvedByInserter") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mInserter").constrain(ownIdentity(i)).identity();
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getOfTodayByInserter") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mInserter").constrain(puzzleInserter(i)).identity();
+			q.descend("mDateOfInsertion").constrain(mToday);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getByInserterDateIndex") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.descend("mInserter").constrain(puzzleInserter(i)).identity();
+			q.descend("mDateOfInsertion").constrain(mToday);
+			q.descend("mIndex").constrain(i % 2);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUnsolvedPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mValidUntilDate").orderDescending();
+			q.descend("mWasSolved").constrain(false);
+			q.descend("mType").constrain(PuzzleType.Captcha);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getUninsertedSolvedPuzzles") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mWasSolved").constrain(true);
+			q.descend("mWasInserted").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getOwnCatpchaAmount") { int run(int i) {
+			final Query q = query(OwnIntroductionPuzzle.class);
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+		shapes.add(new QueryShape("IntroductionPuzzleStore.getNonOwnCaptchaAmount") { int run(int i) {
+			final Query q = query(IntroductionPuzzle.class);
+			q.constrain(OwnIntroductionPuzzle.class).not();
+			q.descend("mWasSolved").constrain(false);
+			return q.execute().size();
+		}});
+
+		return shapes;
+	}
+
+	private static void copyFile(File source, File destination) throws IOException {
+		final FileInputStream in = new FileInputStream(source);
+		try {
+			final FileOutputStream out = new FileOutputStream(destination);
+			try {
+				final byte[] buffer = new byte[64 * 1024];
+				int read;
+				while((read = in.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
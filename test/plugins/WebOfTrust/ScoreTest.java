@@ -3,6 +3,7 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
@@ -59,7 +60,7 @@ public class ScoreTest extends DatabaseBasedTest {
 		
 		flushCaches();
 		
-		mWoT = new WebOfTrust(getDatabaseFilename());
+		mWoT = openWebOfTrust();
 		a = mWoT.getOwnIdentityByURI(uriA);
 		b = mWoT.getOwnIdentityByURI(uriB);
 		final Score score = mWoT.getScore(a, b);
@@ -105,4 +106,32 @@ public class ScoreTest extends DatabaseBasedTest {
 			assertFalse(score.equals(other));
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Tests whether {@link Score#upgradeDatabaseFormatVersion49WithoutCommit()} computes the ID of a score which was stored without one.
+	 */
+	public void testUpgradeDatabaseFormatVersion49() throws Exception {
+		final Score score = mWoT.getScore(a, b);
+		assertEquals(Score.getID(a, b), score.getID());
+		
+		final Field id = Score.class.getDeclaredField("mID");
+		id.setAccessible(true);
+		id.set(score, null);
+		mWoT.getDatabase().store(score);
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+		flushCaches();
+		
+		try {
+			mWoT.getScore(a, b);
+			fail("getScore() should not find scores without ID");
+		} catch(NotInTrustTreeException e) { }
+		
+		for(Score s : mWoT.getAllScores())
+			s.upgradeDatabaseFormatVersion49WithoutCommit();
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+		// upgradeDB() runs before the lookup caches are created, so the upgrade does not invalidate them
+		flushCaches();
+		
+		assertEquals(Score.getID(a, b), mWoT.getScore(a, b).getID());
+	}
+}
@@ -0,0 +1,252 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * Tests whether the {@link TrustGraph} stays consistent with the {@link Trust} objects in the database.
+ */
+public class TrustGraphTest extends DatabaseBasedTest {
+
+	private OwnIdentity mOwner;
+
+	private ArrayList<Identity> mIdentities;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mOwner = mWoT.createOwnIdentity(getRandomRequestURI(), getRandomRequestURI(), "Owner", true, "Test");
+	}
+
+	/**
+	 * Creates the given amount of identities and assigns random trust values from each of them to the given amount of random other identities.
+	 * The owner trusts the first identity. Commits the transaction.
+	 */
+	private void createRandomGraph(int identityCount, int trustCountPerIdentity) throws Exception {
+		mIdentities = new ArrayList<Identity>(identityCount);
+
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			for(int i = 0; i < identityCount; ++i) {
+				final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+				identity.initializeTransient(mWoT);
+				identity.storeWithoutCommit();
+				mIdentities.add(identity);
+			}
+
+			for(Identity truster : mIdentities) {
+				for(int i = 0; i < trustCountPerIdentity; ++i) {
+					final Identity trustee = mIdentities.get(mRandom.nextInt(identityCount));
+					if(trustee != truster)
+						mWoT.setTrustWithoutCommit(truster, trustee, (byte)(mRandom.nextInt(201) - 100), "");
+				}
+			}
+
+			mWoT.setTrustWithoutCommit(mOwner, mIdentities.get(0), (byte)100, "");
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}
+		}
+	}
+
+	/**
+	 * Asserts that the given graph contains exactly the {@link Trust} objects of the database.
+	 */
+	private void assertGraphEqualsDatabase(TrustGraph graph) {
+		int edgeCount = 0;
+
+		for(Identity truster : mWoT.getAllIdentities()) {
+			final int trusterOrdinal = graph.getOrdinal(truster);
+			final HashSet<Integer> givenTrusts = new HashSet<Integer>();
+
+			for(Trust trust : mWoT.getGivenTrusts(truster)) {
+				final int trusteeOrdinal = graph.getOrdinal(trust.getTrustee());
+				assertTrue(trusterOrdinal != TrustGraph.NO_ORDINAL);
+				assertTrue(trusteeOrdinal != TrustGraph.NO_ORDINAL);
+				assertEquals(trust.getValue(), graph.getTrustValue(trusterOrdinal, trusteeOrdinal));
+				givenTrusts.add(trusteeOrdinal);
+				++edgeCount;
+			}
+
+			if(trusterOrdinal != TrustGraph.NO_ORDINAL) {
+				assertEquals(givenTrusts.size(), graph.getTrusteeCount(trusterOrdinal));
+
+				for(int i = 0; i < graph.getTrusteeCount(trusterOrdinal); ++i) {
+					final int trusteeOrdinal = graph.getTrustees(trusterOrdinal)[i];
+					assertTrue(givenTrusts.contains(trusteeOrdinal));
+					// The reverse direction must contain the same value
+					assertEquals(graph.getTrusteeValues(trusterOrdinal)[i], graph.getTrustValue(trusterOrdinal, trusteeOrdinal));
+				}
+			}
+		}
+
+		assertEquals(edgeCount, graph.getEdgeCount());
+
+		int reverseEdgeCount = 0;
+		for(int ordinal = 0; ordinal < graph.size(); ++ordinal)
+			reverseEdgeCount += graph.getTrusterCount(ordinal);
+		assertEquals(edgeCount, reverseEdgeCount);
+	}
+
+	public void testRebuild() throws Exception {
+		createRandomGraph(50, 5);
+
+		synchronized(mWoT) {
+			assertGraphEqualsDatabase(mWoT.getTrustGraph());
+
+			final TrustGraph rebuilt = new TrustGraph(mWoT);
+			rebuilt.rebuild();
+			assertGraphEqualsDatabase(rebuilt);
+		}
+	}
+
+	public void testRollback() throws Exception {
+		createRandomGraph(20, 3);
+
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			final Identity truster = mIdentities.get(1);
+			final Identity trustee = mIdentities.get(2);
+			final Identity newIdentity = new Identity(getRandomRequestURI(), "New", true);
+			newIdentity.initializeTransient(mWoT);
+			newIdentity.storeWithoutCommit();
+
+			mWoT.setTrustWithoutCommit(truster, trustee, (byte)-42, "");
+			mWoT.setTrustWithoutCommit(truster, newIdentity, (byte)42, "");
+			for(Trust trust : mWoT.getGivenTrusts(mIdentities.get(3)))
+				mWoT.removeTrustWithoutCommit(trust);
+			assertGraphEqualsDatabase(mWoT.getTrustGraph());
+
+			Persistent.checkedRollback(mWoT.getDatabase(), this, null);
+		}
+		}
+
+		flushCaches();
+
+		synchronized(mWoT) {
+			assertGraphEqualsDatabase(mWoT.getTrustGraph());
+		}
+	}
+
+	public void testSnapshot() throws Exception {
+		createRandomGraph(20, 3);
+
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			final TrustGraph graph = mWoT.getTrustGraph();
+			final Identity truster = mIdentities.get(1);
+			final int trusterOrdinal = graph.getOrdinal(truster);
+			final TrustGraph.Snapshot snapshot = graph.snapshot();
+
+			final int[] trustees = new int[graph.getTrusteeCount(trusterOrdinal)];
+			final byte[] values = new byte[trustees.length];
+			System.arraycopy(graph.getTrustees(trusterOrdinal), 0, trustees, 0, trustees.length);
+			System.arraycopy(graph.getTrusteeValues(trusterOrdinal), 0, values, 0, values.length);
+
+			for(Identity trustee : mIdentities) {
+				if(trustee != truster)
+					mWoT.setTrustWithoutCommit(truster, trustee, (byte)mRandom.nextInt(101), "");
+			}
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+
+			// The snapshot must not have changed.
+			assertEquals(trustees.length, snapshot.getTrusteeCount(trusterOrdinal));
+			for(int i = 0; i < trustees.length; ++i) {
+				assertEquals(trustees[i], snapshot.getTrustees(trusterOrdinal)[i]);
+				assertEquals(values[i], snapshot.getTrusteeValues(trusterOrdinal)[i]);
+				assertEquals(values[i], snapshot.getTrustValue(trusterOrdinal, trustees[i]));
+			}
+
+			assertEquals(mIdentities.size() - 1, graph.getTrusteeCount(trusterOrdinal));
+		}
+		}
+	}
+
+	public void testScoreComputation() throws Exception {
+		createRandomGraph(50, 5);
+
+		// The Scores were computed incrementally by setTrustWithoutCommit(), which uses the TrustGraph for computing rank and score values.
+		// computeAllScoresWithoutCommit() uses it as well, but walks the graph in a different way.
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+
+	public void testWalk() throws Exception {
+		createRandomGraph(200, 5);
+
+		// Walking the TrustGraph, as the score computation does, must reach the same identities as walking the Trust objects
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			final HashSet<Integer> visited = walkWithDatabase();
+			assertTrue(visited.size() > 1);
+			assertEquals(visited, walkWithTrustGraph());
+		}
+		}
+	}
+
+	/**
+	 * Breadth first search over the positive trust values starting at the owner, using database queries.
+	 * @return The ordinals of the visited identities in the {@link TrustGraph}
+	 */
+	private HashSet<Integer> walkWithDatabase() {
+		final TrustGraph graph = mWoT.getTrustGraph();
+		final HashSet<Integer> visited = new HashSet<Integer>();
+		final LinkedList<Identity> queue = new LinkedList<Identity>();
+		visited.add(graph.getOrdinal(mOwner));
+		queue.add(mOwner);
+
+		while(!queue.isEmpty()) {
+			for(Trust trust : mWoT.getGivenTrusts(queue.removeFirst())) {
+				if(trust.getValue() > 0) {
+					final Identity trustee = trust.getTrustee();
+					if(visited.add(graph.getOrdinal(trustee)))
+						queue.add(trustee);
+				}
+			}
+		}
+
+		return visited;
+	}
+
+	/**
+	 * Breadth first search over the positive trust values starting at the owner, using the TrustGraph.
+	 * @return The ordinals of the visited identities
+	 */
+	private HashSet<Integer> walkWithTrustGraph() {
+		final TrustGraph graph = mWoT.getTrustGraph();
+		final boolean[] visited = new boolean[graph.size()];
+		final int[] queue = new int[graph.size()];
+		int head = 0;
+		int tail = 0;
+
+		final int ownerOrdinal = graph.getOrdinal(mOwner);
+		visited[ownerOrdinal] = true;
+		queue[tail++] = ownerOrdinal;
+
+		while(head < tail) {
+			final int truster = queue[head++];
+			final int[] trustees = graph.getTrustees(truster);
+			final byte[] values = graph.getTrusteeValues(truster);
+
+			for(int i = 0; i < graph.getTrusteeCount(truster); ++i) {
+				if(values[i] > 0 && !visited[trustees[i]]) {
+					visited[trustees[i]] = true;
+					queue[tail++] = trustees[i];
+				}
+			}
+		}
+
+		final HashSet<Integer> result = new HashSet<Integer>(tail * 2);
+		for(int i = 0; i < tail; ++i)
+			result.add(queue[i]);
+		return result;
+	}
+
+}
@@ -3,6 +3,7 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
@@ -85,7 +86,7 @@ public class TrustTest extends DatabaseBasedTest {
 		System.gc();
 		System.runFinalization();
 		
-		mWoT = new WebOfTrust(getDatabaseFilename());
+		mWoT = openWebOfTrust();
 		
 		a = mWoT.getIdentityByURI(uriA);
 		b = mWoT.getIdentityByURI(uriB);
@@ -96,4 +97,32 @@ public class TrustTest extends DatabaseBasedTest {
 		assertTrue(trust.getValue() == 100);
 		assertEquals("test", trust.getComment());
 	}
+	
+	/**
+	 * Tests whether {@link Trust#upgradeDatabaseFormatVersion49WithoutCommit()} computes the ID of a trust which was stored without one.
+	 */
+	public void testUpgradeDatabaseFormatVersion49() throws Exception {
+		final Trust trust = mWoT.getTrust(a, b);
+		assertEquals(Trust.getID(a, b), trust.getID());
+		
+		final Field id = Trust.class.getDeclaredField("mID");
+		id.setAccessible(true);
+		id.set(trust, null);
+		mWoT.getDatabase().store(trust);
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+		flushCaches();
+		
+		try {
+			mWoT.getTrust(a, b);
+			fail("getTrust() should not find trusts without ID");
+		} catch(NotTrustedException e) { }
+		
+		for(Trust t : mWoT.getAllTrusts())
+			t.upgradeDatabaseFormatVersion49WithoutCommit();
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+		// upgradeDB() runs before the lookup caches are created, so the upgrade does not invalidate them
+		flushCaches();
+		
+		assertEquals(Trust.getID(a, b), mWoT.getTrust(a, b).getID());
+	}
 }
@@ -3,15 +3,24 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.File;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
 
+import com.db4o.ObjectSet;
 import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
 
 /**
  * @author xor (xor@freenetproject.org)
@@ -28,6 +37,14 @@ public class WoTTest extends DatabaseBasedTest {
 	private final String uriM2 = "USK@rhiNEDWcDXNvkT7R3K1zkr2FgMjW~6DudrAbuYbaY-w,Xl4nOxOzRyzHpEQwu--nb3PaLFSK2Ym9c~Un0rIdne4,AQACAAE/WoT/0";
 	private final String uriM3 = "USK@9c57T1yNOi7aeK-6lorACBcOH4cC-vgZ6Ky~-f9mcUI,anOcB7Z05g55oViCa3LcClrXNcQcmR3SBooN4qssuPs,AQACAAE/WoT/0";
 
+	/**
+	 * {@link #testDefragmentation()} needs the database file.
+	 */
+	@Override
+	protected boolean isDatabaseInMemory() {
+		return super.isDatabaseInMemory() && !getName().equals("testDefragmentation");
+	}
+
 	public void testInitTrustTree() throws MalformedURLException, InvalidParameterException, UnknownIdentityException, NotInTrustTreeException {
 		mWoT.createOwnIdentity(uriA, uriA, "A", true, "Test"); /* This also initializes the trust tree */
 		
@@ -627,4 +644,937 @@ public class WoTTest extends DatabaseBasedTest {
 		assertTrue("A score: " + scoreA, scoreA > 0);
 		assertTrue("B score: " + scoreB, scoreB > 0);
 	}
+
+	/**
+	 * Tests whether the partial score computation which is used when trust values are removed or changed to distrust produces the same
+	 * scores as the full computation.
+	 */
+	public void testPartialScoreComputation() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		
+		mWoT.getConfig().set(Configuration.PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT, 100);
+		
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final OwnIdentity p = mWoT.createOwnIdentity(uriS, uriS, "P", true, "Test");
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		identities.add(o);
+		identities.add(p);
+		
+		for(int i = 0; i < 30; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+		
+		for(Identity truster : identities) {
+			for(int i = 0; i < 4; ++i) {
+				final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(trustee != truster)
+					mWoT.setTrustWithoutCommit(truster, trustee, (byte)(mRandom.nextInt(121) - 20), "");
+			}
+		}
+		Persistent.checkedCommit(db, this);
+		
+		for(int i = 0; i < 40; ++i) {
+			final ObjectSet<Trust> allTrusts = mWoT.getAllTrusts();
+			if(allTrusts.size() == 0)
+				break;
+			
+			final Trust trust = allTrusts.get(mRandom.nextInt(allTrusts.size()));
+			if(mRandom.nextBoolean())
+				mWoT.removeTrustWithoutCommit(trust);
+			else
+				mWoT.setTrustWithoutCommit(trust.getTruster(), trust.getTrustee(), (byte)-(mRandom.nextInt(100)), "Distrust");
+			Persistent.checkedCommit(db, this);
+			
+			// Returns false if any stored score was wrong.
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+			Persistent.checkedCommit(db, this);
+		}
+		
+		assertTrue(mWoT.getPartialScoreComputationCount() > 0);
+		assertEquals(0, mWoT.getFullScoreComputationCount());
+		
+		// A dirty region of 0% forces the full computation.
+		mWoT.getConfig().set(Configuration.PARTIAL_SCORE_COMPUTATION_MAX_DIRTY_PERCENT, 0);
+		mWoT.setTrust(o, identities.get(2), (byte)100, "");
+		mWoT.setTrust(o, identities.get(2), (byte)-100, "");
+		assertEquals(1, mWoT.getFullScoreComputationCount());
+		assertTrue(mWoT.computeAllScoresWithoutCommit());
+	}
+	
+	/**
+	 * Tests whether the {@link DatabaseDigest} which is updated when {@link Trust} and {@link Score} objects are stored or deleted stays equal to
+	 * the digest which is computed from the database at startup.
+	 */
+	public void testDatabaseDigest() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		identities.add(o);
+		
+		for(int i = 0; i < 20; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			for(int i = 0; i < 100; ++i) {
+				final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(truster == trustee)
+					continue;
+				
+				if(mRandom.nextInt(4) == 0) {
+					try {
+						mWoT.removeTrustWithoutCommit(mWoT.getTrust(truster, trustee));
+					} catch(NotTrustedException e) { }
+				} else
+					mWoT.setTrustWithoutCommit(truster, trustee, (byte)(mRandom.nextInt(201) - 100), "");
+				Persistent.checkedCommit(db, this);
+				
+				assertEquals(computeDatabaseDigest(), mWoT.getDatabaseDigest().get());
+			}
+			
+			final long committedDigest = mWoT.getDatabaseDigest().get();
+			final Identity newIdentity = new Identity(getRandomRequestURI(), "New", true);
+			newIdentity.initializeTransient(mWoT);
+			newIdentity.storeWithoutCommit();
+			mWoT.setTrustWithoutCommit(o, newIdentity, (byte)100, "");
+			mWoT.setTrustWithoutCommit(newIdentity, identities.get(1), (byte)100, "");
+			assertFalse(committedDigest == mWoT.getDatabaseDigest().get());
+			
+			Persistent.checkedRollback(db, this, null);
+			assertEquals(committedDigest, mWoT.getDatabaseDigest().get());
+		}
+		}
+		
+		flushCaches();
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			assertEquals(computeDatabaseDigest(), mWoT.getDatabaseDigest().get());
+		}
+		}
+	}
+	
+	/**
+	 * Tests whether the best score, best capacity and fetch state which are cached in each {@link Identity} match its {@link Score}s.
+	 */
+	public void testBestScore() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final OwnIdentity p = mWoT.createOwnIdentity(uriS, uriS, "P", true, "Test");
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		identities.add(o);
+		identities.add(p);
+		
+		for(int i = 0; i < 20; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			for(int i = 0; i < 100; ++i) {
+				final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(truster == trustee)
+					continue;
+				
+				if(mRandom.nextInt(4) == 0) {
+					try {
+						mWoT.removeTrustWithoutCommit(mWoT.getTrust(truster, trustee));
+					} catch(NotTrustedException e) { }
+				} else
+					mWoT.setTrustWithoutCommit(truster, trustee, (byte)(mRandom.nextInt(201) - 100), "");
+				Persistent.checkedCommit(db, this);
+				
+				for(Identity identity : identities) {
+					int bestScore = Integer.MIN_VALUE;
+					int bestCapacity = 0;
+					final ObjectSet<Score> scores = mWoT.getScores(identity);
+					for(Score score : scores) {
+						bestScore = Math.max(bestScore, score.getScore());
+						bestCapacity = Math.max(bestCapacity, score.getCapacity());
+					}
+					
+					if(scores.size() == 0) {
+						try {
+							mWoT.getBestScore(identity);
+							fail("NotInTrustTreeException expected");
+						} catch(NotInTrustTreeException e) { }
+					} else {
+						assertEquals(bestScore, mWoT.getBestScore(identity));
+						assertEquals(bestCapacity, mWoT.getBestCapacity(identity));
+					}
+					
+					final boolean shouldFetch = identity instanceof OwnIdentity || (scores.size() > 0 && (bestCapacity > 0 || bestScore >= 0));
+					assertEquals(shouldFetch, mWoT.shouldFetchIdentity(identity));
+					assertEquals(shouldFetch, mWoT.getAllIdentitiesToFetch().contains(identity));
+				}
+			}
+		}
+		}
+	}
+	
+	/**
+	 * Tests whether {@link WebOfTrust#importTrustListWithoutCommit(Identity, List)} computes the same scores as the full score computation.
+	 */
+	public void testImportTrustList() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(30);
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			mWoT.setTrustWithoutCommit(o, identities.get(0), (byte)100, "");
+			mWoT.setTrustWithoutCommit(o, identities.get(1), (byte)50, "");
+			Persistent.checkedCommit(db, this);
+			
+			for(int i = 0; i < 50; ++i) {
+				final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				final ArrayList<Trust> trustList = createRandomTrustList(truster, identities, mRandom.nextInt(10));
+				
+				mWoT.importTrustListWithoutCommit(truster, trustList);
+				Persistent.checkedCommit(db, this);
+				
+				assertEquals(trustList.size(), mWoT.getGivenTrusts(truster).size());
+				for(Trust trust : trustList)
+					assertEquals(trust.getValue(), mWoT.getTrust(truster, trust.getTrustee()).getValue());
+				
+				// Returns false if any stored score was wrong.
+				assertTrue(mWoT.computeAllScoresWithoutCommit());
+				Persistent.checkedCommit(db, this);
+			}
+		}
+		}
+	}
+	
+	/**
+	 * Tests whether {@link WebOfTrust#importTrustListWithoutCommit(Identity, List)} only stores the differences to the existing trust list.
+	 */
+	public void testImportTrustListDifferences() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(30);
+		final Identity truster = identities.get(0);
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			mWoT.setTrustWithoutCommit(o, truster, (byte)100, "");
+			final ArrayList<Trust> trustList = createRandomTrustList(truster, identities, 10);
+			mWoT.importTrustListWithoutCommit(truster, trustList);
+			Persistent.checkedCommit(db, this);
+			
+			final HashMap<String, Long> storedIDs = new HashMap<String, Long>();
+			final HashMap<String, Date> storedDates = new HashMap<String, Date>();
+			for(Trust trust : mWoT.getGivenTrusts(truster)) {
+				storedIDs.put(trust.getTrustee().getID(), db.getID(trust));
+				storedDates.put(trust.getTrustee().getID(), trust.getDateOfLastChange());
+			}
+			
+			// Change the first value, remove the second one and add a new trustee
+			final Identity changed = trustList.get(0).getTrustee();
+			final Identity removed = trustList.get(1).getTrustee();
+			Identity added = null;
+			for(Identity identity : identities) {
+				if(identity != truster && !storedIDs.containsKey(identity.getID())) {
+					added = identity;
+					break;
+				}
+			}
+			
+			final ArrayList<Trust> newTrustList = new ArrayList<Trust>();
+			for(Trust trust : trustList) {
+				if(trust.getTrustee() == removed)
+					continue;
+				final byte value = trust.getTrustee() == changed ? (byte)(trust.getValue() == 100 ? 99 : trust.getValue() + 1) : trust.getValue();
+				final Trust copy = new Trust(truster, trust.getTrustee(), value, trust.getComment());
+				copy.initializeTransient(mWoT);
+				newTrustList.add(copy);
+			}
+			final Trust addedTrust = new Trust(truster, added, (byte)42, "Added");
+			addedTrust.initializeTransient(mWoT);
+			newTrustList.add(addedTrust);
+			
+			mWoT.importTrustListWithoutCommit(truster, newTrustList);
+			Persistent.checkedCommit(db, this);
+			
+			assertEquals(newTrustList.size(), mWoT.getGivenTrusts(truster).size());
+			for(Trust expected : newTrustList) {
+				final Trust trust = mWoT.getTrust(truster, expected.getTrustee());
+				assertEquals(expected.getValue(), trust.getValue());
+				
+				final String trusteeID = expected.getTrustee().getID();
+				if(expected.getTrustee() != changed && expected.getTrustee() != added) {
+					// Unchanged values are neither replaced nor modified
+					assertEquals(storedIDs.get(trusteeID).longValue(), db.getID(trust));
+					assertEquals(storedDates.get(trusteeID), trust.getDateOfLastChange());
+				}
+			}
+			
+			try {
+				mWoT.getTrust(truster, removed);
+				fail("The removed trust value still exists");
+			} catch(NotTrustedException e) { }
+			
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+	
+	public void testReadWriteLock() throws Exception {
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final Identity a = mWoT.addIdentity(uriA);
+		final ReadWriteLockWithStatistics lock = mWoT.getLock();
+		
+		final long writeAcquisitions = lock.getWriteStatistics().getAcquisitions();
+		mWoT.setTrust(o.getID(), a.getID(), (byte)10, "Comment");
+		assertTrue(lock.getWriteStatistics().getAcquisitions() > writeAcquisitions);
+		
+		final Thread writer = new Thread() {
+			public void run() {
+				try {
+					mWoT.setTrust(o.getID(), a.getID(), (byte)20, "Comment");
+				} catch(Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		
+		final Thread reader = new Thread() {
+			public void run() {
+				lock.lockRead();
+				lock.unlockRead();
+			}
+		};
+		
+		final long contendedWriteAcquisitions = lock.getWriteStatistics().getContendedAcquisitions();
+		
+		lock.lockRead();
+		try {
+			try {
+				lock.lockWrite();
+				fail("The read lock must not be upgradeable");
+			} catch(IllegalMonitorStateException e) {}
+			
+			// Readers do not block each other but writers must wait for the readers
+			reader.start();
+			reader.join(10 * 1000);
+			assertFalse(reader.isAlive());
+			
+			writer.start();
+			writer.join(500);
+			assertTrue(writer.isAlive());
+			assertEquals(10, mWoT.getTrust(o, a).getValue());
+		} finally {
+			lock.unlockRead();
+		}
+		
+		writer.join(10 * 1000);
+		assertFalse(writer.isAlive());
+		assertEquals(20, mWoT.getTrust(o, a).getValue());
+		assertTrue(lock.getWriteStatistics().getContendedAcquisitions() > contendedWriteAcquisitions);
+	}
+	
+	/**
+	 * Tests whether the {@link WebOfTrustSnapshot}s which are published after each transaction match the database, are not modified by later
+	 * transactions and share the entries of unchanged identities.
+	 */
+	public void testSnapshot() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(10);
+		
+		mWoT.setTrust(o.getID(), identities.get(0).getID(), (byte)100, "Comment 0");
+		mWoT.setTrust(o.getID(), identities.get(1).getID(), (byte)50, "Comment 1");
+		
+		final WebOfTrustSnapshot snapshot = mWoT.getSnapshot();
+		final WebOfTrustSnapshot.IdentityEntry snapshotO = snapshot.getIdentityByID(o.getID());
+		final WebOfTrustSnapshot.IdentityEntry snapshotB = snapshot.getIdentityByID(identities.get(1).getID());
+		final int ordinalA = snapshot.getIdentityByID(identities.get(0).getID()).getOrdinal();
+		final int ordinalB = snapshotB.getOrdinal();
+		assertTrue(snapshotO.isOwnIdentity());
+		assertEquals(100, snapshot.getTrustGraph().getTrustValue(snapshotO.getOrdinal(), ordinalA));
+		assertEquals("Comment 0", snapshot.getTrustComment(snapshotO.getOrdinal(), ordinalA));
+		
+		mWoT.setTrust(o.getID(), identities.get(0).getID(), (byte)-100, "Changed");
+		
+		final WebOfTrustSnapshot newSnapshot = mWoT.getSnapshot();
+		assertTrue(newSnapshot.getVersion() > snapshot.getVersion());
+		assertEquals(100, snapshot.getTrustGraph().getTrustValue(snapshotO.getOrdinal(), ordinalA));
+		assertEquals("Comment 0", snapshot.getTrustComment(snapshotO.getOrdinal(), ordinalA));
+		assertEquals(-100, newSnapshot.getTrustGraph().getTrustValue(snapshotO.getOrdinal(), ordinalA));
+		assertEquals("Changed", newSnapshot.getTrustComment(snapshotO.getOrdinal(), ordinalA));
+		assertSame(snapshotB, newSnapshot.getIdentity(ordinalB));
+		assertNotSame(snapshotO, newSnapshot.getIdentity(snapshotO.getOrdinal()));
+		
+		for(Identity identity : mWoT.getAllIdentities()) {
+			final WebOfTrustSnapshot.IdentityEntry entry = newSnapshot.getIdentityByID(identity.getID());
+			assertNotNull(entry);
+			
+			final ObjectSet<Score> scores = mWoT.getScores(identity);
+			assertEquals(scores.size(), entry.getScoreCount());
+			for(Score score : scores) {
+				final int index = entry.indexOfScoreOwner(newSnapshot.getIdentityByID(score.getTruster().getID()).getOrdinal());
+				assertTrue(index >= 0);
+				assertEquals(score.getScore(), entry.getScoreValue(index));
+				assertEquals(score.getRank(), entry.getScoreRank(index));
+				assertEquals(score.getCapacity(), entry.getScoreCapacity(index));
+			}
+			
+			final ObjectSet<Trust> givenTrusts = mWoT.getGivenTrusts(identity);
+			assertEquals(givenTrusts.size(), entry.getTrusteeCount());
+			for(Trust trust : givenTrusts) {
+				final int index = entry.indexOfTrustee(newSnapshot.getIdentityByID(trust.getTrustee().getID()).getOrdinal());
+				assertTrue(index >= 0);
+				assertEquals(trust.getValue(), entry.getTrusteeValue(index));
+				assertEquals(trust.getComment(), entry.getTrusteeComment(index));
+			}
+		}
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			mWoT.setTrustWithoutCommit(o, identities.get(2), (byte)100, "");
+			Persistent.checkedRollback(db, this, null);
+		}
+		}
+		
+		assertSame(newSnapshot, mWoT.getSnapshot());
+		
+		mWoT.deleteIdentity(identities.get(1));
+		assertNull(mWoT.getSnapshot().getIdentityByID(identities.get(1).getID()));
+		assertNull(mWoT.getSnapshot().getIdentity(ordinalB));
+		assertSame(snapshotB, newSnapshot.getIdentity(ordinalB));
+	}
+	
+	/**
+	 * Tests whether the caches of {@link WebOfTrust#getTrust(Identity, Identity)} and {@link WebOfTrust#getScore(OwnIdentity, Identity)}
+	 * are updated when objects are stored or deleted and when a transaction is rolled back.
+	 */
+	public void testLookupCache() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final IdentityPairCache<Trust> trustCache = mWoT.getTrustCache();
+		final IdentityPairCache<Score> scoreCache = mWoT.getScoreCache();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final Identity a = mWoT.addIdentity(uriA);
+		
+		mWoT.setTrust(o.getID(), a.getID(), (byte)100, "Comment");
+		
+		long hits = trustCache.getHits();
+		assertEquals(100, mWoT.getTrust(o, a).getValue());
+		assertEquals(100, mWoT.getTrust(o, a).getValue());
+		assertTrue(trustCache.getHits() > hits);
+		
+		hits = trustCache.getHits();
+		for(int i = 0; i < 2; ++i) {
+			try {
+				mWoT.getTrust(a, o);
+				fail("NotTrustedException expected");
+			} catch(NotTrustedException e) { }
+		}
+		assertTrue(trustCache.getHits() > hits);
+		
+		mWoT.setTrust(o.getID(), a.getID(), (byte)-50, "Changed");
+		assertEquals(-50, mWoT.getTrust(o, a).getValue());
+		assertEquals(-50, mWoT.getScore(o, a).getScore());
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			mWoT.setTrustWithoutCommit(a, o, (byte)100, "");
+			assertEquals(100, mWoT.getTrust(a, o).getValue());
+			Persistent.checkedRollback(db, this, null);
+		}
+		}
+		
+		try {
+			mWoT.getTrust(a, o);
+			fail("The trust value which was cached during the rolled back transaction must not be returned.");
+		} catch(NotTrustedException e) { }
+		
+		mWoT.removeTrust(o.getID(), a.getID());
+		try {
+			mWoT.getTrust(o, a);
+			fail("NotTrustedException expected");
+		} catch(NotTrustedException e) { }
+		try {
+			mWoT.getScore(o, a);
+			fail("NotInTrustTreeException expected");
+		} catch(NotInTrustTreeException e) { }
+		
+		assertTrue(scoreCache.getMisses() > 0);
+	}
+	
+	/**
+	 * Tests whether {@link WebOfTrust#computeAllScoresWithoutCommit()} accepts the scores which the incremental computation has stored,
+	 * deactivates the identities which it has loaded itself and reports its peak live heap.
+	 */
+	public void testComputeAllScoresWithoutCommit() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(30);
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			mWoT.setTrustWithoutCommit(o, identities.get(0), (byte)100, "");
+			mWoT.setTrustWithoutCommit(o, identities.get(1), (byte)100, "");
+			for(int i = 0; i < 100; ++i) {
+				final Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(truster != trustee)
+					mWoT.setTrustWithoutCommit(truster, trustee, (byte)(mRandom.nextInt(201) - 100), "");
+			}
+			Persistent.checkedCommit(db, this);
+			
+			// An identity which nobody references is not active, the full computation has to load it
+			final Identity unreferenced = identities.get(1);
+			final String unreferencedID = unreferenced.getID();
+			mWoT.getTrustCache().clear();
+			mWoT.getScoreCache().clear();
+			db.deactivate(unreferenced, 1);
+			
+			flushCaches();
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+			assertTrue(mWoT.getFullScoreComputationPeakLiveHeap() > 0);
+			
+			// The objects which were active before are still active, the loaded identity was deactivated after its batch
+			assertTrue(db.isActive(o));
+			assertTrue(db.isActive(identities.get(0)));
+			assertFalse(db.isActive(unreferenced));
+			
+			// It is activated again when it is used
+			assertSame(unreferenced, mWoT.getIdentityByID(unreferencedID));
+			assertTrue(db.isActive(unreferenced));
+			assertEquals("Identity1", unreferenced.getNickname());
+			assertEquals(40, mWoT.getScore(o, unreferenced).getCapacity());
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+	
+	/**
+	 * Tests whether {@link WebOfTrust#restoreIdentity(String, String)} replaces a known non-own identity by an own identity with the same
+	 * received trusts and scores and the same trust list. While it runs, both exist with the same ID.
+	 */
+	public void testRestoreIdentity() throws Exception {
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		Identity a = new Identity(uriA, "A", true); a.initializeTransient(mWoT); a.storeAndCommit();
+		Identity b = new Identity(uriB, "B", true); b.initializeTransient(mWoT); b.storeAndCommit();
+		Identity c = new Identity(uriC, "C", true); c.initializeTransient(mWoT); c.storeAndCommit();
+		
+		mWoT.setTrust(o, a, (byte)100, "Foo");
+		mWoT.setTrustWithoutCommit(a, b, (byte)50, "Bar");
+		mWoT.setTrustWithoutCommit(a, c, (byte)-10, "Bleh");
+		mWoT.setTrustWithoutCommit(b, a, (byte)20, "Oops");
+		Persistent.checkedCommit(mWoT.getDatabase(), this);
+		
+		final String aID = a.getID();
+		mWoT.restoreIdentity(uriA, uriA);
+		
+		flushCaches();
+		assertEquals(2, mWoT.getAllOwnIdentities().size());
+		assertEquals(2, mWoT.getAllNonOwnIdentities().size());
+		assertEquals(4, mWoT.getAllTrusts().size());
+		
+		final OwnIdentity restored = mWoT.getOwnIdentityByID(aID);
+		assertSame(restored, mWoT.getIdentityByID(aID));
+		assertEquals("A", restored.getNickname());
+		b = mWoT.getIdentityByID(b.getID());
+		c = mWoT.getIdentityByID(c.getID());
+		
+		// The received trusts and scores
+		assertEquals(100, mWoT.getTrust(o, restored).getValue());
+		assertEquals(20, mWoT.getTrust(b, restored).getValue());
+		assertEquals(2, mWoT.getReceivedTrusts(restored).size());
+		assertEquals(1, mWoT.getScore(o, restored).getRank());
+		
+		// The trust list
+		assertEquals(2, mWoT.getGivenTrusts(restored).size());
+		assertEquals(50, mWoT.getTrust(restored, b).getValue());
+		assertEquals("Bar", mWoT.getTrust(restored, b).getComment());
+		assertEquals(-10, mWoT.getTrust(restored, c).getValue());
+		assertEquals("Bleh", mWoT.getTrust(restored, c).getComment());
+		
+		// The own trust tree
+		assertEquals(0, mWoT.getScore(restored, restored).getRank());
+		assertEquals(1, mWoT.getScore(restored, b).getRank());
+		assertEquals(50, mWoT.getScore(restored, b).getScore());
+		
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+	
+	/**
+	 * Runs all chunks of a new {@link IntegrityVerifier}.
+	 * @return The number of objects which it deleted.
+	 */
+	private int verifyDatabaseIntegrity(int chunkSize) {
+		final IntegrityVerifier verifier = new IntegrityVerifier(mWoT, null, chunkSize);
+		while(!verifier.isFinished())
+			verifier.run();
+		return verifier.getDeletedObjectCount();
+	}
+	
+	public void testVerifyDatabaseIntegrity() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(3);
+		mWoT.setTrust(o.getID(), identities.get(0).getID(), (byte)100, "");
+		mWoT.setTrust(o.getID(), identities.get(1).getID(), (byte)50, "");
+		
+		assertEquals(0, verifyDatabaseIntegrity(IntegrityVerifier.CHUNK_SIZE));
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			final Trust duplicateTrust = new Trust(o, identities.get(0), (byte)-100, "Duplicate");
+			duplicateTrust.initializeTransient(mWoT);
+			db.store(duplicateTrust);
+			
+			final Score duplicateScore = new Score(o, identities.get(0), 0, 1, 0);
+			duplicateScore.initializeTransient(mWoT);
+			db.store(duplicateScore);
+			
+			// Deleting the identity directly leaves an orphan trust and score
+			db.delete(identities.get(1));
+			db.commit();
+		}
+		}
+		flushCaches();
+		
+		// The duplicate and the orphan trust and score
+		assertEquals(4, verifyDatabaseIntegrity(IntegrityVerifier.CHUNK_SIZE));
+		
+		flushCaches();
+		assertEquals(1, mWoT.getAllTrusts().size());
+		assertEquals(2, mWoT.getAllScores().size());
+		assertEquals(3, mWoT.getAllIdentities().size());
+		assertEquals(0, verifyDatabaseIntegrity(IntegrityVerifier.CHUNK_SIZE));
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			assertTrue(mWoT.computeAllScoresWithoutCommit());
+		}
+		}
+	}
+	
+	/**
+	 * Interrupts an {@link IntegrityVerifier} after some chunks and checks whether a new one, as it is created at the next startup,
+	 * resumes the verification and still finds duplicates of objects which were tested before the interruption.
+	 */
+	public void testResumeIntegrityVerification() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriO, uriO, "O", true, "Test");
+		final ArrayList<Identity> identities = createIdentities(10);
+		for(Identity identity : identities)
+			mWoT.setTrust(o.getID(), identity.getID(), (byte)100, "");
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			final Trust duplicateTrust = new Trust(o, identities.get(0), (byte)-100, "Duplicate");
+			duplicateTrust.initializeTransient(mWoT);
+			db.store(duplicateTrust);
+			db.commit();
+		}
+		}
+		flushCaches();
+		
+		IntegrityVerifier verifier = new IntegrityVerifier(mWoT, null, 3);
+		// 11 identities in 4 chunks, then the first chunk of the trusts
+		for(int i = 0; i < 5; ++i)
+			verifier.run();
+		assertEquals("Trust", verifier.getCurrentClass());
+		assertEquals(14, verifier.getTestedObjectCount());
+		assertEquals(1, mWoT.getConfig().getInt(Configuration.INTEGRITY_TEST_PHASE));
+		verifier.terminate();
+		verifier.run();
+		assertEquals(14, verifier.getTestedObjectCount());
+		
+		verifier = new IntegrityVerifier(mWoT, null, 3);
+		while(!verifier.isFinished())
+			verifier.run();
+		assertEquals(1, verifier.getDeletedObjectCount());
+		// The remaining trusts, the scores and all other objects
+		int otherObjects = 0;
+		for(Class<?> clazz : new Class<?>[] { Configuration.class, IntroductionPuzzle.class }) {
+			final Query q = db.query();
+			q.constrain(clazz);
+			otherObjects += q.execute().size();
+		}
+		assertEquals(8 + 11 + otherObjects, verifier.getTestedObjectCount());
+		assertEquals(0, mWoT.getConfig().getInt(Configuration.INTEGRITY_TEST_PHASE));
+		
+		flushCaches();
+		assertEquals(10, mWoT.getAllTrusts().size());
+		assertEquals(0, verifyDatabaseIntegrity(3));
+	}
+	
+	public void testGroupCommit() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final ArrayList<Identity> identities = new ArrayList<Identity>();
+		final int[] commits = new int[1];
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			Persistent.registerTransactionListener(db, new Persistent.TransactionListener() {
+				public void onCommit() { ++commits[0]; }
+				public void onRollback() { }
+			});
+			
+			Persistent.setGroupCommit(db, this, Long.MAX_VALUE, 3);
+			
+			for(int i = 0; i < 5; ++i) {
+				final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+				identity.initializeTransient(mWoT);
+				identity.storeWithoutCommit();
+				Persistent.checkedGroupCommit(db, this);
+				identities.add(identity);
+			}
+			
+			// The third commit reached the limit, the fourth and fifth are deferred
+			assertEquals(1, commits[0]);
+			assertEquals(2, Persistent.getDeferredCommitCount(db));
+			
+			// A rollback loses the deferred commits, the caller can tell by the counter of rolled back commits
+			Persistent.checkedRollback(db, this, null);
+			assertEquals(0, Persistent.getDeferredCommitCount(db));
+			assertEquals(2, Persistent.getRolledBackCommitCount(db));
+		}
+		}
+		
+		flushCaches();
+		for(int i = 0; i < identities.size(); ++i) {
+			try {
+				mWoT.getIdentityByID(identities.get(i).getID());
+				assertTrue(i < 3);
+			} catch(UnknownIdentityException e) {
+				assertTrue(i >= 3);
+			}
+		}
+		
+		final Identity identity = new Identity(getRandomRequestURI(), "Flushed", true);
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			identity.initializeTransient(mWoT);
+			identity.storeWithoutCommit();
+			Persistent.checkedGroupCommit(db, this);
+			assertEquals(1, Persistent.getDeferredCommitCount(db));
+		}
+		}
+		
+		mWoT.flushGroupCommit();
+		synchronized(db.lock()) {
+			assertEquals(0, Persistent.getDeferredCommitCount(db));
+		}
+		assertEquals(2, commits[0]);
+		assertEquals(2, mWoT.getRolledBackCommitCount());
+		
+		// Disabling group commit makes it commit immediately
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			Persistent.setGroupCommit(db, this, 0, 0);
+			identity.storeWithoutCommit();
+			Persistent.checkedGroupCommit(db, this);
+			assertEquals(3, commits[0]);
+		}
+		}
+		
+		flushCaches();
+		assertEquals("Flushed", mWoT.getIdentityByID(identity.getID()).getNickname());
+	}
+	
+	public void testIdentityFetcherCommandQueue() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final IdentityFetcher fetcher = mWoT.getIdentityFetcher();
+		final OwnIdentity o = mWoT.createOwnIdentity(uriA, uriA, "O", true, "Test");
+		final Identity a = new Identity(uriB, "A", true); a.initializeTransient(mWoT); a.storeAndCommit();
+		final Identity b = new Identity(uriC, "B", true); b.initializeTransient(mWoT); b.storeAndCommit();
+		
+		// Trusting A makes the WoT fetch it once the trust is committed
+		mWoT.setTrust(o, a, (byte)100, "Foo");
+		assertEquals(IdentityFetcher.CommandType.StartFetch, fetcher.getQueuedCommand(a.getID()));
+		assertNull(fetcher.getQueuedCommand(b.getID()));
+		final int queued = fetcher.getQueuedCommandCount();
+		
+		// The commands of a rolled back transaction are discarded, the ones which are not committed yet are not visible
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			fetcher.storeAbortFetchCommandWithoutCommit(a);
+			fetcher.storeUpdateEditionHintCommandWithoutCommit(b.getID());
+			assertEquals(IdentityFetcher.CommandType.StartFetch, fetcher.getQueuedCommand(a.getID()));
+			assertNull(fetcher.getQueuedCommand(b.getID()));
+			Persistent.checkedRollback(db, this, null);
+		}
+		}
+		assertEquals(IdentityFetcher.CommandType.StartFetch, fetcher.getQueuedCommand(a.getID()));
+		assertNull(fetcher.getQueuedCommand(b.getID()));
+		assertEquals(queued, fetcher.getQueuedCommandCount());
+		assertEquals(2, fetcher.getDiscardedCommandCount());
+		
+		// The last start or abort command wins, an edition hint update only remains if it is the only command
+		final long coalesced = fetcher.getCoalescedCommandCount();
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			fetcher.storeAbortFetchCommandWithoutCommit(a);
+			fetcher.storeUpdateEditionHintCommandWithoutCommit(a.getID());
+			fetcher.storeUpdateEditionHintCommandWithoutCommit(b.getID());
+			Persistent.checkedCommit(db, this);
+		}
+		}
+		assertEquals(IdentityFetcher.CommandType.AbortFetch, fetcher.getQueuedCommand(a.getID()));
+		assertEquals(IdentityFetcher.CommandType.UpdateEditionHint, fetcher.getQueuedCommand(b.getID()));
+		assertEquals(queued + 1, fetcher.getQueuedCommandCount());
+		assertEquals(coalesced + 2, fetcher.getCoalescedCommandCount());
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			fetcher.storeStartFetchCommandWithoutCommit(b);
+			Persistent.checkedCommit(db, this);
+		}
+		}
+		assertEquals(IdentityFetcher.CommandType.StartFetch, fetcher.getQueuedCommand(b.getID()));
+		assertEquals(queued + 1, fetcher.getQueuedCommandCount());
+		assertTrue(fetcher.getOldestQueuedCommandAge() >= 0);
+		
+		// Without a node the commands fail, they are removed from the queue nevertheless
+		fetcher.run();
+		assertEquals(0, fetcher.getQueuedCommandCount());
+		assertEquals(0, fetcher.getOldestQueuedCommandAge());
+		assertEquals(queued + 1, fetcher.getProcessedCommandCount());
+		assertTrue(fetcher.getMaxCommandLatency() >= fetcher.getAverageCommandLatency());
+		assertNull(fetcher.getQueuedCommand(a.getID()));
+	}
+	
+	public void testIdentityFetcherPrioritization() throws Exception {
+		final ExtObjectContainer db = mWoT.getDatabase();
+		final IdentityFetcher fetcher = new IdentityFetcher(mWoT, null, 2);
+		final OwnIdentity o = mWoT.createOwnIdentity(uriA, uriA, "O", true, "Test");
+		final Identity a = new Identity(uriB, "A", true); a.initializeTransient(mWoT); a.storeAndCommit();
+		final Identity b = new Identity(uriC, "B", true); b.initializeTransient(mWoT); b.storeAndCommit();
+		mWoT.setTrust(o, a, (byte)100, "Foo");
+		assertTrue(a.getBestCapacity() > b.getBestCapacity());
+		
+		assertTrue(fetcher.getProcessCommandsDelay() < 1000);
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			fetcher.storeUpdateEditionHintCommandWithoutCommit(o.getID());
+			fetcher.storeStartFetchCommandWithoutCommit(b);
+			fetcher.storeStartFetchCommandWithoutCommit(a);
+			Persistent.checkedCommit(db, this);
+		}
+		}
+		
+		// Only two commands fit into a run, the fetch of the identity with the higher capacity is started first
+		fetcher.run();
+		assertEquals(1, fetcher.getQueuedCommandCount());
+		assertNull(fetcher.getQueuedCommand(a.getID()));
+		assertNull(fetcher.getQueuedCommand(o.getID()));
+		assertEquals(IdentityFetcher.CommandType.StartFetch, fetcher.getQueuedCommand(b.getID()));
+		
+		fetcher.run();
+		assertEquals(0, fetcher.getQueuedCommandCount());
+		assertEquals(3, fetcher.getProcessedCommandCount());
+		
+		// Many commands are batched
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			for(int i = 0; i < 100; ++i)
+				fetcher.storeStartFetchCommandWithoutCommit("Identity" + i);
+			Persistent.checkedCommit(db, this);
+		}
+		}
+		assertTrue(fetcher.getProcessCommandsDelay() >= 1000);
+		final long batchTime = fetcher.getScheduledProcessingTime();
+		assertTrue(batchTime - System.currentTimeMillis() >= 1000);
+		
+		// A shorter delay replaces the queued batch processing, a longer one does not
+		fetcher.scheduleCommandProcessing(10);
+		final long quickTime = fetcher.getScheduledProcessingTime();
+		assertTrue(quickTime < batchTime);
+		fetcher.scheduleCommandProcessing(fetcher.getProcessCommandsDelay());
+		assertEquals(quickTime, fetcher.getScheduledProcessingTime());
+		
+		// A run must be queued again after it has started
+		fetcher.run();
+		assertTrue(fetcher.getScheduledProcessingTime() < batchTime);
+		while(fetcher.getQueuedCommandCount() > 0)
+			fetcher.run();
+		assertEquals(Long.MAX_VALUE, fetcher.getScheduledProcessingTime());
+	}
+	
+	public void testDefragmentation() throws Exception {
+		final ArrayList<Identity> identities = createIdentities(500);
+		
+		mWoT.getConfig().set(Configuration.DEFRAGMENT_FREE_SPACE_PERCENT, 1);
+		mWoT.getConfig().storeAndCommit();
+		
+		synchronized(mWoT) {
+		synchronized(mWoT.getDatabase().lock()) {
+			for(Identity identity : identities.subList(10, identities.size()))
+				identity.deleteWithoutCommit();
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}
+		}
+		
+		final File file = new File(getDatabaseFilename());
+		final long sizeBefore = file.length();
+		mWoT.terminate();
+		assertTrue(file.length() < sizeBefore);
+		
+		mWoT = openWebOfTrust();
+		assertEquals(10, mWoT.getAllIdentities().size());
+		for(Identity identity : identities.subList(0, 10))
+			assertEquals(identity.getNickname(), mWoT.getIdentityByID(identity.getID()).getNickname());
+		assertEquals(1, mWoT.getConfig().getInt(Configuration.DEFRAGMENT_FREE_SPACE_PERCENT));
+	}
+	
+	private ArrayList<Identity> createIdentities(int count) throws Exception {
+		final ArrayList<Identity> identities = new ArrayList<Identity>(count);
+		
+		for(int i = 0; i < count; ++i) {
+			final Identity identity = new Identity(getRandomRequestURI(), "Identity" + i, true);
+			identity.initializeTransient(mWoT);
+			identity.storeAndCommit();
+			identities.add(identity);
+		}
+		
+		return identities;
+	}
+	
+	/**
+	 * Creates the given amount of unstored trust values with random values from the truster to random identities of the given ones.
+	 */
+	private ArrayList<Trust> createRandomTrustList(Identity truster, ArrayList<Identity> identities, int size) throws Exception {
+		final ArrayList<Trust> trustList = new ArrayList<Trust>(size);
+		final HashSet<Identity> trustees = new HashSet<Identity>();
+		
+		while(trustList.size() < Math.min(size, identities.size() - 1)) {
+			final Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+			if(trustee != truster && trustees.add(trustee)) {
+				final Trust trust = new Trust(truster, trustee, (byte)(mRandom.nextInt(201) - 100), "Comment");
+				trust.initializeTransient(mWoT);
+				trustList.add(trust);
+			}
+		}
+		
+		return trustList;
+	}
+	
+	private long computeDatabaseDigest() {
+		final DatabaseDigest digest = new DatabaseDigest(mWoT);
+		digest.rebuild();
+		return digest.get();
+	}
 }
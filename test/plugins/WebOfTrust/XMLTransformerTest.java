@@ -12,6 +12,8 @@ import javax.xml.transform.TransformerException;
 
 import org.xml.sax.SAXException;
 
+import com.db4o.ext.ExtObjectContainer;
+
 import freenet.keys.FreenetURI;
 
 import plugins.WebOfTrust.Identity;
@@ -111,6 +113,247 @@ public class XMLTransformerTest extends DatabaseBasedTest {
 		assertEquals(importedIdentity.getProperties().size(), 0);
 	}
 
+	public void testIdentityImporter() throws Exception {
+		final IdentityImporter importer = new IdentityImporter(mWoT, false);
+		
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentity(mOwnIdentity, os);
+		final byte[] xml = os.toByteArray();
+		final FreenetURI uri = mOwnIdentity.getRequestURI();
+		
+		// Only the newest edition is kept
+		importer.enqueue(uri.setSuggestedEdition(1), xml);
+		importer.enqueue(uri.setSuggestedEdition(2), xml);
+		importer.enqueue(uri.setSuggestedEdition(1), xml);
+		assertEquals(1, importer.getQueuedCount());
+		assertEquals(2, importer.getSkippedParseCount());
+		assertEquals(xml.length, importer.getQueuedBytes());
+		
+		assertTrue(importer.parseNext());
+		assertFalse(importer.parseNext());
+		assertEquals(0, importer.getQueuedCount());
+		assertEquals(1, importer.getParsedCount());
+		
+		assertEquals(1, importer.writeBatch());
+		assertEquals(0, importer.writeBatch());
+		assertEquals(1, importer.getImportedCount());
+		assertEquals(0, importer.getQueuedBytes());
+		flushCaches();
+		assertEquals(2, mWoT.getIdentityByID(mOwnIdentity.getID()).getEdition());
+		assertEquals(2, mWoT.getSnapshot().getIdentityByID(mOwnIdentity.getID()).getEdition());
+		
+		// An edition older than the imported one is not parsed, the imported edition is parsed again because it might be refetched
+		importer.enqueue(uri.setSuggestedEdition(1), xml);
+		assertEquals(0, importer.getQueuedCount());
+		assertEquals(3, importer.getSkippedParseCount());
+		importer.enqueue(uri.setSuggestedEdition(2), xml);
+		assertEquals(1, importer.getQueuedCount());
+		importer.enqueue(uri.setSuggestedEdition(3), xml);
+		assertEquals(1, importer.getQueuedCount());
+		assertEquals(4, importer.getSkippedParseCount());
+		
+		// A newer edition drops a parsed older one, XML which cannot be parsed marks the edition as parsing failed
+		assertTrue(importer.parseNext());
+		importer.enqueue(uri.setSuggestedEdition(4), "<Identity".getBytes("UTF-8"));
+		assertEquals(0, importer.getParsedCount());
+		assertEquals(1, importer.getSkippedImportCount());
+		assertTrue(importer.parseNext());
+		assertEquals(1, importer.getParsedCount());
+		assertEquals(4, importer.getSkippedParseCount());
+		assertEquals(1, importer.getSkippedImportCount());
+		
+		assertEquals(1, importer.writeBatch());
+		assertEquals(1, importer.getFailedCount());
+		flushCaches();
+		final Identity identity = mWoT.getIdentityByID(mOwnIdentity.getID());
+		assertEquals(4, identity.getEdition());
+		assertEquals(Identity.FetchState.ParsingFailed, identity.getCurrentEditionFetchState());
+		assertEquals(2, importer.getBatchCount());
+		
+		importer.terminate();
+		importer.enqueue(uri.setSuggestedEdition(5), xml);
+		assertEquals(0, importer.getQueuedCount());
+	}
+
+	public void testIdentityImporterGroupCommit() throws Exception {
+		final IdentityImporter importer = new IdentityImporter(mWoT, false);
+		final ExtObjectContainer db = mWoT.getDatabase();
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			Persistent.setGroupCommit(db, this, Long.MAX_VALUE, 100);
+		}
+		}
+		
+		// No references to the identities are kept: The rollback only reverts objects which db4o loads again
+		final FreenetURI aURI = new FreenetURI(getRandomRequestURI());
+		final FreenetURI bURI = new FreenetURI(getRandomRequestURI());
+		final String aID = mWoT.addIdentity(aURI.toString()).getID();
+		final String bID = mWoT.addIdentity(bURI.toString()).getID();
+		flushCaches();
+		importer.enqueue(aURI.setSuggestedEdition(1), createIdentityXML(3, true));
+		importer.enqueue(bURI.setSuggestedEdition(1), createIdentityXML(3, false));
+		
+		// A self-referential trust is only rejected during the import, which rolls back the deferred imports of a and b as well
+		final String selfTrustXML = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?><WebOfTrust Version=\"1\">"
+			+ "<Identity Name=\"test-identity\" PublishesTrustList=\"true\" Version=\"1\"><TrustList><Trust Identity=\""
+			+ mOwnIdentity.getRequestURI() + "\" Value=\"100\" Comment=\"\"/></TrustList></Identity></WebOfTrust>";
+		importer.enqueue(mOwnIdentity.getRequestURI().setSuggestedEdition(1), selfTrustXML.getBytes("UTF-8"));
+		
+		while(importer.parseNext());
+		assertEquals(3, importer.getParsedCount());
+		assertEquals(3, importer.writeBatch());
+		assertEquals(2, importer.getImportedCount());
+		assertEquals(1, importer.getFailedCount());
+		assertEquals(2, mWoT.getRolledBackCommitCount());
+		
+		synchronized(mWoT) {
+		synchronized(db.lock()) {
+			// The deferred commits were flushed before the locks were released
+			assertEquals(0, Persistent.getDeferredCommitCount(db));
+			Persistent.setGroupCommit(db, this, 0, 0);
+		}
+		}
+		
+		// The rolled back imports were redone
+		flushCaches();
+		for(String id : new String[] { aID, bID }) {
+			final Identity identity = mWoT.getIdentityByID(id);
+			assertEquals(1, identity.getEdition());
+			assertEquals(Identity.FetchState.Fetched, identity.getCurrentEditionFetchState());
+			assertEquals("test-identity", identity.getNickname());
+		}
+		
+		final Identity own = mWoT.getIdentityByID(mOwnIdentity.getID());
+		assertEquals(1, own.getEdition());
+		assertEquals(Identity.FetchState.ParsingFailed, own.getCurrentEditionFetchState());
+		assertEquals(0, mWoT.getGivenTrusts(own).size());
+		
+		importer.terminate();
+	}
+
+	public void testParseIdentityXML() throws Exception {
+		for(boolean publishesTrustList : new boolean[] { false, true }) {
+			final byte[] xml = createIdentityXML(345, publishesTrustList);
+			final XMLTransformer.ParsedIdentityXML parsed = mTransformer.parseIdentityXML(new ByteArrayInputStream(xml));
+			assertNull(parsed.parseError);
+			if(publishesTrustList)
+				assertEquals(345, parsed.identityTrustList.size());
+			else
+				assertNull(parsed.identityTrustList);
+			assertParsedIdentityXMLEquals(mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml)), parsed);
+		}
+		
+		// Exported XML
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		mTransformer.exportOwnIdentity(mOwnIdentity, os);
+		final XMLTransformer.ParsedIdentityXML parsed = mTransformer.parseIdentityXML(new ByteArrayInputStream(os.toByteArray()));
+		assertEquals(mOwnIdentity.getNickname(), parsed.identityName);
+		assertEquals(mOwnIdentity.getContexts(), parsed.identityContexts);
+		assertParsedIdentityXMLEquals(mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(os.toByteArray())), parsed);
+		
+		// Broken XML is rejected by both parsers
+		final String header = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?><WebOfTrust Version=\"1\">";
+		final String[] brokenXML = new String[] {
+			header + "</WebOfTrust>",
+			header + "<Identity Name=\"a\" PublishesTrustList=\"true\" Version=\"1\"></Identity></WebOfTrust>",
+			header + "<Identity Name=\"a\" PublishesTrustList=\"false\" Version=\"2\"></Identity></WebOfTrust>",
+			header + "<Identity Name=\"a\" PublishesTrustList=\"true\" Version=\"1\"><TrustList><Trust Identity=\"" + getRandomRequestURI()
+				+ "\" Value=\"128\" Comment=\"\"/></TrustList></Identity></WebOfTrust>",
+			header + "<Identity Name=\"a\" PublishesTrustList=\"false\" Version=\"1\">",
+		};
+		for(String broken : brokenXML) {
+			assertNotNull(mTransformer.parseIdentityXML(new ByteArrayInputStream(broken.getBytes("UTF-8"))).parseError);
+			assertNotNull(mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(broken.getBytes("UTF-8"))).parseError);
+		}
+		
+		// The limits are enforced while streaming
+		final StringBuilder manyElements = new StringBuilder(header);
+		manyElements.append("<Identity Name=\"a\" PublishesTrustList=\"false\" Version=\"1\">");
+		for(int i = 0; i < XMLTransformer.MAX_IDENTITY_XML_ELEMENT_COUNT; ++i)
+			manyElements.append("<a/>");
+		manyElements.append("</Identity></WebOfTrust>");
+		assertTrue(manyElements.length() < XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
+		assertNotNull(mTransformer.parseIdentityXML(new ByteArrayInputStream(manyElements.toString().getBytes("UTF-8"))).parseError);
+		
+		final byte[] tooLarge = createIdentityXML(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE / 100, true);
+		assertTrue(tooLarge.length > XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
+		// available() of the stream does not tell the size, as with streams of the node
+		final XMLTransformer.ParsedIdentityXML tooLargeParsed = mTransformer.parseIdentityXML(new ByteArrayInputStream(tooLarge) {
+			public synchronized int available() {
+				return 0;
+			}
+		});
+		assertTrue(tooLargeParsed.parseError instanceof IOException);
+		
+		// The parser is reusable after a failure
+		assertNull(mTransformer.parseIdentityXML(new ByteArrayInputStream(createIdentityXML(10, true))).parseError);
+	}
+	
+	/**
+	 * Tests that {@link XMLTransformer#parseIdentityXML(java.io.InputStream)} parses a trust list which nearly fills
+	 * {@link XMLTransformer#MAX_IDENTITY_XML_BYTE_SIZE} the same as {@link XMLTransformer#parseIdentityXMLWithDOM(java.io.InputStream)},
+	 * also when the parser is used repeatedly.
+	 */
+	public void testParseLargeIdentityXML() throws Exception {
+		final int trustees = XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE / 200;
+		final byte[] xml = createIdentityXML(trustees, true);
+		assertTrue(xml.length <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
+		
+		final XMLTransformer.ParsedIdentityXML expected = mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml));
+		assertNull(expected.parseError);
+		assertEquals(trustees, expected.identityTrustList.size());
+		
+		for(int i = 0; i < 3; ++i) {
+			final XMLTransformer.ParsedIdentityXML parsed = mTransformer.parseIdentityXML(new ByteArrayInputStream(xml));
+			assertNull(parsed.parseError);
+			assertParsedIdentityXMLEquals(expected, parsed);
+		}
+	}
+	
+	/**
+	 * @return The XML of an identity with a trust list of the given size, which is similar to the XML of real identities.
+	 */
+	private byte[] createIdentityXML(int trustees, boolean publishesTrustList) throws Exception {
+		final StringBuilder xml = new StringBuilder(trustees * 200 + 512);
+		xml.append("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>");
+		xml.append("<WebOfTrust Version=\"1\">");
+		xml.append("<Identity Name=\"test-identity\" PublishesTrustList=\"" + publishesTrustList + "\" Version=\"1\">");
+		xml.append("<Context Name=\"Freetalk\"/><Context Name=\"Introduction\"/>");
+		xml.append("<Property Name=\"IntroductionPuzzleCount\" Value=\"10\"/>");
+		if(publishesTrustList) {
+			xml.append("<TrustList>");
+			for(int i = 0; i < trustees; ++i) {
+				xml.append("<Trust Comment=\"Trust comment " + i + "\" Identity=\"" + getRandomRequestURI() + "\" Value=\""
+					+ (mRandom.nextInt(201) - 100) + "\"/>");
+			}
+			xml.append("</TrustList>");
+		}
+		xml.append("</Identity></WebOfTrust>");
+		return xml.toString().getBytes("UTF-8");
+	}
+	
+	private void assertParsedIdentityXMLEquals(XMLTransformer.ParsedIdentityXML expected, XMLTransformer.ParsedIdentityXML actual) {
+		assertNull(expected.parseError);
+		assertNull(actual.parseError);
+		assertEquals(expected.identityName, actual.identityName);
+		assertEquals(expected.identityPublishesTrustList, actual.identityPublishesTrustList);
+		assertEquals(expected.identityContexts, actual.identityContexts);
+		assertEquals(expected.identityProperties, actual.identityProperties);
+		
+		if(!expected.identityPublishesTrustList)
+			return;
+		
+		assertEquals(expected.identityTrustList.size(), actual.identityTrustList.size());
+		for(int i = 0; i < expected.identityTrustList.size(); ++i) {
+			final XMLTransformer.ParsedIdentityXML.TrustListEntry expectedEntry = expected.identityTrustList.get(i);
+			final XMLTransformer.ParsedIdentityXML.TrustListEntry actualEntry = actual.identityTrustList.get(i);
+			assertEquals(expectedEntry.mTrusteeURI, actualEntry.mTrusteeURI);
+			assertEquals(expectedEntry.mTrustValue, actualEntry.mTrustValue);
+			assertEquals(expectedEntry.mTrustComment, actualEntry.mTrustComment);
+		}
+	}
+
 	public void testExportIntroductionPuzzle() {
 		//fail("Not yet implemented"); // TODO
 	}